@@ -0,0 +1,573 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Static detection of catastrophic backtracking (ReDoS) risks in a decoded pattern.
+ *
+ * The analysis looks at the shapes of the node graph which make the backtracking engine of
+ * Pattern try an exponential or polynomial number of ways to match a string, before it can
+ * report a failure:
+ *
+ * - An unbounded quantifier nested in another unbounded quantifier, where the inner one can
+ *   consume the characters which start the next iteration of the outer one, e.g. (a*)+,
+ *   (\w+\s?)+.
+ * - An alternation inside an unbounded quantifier, where two alternatives can split the same
+ *   input in two ways, e.g. (\w|\d)+, (ab|a\w)+, (a|aa)+. Alternatives which only share a
+ *   prefix, e.g. (ab|ac)* or (a|ab)+, are tried one after the other on each iteration, and do
+ *   not multiply the ways to match.
+ * - Adjacent unbounded quantifiers over overlapping character sets, e.g. \d+\d*, .*.*=.
+ *
+ * Possessive quantifiers do not backtrack, and are ignored. The character sets are resolved
+ * exactly (see CodePointSet), but nodes which the dissector does not decode are assumed to
+ * match anything, so the analysis may report a risk which does not exist, but it does not miss
+ * the shapes above.
+ */
+final class BacktrackingAnalyzer {
+    
+    enum Severity {
+        /** Matching time grows as a power of the input length */
+        POLYNOMIAL,
+        /** Matching time grows exponentially with the input length */
+        EXPONENTIAL
+    }
+    
+    enum Risk {
+        NESTED_QUANTIFIER("Nested unbounded quantifiers", Severity.EXPONENTIAL),
+        AMBIGUOUS_ALTERNATION("Alternatives matching the same string inside unbounded quantifier", Severity.EXPONENTIAL),
+        ADJACENT_QUANTIFIERS("Adjacent unbounded quantifiers over overlapping characters", Severity.POLYNOMIAL);
+        
+        final String description;
+        final Severity severity;
+        
+        private Risk(String description, Severity severity) {
+            this.description = description;
+            this.severity = severity;
+        }
+    }
+    
+    /**
+     * A backtracking risk, with the path of quantifier and alternation nodes leading to the
+     * offending node. For ADJACENT_QUANTIFIERS, the last 2 nodes of the path are the adjacent
+     * quantifiers.
+     */
+    static final class Finding {
+        private final Risk risk;
+        private final List<DissectedNode> path;
+        
+        Finding(Risk risk, List<DissectedNode> path) {
+            this.risk = risk;
+            this.path = Collections.unmodifiableList(new ArrayList<DissectedNode>(path));
+        }
+        
+        Risk risk() {
+            return risk;
+        }
+        
+        Severity severity() {
+            return risk.severity;
+        }
+        
+        List<DissectedNode> path() {
+            return path;
+        }
+        
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(risk.severity).append(": ").append(risk.description).append(": ");
+            
+            for (int i = 0; i < path.size(); i++) {
+                if (i > 0) {
+                    sb.append(risk == Risk.ADJACENT_QUANTIFIERS && i == path.size() - 1 ? " followed by " : " > ");
+                }
+                sb.append(describe(path.get(i)));
+            }
+            
+            return sb.toString();
+        }
+    }
+    
+    private BacktrackingAnalyzer() {
+    }
+    
+    /**
+     * Analyze the decoded pattern.
+     *
+     * @return the risks found, in the order of the nodes in the pattern. Empty if the pattern
+     *         failed to compile
+     */
+    static List<Finding> analyze(DissectedPattern pattern) {
+        List<Finding> findings = new ArrayList<Finding>();
+        walk(pattern.nodes(), FirstSet.EMPTY, false, new ArrayList<DissectedNode>(), findings);
+        return findings;
+    }
+    
+    /**
+     * The highest severity among the findings, null if there is none.
+     */
+    static Severity worst(List<Finding> findings) {
+        Severity worst = null;
+        
+        for (Finding finding: findings) {
+            if (worst == null || finding.severity().compareTo(worst) > 0) {
+                worst = finding.severity();
+            }
+        }
+        
+        return worst;
+    }
+    
+    /**
+     * The node, with the bounds of quantifiers.
+     */
+    static String describe(DissectedNode node) {
+        int cmin, cmax;
+        
+        switch (node.kind()) {
+            case CURLY:
+            case GROUP_CURLY:
+                DissectedNode.Curly curly = (DissectedNode.Curly) node;
+                cmin = curly.cmin();
+                cmax = curly.cmax();
+                break;
+            case LOOP:
+            case LAZY_LOOP:
+                DissectedNode.Loop loop = (DissectedNode.Loop) node;
+                cmin = loop.cmin();
+                cmax = loop.cmax();
+                break;
+            default:
+                return node.toString();
+        }
+        
+        return node.label() + "{" + cmin + "," + (cmax == Integer.MAX_VALUE ? "" : String.valueOf(cmax)) + "} [" + Integer.toHexString(node.id()) + "]";
+    }
+    
+    /**
+     * What can be matched first from some point of the pattern, up to the first node which
+     * must consume a character.
+     */
+    private static final class FirstSet {
+        static final FirstSet EMPTY = new FirstSet(CodePointSet.EMPTY, CodePointSet.EMPTY, Collections.<DissectedNode>emptyList(), true);
+        
+        /** Characters which can be consumed first */
+        final CodePointSet chars;
+        /** Part of chars which is consumed by starting another iteration of an enclosing unbounded quantifier */
+        final CodePointSet restart;
+        /** Unbounded quantifiers which can consume the first character */
+        final List<DissectedNode> runs;
+        /** Whether the end of the scope can be reached without consuming any character */
+        final boolean nullable;
+        
+        FirstSet(CodePointSet chars, CodePointSet restart, List<DissectedNode> runs, boolean nullable) {
+            this.chars = chars;
+            this.restart = restart;
+            this.runs = runs;
+            this.nullable = nullable;
+        }
+        
+        static FirstSet of(CodePointSet chars, boolean nullable) {
+            return new FirstSet(chars, CodePointSet.EMPTY, Collections.<DissectedNode>emptyList(), nullable);
+        }
+        
+        /**
+         * First set of this followed by the continuation.
+         */
+        FirstSet then(FirstSet next) {
+            if (!nullable) {
+                return this;
+            }
+            
+            return new FirstSet(chars.union(next.chars), restart.union(next.restart), concat(runs, next.runs), next.nullable);
+        }
+        
+        /**
+         * First set of either this or the other.
+         */
+        FirstSet or(FirstSet other) {
+            return new FirstSet(chars.union(other.chars), restart.union(other.restart), concat(runs, other.runs), nullable || other.nullable);
+        }
+        
+        private static List<DissectedNode> concat(List<DissectedNode> a, List<DissectedNode> b) {
+            if (a.isEmpty()) {
+                return b;
+            }
+            if (b.isEmpty()) {
+                return a;
+            }
+            
+            List<DissectedNode> list = new ArrayList<DissectedNode>(a.size() + b.size());
+            list.addAll(a);
+            list.addAll(b);
+            return list;
+        }
+    }
+    
+    private static boolean isQuantifier(DissectedNode node) {
+        switch (node.kind()) {
+            case CURLY:
+            case GROUP_CURLY:
+            case LOOP:
+            case LAZY_LOOP:
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Whether the node is a quantifier which can repeat its body without bound, and which
+     * backtracks into it.
+     */
+    private static boolean isUnboundedQuantifier(DissectedNode node) {
+        switch (node.kind()) {
+            case CURLY:
+            case GROUP_CURLY:
+                DissectedNode.Curly curly = (DissectedNode.Curly) node;
+                return curly.cmax() == Integer.MAX_VALUE && curly.quantifier() != PatternDissector.QUANTIFIER.POSSESSIVE;
+            case LOOP:
+            case LAZY_LOOP:
+                return ((DissectedNode.Loop) node).cmax() == Integer.MAX_VALUE;
+            default:
+                return false;
+        }
+    }
+    
+    private static int quantifierMin(DissectedNode node) {
+        if (node instanceof DissectedNode.Curly) {
+            return ((DissectedNode.Curly) node).cmin();
+        }
+        
+        return ((DissectedNode.Loop) node).cmin();
+    }
+    
+    private static List<DissectedNode> quantifierBody(DissectedNode node) {
+        return node.children().get(0);
+    }
+    
+    /**
+     * Characters matched by a single character node, null if the node is not one.
+     */
+    private static CodePointSet charSet(DissectedNode node) {
+        CodePointSet set = CodePointSet.resolve(node);
+        if (set != null) {
+            return set;
+        }
+        
+        switch (node.kind()) {
+            case COMPLEMENT:
+            case UNION:
+            case INTERSECTION:
+            case SET_DIFFERENCE:
+                // An operand is not decoded
+                return CodePointSet.ALL;
+            default:
+                return null;
+        }
+    }
+    
+    private static boolean isLastNode(DissectedNode node) {
+        return node.kind() == DissectedNode.Kind.UNKNOWN && ((DissectedNode.Unknown) node).className().endsWith("$LastNode");
+    }
+    
+    /**
+     * First set of a single node, without what follows it.
+     */
+    private static FirstSet firstOf(DissectedNode node) {
+        CodePointSet set = charSet(node);
+        if (set != null) {
+            return FirstSet.of(set, false);
+        }
+        
+        switch (node.kind()) {
+            case SLICE:
+            case SLICE_S:
+            case BNM:
+            case BNM_S:
+                DissectedNode.Literal literal = (DissectedNode.Literal) node;
+                return literal.length() == 0 ? FirstSet.EMPTY : FirstSet.of(CodePointSet.of(literal.codePoints()[0]), false);
+            case CURLY:
+            case GROUP_CURLY:
+            case LOOP:
+            case LAZY_LOOP:
+                {
+                    FirstSet body = firstOf(quantifierBody(node), FirstSet.EMPTY);
+                    List<DissectedNode> runs = isUnboundedQuantifier(node) ? Collections.singletonList(node) : body.runs;
+                    
+                    return new FirstSet(body.chars, CodePointSet.EMPTY, runs, body.nullable || quantifierMin(node) == 0);
+                }
+            case BRANCH:
+                {
+                    FirstSet first = null;
+                    
+                    for (List<DissectedNode> alternative: ((DissectedNode.Branch) node).alternatives()) {
+                        FirstSet alt = firstOf(alternative, FirstSet.EMPTY);
+                        first = first == null ? alt : first.or(alt);
+                    }
+                    return first == null ? FirstSet.EMPTY : first;
+                }
+            case BACK_REF:
+                return FirstSet.of(CodePointSet.ALL, true);
+            case UNKNOWN:
+                // e.g. Ques, which wraps an optional atom that is not decoded
+                return isLastNode(node) ? FirstSet.EMPTY : FirstSet.of(CodePointSet.ALL, true);
+            default:
+                // Anchors, look-around, group boundaries and the other zero-width nodes
+                return FirstSet.EMPTY;
+        }
+    }
+    
+    private static FirstSet firstOf(List<DissectedNode> sequence, FirstSet continuation) {
+        FirstSet first = continuation;
+        
+        for (int i = sequence.size() - 1; i >= 0; i--) {
+            first = firstOf(sequence.get(i)).then(first);
+        }
+        
+        return first;
+    }
+    
+    /**
+     * Characters which can be consumed anywhere in the node.
+     */
+    private static CodePointSet consumed(DissectedNode node) {
+        CodePointSet set = charSet(node);
+        if (set != null) {
+            return set;
+        }
+        
+        switch (node.kind()) {
+            case SLICE:
+            case SLICE_S:
+            case BNM:
+            case BNM_S:
+                return CodePointSet.of(((DissectedNode.Literal) node).codePoints());
+            case BACK_REF:
+                return CodePointSet.ALL;
+            case UNKNOWN:
+                return isLastNode(node) ? CodePointSet.EMPTY : CodePointSet.ALL;
+            case POS:
+            case NEG:
+            case BEHIND:
+                return CodePointSet.EMPTY;
+            default:
+                CodePointSet result = CodePointSet.EMPTY;
+                
+                for (List<DissectedNode> child: node.children()) {
+                    for (DissectedNode n: child) {
+                        result = result.union(consumed(n));
+                    }
+                }
+                return result;
+        }
+    }
+    
+    /**
+     * @param continuation first set of what follows the sequence
+     * @param inLoop whether the sequence is in the body of an unbounded quantifier
+     * @param path quantifier and alternation nodes enclosing the sequence
+     */
+    private static void walk(List<DissectedNode> sequence, FirstSet continuation, boolean inLoop, List<DissectedNode> path, List<Finding> findings) {
+        FirstSet[] follow = new FirstSet[sequence.size() + 1];
+        follow[sequence.size()] = continuation;
+        
+        for (int i = sequence.size() - 1; i >= 0; i--) {
+            follow[i] = firstOf(sequence.get(i)).then(follow[i + 1]);
+        }
+        
+        for (int i = 0; i < sequence.size(); i++) {
+            DissectedNode node = sequence.get(i);
+            FirstSet next = follow[i + 1];
+            
+            if (isQuantifier(node)) {
+                boolean unbounded = isUnboundedQuantifier(node);
+                List<DissectedNode> body = quantifierBody(node);
+                
+                path.add(node);
+                
+                if (unbounded) {
+                    CodePointSet chars = consumed(node);
+                    
+                    if (inLoop && chars.intersects(next.restart)) {
+                        findings.add(new Finding(Risk.NESTED_QUANTIFIER, path));
+                    } else {
+                        for (DissectedNode run: next.runs) {
+                            if (run != node && chars.intersects(consumed(run))) {
+                                List<DissectedNode> pair = new ArrayList<DissectedNode>(path);
+                                pair.add(run);
+                                findings.add(new Finding(Risk.ADJACENT_QUANTIFIERS, pair));
+                                break;
+                            }
+                        }
+                    }
+                }
+                
+                FirstSet bodyFirst = firstOf(body, FirstSet.EMPTY);
+                
+                // The body is followed by either another iteration or what follows the quantifier
+                FirstSet bodyContinuation = new FirstSet(
+                    bodyFirst.chars.union(next.chars),
+                    unbounded ? bodyFirst.chars.union(next.restart) : next.restart,
+                    FirstSet.concat(bodyFirst.runs, next.runs),
+                    next.nullable);
+                
+                walk(body, bodyContinuation, inLoop || unbounded, path, findings);
+                
+                path.remove(path.size() - 1);
+            } else if (node.kind() == DissectedNode.Kind.BRANCH) {
+                List<List<DissectedNode>> alternatives = ((DissectedNode.Branch) node).alternatives();
+                
+                path.add(node);
+                
+                if (inLoop) {
+                    checkAlternatives(alternatives, next, path, findings);
+                }
+                
+                for (List<DissectedNode> alternative: alternatives) {
+                    walk(alternative, next, inLoop, path, findings);
+                }
+                
+                path.remove(path.size() - 1);
+            } else if (node instanceof DissectedNode.Lookaround) {
+                // The look-around is matched on its own, and is not backtracked into once it succeeds
+                walk(((DissectedNode.Lookaround) node).cond(), FirstSet.EMPTY, false, new ArrayList<DissectedNode>(), findings);
+            }
+        }
+    }
+    
+    private static void checkAlternatives(List<List<DissectedNode>> alternatives, FirstSet next, List<DissectedNode> path, List<Finding> findings) {
+        // Alternatives which start with different single characters cannot match the same
+        // string, so only those of the same bucket are compared, and those with a wider first
+        // set are compared with every other one
+        Map<Integer, List<Prefix>> buckets = new HashMap<Integer, List<Prefix>>();
+        List<Prefix> others = new ArrayList<Prefix>();
+        List<Prefix> all = new ArrayList<Prefix>(alternatives.size());
+        
+        for (List<DissectedNode> alternative: alternatives) {
+            Prefix prefix = prefixOf(alternative);
+            CodePointSet first = prefix.steps.isEmpty() ? null : prefix.steps.get(0);
+            
+            if (first != null && first.size() == 1) {
+                List<Prefix> bucket = buckets.get(first.min());
+                if (bucket == null) {
+                    bucket = new ArrayList<Prefix>();
+                    buckets.put(first.min(), bucket);
+                }
+                
+                if (isAmbiguous(prefix, bucket, next) || isAmbiguous(prefix, others, next)) {
+                    findings.add(new Finding(Risk.AMBIGUOUS_ALTERNATION, path));
+                    return;
+                }
+                bucket.add(prefix);
+            } else {
+                if (isAmbiguous(prefix, all, next)) {
+                    findings.add(new Finding(Risk.AMBIGUOUS_ALTERNATION, path));
+                    return;
+                }
+                others.add(prefix);
+            }
+            
+            all.add(prefix);
+        }
+    }
+    
+    /**
+     * An alternative, split into the characters consumed one at a time by its leading nodes,
+     * and the nodes which follow them.
+     */
+    private static final class Prefix {
+        final List<CodePointSet> steps = new ArrayList<CodePointSet>();
+        List<DissectedNode> rest;
+    }
+    
+    private static Prefix prefixOf(List<DissectedNode> alternative) {
+        Prefix prefix = new Prefix();
+        int i = 0;
+        
+        loop:
+        for (; i < alternative.size(); i++) {
+            DissectedNode node = alternative.get(i);
+            CodePointSet set = charSet(node);
+            
+            if (set != null) {
+                prefix.steps.add(set);
+                continue;
+            }
+            
+            switch (node.kind()) {
+                case SLICE:
+                case SLICE_S:
+                case BNM:
+                case BNM_S:
+                    for (int c: ((DissectedNode.Literal) node).codePoints()) {
+                        prefix.steps.add(CodePointSet.of(c));
+                    }
+                    break;
+                case GROUP_HEAD:
+                case GROUP_TAIL:
+                case BRANCH_CONN:
+                    break;
+                default:
+                    break loop;
+            }
+        }
+        
+        prefix.rest = alternative.subList(i, alternative.size());
+        return prefix;
+    }
+    
+    private static boolean isAmbiguous(Prefix prefix, List<Prefix> others, FirstSet next) {
+        for (Prefix other: others) {
+            if (isAmbiguous(prefix, other, next)) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Whether the alternatives can split the same input in two ways: after the characters they
+     * can both consume one at a time, either they can still consume the same character, or one
+     * of them ends there and the other can consume a character which can also follow the
+     * alternation, e.g. (a|aa)+. A literal which is only a prefix of another, e.g. (a|ab)+ or
+     * (?:in|int|interface)+, splits each input one way.
+     *
+     * @param next first set of what follows the alternatives
+     */
+    private static boolean isAmbiguous(Prefix a, Prefix b, FirstSet next) {
+        int common = Math.min(a.steps.size(), b.steps.size());
+        
+        for (int i = 0; i < common; i++) {
+            if (!a.steps.get(i).intersects(b.steps.get(i))) {
+                return false;
+            }
+        }
+        
+        boolean aEnds = a.steps.size() == common && a.rest.isEmpty();
+        boolean bEnds = b.steps.size() == common && b.rest.isEmpty();
+        if (aEnds && bEnds) {
+            return true;
+        }
+        if (aEnds || bEnds) {
+            Prefix longer = aEnds ? b : a;
+            
+            if (longer.steps.size() == common && firstOf(longer.rest, FirstSet.EMPTY).nullable) {
+                return true;
+            }
+            return continuation(longer, common, next).intersects(next.chars.union(next.restart));
+        }
+        
+        return continuation(a, common, next).intersects(continuation(b, common, next));
+    }
+    
+    /**
+     * Characters which the alternative can consume after the first steps.
+     */
+    private static CodePointSet continuation(Prefix prefix, int steps, FirstSet next) {
+        return prefix.steps.size() > steps ? prefix.steps.get(steps) : firstOf(prefix.rest, next).chars;
+    }
+}
@@ -0,0 +1,411 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.util.regex.Pattern;
+
+/**
+ * Dissect a list of patterns, one per line, across a pool of worker threads.
+ *
+ * Each line is either a pattern, or flags and a pattern separated by a tab character, e.g.
+ * "2\t^abc$" for Pattern.CASE_INSENSITIVE. Flags are given as a decimal integer, as printed
+ * in the "Flags" line of the dissector output. Empty lines are skipped.
+ *
+ * The results are written as they are completed, either in the order of the input, or in the
+ * order of completion. At most a fixed number of patterns per thread are in flight, so the
+ * memory used does not depend on the size of the input.
+ */
+final class BatchDissector {
+    
+    /**
+     * Options of a batch run. The logging level is per run, instead of the static one used by
+     * PatternDissector.dissect().
+     */
+    static final class Options {
+        final int threads;
+        final boolean ordered;
+        final PatternDissector.LoggingLevel loggingLevel;
+        final ThreadFactory threadFactory;
+        final DissectionCache cache;
+        final boolean analyze;
+        final boolean advise;
+        final boolean footprint;
+        
+        /**
+         * @param threadFactory factory of the worker threads, e.g. one creating virtual threads
+         *                      on JDK versions which support them. null for the default factory
+         * @param cache cache of the dissection results, which may be shared between runs.
+         *              null to dissect every pattern
+         * @param analyze whether to report the backtracking risks found by BacktrackingAnalyzer
+         * @param advise whether to report the missed optimizations found by OptimizationAdvisor
+         * @param footprint whether to report the memory allocated per Matcher by MatcherFootprint
+         */
+        Options(int threads, boolean ordered, PatternDissector.LoggingLevel loggingLevel, ThreadFactory threadFactory, DissectionCache cache, boolean analyze, boolean advise, boolean footprint) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+            }
+            
+            this.threads = threads;
+            this.ordered = ordered;
+            this.loggingLevel = loggingLevel;
+            this.threadFactory = threadFactory;
+            this.cache = cache;
+            this.analyze = analyze;
+            this.advise = advise;
+            this.footprint = footprint;
+        }
+        
+        Options(int threads, boolean ordered, PatternDissector.LoggingLevel loggingLevel) {
+            this(threads, ordered, loggingLevel, null, null, false, false, false);
+        }
+    }
+    
+    /**
+     * A pattern read from the input, with its line number (1-based).
+     */
+    static final class Entry {
+        final int lineNumber;
+        final String pattern;
+        final int flags;
+        
+        Entry(int lineNumber, String pattern, int flags) {
+            this.lineNumber = lineNumber;
+            this.pattern = pattern;
+            this.flags = flags;
+        }
+    }
+    
+    /**
+     * Maximum number of patterns in flight per worker thread.
+     */
+    private static final int IN_FLIGHT_PER_THREAD = 16;
+    
+    private BatchDissector() {
+    }
+    
+    /**
+     * Parse an input line.
+     *
+     * @return null if the line is empty
+     */
+    static Entry parseLine(String line, int lineNumber) {
+        if (line.isEmpty()) {
+            return null;
+        }
+        
+        int tab = line.indexOf('\t');
+        
+        if (tab > 0) {
+            try {
+                int flags = Integer.parseInt(line.substring(0, tab));
+                return new Entry(lineNumber, line.substring(tab + 1), flags);
+            } catch (NumberFormatException e) {
+                // The tab is part of the pattern
+            }
+        }
+        
+        return new Entry(lineNumber, line, 0);
+    }
+    
+    /**
+     * Dissect all patterns from the input and write the results to the output.
+     *
+     * @return number of patterns dissected
+     */
+    static int run(BufferedReader in, Writer out, Options options) throws IOException, InterruptedException {
+        ExecutorService executor = options.threadFactory != null
+            ? Executors.newFixedThreadPool(options.threads, options.threadFactory)
+            : Executors.newFixedThreadPool(options.threads);
+        
+        try {
+            return options.ordered ? runOrdered(in, out, options, executor) : runUnordered(in, out, options, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private static int runOrdered(BufferedReader in, Writer out, Options options, ExecutorService executor) throws IOException, InterruptedException {
+        ThreadLocal<DissectionRenderer> renderers = renderers(options);
+        int maxInFlight = options.threads * IN_FLIGHT_PER_THREAD;
+        Deque<Future<String>> inFlight = new ArrayDeque<Future<String>>(maxInFlight);
+        
+        int count = 0;
+        int lineNumber = 0;
+        String line;
+        
+        while ((line = in.readLine()) != null) {
+            Entry entry = parseLine(line, ++lineNumber);
+            
+            if (entry == null) {
+                continue;
+            }
+            
+            if (inFlight.size() >= maxInFlight) {
+                out.write(await(inFlight.removeFirst()));
+            }
+            
+            inFlight.addLast(executor.submit(task(entry, options, renderers, false)));
+            count++;
+        }
+        
+        while (!inFlight.isEmpty()) {
+            out.write(await(inFlight.removeFirst()));
+        }
+        
+        out.flush();
+        return count;
+    }
+    
+    private static int runUnordered(BufferedReader in, Writer out, Options options, ExecutorService executor) throws IOException, InterruptedException {
+        ThreadLocal<DissectionRenderer> renderers = renderers(options);
+        int maxInFlight = options.threads * IN_FLIGHT_PER_THREAD;
+        CompletionService<String> completion = new ExecutorCompletionService<String>(executor);
+        
+        int count = 0;
+        int inFlight = 0;
+        int lineNumber = 0;
+        String line;
+        
+        while ((line = in.readLine()) != null) {
+            Entry entry = parseLine(line, ++lineNumber);
+            
+            if (entry == null) {
+                continue;
+            }
+            
+            if (inFlight >= maxInFlight) {
+                out.write(await(completion.take()));
+                inFlight--;
+            }
+            
+            completion.submit(task(entry, options, renderers, true));
+            inFlight++;
+            count++;
+            
+            Future<String> done;
+            while ((done = completion.poll()) != null) {
+                out.write(await(done));
+                inFlight--;
+            }
+        }
+        
+        while (inFlight > 0) {
+            out.write(await(completion.take()));
+            inFlight--;
+        }
+        
+        out.flush();
+        return count;
+    }
+    
+    private static ThreadLocal<DissectionRenderer> renderers(final Options options) {
+        return new ThreadLocal<DissectionRenderer>() {
+            @Override
+            protected DissectionRenderer initialValue() {
+                return new DissectionRenderer(options.loggingLevel);
+            }
+        };
+    }
+    
+    private static Callable<String> task(final Entry entry, final Options options, final ThreadLocal<DissectionRenderer> renderers, final boolean printLineNumber) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                String header = printLineNumber ? "[line " + entry.lineNumber + "]\n" : "";
+                
+                try {
+                    DissectedPattern result = options.cache != null
+                        ? options.cache.get(entry.pattern, entry.flags)
+                        : PatternDissector.decode(entry.pattern, entry.flags);
+                    String output = header + renderers.get().render(result, true);
+                    
+                    if (options.analyze || options.advise || options.footprint) {
+                        StringBuilder sb = new StringBuilder(output);
+                        
+                        if (options.analyze) {
+                            for (BacktrackingAnalyzer.Finding finding: BacktrackingAnalyzer.analyze(result)) {
+                                sb.append("Backtracking risk: ").append(finding).append('\n');
+                            }
+                        }
+                        if (options.advise) {
+                            for (OptimizationAdvisor.Advice advice: OptimizationAdvisor.advise(result)) {
+                                sb.append("Missed optimization: ").append(advice).append('\n');
+                            }
+                        }
+                        if (options.footprint && result.isCompiled()) {
+                            MatcherFootprint footprint = MatcherFootprint.of(Pattern.compile(entry.pattern, entry.flags), result);
+                            sb.append("Matcher footprint: ").append(footprint).append('\n');
+                        }
+                        output = sb.toString();
+                    }
+                    
+                    return output;
+                } catch (IllegalAccessException|RuntimeException e) {
+                    // Report the failure in place of the result, so the rest of the batch goes on
+                    return header + entry.pattern + "\nDissection failed: " + e + "\n\n";
+                }
+            }
+        };
+    }
+    
+    private static String await(Future<String> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: PatternDissector --batch [--threads N] [--unordered] [--verbose] [--cache N] [--analyze] [--advise] [--footprint] [--metrics] [FILE|-]");
+        System.err.println();
+        System.err.println("Read patterns from FILE, or standard input if FILE is - or absent, one per line.");
+        System.err.println("A line may start with the flags as a decimal integer, followed by a tab character.");
+        System.err.println("--cache N keeps the results of the N most recently seen patterns, for repeated patterns.");
+        System.err.println("--analyze reports the catastrophic backtracking risks found in each pattern.");
+        System.err.println("--advise reports the optimized nodes which each pattern misses, with a rewrite which gets them.");
+        System.err.println("--footprint reports the groups, locals and bytes allocated per Matcher of each pattern.");
+        System.err.println("--metrics reports the time and bytes allocated in each phase of the dissection, to standard error.");
+    }
+    
+    /**
+     * Command line entry of the batch mode.
+     *
+     * @return exit status
+     */
+    static int run(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean ordered = true;
+        PatternDissector.LoggingLevel loggingLevel = PatternDissector.LoggingLevel.SIMPLE;
+        int cacheSize = 0;
+        boolean analyze = false;
+        boolean advise = false;
+        boolean footprint = false;
+        boolean metrics = false;
+        String file = "-";
+        
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads":
+                    if (i + 1 >= args.length) {
+                        usage();
+                        return 2;
+                    }
+                    
+                    try {
+                        threads = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException e) {
+                        usage();
+                        return 2;
+                    }
+                    break;
+                case "--cache":
+                    if (i + 1 >= args.length) {
+                        usage();
+                        return 2;
+                    }
+                    
+                    try {
+                        cacheSize = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException e) {
+                        usage();
+                        return 2;
+                    }
+                    break;
+                case "--analyze":
+                    analyze = true;
+                    break;
+                case "--advise":
+                    advise = true;
+                    break;
+                case "--footprint":
+                    footprint = true;
+                    break;
+                case "--metrics":
+                    metrics = true;
+                    break;
+                case "--unordered":
+                    ordered = false;
+                    break;
+                case "--verbose":
+                    loggingLevel = PatternDissector.LoggingLevel.VERBOSE;
+                    break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        usage();
+                        return 2;
+                    }
+                    
+                    file = args[i];
+            }
+        }
+        
+        Options options;
+        try {
+            DissectionCache cache = cacheSize > 0 ? new DissectionCache(cacheSize) : null;
+            options = new Options(threads, ordered, loggingLevel, new WorkerThreadFactory(), cache, analyze, advise, footprint);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 2;
+        }
+        
+        if (metrics) {
+            DissectorMetrics.enable();
+        }
+        
+        try (InputStream input = file.equals("-") ? System.in : new FileInputStream(file)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            
+            run(in, out, options);
+            
+            if (options.cache != null) {
+                System.err.println(options.cache);
+            }
+            if (metrics) {
+                DissectorMetrics.report(System.err);
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Daemon worker threads, so that a failed batch does not keep the JVM alive.
+     */
+    static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "dissector-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
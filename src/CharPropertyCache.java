@@ -0,0 +1,428 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Exact sets of the character class nodes which are only known by their predicate, such as
+ * \p{L} (Category), \p{InEmoticons} (Block), \p{IsLatin} (Script), \p{IsAlphabetic} (Utype),
+ * \p{javaLowerCase} or a case-insensitive range.
+ *
+ * The set is found by calling isSatisfiedBy() on every code point, split in chunks which are
+ * evaluated in parallel on the common fork-join pool. Since this takes a scan of all code
+ * points, the sets are only evaluated when an analysis asks for them (see
+ * DissectedNode.Debug.members()), not by the decoding. The sets of the property classes
+ * (Category, Block, Script, Utype and the predicates of CharPropertyNames) are cached in memory,
+ * so that a property is only evaluated once. The other nodes, e.g. the case-insensitive ranges,
+ * can take any number of values, so only the MAX_TRANSIENT_SETS most recently used are kept.
+ *
+ * The sets of the property classes are also stored in a file of the cache directory, when the
+ * system property patterndissector.cache.dir gives one (the pattern-dissector script does), so
+ * that a property is only evaluated once per JDK. Nothing is written to the disk otherwise.
+ *
+ * A node is identified by its class and the values of its fields. Since the classes and the
+ * predicates change with the JCL, and the properties with the version of Unicode it
+ * implements, the cache file is specific to the Java runtime version. The cache is only kept in
+ * memory if the file cannot be written.
+ */
+final class CharPropertyCache {
+    
+    private CharPropertyCache() {
+    }
+    
+    /** Number of code points evaluated by a single task */
+    private static final int CHUNK_SIZE = 0x4000;
+    
+    private static final String JAVA_VERSION = System.getProperty("java.runtime.version", System.getProperty("java.version"));
+    
+    /** Version of the Unicode Standard implemented by java.lang.Character, by Java specification version */
+    private static final Map<String, String> UNICODE_VERSIONS;
+    static {
+        Map<String, String> m = new HashMap<String, String>();
+        
+        m.put("1.7", "6.0");
+        m.put("1.8", "6.2");
+        m.put("9", "8.0");
+        m.put("10", "8.0");
+        m.put("11", "10.0");
+        m.put("12", "11.0");
+        m.put("13", "12.1");
+        
+        UNICODE_VERSIONS = m;
+    }
+    
+    static final String UNICODE_VERSION = unicodeVersion(System.getProperty("java.specification.version"));
+    
+    private static String unicodeVersion(String specificationVersion) {
+        String version = UNICODE_VERSIONS.get(specificationVersion);
+        return version != null ? version : "unknown";
+    }
+    
+    private static final int MAX_TRANSIENT_SETS = 256;
+    
+    /** System property of the cache directory, without which the sets are not stored */
+    static final String CACHE_DIRECTORY_PROPERTY = "patterndissector.cache.dir";
+    
+    /** Classes of the properties which are stored in the cache file, by name */
+    private static final String[] PROPERTY_CLASSES = {
+        "java.util.regex.Pattern$Category",
+        "java.util.regex.Pattern$Block",
+        "java.util.regex.Pattern$Script",
+        "java.util.regex.Pattern$Utype",
+        "java.util.regex.Pattern$CharPropertyNames$CloneableProperty",
+    };
+    
+    /** Sets of the property classes, guarded by the class lock, as are the other fields */
+    private static final Map<String, CodePointSet> SETS = new HashMap<String, CodePointSet>();
+    /** Sets of the other nodes, least recently used first */
+    private static final LinkedHashMap<String, CodePointSet> TRANSIENT_SETS = new LinkedHashMap<String, CodePointSet>(16, 0.75f, true);
+    private static boolean loaded;
+    
+    /** Lock of the appends to the cache file, which are not made while holding the class lock */
+    private static final Object FILE_LOCK = new Object();
+    
+    private static long evaluations;
+    
+    /**
+     * Code points matched by the character class node.
+     *
+     * @return null if the node cannot be identified for caching (e.g. it has a field of a type
+     *         other than a primitive, a String or an enum)
+     */
+    static CodePointSet members(Object charProperty) {
+        String key = key(charProperty);
+        if (key == null) {
+            return null;
+        }
+        
+        synchronized (CharPropertyCache.class) {
+            if (!loaded) {
+                load();
+                loaded = true;
+            }
+            
+            CodePointSet set = cached(key);
+            if (set != null) {
+                return set;
+            }
+        }
+        
+        // Evaluated outside the lock; concurrent callers may evaluate the same node, only the first result is kept
+        CodePointSet set = evaluate(charProperty);
+        boolean persistent = isProperty(charProperty.getClass());
+        
+        synchronized (CharPropertyCache.class) {
+            CodePointSet existing = cached(key);
+            if (existing != null) {
+                return existing;
+            }
+            
+            evaluations++;
+            
+            if (!persistent) {
+                TRANSIENT_SETS.put(key, set);
+                
+                Iterator<CodePointSet> it = TRANSIENT_SETS.values().iterator();
+                while (TRANSIENT_SETS.size() > MAX_TRANSIENT_SETS) {
+                    it.next();
+                    it.remove();
+                }
+                return set;
+            }
+            
+            SETS.put(key, set);
+        }
+        
+        if (key.indexOf('\n') < 0 && key.indexOf('\r') < 0) {
+            store(key, set);
+        }
+        
+        return set;
+    }
+    
+    private static CodePointSet cached(String key) {
+        CodePointSet set = SETS.get(key);
+        return set != null ? set : TRANSIENT_SETS.get(key);
+    }
+    
+    private static boolean isPropertyKey(String key) {
+        int brace = key.indexOf('{');
+        if (brace < 0) {
+            return false;
+        }
+        
+        try {
+            return isProperty(Class.forName(key.substring(0, brace), false, CharPropertyCache.class.getClassLoader()));
+        } catch (ClassNotFoundException|LinkageError e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Whether the nodes of the class are instances of a property class, whose sets are stored in
+     * the cache file.
+     */
+    private static boolean isProperty(Class<?> clazz) {
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (String name: PROPERTY_CLASSES) {
+                if (c.getName().equals(name)) {
+                    return true;
+                }
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Number of nodes evaluated since the start of the JVM, rather than found in the cache.
+     */
+    static synchronized long evaluations() {
+        return evaluations;
+    }
+    
+    /**
+     * Evaluate the predicate of the node over all code points, in parallel.
+     */
+    static CodePointSet evaluate(Object charProperty) {
+        return ForkJoinPool.commonPool().invoke(new Evaluation(charProperty, 0, Character.MAX_CODE_POINT + 1));
+    }
+    
+    private static final class Evaluation extends RecursiveTask<CodePointSet> {
+        private static final long serialVersionUID = 1L;
+        
+        private final transient Object charProperty;
+        private final int from;
+        private final int to;
+        
+        Evaluation(Object charProperty, int from, int to) {
+            this.charProperty = charProperty;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected CodePointSet compute() {
+            if (to - from <= CHUNK_SIZE) {
+                return evaluateChunk();
+            }
+            
+            int middle = (from + to) >>> 1;
+            Evaluation lower = new Evaluation(charProperty, from, middle);
+            Evaluation upper = new Evaluation(charProperty, middle, to);
+            
+            lower.fork();
+            CodePointSet upperSet = upper.compute();
+            return lower.join().union(upperSet);
+        }
+        
+        private CodePointSet evaluateChunk() {
+            int[] bounds = new int[16];
+            int p = 0;
+            boolean inside = false;
+            
+            for (int c = from; c < to; c++) {
+                if (NodeAccessors.isSatisfiedBy(charProperty, c) != inside) {
+                    if (p == bounds.length) {
+                        bounds = Arrays.copyOf(bounds, p * 2);
+                    }
+                    bounds[p++] = c;
+                    inside = !inside;
+                }
+            }
+            
+            if (inside) {
+                if (p == bounds.length) {
+                    bounds = Arrays.copyOf(bounds, p + 1);
+                }
+                bounds[p++] = to;
+            }
+            
+            return CodePointSet.fromBounds(bounds, p);
+        }
+    }
+    
+    /**
+     * Fields which identify the nodes of a class: the instance fields declared by the class and
+     * its superclasses below CharProperty, except the reference to the enclosing instance of
+     * anonymous classes, which their predicates do not depend on.
+     */
+    private static final ClassValue<List<Field>> KEY_FIELDS = new ClassValue<List<Field>>() {
+        @Override
+        protected List<Field> computeValue(Class<?> clazz) {
+            List<Field> fields = new ArrayList<Field>();
+            
+            for (Class<?> c = clazz; c != null && c != NodeAccessors.CHAR_PROPERTY && c != Object.class; c = c.getSuperclass()) {
+                for (Field field: c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic() && field.getName().startsWith("this$")) {
+                        continue;
+                    }
+                    
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+            }
+            
+            return fields;
+        }
+    };
+    
+    /**
+     * Key of the node in the cache, e.g. java.util.regex.Pattern$Category{typeMask=62}.
+     *
+     * @return null if a field of the node is not a primitive, a String, an enum or a
+     *         Character.Subset (e.g. Character.UnicodeBlock)
+     */
+    static String key(Object charProperty) {
+        StringBuilder sb = new StringBuilder(charProperty.getClass().getName()).append('{');
+        List<Field> fields = KEY_FIELDS.get(charProperty.getClass());
+        
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = fields.get(i);
+            Object value;
+            try {
+                value = field.get(charProperty);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+            
+            if (value != null && !field.getType().isPrimitive() && !(value instanceof String)
+                    && !(value instanceof Enum) && !(value instanceof Character.Subset)) {
+                return null;
+            }
+            
+            sb.append(i > 0 ? "," : "").append(field.getName()).append('=').append(value);
+        }
+        
+        return sb.append('}').toString();
+    }
+    
+    /**
+     * The file of the cache directory with the name, in which the characters other than
+     * letters, digits, '.', '_' and '-' are replaced. Null if the cache directory property is
+     * not set, in which case nothing is read from or written to the disk.
+     */
+    static File cacheFile(String name) {
+        String directory = System.getProperty(CACHE_DIRECTORY_PROPERTY);
+        
+        if (directory == null) {
+            return null;
+        }
+        
+        return new File(directory, name.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+    
+    /**
+     * The cache file of the running JDK, null if there is no cache directory.
+     */
+    static File cacheFile() {
+        return cacheFile("charproperties-java" + JAVA_VERSION + "-unicode" + UNICODE_VERSION + ".txt");
+    }
+    
+    /**
+     * Read the cache file, one node per line: the key, a tab, then the ranges in hexadecimal,
+     * e.g. 41-5A 61-7A AA. Malformed lines are ignored.
+     */
+    private static void load() {
+        File file = cacheFile();
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            
+            while ((line = in.readLine()) != null) {
+                int tab = line.lastIndexOf('\t');
+                
+                if (line.startsWith("#") || tab < 0) {
+                    continue;
+                }
+                
+                String key = line.substring(0, tab);
+                
+                try {
+                    // The sets of the other nodes may have been stored by an earlier version
+                    if (isPropertyKey(key)) {
+                        SETS.put(key, parse(line.substring(tab + 1)));
+                    }
+                } catch (IllegalArgumentException e) {
+                    // Malformed line, the node will be evaluated again
+                }
+            }
+        } catch (IOException e) {
+            // The cache is only an optimization
+        }
+    }
+    
+    private static CodePointSet parse(String ranges) {
+        String[] tokens = ranges.trim().isEmpty() ? new String[0] : ranges.trim().split(" ");
+        int[] bounds = new int[tokens.length * 2];
+        
+        for (int i = 0; i < tokens.length; i++) {
+            int dash = tokens[i].indexOf('-');
+            
+            bounds[i * 2] = Integer.parseInt(dash < 0 ? tokens[i] : tokens[i].substring(0, dash), 16);
+            bounds[i * 2 + 1] = Integer.parseInt(dash < 0 ? tokens[i] : tokens[i].substring(dash + 1), 16) + 1;
+        }
+        
+        return CodePointSet.fromBounds(bounds, bounds.length);
+    }
+    
+    /**
+     * Append the set to the cache file.
+     */
+    private static void store(String key, CodePointSet set) {
+        File file = cacheFile();
+        if (file == null) {
+            return;
+        }
+        
+        StringBuilder sb = new StringBuilder();
+        
+        sb.append(key).append('\t');
+        for (int i = 0; i < set.rangeCount(); i++) {
+            sb.append(i > 0 ? " " : "").append(Integer.toHexString(set.lower(i)).toUpperCase());
+            
+            if (set.upper(i) > set.lower(i)) {
+                sb.append('-').append(Integer.toHexString(set.upper(i)).toUpperCase());
+            }
+        }
+        sb.append('\n');
+        
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        
+        synchronized (FILE_LOCK) {
+            String header = file.exists() ? "" : "# Character class members, Java " + JAVA_VERSION + ", Unicode " + UNICODE_VERSION + "\n";
+            
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+                out.write(header + sb);
+            } catch (IOException e) {
+                // The cache is only an optimization
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Minimal reader of the class file format (JVMS chapter 4).
+ *
+ * Only the structure needed by the dissector tools is decoded: the constant pool, the fields,
+ * the methods and their attributes. Everything else is accessed by offset into the original
+ * bytes, so that a rewriter can copy the parts it does not change verbatim.
+ */
+final class ClassFile {
+    
+    static final int CONSTANT_UTF8 = 1;
+    static final int CONSTANT_INTEGER = 3;
+    static final int CONSTANT_FLOAT = 4;
+    static final int CONSTANT_LONG = 5;
+    static final int CONSTANT_DOUBLE = 6;
+    static final int CONSTANT_CLASS = 7;
+    static final int CONSTANT_STRING = 8;
+    static final int CONSTANT_FIELDREF = 9;
+    static final int CONSTANT_METHODREF = 10;
+    static final int CONSTANT_INTERFACE_METHODREF = 11;
+    static final int CONSTANT_NAME_AND_TYPE = 12;
+    static final int CONSTANT_METHOD_HANDLE = 15;
+    static final int CONSTANT_METHOD_TYPE = 16;
+    static final int CONSTANT_DYNAMIC = 17;
+    static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    static final int CONSTANT_MODULE = 19;
+    static final int CONSTANT_PACKAGE = 20;
+    
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_NATIVE = 0x0100;
+    static final int ACC_ABSTRACT = 0x0400;
+    
+    /**
+     * An attribute: the name, and the position of its info in the class file.
+     */
+    static final class Attribute {
+        final String name;
+        /** Offset of attribute_name_index */
+        final int offset;
+        /** Offset of the info, right after attribute_length */
+        final int infoOffset;
+        final int length;
+        
+        Attribute(String name, int offset, int infoOffset, int length) {
+            this.name = name;
+            this.offset = offset;
+            this.infoOffset = infoOffset;
+            this.length = length;
+        }
+        
+        /**
+         * Offset right after the attribute.
+         */
+        int end() {
+            return infoOffset + length;
+        }
+    }
+    
+    /**
+     * A field or a method.
+     */
+    static final class Member {
+        final int accessFlags;
+        final String name;
+        final String descriptor;
+        /** Offset of access_flags */
+        final int offset;
+        final List<Attribute> attributes;
+        
+        Member(int accessFlags, String name, String descriptor, int offset, List<Attribute> attributes) {
+            this.accessFlags = accessFlags;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.offset = offset;
+            this.attributes = Collections.unmodifiableList(attributes);
+        }
+        
+        /**
+         * Offset right after the member.
+         */
+        int end() {
+            return attributes.isEmpty() ? offset + 8 : attributes.get(attributes.size() - 1).end();
+        }
+        
+        /**
+         * @return null if the member has no such attribute
+         */
+        Attribute attribute(String name) {
+            for (Attribute a: attributes) {
+                if (a.name.equals(name)) {
+                    return a;
+                }
+            }
+            
+            return null;
+        }
+    }
+    
+    private final byte[] bytes;
+    
+    /** Offset of the tag of each constant pool entry, 0 for the unusable entries */
+    private final int[] cpOffsets;
+    private final String[] utf8Cache;
+    private final int cpEnd;
+    
+    private final int thisClass;
+    private final List<Member> fields;
+    private final List<Member> methods;
+    /** Offset of methods_count */
+    private final int methodsOffset;
+    
+    private ClassFile(byte[] bytes) {
+        this.bytes = bytes;
+        
+        if (bytes.length < 10 || s4(0) != 0xCAFEBABE) {
+            throw new IllegalArgumentException("Not a class file");
+        }
+        
+        int cpCount = u2(8);
+        int p = 10;
+        
+        cpOffsets = new int[cpCount];
+        utf8Cache = new String[cpCount];
+        
+        for (int i = 1; i < cpCount; i++) {
+            cpOffsets[i] = p;
+            
+            int tag = u1(p);
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    p += 3 + u2(p + 1);
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    p += 5;
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    p += 9;
+                    // The next entry is unusable
+                    i++;
+                    break;
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    p += 3;
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    p += 4;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid class file: unknown constant pool tag " + tag + " at index " + i);
+            }
+        }
+        
+        cpEnd = p;
+        thisClass = u2(cpEnd + 2);
+        
+        int interfacesCount = u2(cpEnd + 6);
+        p = cpEnd + 8 + interfacesCount * 2;
+        
+        fields = new ArrayList<Member>();
+        p = readMembers(p, fields);
+        
+        methodsOffset = p;
+        methods = new ArrayList<Member>();
+        readMembers(p, methods);
+    }
+    
+    /**
+     * Parse a class file.
+     *
+     * @throws IllegalArgumentException if the bytes are not a valid class file
+     */
+    static ClassFile parse(byte[] bytes) {
+        try {
+            return new ClassFile(bytes);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid class file: truncated", e);
+        }
+    }
+    
+    private int readMembers(int p, List<Member> members) {
+        int count = u2(p);
+        p += 2;
+        
+        for (int i = 0; i < count; i++) {
+            int offset = p;
+            int accessFlags = u2(p);
+            String name = utf8(u2(p + 2));
+            String descriptor = utf8(u2(p + 4));
+            
+            List<Attribute> attributes = new ArrayList<Attribute>();
+            p = readAttributes(p + 6, attributes);
+            
+            members.add(new Member(accessFlags, name, descriptor, offset, attributes));
+        }
+        
+        return p;
+    }
+    
+    /**
+     * Read the attributes starting at attributes_count.
+     *
+     * @return offset right after the attributes
+     */
+    int readAttributes(int p, List<Attribute> attributes) {
+        int count = u2(p);
+        p += 2;
+        
+        for (int i = 0; i < count; i++) {
+            int length = s4(p + 2);
+            attributes.add(new Attribute(utf8(u2(p)), p, p + 6, length));
+            p += 6 + length;
+        }
+        
+        return p;
+    }
+    
+    byte[] bytes() {
+        return bytes;
+    }
+    
+    int constantPoolCount() {
+        return cpOffsets.length;
+    }
+    
+    /**
+     * Offset right after the constant pool, i.e. of access_flags.
+     */
+    int constantPoolEnd() {
+        return cpEnd;
+    }
+    
+    /**
+     * Offset of the tag of a constant pool entry.
+     */
+    int constantOffset(int index) {
+        if (index <= 0 || index >= cpOffsets.length || cpOffsets[index] == 0) {
+            throw new IllegalArgumentException("Invalid constant pool index " + index);
+        }
+        
+        return cpOffsets[index];
+    }
+    
+    int tag(int index) {
+        return u1(constantOffset(index));
+    }
+    
+    String utf8(int index) {
+        String s = utf8Cache[index];
+        
+        if (s == null) {
+            int offset = constantOffset(index);
+            if (u1(offset) != CONSTANT_UTF8) {
+                throw new IllegalArgumentException("Constant pool entry " + index + " is not Utf8");
+            }
+            
+            try {
+                // The entry is a u2 length followed by modified UTF-8, as read by readUTF()
+                s = new DataInputStream(new ByteArrayInputStream(bytes, offset + 1, u2(offset + 1) + 2)).readUTF();
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Invalid modified UTF-8 in constant pool entry " + index, e);
+            }
+            
+            utf8Cache[index] = s;
+        }
+        
+        return s;
+    }
+    
+    /**
+     * Internal name of a CONSTANT_Class entry, e.g. java/util/regex/Pattern.
+     */
+    String className(int index) {
+        return utf8(u2(constantOffset(index) + 1));
+    }
+    
+    /**
+     * Value of a CONSTANT_String entry.
+     */
+    String string(int index) {
+        return utf8(u2(constantOffset(index) + 1));
+    }
+    
+    String thisClassName() {
+        return className(thisClass);
+    }
+    
+    List<Member> fields() {
+        return Collections.unmodifiableList(fields);
+    }
+    
+    List<Member> methods() {
+        return Collections.unmodifiableList(methods);
+    }
+    
+    /**
+     * Offset of methods_count.
+     */
+    int methodsOffset() {
+        return methodsOffset;
+    }
+    
+    int u1(int offset) {
+        return bytes[offset] & 0xFF;
+    }
+    
+    int u2(int offset) {
+        return (bytes[offset] & 0xFF) << 8 | bytes[offset + 1] & 0xFF;
+    }
+    
+    int s4(int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8 | bytes[offset + 3] & 0xFF;
+    }
+    
+    long u4(int offset) {
+        return s4(offset) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,431 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable set of code points, stored as a sorted array of disjoint, non-adjacent ranges.
+ *
+ * The array holds the start (inclusive) and the end (exclusive) of every range, one after the
+ * other, e.g. [a-z_] is {0x5F, 0x60, 0x61, 0x7B}. Since the representation is canonical, two
+ * sets are equal if and only if their arrays are equal, and the set operations are merges of
+ * the two arrays, linear in the number of ranges.
+ *
+ * resolve() evaluates the character nodes of a decoded pattern into their exact set, so that
+ * nested classes such as [a[^b[c[^d]e]f]g] collapse to the ranges they effectively match.
+ */
+final class CodePointSet {
+    
+    private static final int LIMIT = Character.MAX_CODE_POINT + 1;
+    
+    static final CodePointSet EMPTY = new CodePointSet(new int[0]);
+    static final CodePointSet ALL = new CodePointSet(new int[] {0, LIMIT});
+    
+    private static final int UNION = 0;
+    private static final int INTERSECTION = 1;
+    private static final int DIFFERENCE = 2;
+    
+    private final int[] bounds;
+    
+    private CodePointSet(int[] bounds) {
+        this.bounds = bounds;
+    }
+    
+    static CodePointSet of(int... codePoints) {
+        int[] sorted = codePoints.clone();
+        Arrays.sort(sorted);
+        
+        int[] bounds = new int[sorted.length * 2];
+        int p = 0;
+        
+        for (int c: sorted) {
+            if (c < 0 || c >= LIMIT) {
+                throw new IllegalArgumentException("Invalid code point: " + c);
+            }
+            
+            if (p > 0 && c <= bounds[p - 1]) {
+                // Duplicate, or adjacent to the previous range
+                bounds[p - 1] = Math.max(bounds[p - 1], c + 1);
+            } else {
+                bounds[p++] = c;
+                bounds[p++] = c + 1;
+            }
+        }
+        
+        return new CodePointSet(Arrays.copyOf(bounds, p));
+    }
+    
+    /**
+     * Code points from lower to upper, both ends inclusive. Empty if lower > upper.
+     */
+    static CodePointSet range(int lower, int upper) {
+        lower = Math.max(lower, 0);
+        upper = Math.min(upper, Character.MAX_CODE_POINT);
+        
+        return lower > upper ? EMPTY : new CodePointSet(new int[] {lower, upper + 1});
+    }
+    
+    /**
+     * Set of the ranges given by their boundaries: the start (inclusive) and the end
+     * (exclusive) of every range, in strictly increasing order.
+     */
+    static CodePointSet fromBounds(int[] bounds, int length) {
+        if ((length & 1) != 0) {
+            throw new IllegalArgumentException("Odd number of range boundaries: " + length);
+        }
+        
+        for (int i = 0; i < length; i++) {
+            if (bounds[i] < 0 || bounds[i] > LIMIT || i > 0 && bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("Range boundaries not in increasing order at index " + i);
+            }
+        }
+        
+        return length == 0 ? EMPTY : new CodePointSet(Arrays.copyOf(bounds, length));
+    }
+    
+    /**
+     * Code points of the ASCII type (a constant of java.util.regex.ASCII), as matched by Ctype.
+     */
+    static CodePointSet ctype(int ctype) {
+        boolean[] table = NodeAccessors.asciiType(ctype);
+        int[] codePoints = new int[table.length];
+        int p = 0;
+        
+        for (int c = 0; c < table.length; c++) {
+            if (table[c]) {
+                codePoints[p++] = c;
+            }
+        }
+        
+        return of(Arrays.copyOf(codePoints, p));
+    }
+    
+    boolean isEmpty() {
+        return bounds.length == 0;
+    }
+    
+    /**
+     * Number of code points in the set.
+     */
+    int size() {
+        int size = 0;
+        
+        for (int i = 0; i < bounds.length; i += 2) {
+            size += bounds[i + 1] - bounds[i];
+        }
+        
+        return size;
+    }
+    
+    /**
+     * Number of disjoint ranges in the set.
+     */
+    int rangeCount() {
+        return bounds.length / 2;
+    }
+    
+    /**
+     * Lowest code point of the range at the index.
+     */
+    int lower(int range) {
+        return bounds[range * 2];
+    }
+    
+    /**
+     * Highest code point of the range at the index, inclusive.
+     */
+    int upper(int range) {
+        return bounds[range * 2 + 1] - 1;
+    }
+    
+    /**
+     * Lowest code point of the set, -1 if the set is empty.
+     */
+    int min() {
+        return isEmpty() ? -1 : bounds[0];
+    }
+    
+    /**
+     * Highest code point of the set, -1 if the set is empty.
+     */
+    int max() {
+        return isEmpty() ? -1 : bounds[bounds.length - 1] - 1;
+    }
+    
+    boolean contains(int c) {
+        // Inside a range if c falls after an odd number of boundaries
+        int i = Arrays.binarySearch(bounds, c);
+        return i >= 0 ? (i & 1) == 0 : ((-i - 1) & 1) == 1;
+    }
+    
+    /**
+     * The code points in the set, in increasing order.
+     */
+    int[] toArray() {
+        int[] codePoints = new int[size()];
+        int p = 0;
+        
+        for (int i = 0; i < bounds.length; i += 2) {
+            for (int c = bounds[i]; c < bounds[i + 1]; c++) {
+                codePoints[p++] = c;
+            }
+        }
+        
+        return codePoints;
+    }
+    
+    boolean intersects(CodePointSet o) {
+        int i = 0;
+        int j = 0;
+        
+        while (i < bounds.length && j < o.bounds.length) {
+            if (bounds[i + 1] <= o.bounds[j]) {
+                i += 2;
+            } else if (o.bounds[j + 1] <= bounds[i]) {
+                j += 2;
+            } else {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    boolean containsAll(CodePointSet o) {
+        return o.difference(this).isEmpty();
+    }
+    
+    CodePointSet union(CodePointSet o) {
+        if (o.isEmpty() || this == o) {
+            return this;
+        }
+        if (isEmpty()) {
+            return o;
+        }
+        
+        return combine(o, UNION);
+    }
+    
+    CodePointSet intersection(CodePointSet o) {
+        if (isEmpty() || o.isEmpty()) {
+            return EMPTY;
+        }
+        
+        return combine(o, INTERSECTION);
+    }
+    
+    CodePointSet difference(CodePointSet o) {
+        if (isEmpty() || o.isEmpty()) {
+            return this;
+        }
+        
+        return combine(o, DIFFERENCE);
+    }
+    
+    CodePointSet complement() {
+        // Toggle the boundaries at 0 and at the end of the code space
+        boolean fromZero = bounds.length > 0 && bounds[0] == 0;
+        boolean toLimit = bounds.length > 0 && bounds[bounds.length - 1] == LIMIT;
+        int from = fromZero ? 1 : 0;
+        int to = toLimit ? bounds.length - 1 : bounds.length;
+        
+        int[] result = new int[to - from + (fromZero ? 0 : 1) + (toLimit ? 0 : 1)];
+        int p = 0;
+        
+        if (!fromZero) {
+            result[p++] = 0;
+        }
+        System.arraycopy(bounds, from, result, p, to - from);
+        p += to - from;
+        if (!toLimit) {
+            result[p++] = LIMIT;
+        }
+        
+        return new CodePointSet(result);
+    }
+    
+    /**
+     * Sweep over the boundaries of both sets, and keep those where the membership in the
+     * result changes.
+     */
+    private CodePointSet combine(CodePointSet o, int operation) {
+        int[] a = bounds;
+        int[] b = o.bounds;
+        int[] result = new int[a.length + b.length];
+        int p = 0;
+        int i = 0;
+        int j = 0;
+        boolean inside = false;
+        
+        while (i < a.length || j < b.length) {
+            int c = Math.min(i < a.length ? a[i] : Integer.MAX_VALUE, j < b.length ? b[j] : Integer.MAX_VALUE);
+            
+            while (i < a.length && a[i] == c) {
+                i++;
+            }
+            while (j < b.length && b[j] == c) {
+                j++;
+            }
+            
+            // An odd number of boundaries passed means inside a range
+            boolean inA = (i & 1) == 1;
+            boolean inB = (j & 1) == 1;
+            boolean in;
+            
+            switch (operation) {
+                case UNION:
+                    in = inA || inB;
+                    break;
+                case INTERSECTION:
+                    in = inA && inB;
+                    break;
+                default:
+                    in = inA && !inB;
+                    break;
+            }
+            
+            if (in != inside) {
+                result[p++] = c;
+                inside = in;
+            }
+        }
+        
+        return p == 0 ? EMPTY : new CodePointSet(Arrays.copyOf(result, p));
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CodePointSet && Arrays.equals(bounds, ((CodePointSet) o).bounds);
+    }
+    
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bounds);
+    }
+    
+    /**
+     * The ranges in hexadecimal, e.g. [5F 61-7A].
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        
+        for (int i = 0; i < bounds.length; i += 2) {
+            sb.append(i > 0 ? " " : "").append(String.format("%02X", bounds[i]));
+            
+            if (bounds[i + 1] - 1 > bounds[i]) {
+                sb.append('-').append(String.format("%02X", bounds[i + 1] - 1));
+            }
+        }
+        
+        return sb.append(']').toString();
+    }
+    
+    /**
+     * Code points matched by a decoded character node. The set operations are evaluated on
+     * the sets of their operands, without testing every code point.
+     *
+     * @return null if the node is not a character node, or contains a character class which
+     *         could not be evaluated
+     */
+    static CodePointSet resolve(DissectedNode node) {
+        switch (node.kind()) {
+            case SINGLE:
+            case SINGLE_S:
+                // A supplementary character for SingleS
+                return of(((DissectedNode.Single) node).codePoint());
+            case SINGLE_U:
+                {
+                    // ch == lower || Character.toLowerCase(Character.toUpperCase(ch)) == lower
+                    int c = ((DissectedNode.Single) node).codePoint();
+                    return of(c).union(CaseFolding.foldingTo(c));
+                }
+            case BIT_CLASS:
+                return of(((DissectedNode.BitClass) node).codePoints());
+            case RANGE:
+                DissectedNode.Range range = (DissectedNode.Range) node;
+                return range(range.lower(), range.upper());
+            case CTYPE:
+                return ctype(((DissectedNode.Ctype) node).ctype());
+            case DOT:
+                return ALL.difference(of('\n', '\r', '\u0085', '\u2028', '\u2029'));
+            case UNIX_DOT:
+                return ALL.difference(of('\n'));
+            case ALL:
+                return ALL;
+            case COMPLEMENT:
+            case UNION:
+            case INTERSECTION:
+            case SET_DIFFERENCE:
+                {
+                    List<DissectedNode> operands = ((DissectedNode.SetOperation) node).operands();
+                    CodePointSet set = resolve(operands.get(0));
+                    
+                    if (set == null) {
+                        return null;
+                    }
+                    if (node.kind() == DissectedNode.Kind.COMPLEMENT) {
+                        return operands.size() == 1 ? set.complement() : null;
+                    }
+                    
+                    for (DissectedNode operand: operands.subList(1, operands.size())) {
+                        CodePointSet other = resolve(operand);
+                        
+                        if (other == null) {
+                            return null;
+                        }
+                        
+                        if (node.kind() == DissectedNode.Kind.UNION) {
+                            set = set.union(other);
+                        } else if (node.kind() == DissectedNode.Kind.INTERSECTION) {
+                            set = set.intersection(other);
+                        } else {
+                            set = set.difference(other);
+                        }
+                    }
+                    return set;
+                }
+            case DEBUG:
+                // A character class evaluated from its predicate, see CharPropertyCache
+                return ((DissectedNode.Debug) node).members();
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * The code points which SingleU folds to another code point, by the code point they
+     * fold to. Built on first use, with a single pass over the code space.
+     */
+    private static final class CaseFolding {
+        private static final Map<Integer, CodePointSet> FOLDED;
+        
+        static {
+            Map<Integer, int[]> folded = new HashMap<Integer, int[]>();
+            
+            for (int c = 0; c < LIMIT; c++) {
+                int f = Character.toLowerCase(Character.toUpperCase(c));
+                
+                if (f != c) {
+                    int[] codePoints = folded.get(f);
+                    codePoints = codePoints == null ? new int[1] : Arrays.copyOf(codePoints, codePoints.length + 1);
+                    codePoints[codePoints.length - 1] = c;
+                    folded.put(f, codePoints);
+                }
+            }
+            
+            Map<Integer, CodePointSet> m = new HashMap<Integer, CodePointSet>();
+            for (Map.Entry<Integer, int[]> e: folded.entrySet()) {
+                m.put(e.getKey(), of(e.getValue()));
+            }
+            
+            FOLDED = Collections.unmodifiableMap(m);
+        }
+        
+        static CodePointSet foldingTo(int c) {
+            CodePointSet set = FOLDED.get(c);
+            return set == null ? EMPTY : set;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+import java.io.IOException;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Registry of the patterns compiled by the running application, with the number of times each
+ * one is compiled and where from.
+ *
+ * The patterns are only recorded when DissectorAgent is installed with the compiles option,
+ * which inserts a call to record() at the entry of Pattern.compile(), the instance method which
+ * every Pattern.compile(String), String.split, String.replaceAll, ... goes through. Like
+ * NodeProfiler, this class must be on the boot class path, and public.
+ *
+ * A pattern is counted in a LongAdder, whose cells are striped by thread, so recording does not
+ * lock or contend unless a pattern is seen for the first time. The call site is taken from the
+ * stack trace, only for the first compile and for one compile in SAMPLE_INTERVAL. At most
+ * MAX_PATTERNS distinct patterns are kept, the others are only counted in total.
+ *
+ * The time to compile a pattern is measured when it is reported, by compiling it again, since
+ * the hook only runs at the start of the compilation.
+ */
+public final class CompileRegistry {
+    
+    private CompileRegistry() {
+    }
+    
+    private static final int MAX_PATTERNS = 10000;
+    private static final int MAX_CALL_SITES = 4;
+    private static final int SAMPLE_INTERVAL = 64;
+    private static final int TIMING_RUNS = 5;
+    
+    private static final String OBJECT_NAME = "PatternDissector:type=CompileRegistry";
+    
+    /**
+     * Order of the patterns in a report.
+     */
+    enum Order {
+        /** Most compiled since the registry was installed or reset */
+        MOST_COMPILED,
+        /** Most compiled per second since the previous report */
+        HOTTEST
+    }
+    
+    private static final class Key {
+        final String pattern;
+        final int flags;
+        
+        Key(String pattern, int flags) {
+            this.pattern = pattern;
+            this.flags = flags;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            
+            Key other = (Key) o;
+            return flags == other.flags && pattern.equals(other.pattern);
+        }
+        
+        @Override
+        public int hashCode() {
+            return pattern.hashCode() * 31 + flags;
+        }
+    }
+    
+    private static final class Entry {
+        final Key key;
+        final LongAdder count = new LongAdder();
+        /** Number of samples by call site, at most MAX_CALL_SITES of them */
+        final ConcurrentHashMap<String, LongAdder> callSites = new ConcurrentHashMap<String, LongAdder>();
+        
+        /** Count and time of the previous report, guarded by the class lock */
+        long reportedCount;
+        long reportedNanos;
+        
+        Entry(Key key, long nanos) {
+            this.key = key;
+            this.reportedNanos = nanos;
+        }
+    }
+    
+    private static volatile boolean installed;
+    private static volatile boolean enabled;
+    
+    /** The thread making a report, whose compiles are not recorded */
+    private static volatile Thread reportingThread;
+    
+    private static final ConcurrentHashMap<Key, Entry> ENTRIES = new ConcurrentHashMap<Key, Entry>();
+    private static final AtomicInteger SIZE = new AtomicInteger();
+    private static final LongAdder TOTAL = new LongAdder();
+    private static final LongAdder UNTRACKED = new LongAdder();
+    
+    /**
+     * Called at the entry of the instrumented Pattern.compile(), with the Pattern being compiled.
+     */
+    public static void record(Object pattern) {
+        if (!enabled || Thread.currentThread() == reportingThread) {
+            return;
+        }
+        
+        Pattern p = (Pattern) pattern;
+        Key key = new Key(p.pattern(), p.flags());
+        Entry entry = ENTRIES.get(key);
+        boolean sample = false;
+        
+        TOTAL.increment();
+        
+        if (entry == null) {
+            if (SIZE.get() >= MAX_PATTERNS) {
+                UNTRACKED.increment();
+                return;
+            }
+            
+            Entry created = new Entry(key, System.nanoTime());
+            entry = ENTRIES.putIfAbsent(key, created);
+            
+            if (entry == null) {
+                SIZE.incrementAndGet();
+                entry = created;
+                sample = true;
+            }
+        }
+        
+        entry.count.increment();
+        
+        if (sample || ThreadLocalRandom.current().nextInt(SAMPLE_INTERVAL) == 0) {
+            String callSite = callSite();
+            LongAdder samples = entry.callSites.get(callSite);
+            
+            if (samples == null && entry.callSites.size() < MAX_CALL_SITES) {
+                samples = new LongAdder();
+                LongAdder existing = entry.callSites.putIfAbsent(callSite, samples);
+                samples = existing != null ? existing : samples;
+            }
+            if (samples != null) {
+                samples.increment();
+            }
+        }
+    }
+    
+    /**
+     * The first frame outside of java.util.regex and String, with the method of the regex API it
+     * calls, e.g. "String.split from Foo.bar(Foo.java:42)".
+     */
+    private static String callSite() {
+        String api = null;
+        
+        for (StackTraceElement frame: new Throwable().getStackTrace()) {
+            String className = frame.getClassName();
+            
+            if (className.equals(CompileRegistry.class.getName())) {
+                continue;
+            }
+            if (className.startsWith("java.util.regex.") || className.equals("java.lang.String")) {
+                api = className.substring(className.lastIndexOf('.') + 1) + "." + frame.getMethodName();
+                continue;
+            }
+            
+            return (api != null ? api + " from " : "") + frame;
+        }
+        
+        return api != null ? api : "unknown";
+    }
+    
+    static void setInstalled() {
+        installed = true;
+    }
+    
+    /**
+     * Whether Pattern.compile() is instrumented.
+     */
+    static boolean isInstalled() {
+        return installed;
+    }
+    
+    static void enable() {
+        enabled = true;
+    }
+    
+    static void disable() {
+        enabled = false;
+    }
+    
+    static synchronized void reset() {
+        ENTRIES.clear();
+        SIZE.set(0);
+        TOTAL.reset();
+        UNTRACKED.reset();
+    }
+    
+    /**
+     * Write the limit first patterns in the order, each with its compile count and rate, its
+     * compile time, its call sites and its dissection with the backtracking risks.
+     */
+    static synchronized void report(Order order, int limit, PatternDissector.LoggingLevel loggingLevel, Appendable out) throws IOException {
+        final long now = System.nanoTime();
+        List<Entry> entries = new ArrayList<Entry>(ENTRIES.values());
+        
+        // Compiles per second since the previous report, or the count
+        final Map<Entry, Double> ranks = new IdentityHashMap<Entry, Double>();
+        for (Entry entry: entries) {
+            long count = entry.count.sum();
+            ranks.put(entry, order == Order.MOST_COMPILED ? count : rate(count - entry.reportedCount, now - entry.reportedNanos));
+        }
+        
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Double.compare(ranks.get(b), ranks.get(a));
+            }
+        });
+        
+        out.append(String.format("%s compiles of %d patterns (%s not tracked)%n", NodeProfiler.formatCount(TOTAL.sum()), SIZE.get(), NodeProfiler.formatCount(UNTRACKED.sum())));
+        
+        DissectionRenderer renderer = new DissectionRenderer(loggingLevel);
+        reportingThread = Thread.currentThread();
+        try {
+            for (Entry entry: entries.subList(0, Math.min(limit, entries.size()))) {
+                long count = entry.count.sum();
+                long nanos = compileNanos(entry.key);
+                
+                out.append(String.format("%n%s compiles, %.1f/s since the previous report, %.1f us per compile (%.1f ms in total)%n",
+                    NodeProfiler.formatCount(count), rate(count - entry.reportedCount, now - entry.reportedNanos), nanos / 1e3, nanos * count / 1e6));
+                
+                for (Map.Entry<String, LongAdder> callSite: entry.callSites.entrySet()) {
+                    out.append("  ").append(callSite.getKey()).append(": ").append(String.valueOf(callSite.getValue().sum())).append(" samples\n");
+                }
+                
+                DissectedPattern result = PatternDissector.decode(entry.key.pattern, entry.key.flags);
+                out.append(renderer.render(result, true));
+                
+                for (BacktrackingAnalyzer.Finding finding: BacktrackingAnalyzer.analyze(result)) {
+                    out.append("Backtracking risk: ").append(finding.toString()).append('\n');
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } finally {
+            reportingThread = null;
+        }
+        
+        for (Entry entry: entries) {
+            entry.reportedCount = entry.count.sum();
+            entry.reportedNanos = now;
+        }
+    }
+    
+    private static double rate(long count, long nanos) {
+        return nanos > 0 ? count * 1e9 / nanos : 0;
+    }
+    
+    /**
+     * The least time to compile the pattern over a few runs, in nanoseconds.
+     */
+    private static long compileNanos(Key key) {
+        long best = Long.MAX_VALUE;
+        
+        for (int i = 0; i < TIMING_RUNS; i++) {
+            long start = System.nanoTime();
+            Pattern.compile(key.pattern, key.flags);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        
+        return best;
+    }
+    
+    /**
+     * Operations of the registry exposed through JMX, to report the patterns on demand.
+     */
+    public interface Control {
+        long getCompileCount();
+        
+        int getPatternCount();
+        
+        boolean isEnabled();
+        
+        void setEnabled(boolean enabled);
+        
+        /**
+         * The limit patterns most compiled per second since the previous report, dissected.
+         */
+        String hottest(int limit);
+        
+        /**
+         * The limit patterns most compiled since the registry was installed or reset, dissected.
+         */
+        String mostCompiled(int limit);
+        
+        void reset();
+    }
+    
+    private static final class ControlImpl implements Control {
+        @Override
+        public long getCompileCount() {
+            return TOTAL.sum();
+        }
+        
+        @Override
+        public int getPatternCount() {
+            return SIZE.get();
+        }
+        
+        @Override
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        @Override
+        public void setEnabled(boolean value) {
+            enabled = value;
+        }
+        
+        @Override
+        public String hottest(int limit) {
+            return report(Order.HOTTEST, limit);
+        }
+        
+        @Override
+        public String mostCompiled(int limit) {
+            return report(Order.MOST_COMPILED, limit);
+        }
+        
+        private String report(Order order, int limit) {
+            StringBuilder sb = new StringBuilder();
+            try {
+                CompileRegistry.report(order, limit, PatternDissector.LoggingLevel.SIMPLE, sb);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return sb.toString();
+        }
+        
+        @Override
+        public void reset() {
+            CompileRegistry.reset();
+        }
+    }
+    
+    /**
+     * Register the Control MBean in the platform MBean server.
+     */
+    static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(new ControlImpl(), Control.class), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("DissectorAgent: cannot register " + OBJECT_NAME + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,907 @@
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import java.util.regex.Pattern;
+
+/**
+ * Extraction of the regexes of a code base from its source files, class files and jars, without
+ * loading or running any of its code.
+ *
+ * The regexes are the constant strings passed to Pattern.compile, Pattern.matches, and
+ * String.matches, split, replaceAll and replaceFirst, with the flags of Pattern.compile when they
+ * are constant too:
+ *
+ * - In a class file, the bytecode of each method is followed with the constants it pushes on the
+ *   operand stack (ldc of a String or an int, iconst, bipush, sipush), through the loads, stores
+ *   and calls which do not depend on them. A regex is found when the argument of the call is such
+ *   a constant. javac folds the concatenations of constants and inlines the static final
+ *   constants, but the regexes built at run time or chosen by a conditional are not found. The
+ *   line comes from the LineNumberTable of the method.
+ * - In a source file, the argument must be a string literal, or a concatenation of string
+ *   literals, and the flags an expression of int literals and Pattern constants combined with |
+ *   or +. Constants declared elsewhere and text blocks are not resolved. The scan is textual, so
+ *   the methods with one of these names on other classes are reported as well.
+ *
+ * Jars are read with ZipFile, one entry at a time from the central directory, so that only the
+ * .class and .java entries (e.g. of source jars) are inflated.
+ */
+final class CorpusScanner {
+    
+    /**
+     * A regex found in a file.
+     */
+    static final class Regex {
+        /** File, or jar and entry separated by !, with the line */
+        final String location;
+        /** Method the regex is passed to, e.g. Pattern.compile */
+        final String call;
+        final String pattern;
+        /** -1 if the flags are not constant */
+        final int flags;
+        
+        Regex(String location, String call, String pattern, int flags) {
+            this.location = location;
+            this.call = call;
+            this.pattern = pattern;
+            this.flags = flags;
+        }
+        
+        /**
+         * Location, method, flags (? if not constant) and pattern separated by tab characters.
+         * Line terminators in the pattern are written as \n and \r, so that it fits on one line.
+         */
+        @Override
+        public String toString() {
+            return location + "\t" + call + "\t" + (flags < 0 ? "?" : String.valueOf(flags)) + "\t"
+                + pattern.replace("\n", "\\n").replace("\r", "\\r");
+        }
+    }
+    
+    /**
+     * The methods which take a regex, by owner, name and descriptor: the depth of the regex on
+     * the operand stack at the call, and the depth of the flags, -1 if the method has none.
+     */
+    private static final Map<String, int[]> CALLS = new HashMap<String, int[]>();
+    
+    static {
+        CALLS.put("java/util/regex/Pattern.compile(Ljava/lang/String;)Ljava/util/regex/Pattern;", new int[] {0, -1});
+        CALLS.put("java/util/regex/Pattern.compile(Ljava/lang/String;I)Ljava/util/regex/Pattern;", new int[] {1, 0});
+        CALLS.put("java/util/regex/Pattern.matches(Ljava/lang/String;Ljava/lang/CharSequence;)Z", new int[] {1, -1});
+        CALLS.put("java/lang/String.matches(Ljava/lang/String;)Z", new int[] {0, -1});
+        CALLS.put("java/lang/String.split(Ljava/lang/String;)[Ljava/lang/String;", new int[] {0, -1});
+        CALLS.put("java/lang/String.split(Ljava/lang/String;I)[Ljava/lang/String;", new int[] {1, -1});
+        CALLS.put("java/lang/String.replaceAll(Ljava/lang/String;Ljava/lang/String;)Ljava/lang/String;", new int[] {1, -1});
+        CALLS.put("java/lang/String.replaceFirst(Ljava/lang/String;Ljava/lang/String;)Ljava/lang/String;", new int[] {1, -1});
+    }
+    
+    /** A value on the operand stack which is not a constant */
+    private static final Object UNKNOWN = new Object();
+    
+    private CorpusScanner() {
+    }
+    
+    /**
+     * Find the regexes in the bytecode of a class file.
+     *
+     * @param location file name of the class, used in the location of the regexes
+     * @throws IllegalArgumentException if the bytes are not a valid class file
+     */
+    static List<Regex> scanClass(byte[] bytes, String location) {
+        ClassFile cf = ClassFile.parse(bytes);
+        List<Regex> found = new ArrayList<Regex>();
+        
+        // Constants at the top of the operand stack, the last one on top. The values below them
+        // are not known
+        List<Object> stack = new ArrayList<Object>();
+        
+        try {
+            for (ClassFile.Member method: cf.methods()) {
+                ClassFile.Attribute code = method.attribute("Code");
+                if (code == null) {
+                    continue;
+                }
+                
+                int codeStart = code.infoOffset + 8;
+                int codeEnd = codeStart + cf.s4(code.infoOffset + 4);
+                int[] lines = lineNumbers(cf, codeEnd);
+                
+                stack.clear();
+                
+                for (int p = codeStart; p < codeEnd; p += instructionLength(cf, p, codeStart)) {
+                    int opcode = cf.u1(p);
+                    
+                    if (opcode >= 0x02 && opcode <= 0x08) {
+                        // iconst_m1 to iconst_5
+                        stack.add(opcode - 0x03);
+                    } else if (opcode >= 0x15 && opcode <= 0x2D || opcode >= 0x01 && opcode <= 0x0F || opcode == 0xB2 || opcode == 0xBB) {
+                        // Loads, other constants, getstatic and new
+                        stack.add(UNKNOWN);
+                    } else if (opcode >= 0x36 && opcode <= 0x4E || opcode == 0x57 || opcode == 0xB3) {
+                        // Stores, pop and putstatic
+                        pop(stack, 1);
+                    } else {
+                        switch (opcode) {
+                            case 0x10: // bipush
+                                stack.add((int) (byte) cf.u1(p + 1));
+                                break;
+                            case 0x11: // sipush
+                                stack.add((int) (short) cf.u2(p + 1));
+                                break;
+                            case 0x12: // ldc
+                                stack.add(constant(cf, cf.u1(p + 1)));
+                                break;
+                            case 0x13: // ldc_w
+                            case 0x14: // ldc2_w
+                                stack.add(constant(cf, cf.u2(p + 1)));
+                                break;
+                            case 0x59: // dup
+                                stack.add(stack.isEmpty() ? UNKNOWN : stack.get(stack.size() - 1));
+                                break;
+                            case 0x80: // ior
+                                Object a = pop(stack, 1);
+                                Object b = pop(stack, 1);
+                                stack.add(a instanceof Integer && b instanceof Integer ? (Integer) a | (Integer) b : UNKNOWN);
+                                break;
+                            case 0xB4: // getfield
+                            case 0xBD: // anewarray
+                                pop(stack, 1);
+                                stack.add(UNKNOWN);
+                                break;
+                            case 0xB5: // putfield
+                                pop(stack, 2);
+                                break;
+                            case 0xC0: // checkcast
+                                break;
+                            case 0xB6: // invokevirtual
+                            case 0xB7: // invokespecial
+                            case 0xB8: // invokestatic
+                            case 0xB9: // invokeinterface
+                            case 0xBA: // invokedynamic
+                                invoke(cf, p, p - codeStart, stack, location, lines, method, found);
+                                break;
+                            default:
+                                // The effect on the operand stack is not followed
+                                stack.clear();
+                        }
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid class file: truncated", e);
+        }
+        
+        return found;
+    }
+    
+    private static Object pop(List<Object> stack, int count) {
+        Object top = UNKNOWN;
+        
+        for (int i = 0; i < count && !stack.isEmpty(); i++) {
+            top = stack.remove(stack.size() - 1);
+        }
+        
+        return top;
+    }
+    
+    private static Object constant(ClassFile cf, int index) {
+        switch (cf.tag(index)) {
+            case ClassFile.CONSTANT_STRING:
+                return cf.string(index);
+            case ClassFile.CONSTANT_INTEGER:
+                return cf.s4(cf.constantOffset(index) + 1);
+            default:
+                return UNKNOWN;
+        }
+    }
+    
+    /**
+     * Record the regex passed to the called method if it takes one, and apply the call to the
+     * operand stack.
+     */
+    private static void invoke(ClassFile cf, int p, int pc, List<Object> stack, String location, int[] lines, ClassFile.Member method, List<Regex> found) {
+        int opcode = cf.u1(p);
+        int ref = cf.constantOffset(cf.u2(p + 1));
+        int nameAndType = cf.constantOffset(cf.u2(ref + 3));
+        String name = cf.utf8(cf.u2(nameAndType + 1));
+        String descriptor = cf.utf8(cf.u2(nameAndType + 3));
+        
+        if (opcode != 0xBA) {
+            String owner = cf.className(cf.u2(ref + 1));
+            int[] depths = CALLS.get(owner + "." + name + descriptor);
+            
+            if (depths != null && stack.size() > depths[0] && stack.get(stack.size() - 1 - depths[0]) instanceof String) {
+                int flags = 0;
+                if (depths[1] >= 0) {
+                    Object value = stack.size() > depths[1] ? stack.get(stack.size() - 1 - depths[1]) : UNKNOWN;
+                    flags = value instanceof Integer ? (Integer) value : -1;
+                }
+                
+                int line = line(lines, pc);
+                String call = owner.substring(owner.lastIndexOf('/') + 1) + "." + name;
+                found.add(new Regex(location + (line > 0 ? ":" + line : " (" + method.name + ")"), call, (String) stack.get(stack.size() - 1 - depths[0]), flags));
+            }
+        }
+        
+        pop(stack, argumentCount(descriptor) + (opcode == 0xB8 || opcode == 0xBA ? 0 : 1));
+        
+        if (!descriptor.endsWith(")V")) {
+            stack.add(UNKNOWN);
+        }
+    }
+    
+    private static int argumentCount(String descriptor) {
+        int count = 0;
+        
+        for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+            while (descriptor.charAt(i) == '[') {
+                i++;
+            }
+            if (descriptor.charAt(i) == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+            count++;
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Length of the instruction at the offset, in bytes.
+     */
+    private static int instructionLength(ClassFile cf, int p, int codeStart) {
+        int opcode = cf.u1(p);
+        
+        switch (opcode) {
+            case 0x10: // bipush
+            case 0x12: // ldc
+            case 0xA9: // ret
+            case 0xBC: // newarray
+                return 2;
+            case 0x11: // sipush
+            case 0x13: // ldc_w
+            case 0x14: // ldc2_w
+            case 0x84: // iinc
+            case 0xB2: // getstatic
+            case 0xB3: // putstatic
+            case 0xB4: // getfield
+            case 0xB5: // putfield
+            case 0xB6: // invokevirtual
+            case 0xB7: // invokespecial
+            case 0xB8: // invokestatic
+            case 0xBB: // new
+            case 0xBD: // anewarray
+            case 0xC0: // checkcast
+            case 0xC1: // instanceof
+            case 0xC6: // ifnull
+            case 0xC7: // ifnonnull
+                return 3;
+            case 0xC5: // multianewarray
+                return 4;
+            case 0xB9: // invokeinterface
+            case 0xBA: // invokedynamic
+            case 0xC8: // goto_w
+            case 0xC9: // jsr_w
+                return 5;
+            case 0xC4: // wide
+                return cf.u1(p + 1) == 0x84 ? 6 : 4;
+            case 0xAA: { // tableswitch
+                int q = p + 4 - (p - codeStart) % 4;
+                return q + 12 + 4 * (cf.s4(q + 8) - cf.s4(q + 4) + 1) - p;
+            }
+            case 0xAB: { // lookupswitch
+                int q = p + 4 - (p - codeStart) % 4;
+                return q + 8 + 8 * cf.s4(q + 4) - p;
+            }
+            default:
+                if (opcode >= 0x15 && opcode <= 0x19 || opcode >= 0x36 && opcode <= 0x3A) {
+                    // Loads and stores of a local
+                    return 2;
+                }
+                if (opcode >= 0x99 && opcode <= 0xA8) {
+                    // Conditional branches, goto and jsr
+                    return 3;
+                }
+                return 1;
+        }
+    }
+    
+    /**
+     * The entries of the LineNumberTable attributes of the Code attribute, as pairs of start pc
+     * and line number.
+     *
+     * @param codeEnd offset right after the code
+     */
+    private static int[] lineNumbers(ClassFile cf, int codeEnd) {
+        List<ClassFile.Attribute> attributes = new ArrayList<ClassFile.Attribute>();
+        cf.readAttributes(codeEnd + 2 + 8 * cf.u2(codeEnd), attributes);
+        
+        int count = 0;
+        for (ClassFile.Attribute attribute: attributes) {
+            if (attribute.name.equals("LineNumberTable")) {
+                count += cf.u2(attribute.infoOffset);
+            }
+        }
+        
+        int[] lines = new int[count * 2];
+        int i = 0;
+        for (ClassFile.Attribute attribute: attributes) {
+            if (attribute.name.equals("LineNumberTable")) {
+                for (int j = 0, n = cf.u2(attribute.infoOffset); j < n; j++) {
+                    lines[i++] = cf.u2(attribute.infoOffset + 2 + 4 * j);
+                    lines[i++] = cf.u2(attribute.infoOffset + 4 + 4 * j);
+                }
+            }
+        }
+        
+        return lines;
+    }
+    
+    /**
+     * Line of the instruction at the pc, 0 if not known. The entries are not necessarily
+     * sorted.
+     */
+    private static int line(int[] lines, int pc) {
+        int start = -1;
+        int line = 0;
+        
+        for (int i = 0; i < lines.length; i += 2) {
+            if (lines[i] <= pc && lines[i] > start) {
+                start = lines[i];
+                line = lines[i + 1];
+            }
+        }
+        
+        return line;
+    }
+    
+    private enum TokenType {
+        IDENTIFIER,
+        STRING,
+        NUMBER,
+        SYMBOL
+    }
+    
+    private static final class Token {
+        final TokenType type;
+        /** Value of a string literal, or text of the other tokens */
+        final String text;
+        final int line;
+        
+        Token(TokenType type, String text, int line) {
+            this.type = type;
+            this.text = text;
+            this.line = line;
+        }
+        
+        boolean is(String symbol) {
+            return type == TokenType.SYMBOL && text.equals(symbol);
+        }
+    }
+    
+    /**
+     * Find the regexes in the calls of a Java source file.
+     *
+     * @param location file name of the source, used in the location of the regexes
+     */
+    static List<Regex> scanSource(String source, String location) {
+        List<Token> tokens = tokenize(unicodeEscapes(source));
+        List<Regex> found = new ArrayList<Regex>();
+        
+        for (int t = 1; t + 2 < tokens.size(); t++) {
+            Token name = tokens.get(t);
+            
+            if (name.type != TokenType.IDENTIFIER || !tokens.get(t - 1).is(".") || !tokens.get(t + 1).is("(")) {
+                continue;
+            }
+            
+            boolean onPattern = t >= 2 && tokens.get(t - 2).type == TokenType.IDENTIFIER && tokens.get(t - 2).text.equals("Pattern");
+            String call;
+            
+            switch (name.text) {
+                case "compile":
+                    if (!onPattern) {
+                        continue;
+                    }
+                    call = "Pattern.compile";
+                    break;
+                case "matches":
+                    call = onPattern ? "Pattern.matches" : "String.matches";
+                    break;
+                case "split":
+                case "replaceAll":
+                case "replaceFirst":
+                    call = "String." + name.text;
+                    break;
+                default:
+                    continue;
+            }
+            
+            // The regex is the first argument in all of them
+            StringBuilder regex = new StringBuilder();
+            int k = t + 2;
+            
+            while (k < tokens.size() && tokens.get(k).type == TokenType.STRING) {
+                regex.append(tokens.get(k++).text);
+                
+                if (k + 1 < tokens.size() && tokens.get(k).is("+") && tokens.get(k + 1).type == TokenType.STRING) {
+                    k++;
+                }
+            }
+            
+            if (k == t + 2 || k >= tokens.size() || !tokens.get(k).is(",") && !tokens.get(k).is(")")) {
+                continue;
+            }
+            
+            int flags = call.equals("Pattern.compile") && tokens.get(k).is(",") ? constantFlags(tokens, k + 1) : 0;
+            found.add(new Regex(location + ":" + name.line, call, regex.toString(), flags));
+        }
+        
+        return found;
+    }
+    
+    /**
+     * Value of the flags argument starting at the token, -1 if it is not an expression of int
+     * literals and Pattern constants.
+     */
+    private static int constantFlags(List<Token> tokens, int k) {
+        int flags = 0;
+        
+        while (k < tokens.size()) {
+            Token token = tokens.get(k);
+            int value;
+            
+            if (token.type == TokenType.NUMBER) {
+                value = intLiteral(token.text);
+                k++;
+            } else if (token.type == TokenType.IDENTIFIER) {
+                // NAME, Pattern.NAME or java.util.regex.Pattern.NAME
+                String qualifier = null;
+                while (k + 2 < tokens.size() && tokens.get(k + 1).is(".") && tokens.get(k + 2).type == TokenType.IDENTIFIER) {
+                    qualifier = tokens.get(k).text;
+                    k += 2;
+                }
+                
+                value = qualifier == null || qualifier.equals("Pattern") ? patternConstant(tokens.get(k).text) : -1;
+                k++;
+            } else {
+                return -1;
+            }
+            
+            if (value < 0 || k >= tokens.size()) {
+                return -1;
+            }
+            
+            flags |= value;
+            
+            if (tokens.get(k).is(")")) {
+                return flags;
+            } else if (!tokens.get(k).is("|") && !tokens.get(k).is("+")) {
+                return -1;
+            }
+            k++;
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Value of a non-negative int literal, -1 if it is not one.
+     */
+    private static int intLiteral(String text) {
+        String digits = text.replace("_", "");
+        
+        try {
+            if (digits.startsWith("0x") || digits.startsWith("0X")) {
+                return Integer.parseInt(digits.substring(2), 16);
+            } else if (digits.startsWith("0b") || digits.startsWith("0B")) {
+                return Integer.parseInt(digits.substring(2), 2);
+            } else if (digits.length() > 1 && digits.startsWith("0")) {
+                return Integer.parseInt(digits.substring(1), 8);
+            } else {
+                return Integer.parseInt(digits);
+            }
+        } catch (NumberFormatException e) {
+            // A long, a floating-point literal or out of range
+            return -1;
+        }
+    }
+    
+    /**
+     * Value of a public static int field of Pattern, e.g. CASE_INSENSITIVE. -1 if there is no
+     * such field.
+     */
+    private static int patternConstant(String name) {
+        try {
+            Field field = Pattern.class.getField(name);
+            
+            if (field.getType() == int.class && Modifier.isStatic(field.getModifiers())) {
+                return field.getInt(null);
+            }
+        } catch (NoSuchFieldException|IllegalAccessException e) {
+            // Not a constant of Pattern
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Translate the Unicode escapes (e.g. \u005C u0041), which the compiler does before lexing.
+     */
+    private static String unicodeEscapes(String source) {
+        if (source.indexOf("\\u") < 0) {
+            return source;
+        }
+        
+        StringBuilder sb = new StringBuilder(source.length());
+        int backslashes = 0;
+        
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            
+            // A backslash escaped by another one does not start a Unicode escape
+            if (c == '\\' && backslashes % 2 == 0 && i + 1 < source.length() && source.charAt(i + 1) == 'u') {
+                int j = i + 1;
+                while (j < source.length() && source.charAt(j) == 'u') {
+                    j++;
+                }
+                
+                if (j + 4 <= source.length()) {
+                    try {
+                        sb.append((char) Integer.parseInt(source.substring(j, j + 4), 16));
+                        i = j + 3;
+                        backslashes = 0;
+                        continue;
+                    } catch (NumberFormatException e) {
+                        // Not a Unicode escape, which javac would reject
+                    }
+                }
+            }
+            
+            backslashes = c == '\\' ? backslashes + 1 : 0;
+            sb.append(c);
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Split the source into identifiers, string literals, numbers and symbols, without the
+     * comments, character literals and text blocks.
+     */
+    private static List<Token> tokenize(String source) {
+        List<Token> tokens = new ArrayList<Token>();
+        int line = 1;
+        int i = 0;
+        int n = source.length();
+        
+        while (i < n) {
+            char c = source.charAt(i);
+            
+            if (c == '\n') {
+                line++;
+                i++;
+            } else if (Character.isWhitespace(c)) {
+                i++;
+            } else if (source.startsWith("//", i)) {
+                while (i < n && source.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (source.startsWith("/*", i)) {
+                int end = source.indexOf("*/", i + 2);
+                end = end < 0 ? n : end + 2;
+                line += count(source, i, end, '\n');
+                i = end;
+            } else if (source.startsWith("\"\"\"", i)) {
+                // Text block, up to the closing delimiter which is not escaped
+                int j = i + 3;
+                while (j < n && !source.startsWith("\"\"\"", j)) {
+                    j += source.charAt(j) == '\\' ? 2 : 1;
+                }
+                j = Math.min(n, j + 3);
+                line += count(source, i, j, '\n');
+                tokens.add(new Token(TokenType.SYMBOL, "\"\"\"", line));
+                i = j;
+            } else if (c == '"' || c == '\'') {
+                StringBuilder value = new StringBuilder();
+                int j = i + 1;
+                
+                while (j < n && source.charAt(j) != c && source.charAt(j) != '\n') {
+                    j = unescape(source, j, value);
+                }
+                
+                tokens.add(c == '"' ? new Token(TokenType.STRING, value.toString(), line) : new Token(TokenType.SYMBOL, "'", line));
+                i = Math.min(n, j + 1);
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int j = i + 1;
+                while (j < n && Character.isJavaIdentifierPart(source.charAt(j))) {
+                    j++;
+                }
+                tokens.add(new Token(TokenType.IDENTIFIER, source.substring(i, j), line));
+                i = j;
+            } else if (c >= '0' && c <= '9' || c == '.' && i + 1 < n && source.charAt(i + 1) >= '0' && source.charAt(i + 1) <= '9') {
+                int j = i + 1;
+                while (j < n && (Character.isLetterOrDigit(source.charAt(j)) || source.charAt(j) == '_' || source.charAt(j) == '.')) {
+                    j++;
+                }
+                tokens.add(new Token(TokenType.NUMBER, source.substring(i, j), line));
+                i = j;
+            } else {
+                tokens.add(new Token(TokenType.SYMBOL, String.valueOf(c), line));
+                i++;
+            }
+        }
+        
+        return tokens;
+    }
+    
+    private static int count(String s, int start, int end, char c) {
+        int count = 0;
+        
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == c) {
+                count++;
+            }
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Append the character of a literal at the offset, with its escape sequence decoded.
+     *
+     * @return offset right after it
+     */
+    private static int unescape(String source, int i, StringBuilder value) {
+        char c = source.charAt(i);
+        
+        if (c != '\\' || i + 1 >= source.length()) {
+            value.append(c);
+            return i + 1;
+        }
+        
+        char e = source.charAt(i + 1);
+        switch (e) {
+            case 'b':
+                value.append('\b');
+                return i + 2;
+            case 't':
+                value.append('\t');
+                return i + 2;
+            case 'n':
+                value.append('\n');
+                return i + 2;
+            case 'f':
+                value.append('\f');
+                return i + 2;
+            case 'r':
+                value.append('\r');
+                return i + 2;
+            case 's':
+                value.append(' ');
+                return i + 2;
+            default:
+                if (e >= '0' && e <= '7') {
+                    // Up to 3 octal digits, up to \377
+                    int j = i + 1;
+                    int code = 0;
+                    while (j < source.length() && j < i + (e <= '3' ? 4 : 3) && source.charAt(j) >= '0' && source.charAt(j) <= '7') {
+                        code = code * 8 + source.charAt(j++) - '0';
+                    }
+                    value.append((char) code);
+                    return j;
+                }
+                
+                // \", \' and \\
+                value.append(e);
+                return i + 2;
+        }
+    }
+    
+    /**
+     * Writes the regexes found, or their dissection.
+     */
+    private static final class Output {
+        final Writer out;
+        final DissectionCache cache;
+        final DissectionRenderer renderer;
+        int files;
+        int regexes;
+        int errors;
+        
+        Output(Writer out, boolean dissect, PatternDissector.LoggingLevel loggingLevel) {
+            this.out = out;
+            this.cache = dissect ? new DissectionCache(1024) : null;
+            this.renderer = dissect ? new DissectionRenderer(loggingLevel) : null;
+        }
+        
+        void write(List<Regex> found) throws IOException {
+            files++;
+            
+            for (Regex regex: found) {
+                regexes++;
+                
+                if (cache == null) {
+                    out.write(regex.toString());
+                    out.write('\n');
+                    continue;
+                }
+                
+                out.write("[" + regex.location + "] " + regex.call + "\n");
+                try {
+                    out.write(renderer.render(cache.get(regex.pattern, Math.max(regex.flags, 0)), true));
+                } catch (IllegalAccessException|RuntimeException e) {
+                    out.write(regex.pattern + "\nDissection failed: " + e + "\n\n");
+                }
+            }
+        }
+        
+        void error(String location, Exception e) {
+            errors++;
+            System.err.println(location + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Scan a source file, a class file or a jar.
+     */
+    private static void scanFile(Path file, Output output) throws IOException {
+        String name = file.toString();
+        
+        try {
+            if (name.endsWith(".java")) {
+                output.write(scanSource(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), name));
+            } else if (name.endsWith(".class")) {
+                output.write(scanClass(Files.readAllBytes(file), name));
+            } else {
+                try (ZipFile zip = new ZipFile(file.toFile())) {
+                    scanZip(zip, name, output);
+                }
+            }
+        } catch (IllegalArgumentException|IOException e) {
+            output.error(name, e);
+        }
+    }
+    
+    private static void scanZip(ZipFile zip, String name, Output output) throws IOException {
+        byte[] buffer = new byte[8192];
+        
+        for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+            ZipEntry entry = entries.nextElement();
+            String location = name + "!" + entry.getName();
+            boolean source = entry.getName().endsWith(".java");
+            
+            if (entry.isDirectory() || !source && !entry.getName().endsWith(".class")) {
+                continue;
+            }
+            
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(entry.getSize() > 0 ? (int) entry.getSize() : 8192);
+            try (InputStream in = zip.getInputStream(entry)) {
+                for (int read; (read = in.read(buffer)) > 0; ) {
+                    bytes.write(buffer, 0, read);
+                }
+            }
+            
+            try {
+                output.write(source
+                    ? scanSource(new String(bytes.toByteArray(), StandardCharsets.UTF_8), location)
+                    : scanClass(bytes.toByteArray(), location));
+            } catch (IllegalArgumentException e) {
+                output.error(location, e);
+            }
+        }
+    }
+    
+    private static boolean isScanned(Path file) {
+        String name = file.getFileName().toString();
+        
+        return name.endsWith(".java") || name.endsWith(".class") || name.endsWith(".jar") || name.endsWith(".zip");
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: PatternDissector --scan [--dissect] [--verbose] PATH...");
+        System.err.println();
+        System.err.println("Find the regexes passed as constants to Pattern.compile, Pattern.matches, String.matches, split,");
+        System.err.println("replaceAll and replaceFirst in the source files (.java), class files (.class) and jars (.jar, .zip)");
+        System.err.println("under each PATH. Print one per line: location, method, flags (? if not constant) and pattern,");
+        System.err.println("separated by tab characters. --dissect prints the dissection of each regex after its location.");
+    }
+    
+    /**
+     * Command line entry of the scanner.
+     *
+     * @return exit status
+     */
+    static int run(String[] args) {
+        boolean dissect = false;
+        PatternDissector.LoggingLevel loggingLevel = PatternDissector.LoggingLevel.SIMPLE;
+        List<String> paths = new ArrayList<String>();
+        
+        for (String arg: args) {
+            switch (arg) {
+                case "--dissect":
+                    dissect = true;
+                    break;
+                case "--verbose":
+                    loggingLevel = PatternDissector.LoggingLevel.VERBOSE;
+                    break;
+                default:
+                    if (arg.startsWith("--")) {
+                        usage();
+                        return 2;
+                    }
+                    
+                    paths.add(arg);
+            }
+        }
+        
+        if (paths.isEmpty()) {
+            usage();
+            return 2;
+        }
+        
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        Output output = new Output(out, dissect, loggingLevel);
+        
+        try {
+            for (String path: paths) {
+                final List<Path> files = new ArrayList<Path>();
+                
+                Files.walkFileTree(Paths.get(path), new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        if (attributes.isRegularFile() && isScanned(file)) {
+                            files.add(file);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                    
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        System.err.println(file + ": " + e);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+                
+                // In a stable order, so that the results of two scans can be compared
+                Collections.sort(files);
+                
+                for (Path file: files) {
+                    scanFile(file, output);
+                }
+            }
+            
+            out.flush();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+        
+        System.err.println(output.regexes + " regexes found in " + output.files + " files, " + output.errors + " files not read");
+        
+        return output.errors > 0 ? 1 : 0;
+    }
+}
@@ -0,0 +1,685 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A node of the compiled Pattern graph, as decoded by PatternDissector.decode().
+ *
+ * The decoded graph is a tree of sequences: a sequence is the list of nodes linked by the
+ * "next" field, and nodes such as Branch, Curly or Loop own nested sequences (alternatives,
+ * atom, body, ...). Back-edges (e.g. from GroupTail to its Loop) are not walked again, and
+ * show up as the end of the nested sequence.
+ *
+ * Nodes are immutable once decode() returns, so the same result can be rendered or analyzed
+ * any number of times, from any thread.
+ */
+abstract class DissectedNode {
+    
+    /**
+     * Kind of the decoded node. The name is the simple name of the node class in Pattern,
+     * or the enclosing method for the anonymous CharProperty classes.
+     */
+    enum Kind {
+        START("Start"),
+        START_S("StartS"),
+        
+        CARET("Caret"),
+        UNIX_CARET("UnixCaret"),
+        DOLLAR("Dollar"),
+        UNIX_DOLLAR("UnixDollar"),
+        BEGIN("Begin"),
+        END("End"),
+        LAST_MATCH("LastMatch"),
+        
+        ACCEPT("Node"),
+        
+        SLICE("Slice"),
+        SLICE_S("SliceS"),
+        BNM("BnM"),
+        BNM_S("BnMS"),
+        
+        BRANCH("Branch"),
+        BRANCH_CONN("BranchConn"),
+        
+        BACK_REF("BackRef"),
+        
+        POS("Pos"),
+        NEG("Neg"),
+        BEHIND("Behind"),
+        
+        CURLY("Curly"),
+        GROUP_CURLY("GroupCurly"),
+        
+        GROUP_HEAD("GroupHead"),
+        GROUP_TAIL("GroupTail"),
+        
+        PROLOG("Prolog"),
+        LOOP("Loop"),
+        LAZY_LOOP("LazyLoop"),
+        
+        DOT("Dot"),
+        UNIX_DOT("UnixDot"),
+        ALL("All"),
+        
+        CTYPE("Ctype"),
+        BIT_CLASS("BitClass"),
+        SINGLE("Single"),
+        SINGLE_S("SingleS"),
+        SINGLE_U("SingleU"),
+        
+        COMPLEMENT("CharProperty.complement"),
+        SET_DIFFERENCE("Pattern.setDifference"),
+        UNION("Pattern.union"),
+        INTERSECTION("Pattern.intersection"),
+        RANGE("Pattern.rangeFor"),
+        
+        /** A node which has already been decoded, reached again through a back-edge */
+        REFERENCE("Reference"),
+        /** A node which the dissector does not know how to decode */
+        UNKNOWN("Unknown"),
+        /** Debugging output from the dissector, for structures it does not expect */
+        DEBUG("Debug");
+        
+        final String name;
+        
+        private Kind(String name) {
+            this.name = name;
+        }
+        
+        private static final Map<String, Kind> BY_NAME;
+        static {
+            Map<String, Kind> m = new HashMap<String, Kind>();
+            
+            for (Kind kind: values()) {
+                m.put(kind.name, kind);
+            }
+            
+            BY_NAME = Collections.unmodifiableMap(m);
+        }
+        
+        /**
+         * Look up the kind by node class simple name or enclosing method name.
+         *
+         * @return null if there is no such kind
+         */
+        static Kind of(String name) {
+            return BY_NAME.get(name);
+        }
+    }
+    
+    private final Kind kind;
+    private final int id;
+    
+    DissectedNode(Kind kind, int id) {
+        this.kind = kind;
+        this.id = id;
+    }
+    
+    Kind kind() {
+        return kind;
+    }
+    
+    /**
+     * Identity hash code of the node in the Pattern graph. 0 for nodes which are not part
+     * of the graph (DEBUG nodes).
+     */
+    int id() {
+        return id;
+    }
+    
+    /**
+     * Label of the node in the dissector output.
+     */
+    String label() {
+        return kind.name;
+    }
+    
+    /**
+     * The nested sequences owned by this node, in matching order.
+     */
+    List<List<DissectedNode>> children() {
+        return Collections.emptyList();
+    }
+    
+    @Override
+    public String toString() {
+        return label() + " [" + Integer.toHexString(id) + "]";
+    }
+    
+    private static int[] copyOf(int[] array) {
+        return Arrays.copyOf(array, array.length);
+    }
+    
+    /**
+     * Node without any parameter, e.g. Caret, Begin, Prolog, Dot or the accept Node.
+     */
+    static final class Simple extends DissectedNode {
+        Simple(Kind kind, int id) {
+            super(kind, id);
+        }
+    }
+    
+    /**
+     * Start, StartS: unanchored match.
+     */
+    static final class Start extends DissectedNode {
+        private final int minLength;
+        
+        Start(Kind kind, int id, int minLength) {
+            super(kind, id);
+            this.minLength = minLength;
+        }
+        
+        int minLength() {
+            return minLength;
+        }
+    }
+    
+    /**
+     * Dollar, UnixDollar.
+     */
+    static final class Dollar extends DissectedNode {
+        private final boolean multiline;
+        
+        Dollar(Kind kind, int id, boolean multiline) {
+            super(kind, id);
+            this.multiline = multiline;
+        }
+        
+        boolean multiline() {
+            return multiline;
+        }
+        
+        @Override
+        String label() {
+            return kind().name + "(multiline=" + multiline + ")";
+        }
+    }
+    
+    /**
+     * Slice, SliceS, BnM, BnMS: sequence of code points.
+     */
+    static final class Literal extends DissectedNode {
+        private final int[] codePoints;
+        private final int lengthInChars;
+        
+        Literal(Kind kind, int id, int[] codePoints, int lengthInChars) {
+            super(kind, id);
+            this.codePoints = copyOf(codePoints);
+            this.lengthInChars = lengthInChars;
+        }
+        
+        int[] codePoints() {
+            return copyOf(codePoints);
+        }
+        
+        int length() {
+            return codePoints.length;
+        }
+        
+        /**
+         * Only available for BnMS, -1 otherwise.
+         */
+        int lengthInChars() {
+            return lengthInChars;
+        }
+    }
+    
+    /**
+     * Alternation. Each alternative is a sequence, normally ended by the BranchConn of the Branch.
+     */
+    static final class Branch extends DissectedNode {
+        private final List<List<DissectedNode>> alternatives;
+        
+        Branch(int id, List<List<DissectedNode>> alternatives) {
+            super(Kind.BRANCH, id);
+            
+            List<List<DissectedNode>> views = new ArrayList<List<DissectedNode>>(alternatives.size());
+            for (List<DissectedNode> alternative: alternatives) {
+                views.add(Collections.unmodifiableList(alternative));
+            }
+            
+            this.alternatives = Collections.unmodifiableList(views);
+        }
+        
+        List<List<DissectedNode>> alternatives() {
+            return alternatives;
+        }
+        
+        @Override
+        List<List<DissectedNode>> children() {
+            return alternatives;
+        }
+    }
+    
+    /**
+     * BranchConn, which connects the alternatives of a Branch to the sequel.
+     */
+    static final class BranchConn extends DissectedNode {
+        private final boolean endOfAlternative;
+        
+        BranchConn(int id, boolean endOfAlternative) {
+            super(Kind.BRANCH_CONN, id);
+            this.endOfAlternative = endOfAlternative;
+        }
+        
+        /**
+         * Whether this node ends an alternative of its Branch, as opposed to the node which
+         * follows the Branch in the enclosing sequence.
+         */
+        boolean endOfAlternative() {
+            return endOfAlternative;
+        }
+    }
+    
+    static final class BackRef extends DissectedNode {
+        private final int groupIndex;
+        
+        BackRef(int id, int groupIndex) {
+            super(Kind.BACK_REF, id);
+            this.groupIndex = groupIndex;
+        }
+        
+        int groupIndex() {
+            return groupIndex;
+        }
+    }
+    
+    /**
+     * Pos, Neg, Behind: look-ahead and look-behind.
+     */
+    static final class Lookaround extends DissectedNode {
+        private final int rmin;
+        private final int rmax;
+        private final List<DissectedNode> cond;
+        
+        Lookaround(Kind kind, int id, int rmin, int rmax, List<DissectedNode> cond) {
+            super(kind, id);
+            this.rmin = rmin;
+            this.rmax = rmax;
+            this.cond = Collections.unmodifiableList(cond);
+        }
+        
+        /**
+         * Minimum length of the look-behind. 0 for look-ahead.
+         */
+        int rmin() {
+            return rmin;
+        }
+        
+        /**
+         * Maximum length of the look-behind. 0 for look-ahead.
+         */
+        int rmax() {
+            return rmax;
+        }
+        
+        List<DissectedNode> cond() {
+            return cond;
+        }
+        
+        @Override
+        List<List<DissectedNode>> children() {
+            return Collections.singletonList(cond);
+        }
+    }
+    
+    /**
+     * Curly, GroupCurly: quantifier over a deterministic atom.
+     */
+    static final class Curly extends DissectedNode {
+        private final int type;
+        private final int cmin;
+        private final int cmax;
+        private final boolean capture;
+        private final int localIndex;
+        private final int groupIndex;
+        private final List<DissectedNode> atom;
+        
+        Curly(Kind kind, int id, int type, int cmin, int cmax, boolean capture, int localIndex, int groupIndex, List<DissectedNode> atom) {
+            super(kind, id);
+            this.type = type;
+            this.cmin = cmin;
+            this.cmax = cmax;
+            this.capture = capture;
+            this.localIndex = localIndex;
+            this.groupIndex = groupIndex;
+            this.atom = Collections.unmodifiableList(atom);
+        }
+        
+        int type() {
+            return type;
+        }
+        
+        PatternDissector.QUANTIFIER quantifier() {
+            return PatternDissector.QUANTIFIER.values()[type];
+        }
+        
+        int cmin() {
+            return cmin;
+        }
+        
+        int cmax() {
+            return cmax;
+        }
+        
+        /**
+         * Only meaningful for GroupCurly.
+         */
+        boolean capture() {
+            return capture;
+        }
+        
+        /**
+         * Only meaningful for GroupCurly: index into the locals array of Matcher.
+         */
+        int localIndex() {
+            return localIndex;
+        }
+        
+        /**
+         * Only meaningful for GroupCurly: index into the groups array of Matcher, i.e. twice
+         * the group number.
+         */
+        int groupIndex() {
+            return groupIndex;
+        }
+        
+        List<DissectedNode> atom() {
+            return atom;
+        }
+        
+        @Override
+        List<List<DissectedNode>> children() {
+            return Collections.singletonList(atom);
+        }
+    }
+    
+    static final class GroupHead extends DissectedNode {
+        private final int localIndex;
+        
+        GroupHead(int id, int localIndex) {
+            super(Kind.GROUP_HEAD, id);
+            this.localIndex = localIndex;
+        }
+        
+        int localIndex() {
+            return localIndex;
+        }
+    }
+    
+    static final class GroupTail extends DissectedNode {
+        private final int localIndex;
+        private final int groupIndex;
+        private final String nextName;
+        private final int nextId;
+        
+        GroupTail(int id, int localIndex, int groupIndex, String nextName, int nextId) {
+            super(Kind.GROUP_TAIL, id);
+            this.localIndex = localIndex;
+            this.groupIndex = groupIndex;
+            this.nextName = nextName;
+            this.nextId = nextId;
+        }
+        
+        int localIndex() {
+            return localIndex;
+        }
+        
+        /**
+         * Index into the groups array of Matcher, i.e. twice the group number. 0 for
+         * non-capturing groups.
+         */
+        int groupIndex() {
+            return groupIndex;
+        }
+        
+        /**
+         * Simple class name of the next node.
+         */
+        String nextName() {
+            return nextName;
+        }
+        
+        int nextId() {
+            return nextId;
+        }
+    }
+    
+    /**
+     * Loop, LazyLoop: quantifier over a group, used when Curly and GroupCurly can't be used.
+     * The body normally ends with the GroupTail which goes back to the loop.
+     */
+    static final class Loop extends DissectedNode {
+        private final int cmin;
+        private final int cmax;
+        private final List<DissectedNode> body;
+        
+        Loop(Kind kind, int id, int cmin, int cmax, List<DissectedNode> body) {
+            super(kind, id);
+            this.cmin = cmin;
+            this.cmax = cmax;
+            this.body = Collections.unmodifiableList(body);
+        }
+        
+        int cmin() {
+            return cmin;
+        }
+        
+        int cmax() {
+            return cmax;
+        }
+        
+        List<DissectedNode> body() {
+            return body;
+        }
+        
+        @Override
+        List<List<DissectedNode>> children() {
+            return Collections.singletonList(body);
+        }
+    }
+    
+    /**
+     * A node which has already been decoded.
+     */
+    static final class Reference extends DissectedNode {
+        private final String description;
+        
+        Reference(int id, String description) {
+            super(Kind.REFERENCE, id);
+            this.description = description;
+        }
+        
+        /**
+         * Object.toString() of the referenced node.
+         */
+        String description() {
+            return description;
+        }
+    }
+    
+    static final class Ctype extends DissectedNode {
+        private final int ctype;
+        private final String name;
+        
+        Ctype(int id, int ctype, String name) {
+            super(Kind.CTYPE, id);
+            this.ctype = ctype;
+            this.name = name;
+        }
+        
+        int ctype() {
+            return ctype;
+        }
+        
+        /**
+         * Name of the constant in java.util.regex.ASCII.
+         */
+        String name() {
+            return name;
+        }
+    }
+    
+    /**
+     * BitClass: character class of Latin-1 characters.
+     */
+    static final class BitClass extends DissectedNode {
+        private final int[] codePoints;
+        
+        BitClass(int id, int[] codePoints) {
+            super(Kind.BIT_CLASS, id);
+            this.codePoints = copyOf(codePoints);
+        }
+        
+        int[] codePoints() {
+            return copyOf(codePoints);
+        }
+        
+        int size() {
+            return codePoints.length;
+        }
+    }
+    
+    /**
+     * Single, SingleS, SingleU. For SingleU, the code point is the lowercase code point.
+     */
+    static final class Single extends DissectedNode {
+        private final int codePoint;
+        
+        Single(Kind kind, int id, int codePoint) {
+            super(kind, id);
+            this.codePoint = codePoint;
+        }
+        
+        int codePoint() {
+            return codePoint;
+        }
+    }
+    
+    /**
+     * Character class set operation: complement, union, intersection and set difference.
+     */
+    static final class SetOperation extends DissectedNode {
+        private final List<DissectedNode> operands;
+        
+        SetOperation(Kind kind, int id, List<DissectedNode> operands) {
+            super(kind, id);
+            this.operands = Collections.unmodifiableList(operands);
+        }
+        
+        List<DissectedNode> operands() {
+            return operands;
+        }
+        
+        @Override
+        List<List<DissectedNode>> children() {
+            List<DissectedNode>[] sequences = newSequenceArray(operands.size());
+            
+            for (int i = 0; i < sequences.length; i++) {
+                sequences[i] = Collections.singletonList(operands.get(i));
+            }
+            
+            return Collections.unmodifiableList(Arrays.asList(sequences));
+        }
+        
+        @SuppressWarnings("unchecked")
+        private static List<DissectedNode>[] newSequenceArray(int size) {
+            return (List<DissectedNode>[]) new List<?>[size];
+        }
+    }
+    
+    /**
+     * Character range, both ends inclusive.
+     */
+    static final class Range extends DissectedNode {
+        private final int lower;
+        private final int upper;
+        
+        Range(int id, int lower, int upper) {
+            super(Kind.RANGE, id);
+            this.lower = lower;
+            this.upper = upper;
+        }
+        
+        int lower() {
+            return lower;
+        }
+        
+        int upper() {
+            return upper;
+        }
+    }
+    
+    /**
+     * Node of a class which the dissector does not decode.
+     */
+    static final class Unknown extends DissectedNode {
+        private final String className;
+        
+        Unknown(int id, String className) {
+            super(Kind.UNKNOWN, id);
+            this.className = className;
+        }
+        
+        String className() {
+            return className;
+        }
+        
+        @Override
+        String label() {
+            return className;
+        }
+    }
+    
+    /**
+     * Debugging output about unexpected structures, and character classes which are not
+     * decoded (e.g. Unicode properties).
+     */
+    static final class Debug extends DissectedNode {
+        private final String message;
+        private final Object charProperty;
+        private volatile CodePointSet members;
+        
+        Debug(String message) {
+            this(0, message, null);
+        }
+        
+        /**
+         * @param charProperty the character class node, or null
+         */
+        Debug(int id, String message, Object charProperty) {
+            super(Kind.DEBUG, id);
+            this.message = message;
+            this.charProperty = charProperty;
+        }
+        
+        String message() {
+            return message;
+        }
+        
+        /**
+         * Code points matched by the character class, evaluated from its predicate on the
+         * first call (see CharPropertyCache), since it takes a scan of all code points. Null if
+         * the node is not a character class, or its predicate could not be evaluated.
+         */
+        CodePointSet members() {
+            CodePointSet set = members;
+            
+            if (set == null && charProperty != null) {
+                set = CharPropertyCache.members(charProperty);
+                members = set;
+            }
+            
+            return set;
+        }
+        
+        @Override
+        String label() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Result of PatternDissector.decode(): the decoded node graph of a compiled Pattern, or the
+ * reason why the pattern could not be compiled.
+ */
+final class DissectedPattern {
+    
+    private final String pattern;
+    private final int flags;
+    private final String normalizedPattern;
+    private final List<DissectedNode> nodes;
+    private final String errorPattern;
+    private final String errorDescription;
+    
+    private DissectedPattern(String pattern, int flags, String normalizedPattern, List<DissectedNode> nodes, String errorPattern, String errorDescription) {
+        this.pattern = pattern;
+        this.flags = flags;
+        this.normalizedPattern = normalizedPattern;
+        this.nodes = nodes;
+        this.errorPattern = errorPattern;
+        this.errorDescription = errorDescription;
+    }
+    
+    static DissectedPattern compiled(String pattern, int flags, String normalizedPattern, List<DissectedNode> nodes) {
+        return new DissectedPattern(pattern, flags, normalizedPattern, Collections.unmodifiableList(nodes), null, null);
+    }
+    
+    static DissectedPattern failed(String pattern, int flags, PatternSyntaxException e) {
+        return new DissectedPattern(pattern, flags, null, Collections.<DissectedNode>emptyList(), e.getPattern(), e.getDescription());
+    }
+    
+    String pattern() {
+        return pattern;
+    }
+    
+    /**
+     * Flags the pattern is compiled with. This is Pattern.flags() when a compiled Pattern is
+     * decoded, which includes the flags turned on by embedded flag expressions.
+     */
+    int flags() {
+        return flags;
+    }
+    
+    /**
+     * Only available when CANON_EQ flag is specified, null otherwise.
+     */
+    String normalizedPattern() {
+        return normalizedPattern;
+    }
+    
+    /**
+     * The sequence of nodes starting from the root node of the Pattern.
+     */
+    List<DissectedNode> nodes() {
+        return nodes;
+    }
+    
+    /**
+     * Number of nodes in the decoded graph, including the nodes nested in Branch, Curly, Loop,
+     * look-around and character class set operations.
+     */
+    int nodeCount() {
+        int count = 0;
+        Deque<List<DissectedNode>> pending = new ArrayDeque<List<DissectedNode>>();
+        pending.push(nodes);
+        
+        while (!pending.isEmpty()) {
+            for (DissectedNode node: pending.pop()) {
+                count++;
+                
+                for (List<DissectedNode> child: node.children()) {
+                    pending.push(child);
+                }
+            }
+        }
+        
+        return count;
+    }
+    
+    boolean isCompiled() {
+        return errorDescription == null;
+    }
+    
+    /**
+     * The erroneous pattern reported by PatternSyntaxException, which is the normalized pattern
+     * when CANON_EQ flag is specified. null if the pattern compiled successfully.
+     */
+    String errorPattern() {
+        return errorPattern;
+    }
+    
+    /**
+     * Description of the PatternSyntaxException if the pattern failed to compile, null otherwise.
+     */
+    String errorDescription() {
+        return errorDescription;
+    }
+}
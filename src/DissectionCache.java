@@ -0,0 +1,163 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded LRU cache of dissection results, keyed by pattern, flags and Java version.
+ *
+ * DissectedPattern is immutable, so a cached result can be shared by all callers. The weight
+ * of an entry is the number of nodes of its result, which is a fair estimate of the memory
+ * it holds. The least recently used entries are evicted when either the number of entries or
+ * the total weight exceeds its bound. A result heavier than the weight bound is not cached.
+ *
+ * The dissection itself is done outside the lock, so the same pattern may be dissected more
+ * than once by concurrent callers, but only one of the results is kept.
+ */
+final class DissectionCache {
+    
+    /**
+     * Java version of the running JVM. The node graph depends on the JCL, so results are not
+     * interchangeable between versions.
+     */
+    private static final String JAVA_VERSION = System.getProperty("java.version");
+    
+    private static final class Key {
+        final String pattern;
+        final int flags;
+        final String javaVersion;
+        
+        Key(String pattern, int flags, String javaVersion) {
+            this.pattern = pattern;
+            this.flags = flags;
+            this.javaVersion = javaVersion;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            
+            Key other = (Key) o;
+            return flags == other.flags && pattern.equals(other.pattern) && javaVersion.equals(other.javaVersion);
+        }
+        
+        @Override
+        public int hashCode() {
+            return (pattern.hashCode() * 31 + flags) * 31 + javaVersion.hashCode();
+        }
+    }
+    
+    private static final class Entry {
+        final DissectedPattern result;
+        final int weight;
+        
+        Entry(DissectedPattern result, int weight) {
+            this.result = result;
+            this.weight = weight;
+        }
+    }
+    
+    private final int maxEntries;
+    private final long maxWeight;
+    
+    /** Access-ordered, so that iteration starts from the least recently used entry */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private long weight;
+    
+    private long hits;
+    private long misses;
+    private long evictions;
+    
+    DissectionCache(int maxEntries, long maxWeight) {
+        if (maxEntries < 1 || maxWeight < 1) {
+            throw new IllegalArgumentException("Cache bounds must be positive: maxEntries=" + maxEntries + ", maxWeight=" + maxWeight);
+        }
+        
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+    
+    DissectionCache(int maxEntries) {
+        this(maxEntries, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Return the cached result for the pattern, or dissect it with PatternDissector.decode()
+     * and cache the result.
+     */
+    DissectedPattern get(String pattern, int flags) throws IllegalAccessException {
+        Key key = new Key(pattern, flags, JAVA_VERSION);
+        
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            
+            if (entry != null) {
+                hits++;
+                return entry.result;
+            }
+            
+            misses++;
+        }
+        
+        DissectedPattern result = PatternDissector.decode(pattern, flags);
+        int resultWeight = result.nodeCount();
+        
+        synchronized (this) {
+            Entry existing = entries.get(key);
+            
+            if (existing != null) {
+                return existing.result;
+            }
+            
+            if (resultWeight <= maxWeight) {
+                entries.put(key, new Entry(result, resultWeight));
+                weight += resultWeight;
+                evict();
+            }
+        }
+        
+        return result;
+    }
+    
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        
+        while (entries.size() > maxEntries || weight > maxWeight) {
+            Entry eldest = it.next();
+            it.remove();
+            weight -= eldest.weight;
+            evictions++;
+        }
+    }
+    
+    synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+    
+    synchronized int size() {
+        return entries.size();
+    }
+    
+    synchronized long weight() {
+        return weight;
+    }
+    
+    synchronized long hits() {
+        return hits;
+    }
+    
+    synchronized long misses() {
+        return misses;
+    }
+    
+    synchronized long evictions() {
+        return evictions;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "DissectionCache(size=" + entries.size() + ", weight=" + weight
+            + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ")";
+    }
+}
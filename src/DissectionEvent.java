@@ -0,0 +1,79 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder event of a phase of the dissection of a pattern, see DissectorMetrics.
+ *
+ * This class is only loaded when the running JDK has the jdk.jfr API, and Flight Recorder has
+ * been initialized.
+ */
+@Name("PatternDissector.Dissection")
+@Label("Dissection Phase")
+@Category("Pattern Dissector")
+@Description("A phase of the dissection of a pattern: compile, extract, traverse or render")
+@StackTrace(false)
+final class DissectionEvent extends Event {
+    
+    @Label("Phase")
+    String phase;
+    
+    @Label("Pattern")
+    String pattern;
+    
+    @Label("Flags")
+    int flags;
+    
+    @Label("Nodes")
+    @Description("Number of decoded nodes, -1 if not known in the phase")
+    int nodeCount;
+    
+    @Label("Allocated")
+    @Description("Bytes allocated by the thread during the phase, -1 if not known")
+    @DataAmount
+    long allocated;
+    
+    private static volatile boolean registered;
+    
+    /**
+     * Start an event, if a recording is running with this event enabled.
+     *
+     * @return null if the event is not recorded
+     */
+    static DissectionEvent beginIfRecorded() {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        
+        if (!registered) {
+            FlightRecorder.register(DissectionEvent.class);
+            registered = true;
+        }
+        
+        DissectionEvent event = new DissectionEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        
+        event.begin();
+        return event;
+    }
+    
+    void finish(DissectorMetrics.Phase phase, String pattern, int flags, int nodeCount, long allocated) {
+        end();
+        
+        if (shouldCommit()) {
+            this.phase = phase.name();
+            this.pattern = pattern;
+            this.flags = flags;
+            this.nodeCount = nodeCount;
+            this.allocated = allocated;
+            commit();
+        }
+    }
+}
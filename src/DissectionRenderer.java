@@ -0,0 +1,655 @@
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Render DissectedPattern as the indented text output of the dissector.
+ *
+ * The output of each pattern is built in a buffer which is reused between calls, and written to
+ * the Appendable in large chunks. The format strings are parsed once into templates indexed by
+ * node kind, so rendering a node neither goes through Formatter nor allocates an argument array.
+ *
+ * An instance is not thread-safe, since it reuses its buffer. Use one instance per thread.
+ */
+final class DissectionRenderer {
+    
+    /**
+     * Format strings of the verbose output, only built when a verbose renderer is created.
+     */
+    private static Map<String, String> verboseFormatStrings() {
+        Map<String, String> m = new HashMap<String, String>();
+        
+        m.put("Start", "%s. Start unanchored match (minLength=%d)\n");
+        m.put("StartS", "%s. Start unanchored match with support for supplementary characters (minLength=%d)\n");
+        
+        m.put("Caret", "%s. Match beginning of a line: (?m:^)\n");
+        m.put("UnixCaret", "%s. Match beginning of a line in UNIX_LINES mode: (?dm:^)\n");
+        m.put("Dollar(multiline=true)", "%s. Match before a line terminator (end of a line) or the end of the string: (?m:$)\n");
+        m.put("Dollar(multiline=false)", "%s. Match the end of the string but just before final line terminator if any: \\Z or default $\n");
+        m.put("UnixDollar(multiline=true)", "%s. Match before a line terminator (end of a line) or the end of the string, in UNIX_LINES mode: (?dm:$)\n");
+        m.put("UnixDollar(multiline=false)",  "%s. Match the end of the string but just before final line terminator if any, in UNIX_LINES mode: (?d:\\Z) or (?d:$)\n");
+        m.put("Begin", "%s. Match the beginning of a string: \\A or default ^\n");
+        m.put("End", "%s. Match the end of a string: \\z\n");
+        m.put("LastMatch", "%s. Last match boundary: \\G\n");
+        
+        m.put("Single", "%s. Match a BMP (Basic Multilingual Plane) character (code point at and below 0xFFFF): U+%04X %s\n");
+        m.put("SingleS", "%s. Match a supplementary character (code point at and above 0x10000): U+%04X %s\n");
+        m.put("SingleU", "%s. Match a Unicode character case-insensitively with simple 1:1 case-folding: (?iu). Lowercase code point: U+%04X %s\n");
+        
+        m.put("Slice", "%s.\n");
+        m.put("SliceS", "%s.\n");
+        m.put("BnM", "%s. Optimized matching with Boyer-Moore search algorithm (BMP only version) (length=%d)\n");
+        m.put("BnMS", "%s. Optimized matching with Boyer-Moore search algorithm (supplementary version) (length=%d, lengthChar=%d)\n");
+        
+        m.put("Branch", "%s. Attempt the following %d alternatives in printed order:\n");
+        m.put("BranchConn", "%s. Connect branches to sequel.\n");
+        
+        m.put("Pos", "%s. (DEBUG) Positive look-ahead.\n");
+        m.put("Behind", "%s. (DEBUG) Positive look-behind. rmax=%d, rmin=%d\n");
+        
+        m.put("Curly", "%s. (DEBUG) type=%s, cmin=%d, cmax=%d:\n");
+        m.put("GroupCurly", "%s. (DEBUG) type=%s, cmin=%d, cmax=%d:\n");
+        
+        m.put("Prolog", "%s. (DEBUG) Loop wrapper\n");
+        m.put("Loop", "%s [%h]. (DEBUG) cmin=%d, cmax=%d:\n");
+        m.put("LazyLoop", "%s [%h]. (DEBUG) cmin=%d, cmax=%d:\n");
+        
+        m.put("GroupTail", "%s [%h]. Responsible for setting and unsetting indices of matches in group repetition\n");
+        
+        m.put("Node", "%s. Accept match\n");
+        
+        m.put("Ctype", "%s. Match POSIX character class %s (US-ASCII)\n");
+        m.put("BitClass", "%s. Optimized character class with boolean[] to match characters in Latin-1 (code point <= 255). Match any of the following %d character(s):\n");
+        
+        m.put("Dot", "%s. Dot in default mode: (?:.). Equivalent to [^\\n\\r\\u0085\\u2028\\u2029]\n");
+        m.put("UnixDot", "%s. Dot in UNIX_LINES mode: (?d:.). Equivalent to [^\\n]\n");
+        m.put("All", "%s. Dot in DOTALL mode: (?s:.). Match any code point\n");
+        
+        m.put("CharProperty.complement", "%s (character class negation). Match any character NOT matched by the following character class:\n");
+        m.put("Pattern.setDifference", "%s (character class subtraction). Match any character matched by the 1st character class, but NOT the 2nd character class:\n");
+        m.put("Pattern.union", "%s (character class union). Match any character matched by either character classes below:\n");
+        m.put("Pattern.intersection", "%s (character class intersection). Match any character matched by both character classes below:\n");
+        
+        m.put("Pattern.rangeFor", "%s (character range). Match any character within the range from code point U+%04X to code point U+%04X (both ends inclusive)\n");
+        
+        return m;
+    }
+    
+    private static final Map<String, String> INFO_FORMAT_STRINGS_SIMPLE;
+    static {
+        Map<String, String> m = new HashMap<String, String>();
+        
+        m.put("Start", "%s. Start unanchored match (minLength=%d)\n");
+        m.put("StartS", "%s. Start unanchored match (minLength=%d)\n");
+        
+        m.put("Caret", "%s. (?m:^)\n");
+        m.put("UnixCaret", "%s. (?dm:^)\n");
+        m.put("Dollar(multiline=true)", "%s. (?m:$)\n");
+        m.put("Dollar(multiline=false)", "%s. \\Z or default $\n");
+        m.put("UnixDollar(multiline=true)", "%s. (?dm:$)\n");
+        m.put("UnixDollar(multiline=false)",  "%s. (?d:\\Z) or (?d:$)\n");
+        m.put("Begin", "%s. \\A or default ^\n");
+        m.put("End", "%s. \\z\n");
+        m.put("LastMatch", "%s. \\G\n");
+        
+        m.put("Single", "%s. Match code point: U+%04X %s\n");
+        m.put("SingleS", "%s. Match code point: U+%04X %s\n");
+        m.put("SingleU", "%s. Caseless match. Lowercase code point: U+%04X %s\n");
+        
+        m.put("Slice", "%s.\n");
+        m.put("SliceS", "%s.\n");
+        m.put("BnM", "%s. Boyer-Moore (BMP only version) (length=%d)\n");
+        m.put("BnMS", "%s. Boyer-Moore (supplementary version) (length=%d, lengthChar=%d)\n");
+        
+        m.put("Branch", "%s. Alternation (in printed order):\n");
+        m.put("BranchConn", "%s. Connect branches to sequel.\n");
+        
+        m.put("BackRef", "%s. Backreference to group %d\n");
+        
+        m.put("Pos", "%s. Positive look-ahead\n");
+        m.put("Neg", "%s. Negative look-ahead\n");
+        m.put("Behind", "%s. Positive look-behind. {%d,%d}\n");
+        
+        m.put("Prolog", "%s. Loop wrapper\n");
+        m.put("Loop", "%s [%h]. Greedy quantifier {%d,%d}\n");
+        m.put("LazyLoop", "%s [%h]. Lazy quantifier {%d,%d}:\n");
+        
+        m.put("Curly", "%s. %s quantifier {%d,%d}\n");
+        m.put("GroupCurly", "%s. (DEBUG) type=%s, cmin=%d, cmax=%d, capture=%b:\n");
+        
+        m.put("GroupHead", "%s. (DEBUG) local=%d\n");
+        m.put("GroupTail", "%s [%h]. (DEBUG) local=%d, group=%d. --[next]--> %s [%h]\n");
+        
+        m.put("Node", "%s. Accept match\n");
+        
+        m.put("Dot", "%s. (?:.), equivalent to [^\\n\\r\\u0085\\u2028\\u2029]\n");
+        m.put("UnixDot", "%s. (?d:.), equivalent to [^\\n]\n");
+        m.put("All", "%s. Match any code point: (?s:.).\n");
+        
+        m.put("Ctype", "%s. POSIX (US-ASCII): %s\n");
+        m.put("BitClass", "%s. Match any of these %d character(s):\n");
+        
+        m.put("CharProperty.complement", "%s. S\u0304:\n");
+        m.put("Pattern.setDifference", "%s. S \u2216 T:\n");
+        m.put("Pattern.union", "%s. S \u222a T:\n");
+        m.put("Pattern.intersection", "%s. S \u2229 T:\n");
+        
+        m.put("Pattern.rangeFor", "%s. U+%04X <= codePoint <= U+%04X.\n");
+        
+        INFO_FORMAT_STRINGS_SIMPLE = Collections.unmodifiableMap(m);
+    }
+    
+    /**
+     * Format string parsed into literal text and conversions. Supports the conversions used
+     * by the format strings above: %s, %d, %h, %b and %0<width>X.
+     */
+    static final class Template {
+        /** literals[i] is written before conversion i. The last literal is written at the end. */
+        private final String[] literals;
+        private final char[] conversions;
+        private final int[] widths;
+        
+        private Template(String[] literals, char[] conversions, int[] widths) {
+            this.literals = literals;
+            this.conversions = conversions;
+            this.widths = widths;
+        }
+        
+        static Template parse(String format) {
+            List<String> literalList = new ArrayList<String>();
+            StringBuilder conversionList = new StringBuilder();
+            List<Integer> widthList = new ArrayList<Integer>();
+            
+            StringBuilder literal = new StringBuilder();
+            int i = 0;
+            
+            while (i < format.length()) {
+                char c = format.charAt(i);
+                
+                if (c != '%') {
+                    literal.append(c);
+                    i++;
+                    continue;
+                }
+                
+                int start = ++i;
+                while (i < format.length() && Character.isDigit(format.charAt(i))) {
+                    i++;
+                }
+                
+                if (i >= format.length()) {
+                    throw new IllegalArgumentException("Incomplete conversion in format string: " + format);
+                }
+                
+                char conversion = format.charAt(i++);
+                int width = start == i - 1 ? 0 : Integer.parseInt(format.substring(start, i - 1));
+                
+                switch (conversion) {
+                    case 's':
+                    case 'd':
+                    case 'h':
+                    case 'b':
+                    case 'X':
+                        literalList.add(literal.toString());
+                        literal.setLength(0);
+                        conversionList.append(conversion);
+                        widthList.add(width);
+                        break;
+                    case '%':
+                        literal.append('%');
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unsupported conversion %" + conversion + " in format string: " + format);
+                }
+            }
+            
+            literalList.add(literal.toString());
+            
+            int[] widths = new int[widthList.size()];
+            for (int j = 0; j < widths.length; j++) {
+                widths[j] = widthList.get(j);
+            }
+            
+            return new Template(literalList.toArray(new String[literalList.size()]), conversionList.toString().toCharArray(), widths);
+        }
+        
+        void appendTo(StringBuilder buffer, Args args) {
+            for (int i = 0; i < conversions.length; i++) {
+                buffer.append(literals[i]);
+                
+                if (i >= args.count) {
+                    throw new IllegalArgumentException("Missing argument for conversion %" + conversions[i]);
+                }
+                
+                String string = args.strings[i];
+                long number = args.numbers[i];
+                
+                switch (conversions[i]) {
+                    case 's':
+                        if (string != null) {
+                            buffer.append(string);
+                        } else {
+                            buffer.append(number);
+                        }
+                        break;
+                    case 'd':
+                        buffer.append(number);
+                        break;
+                    case 'b':
+                        buffer.append(number != 0);
+                        break;
+                    case 'h':
+                        buffer.append(Integer.toHexString((int) number));
+                        break;
+                    case 'X':
+                        appendHex(buffer, (int) number, widths[i]);
+                        break;
+                }
+            }
+            
+            buffer.append(literals[conversions.length]);
+        }
+    }
+    
+    /**
+     * Reusable argument list for templates. Each argument is either a string or a number.
+     */
+    static final class Args {
+        private static final int CAPACITY = 8;
+        
+        private final String[] strings = new String[CAPACITY];
+        private final long[] numbers = new long[CAPACITY];
+        private int count;
+        
+        Args reset() {
+            count = 0;
+            return this;
+        }
+        
+        Args add(String value) {
+            strings[count] = String.valueOf(value);
+            numbers[count] = 0;
+            count++;
+            return this;
+        }
+        
+        Args add(long value) {
+            strings[count] = null;
+            numbers[count] = value;
+            count++;
+            return this;
+        }
+        
+        Args add(boolean value) {
+            return add(value ? 1 : 0);
+        }
+    }
+    
+    private static final int KINDS = DissectedNode.Kind.values().length;
+    
+    private static final Template[] TEMPLATES_SIMPLE = parseTemplates(INFO_FORMAT_STRINGS_SIMPLE, null);
+    
+    private static final class VerboseTemplates {
+        static final Template[] TEMPLATES = parseTemplates(verboseFormatStrings(), TEMPLATES_SIMPLE);
+    }
+    
+    /**
+     * Templates are indexed by 2 * ordinal of the kind, plus 1 for the multiline variant of
+     * Dollar and UnixDollar.
+     */
+    private static Template[] parseTemplates(Map<String, String> formatStrings, Template[] fallback) {
+        Template[] templates = new Template[KINDS * 2];
+        
+        for (DissectedNode.Kind kind: DissectedNode.Kind.values()) {
+            int index = kind.ordinal() * 2;
+            
+            if (kind == DissectedNode.Kind.DOLLAR || kind == DissectedNode.Kind.UNIX_DOLLAR) {
+                templates[index] = parseTemplate(formatStrings, kind.name + "(multiline=false)", fallback, index);
+                templates[index + 1] = parseTemplate(formatStrings, kind.name + "(multiline=true)", fallback, index + 1);
+            } else {
+                templates[index] = parseTemplate(formatStrings, kind.name, fallback, index);
+            }
+        }
+        
+        return templates;
+    }
+    
+    private static Template parseTemplate(Map<String, String> formatStrings, String key, Template[] fallback, int index) {
+        String format = formatStrings.get(key);
+        
+        if (format != null) {
+            return Template.parse(format);
+        }
+        
+        return fallback != null ? fallback[index] : null;
+    }
+    
+    private static final String[] INDENTS = new String[32];
+    static {
+        StringBuilder sb = new StringBuilder();
+        
+        for (int i = 0; i < INDENTS.length; i++) {
+            INDENTS[i] = sb.toString();
+            sb.append("  ");
+        }
+    }
+    
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    
+    /**
+     * Buffered output is written to the Appendable when it grows over this size.
+     */
+    private static final int FLUSH_THRESHOLD = 8192;
+    
+    private final PatternDissector.LoggingLevel loggingLevel;
+    private final Template[] templates;
+    private final StringBuilder buffer = new StringBuilder(FLUSH_THRESHOLD * 2);
+    private final Args args = new Args();
+    
+    private Appendable out;
+    
+    DissectionRenderer(PatternDissector.LoggingLevel loggingLevel) {
+        this.loggingLevel = loggingLevel;
+        this.templates = loggingLevel == PatternDissector.LoggingLevel.VERBOSE ? VerboseTemplates.TEMPLATES : TEMPLATES_SIMPLE;
+    }
+    
+    PatternDissector.LoggingLevel loggingLevel() {
+        return loggingLevel;
+    }
+    
+    /**
+     * Render the result in the same format as PatternDissector.dissect(). The "Flags" line is
+     * printed after compiled patterns when printFlags is true, as dissect(String, int) does.
+     */
+    void render(DissectedPattern result, boolean printFlags, Appendable out) throws IOException {
+        DissectorMetrics.Measurement measurement = DissectorMetrics.begin();
+        this.out = out;
+        
+        try {
+            if (!result.isCompiled()) {
+                buffer.append(result.pattern()).append('\n');
+                buffer.append(result.errorPattern()).append('\n');
+                buffer.append("Compilation failed: ").append(result.errorDescription()).append('\n');
+                buffer.append('\n');
+            } else {
+                buffer.append(result.pattern()).append('\n');
+                
+                if (result.normalizedPattern() != null) {
+                    buffer.append(result.normalizedPattern()).append('\n');
+                }
+                
+                renderSequence(0, result.nodes());
+                
+                buffer.append('\n');
+                
+                if (printFlags) {
+                    buffer.append("Flags: ").append(result.flags()).append('\n');
+                }
+            }
+            
+            flush();
+        } finally {
+            buffer.setLength(0);
+            this.out = null;
+            
+            if (measurement != null) {
+                measurement.end(DissectorMetrics.Phase.RENDER, result.pattern(), result.flags(), -1);
+            }
+        }
+    }
+    
+    /**
+     * Render the result into a String.
+     */
+    String render(DissectedPattern result, boolean printFlags) {
+        StringBuilder sb = new StringBuilder();
+        
+        try {
+            render(result, printFlags, sb);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        
+        return sb.toString();
+    }
+    
+    private void flush() throws IOException {
+        out.append(buffer);
+        buffer.setLength(0);
+    }
+    
+    private void renderSequence(int depth, List<DissectedNode> sequence) throws IOException {
+        for (DissectedNode node: sequence) {
+            renderNode(depth, node);
+            
+            if (buffer.length() >= FLUSH_THRESHOLD) {
+                flush();
+            }
+        }
+    }
+    
+    private void renderNode(int depth, DissectedNode node) throws IOException {
+        switch (node.kind()) {
+            case START:
+            case START_S:
+                info(depth, node, args.reset().add(node.label()).add(((DissectedNode.Start) node).minLength()));
+                break;
+            case DOLLAR:
+            case UNIX_DOLLAR:
+                info(depth, templates[node.kind().ordinal() * 2 + (((DissectedNode.Dollar) node).multiline() ? 1 : 0)], args.reset().add(node.label()));
+                break;
+            case SLICE:
+            case SLICE_S:
+                {
+                    DissectedNode.Literal literal = (DissectedNode.Literal) node;
+                    
+                    info(depth, node, args.reset().add(node.label()));
+                    printCodePoints(depth, literal.codePoints(), false);
+                }
+                break;
+            case BNM:
+            case BNM_S:
+                {
+                    DissectedNode.Literal literal = (DissectedNode.Literal) node;
+                    
+                    info(depth, node, args.reset().add(node.label()).add(literal.length()).add(literal.lengthInChars()));
+                    printCodePoints(depth, literal.codePoints(), false);
+                }
+                break;
+            case BRANCH:
+                {
+                    DissectedNode.Branch branch = (DissectedNode.Branch) node;
+                    
+                    info(depth, node, args.reset().add(node.label()).add(branch.alternatives().size()));
+                    
+                    for (List<DissectedNode> alternative: branch.alternatives()) {
+                        renderSequence(depth + 1, alternative);
+                    }
+                }
+                break;
+            case BRANCH_CONN:
+                if (((DissectedNode.BranchConn) node).endOfAlternative()) {
+                    indent(depth);
+                    buffer.append("---\n");
+                } else {
+                    info(depth, node, args.reset().add(node.label()));
+                }
+                break;
+            case BACK_REF:
+                info(depth, node, args.reset().add(node.label()).add(((DissectedNode.BackRef) node).groupIndex()));
+                break;
+            case POS:
+            case NEG:
+                info(depth, node, args.reset().add(node.label()));
+                renderSequence(depth + 1, ((DissectedNode.Lookaround) node).cond());
+                break;
+            case BEHIND:
+                {
+                    DissectedNode.Lookaround behind = (DissectedNode.Lookaround) node;
+                    
+                    info(depth, node, args.reset().add(node.label()).add(-behind.rmax()).add(-behind.rmin()));
+                    renderSequence(depth + 1, behind.cond());
+                }
+                break;
+            case CURLY:
+                {
+                    DissectedNode.Curly curly = (DissectedNode.Curly) node;
+                    
+                    info(depth, node, args.reset().add(node.label()).add(curly.quantifier().name).add(curly.cmin()).add(curly.cmax()));
+                    renderSequence(depth + 1, curly.atom());
+                }
+                break;
+            case GROUP_CURLY:
+                {
+                    DissectedNode.Curly groupCurly = (DissectedNode.Curly) node;
+                    
+                    info(depth, node, args.reset().add(node.label()).add(groupCurly.type()).add(groupCurly.cmin()).add(groupCurly.cmax()).add(groupCurly.capture()));
+                    renderSequence(depth + 1, groupCurly.atom());
+                }
+                break;
+            case GROUP_HEAD:
+                info(depth, node, args.reset().add(node.label()).add(((DissectedNode.GroupHead) node).localIndex()));
+                break;
+            case GROUP_TAIL:
+                {
+                    DissectedNode.GroupTail groupTail = (DissectedNode.GroupTail) node;
+                    
+                    info(depth, node, args.reset().add(node.label()).add(groupTail.id()).add(groupTail.localIndex()).add(groupTail.groupIndex()).add(groupTail.nextName()).add(groupTail.nextId()));
+                }
+                break;
+            case LOOP:
+            case LAZY_LOOP:
+                {
+                    DissectedNode.Loop loop = (DissectedNode.Loop) node;
+                    
+                    info(depth, node, args.reset().add(node.label()).add(loop.id()).add(loop.cmin()).add(loop.cmax()));
+                    renderSequence(depth + 1, loop.body());
+                }
+                break;
+            case REFERENCE:
+                buffer.append("--> ").append(((DissectedNode.Reference) node).description()).append('\n');
+                break;
+            case CTYPE:
+                info(depth, node, args.reset().add(node.label()).add(((DissectedNode.Ctype) node).name()));
+                break;
+            case BIT_CLASS:
+                {
+                    DissectedNode.BitClass bitClass = (DissectedNode.BitClass) node;
+                    
+                    info(depth, node, args.reset().add(node.label()).add(bitClass.size()));
+                    printCodePoints(depth, bitClass.codePoints(), true);
+                }
+                break;
+            case SINGLE:
+            case SINGLE_S:
+            case SINGLE_U:
+                {
+                    int codePoint = ((DissectedNode.Single) node).codePoint();
+                    
+                    info(depth, node, args.reset().add(node.label()).add(codePoint).add(Character.getName(codePoint)));
+                }
+                break;
+            case COMPLEMENT:
+            case SET_DIFFERENCE:
+            case UNION:
+            case INTERSECTION:
+                info(depth, node, args.reset().add(node.label()));
+                
+                for (DissectedNode operand: ((DissectedNode.SetOperation) node).operands()) {
+                    renderNode(depth + 1, operand);
+                }
+                break;
+            case RANGE:
+                {
+                    DissectedNode.Range range = (DissectedNode.Range) node;
+                    
+                    info(depth, node, args.reset().add(node.label()).add(range.lower()).add(range.upper()));
+                }
+                break;
+            case UNKNOWN:
+            case DEBUG:
+                indent(depth);
+                buffer.append(node.label()).append('\n');
+                break;
+            default:
+                info(depth, node, args.reset().add(node.label()));
+        }
+    }
+    
+    private void info(int depth, DissectedNode node, Args args) {
+        info(depth, templates[node.kind().ordinal() * 2], args);
+    }
+    
+    private void info(int depth, Template template, Args args) {
+        indent(depth);
+        template.appendTo(buffer, args);
+    }
+    
+    private void indent(int levels) {
+        if (levels <= 0) {
+            return;
+        }
+        
+        if (levels < INDENTS.length) {
+            buffer.append(INDENTS[levels]);
+        } else {
+            for (int i = 0; i < levels; i++) {
+                buffer.append("  ");
+            }
+        }
+    }
+    
+    private void printCodePoints(int depth, int[] codePoints, boolean charClass) {
+        indent(depth + 1);
+        
+        for (int cp: codePoints) {
+            if (isPrintableCodePoint(cp, charClass)) {
+                buffer.appendCodePoint(cp);
+            } else {
+                buffer.append("\\u{");
+                appendHex(buffer, cp, 4);
+                buffer.append('}');
+            }
+        }
+        
+        buffer.append('\n');
+    }
+    
+    private static void appendHex(StringBuilder buffer, int value, int width) {
+        int digits = Math.max(1, (32 - Integer.numberOfLeadingZeros(value) + 3) / 4);
+        
+        for (int i = digits; i < width; i++) {
+            buffer.append('0');
+        }
+        
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            buffer.append(HEX_DIGITS[(value >>> shift) & 0xF]);
+        }
+    }
+    
+    static boolean isPrintableCodePoint(int codePoint, boolean charClass) {
+        switch (Character.getType(codePoint)) {
+            case Character.CONTROL: // Cc
+            case Character.FORMAT: // Cf
+            case Character.PRIVATE_USE: // Co
+            case Character.SURROGATE: // Cs
+                // Surrogate pair does not belong to Cs category, since we are working on code point
+            case Character.UNASSIGNED: // Cn
+            
+            case Character.LINE_SEPARATOR: // Zl
+            case Character.PARAGRAPH_SEPARATOR: // Zp
+            case Character.SPACE_SEPARATOR: // Zs
+                return false;
+            case Character.NON_SPACING_MARK: // Mn
+            case Character.COMBINING_SPACING_MARK: // Mc
+            case Character.ENCLOSING_MARK: // Me
+                return !charClass;
+            default:
+                return true;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+import java.io.IOException;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+
+import java.security.ProtectionDomain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java.util.regex.Pattern;
+
+/**
+ * Java agent which instruments the match() methods of Pattern's inner classes, to collect the
+ * per-node invocation and failure counts of NodeProfiler.
+ *
+ * The agent options are a comma-separated list of:
+ *
+ * - enable: start counting right away, instead of waiting for NodeProfiler.enable()
+ * - compiles: instrument Pattern.compile(), and record the compiled patterns in
+ *   CompileRegistry right away. The registry can be reported on demand through the
+ *   PatternDissector:type=CompileRegistry MBean. The match() methods are then only
+ *   instrumented with the nodes option, so that the application does not pay for the counting
+ *   on every match
+ * - nodes: instrument the match() methods, which is implied by enable, and is the default
+ *   without the compiles option
+ * - dump: print the most invoked nodes to standard error when the JVM exits, and the most
+ *   compiled patterns with the compiles option
+ *
+ * The nested classes of Pattern are retransformed when the agent is installed, and
+ * the inner classes loaded later (e.g. anonymous classes) are transformed when they are loaded.
+ */
+public final class DissectorAgent {
+    
+    private static final String MATCH_NAME = "match";
+    private static final String MATCH_DESCRIPTOR = "(Ljava/util/regex/Matcher;ILjava/lang/CharSequence;)Z";
+    
+    private static final String INNER_CLASS_PREFIX = "java/util/regex/Pattern$";
+    
+    private static final String PATTERN_CLASS = "java/util/regex/Pattern";
+    private static final String COMPILE_NAME = "compile";
+    private static final String COMPILE_DESCRIPTOR = "()V";
+    
+    private static final int DUMP_LIMIT = 20;
+    
+    private DissectorAgent() {
+    }
+    
+    public static void premain(String args, Instrumentation inst) {
+        install(args, inst);
+    }
+    
+    public static void agentmain(String args, Instrumentation inst) {
+        install(args, inst);
+    }
+    
+    private static final class MatchTransformer implements ClassFileTransformer {
+        private final MethodEntryInjector injector = new MethodEntryInjector("NodeProfiler", "enter", "exit");
+        
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+            if (className == null || !className.startsWith(INNER_CLASS_PREFIX)) {
+                return null;
+            }
+            
+            try {
+                return injector.inject(classfileBuffer, MATCH_NAME, MATCH_DESCRIPTOR);
+            } catch (RuntimeException e) {
+                // Exceptions thrown from transform() are silently ignored by the JVM
+                System.err.println("DissectorAgent: cannot instrument " + className + ": " + e);
+                return null;
+            }
+        }
+    }
+    
+    /**
+     * Transformer of Pattern, which calls CompileRegistry.record() at the entry of the private
+     * compile() method.
+     */
+    private static final class CompileTransformer implements ClassFileTransformer {
+        private final MethodEntryInjector injector = new MethodEntryInjector("CompileRegistry", "record");
+        
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+            if (!PATTERN_CLASS.equals(className)) {
+                return null;
+            }
+            
+            try {
+                return injector.inject(classfileBuffer, COMPILE_NAME, COMPILE_DESCRIPTOR);
+            } catch (RuntimeException e) {
+                System.err.println("DissectorAgent: cannot instrument " + className + ": " + e);
+                return null;
+            }
+        }
+    }
+    
+    private static synchronized void install(String args, Instrumentation inst) {
+        boolean enable = false;
+        boolean compiles = false;
+        boolean nodes = false;
+        boolean dump = false;
+        
+        if (args != null) {
+            for (String option: args.split(",")) {
+                switch (option.trim()) {
+                    case "enable":
+                        enable = true;
+                        break;
+                    case "compiles":
+                        compiles = true;
+                        break;
+                    case "nodes":
+                        nodes = true;
+                        break;
+                    case "dump":
+                        dump = true;
+                        break;
+                    case "":
+                        break;
+                    default:
+                        System.err.println("DissectorAgent: unknown option " + option);
+                }
+            }
+        }
+        
+        if (!inst.isRetransformClassesSupported()) {
+            System.err.println("DissectorAgent: class retransformation is not supported");
+            return;
+        }
+        
+        // The agent may be attached again, with the compiles option
+        if (compiles && !CompileRegistry.isInstalled()) {
+            installCompiles(inst, dump);
+        }
+        
+        if (compiles && !nodes && !enable || NodeProfiler.isInstalled()) {
+            return;
+        }
+        
+        inst.addTransformer(new MatchTransformer(), true);
+        
+        List<Class<?>> targets = new ArrayList<Class<?>>(Arrays.asList(Pattern.class.getDeclaredClasses()));
+        for (Class<?> clazz: inst.getAllLoadedClasses()) {
+            if (clazz.getName().startsWith("java.util.regex.Pattern$") && !targets.contains(clazz) && inst.isModifiableClass(clazz)) {
+                targets.add(clazz);
+            }
+        }
+        
+        try {
+            inst.retransformClasses(targets.toArray(new Class<?>[targets.size()]));
+        } catch (UnmodifiableClassException e) {
+            System.err.println("DissectorAgent: " + e);
+            return;
+        }
+        
+        NodeProfiler.setInstalled();
+        
+        if (enable) {
+            NodeProfiler.enable();
+        }
+        
+        if (dump) {
+            Runtime.getRuntime().addShutdownHook(new Thread("dissector-profile-dump") {
+                @Override
+                public void run() {
+                    NodeProfiler.disable();
+                    
+                    StringBuilder sb = new StringBuilder("Most invoked Pattern nodes:\n");
+                    try {
+                        NodeProfiler.reportTop(DUMP_LIMIT, sb);
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                    System.err.print(sb);
+                }
+            });
+        }
+    }
+    
+    private static void installCompiles(Instrumentation inst, boolean dump) {
+        inst.addTransformer(new CompileTransformer(), true);
+        
+        try {
+            inst.retransformClasses(Pattern.class);
+        } catch (UnmodifiableClassException e) {
+            System.err.println("DissectorAgent: " + e);
+            return;
+        }
+        
+        CompileRegistry.setInstalled();
+        CompileRegistry.enable();
+        CompileRegistry.registerMBean();
+        
+        if (dump) {
+            Runtime.getRuntime().addShutdownHook(new Thread("dissector-compile-dump") {
+                @Override
+                public void run() {
+                    CompileRegistry.disable();
+                    
+                    StringBuilder sb = new StringBuilder("Most compiled patterns:\n");
+                    try {
+                        CompileRegistry.report(CompileRegistry.Order.MOST_COMPILED, DUMP_LIMIT, PatternDissector.LoggingLevel.SIMPLE, sb);
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                    System.err.print(sb);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,460 @@
+import java.io.IOException;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Benchmarks of the dissector, and of Matcher for the dissected patterns.
+ *
+ * The harness follows the model of JMH, without depending on it: each benchmark is run for a
+ * number of timed warmup iterations, whose results are discarded, then for a number of timed
+ * measurement iterations. The throughput is reported as the mean and standard deviation over the
+ * measurement iterations, and the allocation rate is read from the per-thread allocation counter
+ * of HotSpot, when available. The results of the operations are stored in a field, so they
+ * cannot be optimized away.
+ *
+ * Every result is tagged with the node composition of the pattern, i.e. the number of nodes of
+ * every kind in the decoded graph, so the matching cost can be related to the structure.
+ */
+final class DissectorBenchmark {
+    
+    /**
+     * A pattern of the corpus, with the input it is matched against.
+     */
+    static final class Case {
+        final String group;
+        final String pattern;
+        final int flags;
+        final String input;
+        
+        Case(String group, String pattern, int flags, String input) {
+            this.group = group;
+            this.pattern = pattern;
+            this.flags = flags;
+            this.input = input;
+        }
+    }
+    
+    enum Operation {
+        /** PatternDissector.decode() of the compiled pattern */
+        DECODE,
+        /** Rendering of the decoded pattern */
+        RENDER,
+        /** Matcher.find() over the whole input */
+        FIND,
+        /** Matcher.matches() of the input */
+        MATCHES
+    }
+    
+    /**
+     * Result of a benchmark.
+     */
+    static final class Result {
+        final Operation operation;
+        final Case benchmarkCase;
+        final double[] opsPerSecond;
+        /** Bytes allocated per operation, -1 if not available */
+        final double bytesPerOp;
+        final String composition;
+        
+        Result(Operation operation, Case benchmarkCase, double[] opsPerSecond, double bytesPerOp, String composition) {
+            this.operation = operation;
+            this.benchmarkCase = benchmarkCase;
+            this.opsPerSecond = opsPerSecond;
+            this.bytesPerOp = bytesPerOp;
+            this.composition = composition;
+        }
+        
+        double mean() {
+            double sum = 0;
+            for (double v: opsPerSecond) {
+                sum += v;
+            }
+            return sum / opsPerSecond.length;
+        }
+        
+        double standardDeviation() {
+            if (opsPerSecond.length < 2) {
+                return 0;
+            }
+            
+            double mean = mean();
+            double sum = 0;
+            for (double v: opsPerSecond) {
+                sum += (v - mean) * (v - mean);
+            }
+            return Math.sqrt(sum / (opsPerSecond.length - 1));
+        }
+    }
+    
+    private static final String CANON_EQ_INPUT = "\u00fc\u00fc \u00ea\u0301 \u1EBF\u1EBF \u1FA3 \ud55c\uad6d\uc5b4 \u00c0\u00dd";
+    private static final String EMAILS_INPUT = "alpha@beta@gamma@delta@epsilon@";
+    
+    /**
+     * The patterns of PatternDissector.testQuantifier(), testNestedQuantifierAlternation(),
+     * testJDK_8032926() and main().
+     */
+    static final List<Case> CORPUS = Collections.unmodifiableList(Arrays.asList(
+        new Case("quantifier", "^([^@]+@)$", 0, "user@"),
+        new Case("quantifier", "^[^@]+@[^@]+@[^@]+@[^@]+@[^@]+@$", 0, "a@bb@ccc@dd@e@"),
+        new Case("quantifier", "^([^@]@){5}$", 0, "a@b@c@d@e@"),
+        new Case("quantifier", "^(?:[^@]@){5}$", 0, "a@b@c@d@e@"),
+        new Case("quantifier", "^(?:[^@]{2}@){5}$", 0, "ab@cd@ef@gh@ij@"),
+        new Case("quantifier", "^(?:[^@]{2,3}@){5}$", 0, "ab@cde@fg@hij@kl@"),
+        new Case("quantifier", "^(?:[^@]+@)*?$", 0, EMAILS_INPUT),
+        new Case("quantifier", "^(?:[^@]+@)*$", 0, EMAILS_INPUT),
+        new Case("quantifier", "^(?:[^@]+@){5}$", 0, EMAILS_INPUT),
+        new Case("quantifier", "^(?:[^@]+@){5}+$", 0, EMAILS_INPUT),
+        new Case("quantifier", "^(?:[^@]+@){5}?$", 0, EMAILS_INPUT),
+        
+        new Case("nested", "(((a*)+)*)+", 0, "aaaaaaaaaaaaaaaaaaaa"),
+        new Case("nested", "^(a*)+|(a*(a|b)+)+$", 0, "aaaaaaaaaabbbbbbbbbb"),
+        new Case("nested", "^((a*)+|(a*(a|b)+)+|(a|(b(f|er)*|c)+){2,})$", 0, "abferbfcabfer"),
+        
+        new Case("canon-eq", "\u00fc", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "\\u00fc", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "\\Q\u00fc\\E", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "\\Q\u00fc\u00fc\\E", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "((\u00fc\u00fc)", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "\u00fc\u00fc)", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "\u00fc\u00fc )", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "\u00fc\u00fc", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "\u00fc\\u00fc", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "\u00ea\u0301", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "\u1EBF", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "\u1EBF\u1EBF", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "\u1FA3", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "\ud55c\uad6d\uc5b4", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "[\u00fc]", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "[\u00c0-\u00dd]", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "[\u00c0\u00dd]", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "[\\u00c0-\\u00dd]", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "[[\u00c0-\u00dd]])", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        new Case("canon-eq", "(\\Q\u1EBF\\\\E)", Pattern.CANON_EQ, CANON_EQ_INPUT),
+        
+        new Case("main", "[\\a-\\f]", 0, "\u0007\u000c"),
+        new Case("main", "[a[^b[c[^d]e]f]g]", 0, "abcdefg"),
+        new Case("main", "[f]j", 0, "fjfj"),
+        new Case("main", "[^\\\\\"]", 0, "a\\\"b")
+    ));
+    
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationNanos;
+    
+    /** Destination of the results of the operations */
+    private Object sink;
+    
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    
+    DissectorBenchmark(int warmupIterations, int measurementIterations, long iterationMillis) {
+        if (warmupIterations < 0 || measurementIterations < 1 || iterationMillis < 1) {
+            throw new IllegalArgumentException("Invalid iteration counts or time");
+        }
+        
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationNanos = iterationMillis * 1000000L;
+    }
+    
+    /**
+     * Number of nodes of every kind in the decoded pattern, e.g. "Start:1 Curly:1 BitClass:1".
+     */
+    static String composition(DissectedPattern pattern) {
+        if (!pattern.isCompiled()) {
+            return "(not compiled)";
+        }
+        
+        Map<DissectedNode.Kind, int[]> counts = new EnumMap<DissectedNode.Kind, int[]>(DissectedNode.Kind.class);
+        countKinds(pattern.nodes(), counts);
+        
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<DissectedNode.Kind, int[]> e: counts.entrySet()) {
+            sb.append(sb.length() > 0 ? " " : "").append(e.getKey().name).append(':').append(e.getValue()[0]);
+        }
+        
+        return sb.toString();
+    }
+    
+    private static void countKinds(List<DissectedNode> sequence, Map<DissectedNode.Kind, int[]> counts) {
+        for (DissectedNode node: sequence) {
+            int[] count = counts.get(node.kind());
+            
+            if (count == null) {
+                counts.put(node.kind(), new int[] {1});
+            } else {
+                count[0]++;
+            }
+            
+            for (List<DissectedNode> child: node.children()) {
+                countKinds(child, counts);
+            }
+        }
+    }
+    
+    /**
+     * Run the operation on the case.
+     *
+     * @return null if the operation does not apply to the case, e.g. matching a pattern which
+     *         does not compile
+     */
+    Result run(Operation operation, final Case benchmarkCase) throws Exception {
+        final DissectedPattern decoded = PatternDissector.decode(benchmarkCase.pattern, benchmarkCase.flags);
+        Callable<Object> op;
+        
+        if (!decoded.isCompiled() && operation != Operation.RENDER) {
+            return null;
+        }
+        
+        switch (operation) {
+            case DECODE:
+                {
+                    final Pattern compiled = Pattern.compile(benchmarkCase.pattern, benchmarkCase.flags);
+                    
+                    op = new Callable<Object>() {
+                        @Override
+                        public Object call() throws IllegalAccessException {
+                            return PatternDissector.decode(compiled);
+                        }
+                    };
+                }
+                break;
+            case RENDER:
+                {
+                    final DissectionRenderer renderer = new DissectionRenderer(PatternDissector.LoggingLevel.SIMPLE);
+                    
+                    op = new Callable<Object>() {
+                        @Override
+                        public Object call() {
+                            return renderer.render(decoded, true);
+                        }
+                    };
+                }
+                break;
+            case FIND:
+                {
+                    final Matcher matcher = Pattern.compile(benchmarkCase.pattern, benchmarkCase.flags).matcher("");
+                    
+                    op = new Callable<Object>() {
+                        @Override
+                        public Object call() {
+                            int count = 0;
+                            
+                            matcher.reset(benchmarkCase.input);
+                            while (matcher.find()) {
+                                count++;
+                            }
+                            return count;
+                        }
+                    };
+                }
+                break;
+            default:
+                {
+                    final Matcher matcher = Pattern.compile(benchmarkCase.pattern, benchmarkCase.flags).matcher("");
+                    
+                    op = new Callable<Object>() {
+                        @Override
+                        public Object call() {
+                            return matcher.reset(benchmarkCase.input).matches();
+                        }
+                    };
+                }
+        }
+        
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(op);
+        }
+        
+        double[] opsPerSecond = new double[measurementIterations];
+        long allocatedBefore = allocatedBytes();
+        long totalOps = 0;
+        
+        for (int i = 0; i < measurementIterations; i++) {
+            long[] result = iteration(op);
+            
+            opsPerSecond[i] = result[0] * 1e9 / result[1];
+            totalOps += result[0];
+        }
+        
+        long allocatedAfter = allocatedBytes();
+        double bytesPerOp = allocatedBefore < 0 || allocatedAfter < 0 ? -1 : (double) (allocatedAfter - allocatedBefore) / totalOps;
+        
+        return new Result(operation, benchmarkCase, opsPerSecond, bytesPerOp, composition(decoded));
+    }
+    
+    /**
+     * Run the operation for the duration of an iteration, in batches which double in size, so
+     * the time is not read after every operation.
+     *
+     * @return number of operations and elapsed nanoseconds
+     */
+    private long[] iteration(Callable<Object> op) throws Exception {
+        long start = System.nanoTime();
+        long elapsed;
+        long ops = 0;
+        int batch = 1;
+        
+        do {
+            for (int i = 0; i < batch; i++) {
+                sink = op.call();
+            }
+            ops += batch;
+            elapsed = System.nanoTime() - start;
+            
+            if (batch < (1 << 20) && elapsed < iterationNanos / 16) {
+                batch <<= 1;
+            }
+        } while (elapsed < iterationNanos);
+        
+        return new long[] {ops, elapsed};
+    }
+    
+    /**
+     * Bytes allocated by the current thread so far, -1 if the JVM does not count them.
+     */
+    static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Write the result as one line: operation, pattern, throughput, allocation and composition.
+     */
+    static void report(Result result, Appendable out) throws IOException {
+        double mean = result.mean();
+        
+        out.append(String.format("%-8s %-42s %14.1f ops/s +- %5.1f%% %12s  %s%n",
+            result.operation.name().toLowerCase(),
+            display(result.benchmarkCase),
+            mean,
+            mean == 0 ? 0 : 100 * result.standardDeviation() / mean,
+            result.bytesPerOp < 0 ? "n/a" : String.format("%.1f B/op", result.bytesPerOp),
+            result.composition));
+    }
+    
+    /**
+     * The pattern with its flags, escaped and truncated to fit in a column.
+     */
+    private static String display(Case benchmarkCase) {
+        StringBuilder sb = new StringBuilder();
+        
+        for (int i = 0; i < benchmarkCase.pattern.length(); i++) {
+            char c = benchmarkCase.pattern.charAt(i);
+            
+            if (c >= 0x20 && c < 0x7F) {
+                sb.append(c);
+            } else {
+                sb.append("\\x{").append(Integer.toHexString(c)).append('}');
+            }
+        }
+        
+        if (benchmarkCase.flags != 0) {
+            sb.append(" (").append(benchmarkCase.flags).append(')');
+        }
+        
+        return sb.length() > 42 ? sb.substring(0, 39) + "..." : sb.toString();
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: PatternDissector --bench [--warmup N] [--iterations N] [--time MS] [--filter REGEX]");
+        System.err.println();
+        System.err.println("Benchmark decoding and rendering of the corpus patterns, and Matcher.find()/matches() on them.");
+        System.err.println("Every benchmark runs N warmup and N measurement iterations (default 2 and 3) of MS milliseconds");
+        System.err.println("(default 100). --filter only runs the benchmarks whose \"operation group pattern\" contains REGEX.");
+    }
+    
+    /**
+     * Command line entry of the benchmark mode.
+     *
+     * @return exit status
+     */
+    static int run(String[] args) {
+        int warmup = 2;
+        int iterations = 3;
+        long time = 100;
+        Pattern filter = null;
+        
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                usage();
+                return 2;
+            }
+            
+            try {
+                switch (args[i]) {
+                    case "--warmup":
+                        warmup = Integer.parseInt(args[++i]);
+                        break;
+                    case "--iterations":
+                        iterations = Integer.parseInt(args[++i]);
+                        break;
+                    case "--time":
+                        time = Long.parseLong(args[++i]);
+                        break;
+                    case "--filter":
+                        filter = Pattern.compile(args[++i]);
+                        break;
+                    default:
+                        usage();
+                        return 2;
+                }
+            } catch (NumberFormatException|PatternSyntaxException e) {
+                usage();
+                return 2;
+            }
+        }
+        
+        DissectorBenchmark benchmark;
+        try {
+            benchmark = new DissectorBenchmark(warmup, iterations, time);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 2;
+        }
+        
+        try {
+            for (Operation operation: Operation.values()) {
+                for (Case benchmarkCase: CORPUS) {
+                    String name = operation.name().toLowerCase() + " " + benchmarkCase.group + " " + benchmarkCase.pattern;
+                    
+                    if (filter != null && !filter.matcher(name).find()) {
+                        continue;
+                    }
+                    
+                    Result result = benchmark.run(operation, benchmarkCase);
+                    
+                    if (result != null) {
+                        StringBuilder sb = new StringBuilder();
+                        report(result, sb);
+                        System.out.print(sb);
+                        System.out.flush();
+                    }
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Benchmark failed: " + e);
+            return 1;
+        }
+        
+        return 0;
+    }
+}
@@ -0,0 +1,468 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.math.BigDecimal;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Long-running dissector, which answers requests in JSON lines, so that the JIT-compiled code,
+ * the accessors of NodeAccessors and the DissectionCache are kept across requests.
+ *
+ * The requests are read from standard input, and answered on standard output, so only the
+ * process which starts the daemon (e.g. an editor) can send requests; there is no port any
+ * other local user could connect to. A request is a JSON object on one line:
+ *
+ *   {"id": 1, "op": "dissect", "pattern": "(a+)+b", "flags": 0, "verbose": false}
+ *
+ * op is dissect (the output of the batch mode), analyze (the backtracking risks and the missed
+ * optimizations) or stats. id is optional, and is copied to the response, since the requests of
+ * a stream are handled concurrently by the worker threads, and answered as soon as they are
+ * done. A client may send any number of requests without waiting for the responses; at most
+ * MAX_IN_FLIGHT_PER_THREAD per worker thread are in progress at a time, after which reading
+ * waits.
+ */
+final class DissectorDaemon {
+    
+    private static final int MAX_IN_FLIGHT_PER_THREAD = 4;
+    
+    /** Pattern dissected at startup, so that the first request does not initialize the dissector */
+    private static final String WARM_UP_PATTERN = "^(?:a|b[c-e]+)*\\d{2,}$";
+    
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final DissectionCache cache;
+    
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final long startNanos = System.nanoTime();
+    
+    private final ThreadLocal<DissectionRenderer> simpleRenderers = renderers(PatternDissector.LoggingLevel.SIMPLE);
+    private final ThreadLocal<DissectionRenderer> verboseRenderers = renderers(PatternDissector.LoggingLevel.VERBOSE);
+    
+    DissectorDaemon(int threads, DissectionCache cache) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+        }
+        
+        this.executor = Executors.newFixedThreadPool(threads, new BatchDissector.WorkerThreadFactory());
+        this.maxInFlight = threads * MAX_IN_FLIGHT_PER_THREAD;
+        this.cache = cache;
+    }
+    
+    private static ThreadLocal<DissectionRenderer> renderers(final PatternDissector.LoggingLevel loggingLevel) {
+        return new ThreadLocal<DissectionRenderer>() {
+            @Override
+            protected DissectionRenderer initialValue() {
+                return new DissectionRenderer(loggingLevel);
+            }
+        };
+    }
+    
+    /**
+     * Answer the requests read from in until its end, then wait for the responses to be written.
+     */
+    void serve(BufferedReader in, final Writer out) throws IOException, InterruptedException {
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        String line;
+        
+        while ((line = in.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            
+            final String request = line;
+            
+            inFlight.acquire();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        String response = handle(request);
+                        
+                        synchronized (out) {
+                            out.write(response);
+                            out.write('\n');
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        // The client is gone, the rest of its requests fail the same way
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        }
+        
+        inFlight.acquire(maxInFlight);
+    }
+    
+    /**
+     * The response to the request, as a JSON object on one line. A request which fails, including
+     * with a StackOverflowError on a deeply nested pattern, gets an error response.
+     */
+    String handle(String request) {
+        requests.increment();
+        
+        Object id = null;
+        StringBuilder sb = new StringBuilder("{\"id\":");
+        
+        try {
+            Map<String, Object> fields = parseObject(request);
+            id = fields.get("id");
+            appendValue(sb, id);
+            
+            String op = string(fields, "op", "dissect");
+            
+            switch (op) {
+                case "dissect":
+                case "analyze":
+                    dissect(fields, op.equals("analyze"), sb);
+                    break;
+                case "stats":
+                    stats(sb);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown op: " + op + ". Expected dissect, analyze or stats");
+            }
+        } catch (IllegalAccessException|RuntimeException|StackOverflowError e) {
+            failures.increment();
+            
+            sb.setLength(0);
+            sb.append("{\"id\":");
+            appendValue(sb, id);
+            sb.append(",\"error\":");
+            appendValue(sb, e instanceof IllegalArgumentException ? e.getMessage() : e.toString());
+        }
+        
+        return sb.append('}').toString();
+    }
+    
+    private void dissect(Map<String, Object> fields, boolean analyze, StringBuilder sb) throws IllegalAccessException {
+        String pattern = string(fields, "pattern", null);
+        if (pattern == null) {
+            throw new IllegalArgumentException("Missing pattern");
+        }
+        
+        int flags = integer(fields, "flags", 0);
+        DissectedPattern result = cache != null ? cache.get(pattern, flags) : PatternDissector.decode(pattern, flags);
+        
+        sb.append(",\"compiled\":").append(result.isCompiled());
+        
+        if (!analyze) {
+            ThreadLocal<DissectionRenderer> renderers = Boolean.TRUE.equals(fields.get("verbose")) ? verboseRenderers : simpleRenderers;
+            
+            sb.append(",\"dissection\":");
+            appendValue(sb, renderers.get().render(result, true));
+        } else if (!result.isCompiled()) {
+            sb.append(",\"error\":");
+            appendValue(sb, result.errorDescription());
+        } else {
+            sb.append(",\"risks\":[");
+            List<BacktrackingAnalyzer.Finding> findings = BacktrackingAnalyzer.analyze(result);
+            for (int i = 0; i < findings.size(); i++) {
+                sb.append(i > 0 ? "," : "");
+                appendValue(sb, findings.get(i).toString());
+            }
+            
+            sb.append("],\"advice\":[");
+            List<OptimizationAdvisor.Advice> advice = OptimizationAdvisor.advise(result);
+            for (int i = 0; i < advice.size(); i++) {
+                sb.append(i > 0 ? "," : "");
+                appendValue(sb, advice.get(i).toString());
+            }
+            sb.append(']');
+        }
+    }
+    
+    private void stats(StringBuilder sb) {
+        sb.append(",\"requests\":").append(requests.sum());
+        sb.append(",\"failures\":").append(failures.sum());
+        sb.append(",\"uptimeMillis\":").append((System.nanoTime() - startNanos) / 1000000);
+        
+        if (cache != null) {
+            sb.append(",\"cache\":{\"size\":").append(cache.size()).append(",\"hits\":").append(cache.hits())
+                .append(",\"misses\":").append(cache.misses()).append(",\"evictions\":").append(cache.evictions()).append('}');
+        }
+    }
+    
+    private static String string(Map<String, Object> fields, String name, String defaultValue) {
+        Object value = fields.get(name);
+        
+        if (value != null && !(value instanceof String)) {
+            throw new IllegalArgumentException(name + " must be a string");
+        }
+        
+        return value != null ? (String) value : defaultValue;
+    }
+    
+    private static int integer(Map<String, Object> fields, String name, int defaultValue) {
+        Object value = fields.get(name);
+        
+        if (value == null) {
+            return defaultValue;
+        }
+        
+        try {
+            return ((BigDecimal) value).intValueExact();
+        } catch (ClassCastException|ArithmeticException e) {
+            throw new IllegalArgumentException(name + " must be an integer");
+        }
+    }
+    
+    private static void appendValue(StringBuilder sb, Object value) {
+        if (value instanceof String) {
+            sb.append('"').append(GraphExporter.escape((String) value, Integer.MAX_VALUE)).append('"');
+        } else {
+            sb.append(value);
+        }
+    }
+    
+    /**
+     * Parse a JSON object whose values are strings, numbers, booleans or null. Numbers are
+     * parsed as BigDecimal, so that an id is copied as is.
+     */
+    static Map<String, Object> parseObject(String json) {
+        JsonReader reader = new JsonReader(json);
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        
+        reader.expect('{');
+        if (!reader.consume('}')) {
+            do {
+                String name = reader.string();
+                
+                reader.expect(':');
+                fields.put(name, reader.value());
+            } while (reader.consume(','));
+            
+            reader.expect('}');
+        }
+        
+        reader.end();
+        return fields;
+    }
+    
+    private static final class JsonReader {
+        private final String s;
+        private int p;
+        
+        JsonReader(String s) {
+            this.s = s;
+        }
+        
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Malformed request at index " + p + ": " + message);
+        }
+        
+        private void skipSpaces() {
+            while (p < s.length() && (s.charAt(p) == ' ' || s.charAt(p) == '\t' || s.charAt(p) == '\r' || s.charAt(p) == '\n')) {
+                p++;
+            }
+        }
+        
+        boolean consume(char c) {
+            skipSpaces();
+            
+            if (p < s.length() && s.charAt(p) == c) {
+                p++;
+                return true;
+            }
+            return false;
+        }
+        
+        void expect(char c) {
+            if (!consume(c)) {
+                throw error("expected '" + c + "'");
+            }
+        }
+        
+        void end() {
+            skipSpaces();
+            
+            if (p < s.length()) {
+                throw error("unexpected text after the object");
+            }
+        }
+        
+        Object value() {
+            skipSpaces();
+            
+            if (p >= s.length()) {
+                throw error("expected a value");
+            }
+            
+            char c = s.charAt(p);
+            
+            if (c == '"') {
+                return string();
+            }
+            if (c == '{' || c == '[') {
+                throw error("objects and arrays are not supported as values");
+            }
+            if (s.startsWith("true", p)) {
+                p += 4;
+                return Boolean.TRUE;
+            }
+            if (s.startsWith("false", p)) {
+                p += 5;
+                return Boolean.FALSE;
+            }
+            if (s.startsWith("null", p)) {
+                p += 4;
+                return null;
+            }
+            
+            int start = p;
+            while (p < s.length() && "+-.0123456789eE".indexOf(s.charAt(p)) >= 0) {
+                p++;
+            }
+            
+            try {
+                return new BigDecimal(s.substring(start, p));
+            } catch (NumberFormatException e) {
+                p = start;
+                throw error("expected a value");
+            }
+        }
+        
+        String string() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            
+            while (true) {
+                if (p >= s.length()) {
+                    throw error("unterminated string");
+                }
+                
+                char c = s.charAt(p++);
+                
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (p >= s.length()) {
+                    throw error("unterminated string");
+                }
+                
+                char escaped = s.charAt(p++);
+                
+                switch (escaped) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        sb.append(escaped);
+                        break;
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'u':
+                        if (p + 4 > s.length()) {
+                            throw error("truncated \\u escape");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(s.substring(p, p + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("invalid \\u escape");
+                        }
+                        p += 4;
+                        break;
+                    default:
+                        throw error("invalid escape \\" + escaped);
+                }
+            }
+        }
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: PatternDissector --serve [--threads N] [--cache N]");
+        System.err.println();
+        System.err.println("Answer dissect, analyze and stats requests, one JSON object per line, from standard input.");
+        System.err.println("--cache N keeps the results of the N most recently requested patterns (default 1024, 0 for none).");
+    }
+    
+    /**
+     * Command line entry of the daemon mode.
+     *
+     * @return exit status
+     */
+    static int run(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int cacheSize = 1024;
+        
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length || !args[i].equals("--threads") && !args[i].equals("--cache")) {
+                usage();
+                return 2;
+            }
+            
+            int value;
+            try {
+                value = Integer.parseInt(args[i + 1]);
+            } catch (NumberFormatException e) {
+                usage();
+                return 2;
+            }
+            
+            switch (args[i]) {
+                case "--threads":
+                    threads = value;
+                    break;
+                default:
+                    cacheSize = value;
+            }
+            i++;
+        }
+        
+        DissectorDaemon daemon;
+        try {
+            daemon = new DissectorDaemon(threads, cacheSize > 0 ? new DissectionCache(cacheSize) : null);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 2;
+        }
+        
+        try {
+            PatternDissector.decode(WARM_UP_PATTERN, 0);
+            
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            
+            daemon.serve(in, out);
+        } catch (IllegalAccessException|IOException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+        
+        return 0;
+    }
+}
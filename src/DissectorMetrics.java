@@ -0,0 +1,191 @@
+import java.io.IOException;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time and allocation of the phases of the dissection, aggregated in process and emitted as JDK
+ * Flight Recorder events (DissectionEvent).
+ *
+ * A phase is only measured when the metrics are enabled (enable(), or --metrics in batch mode),
+ * or when a flight recording enables the PatternDissector.Dissection event, since a measurement
+ * costs two calls of System.nanoTime() and of ThreadMXBean.getThreadAllocatedBytes(). The events
+ * are only emitted when the running JDK has the jdk.jfr API.
+ *
+ * The report of the phases is meant to be compared across runs, e.g. in CI before and after a
+ * JDK upgrade, so it starts with the Java version.
+ */
+final class DissectorMetrics {
+    
+    enum Phase {
+        /** Pattern.compile() */
+        COMPILE,
+        /** Reading the root node and the normalized pattern from the Pattern */
+        EXTRACT,
+        /** Decoding the node graph, with the reflective reads of every node */
+        TRAVERSE,
+        /** DissectionRenderer */
+        RENDER
+    }
+    
+    /**
+     * Totals of a phase.
+     */
+    private static final class Totals {
+        final LongAdder count = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder nodes = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        /** Pattern of the slowest measurement, updated after maxNanos */
+        volatile String slowest;
+        
+        void add(long elapsed, long allocated, String pattern, int nodeCount) {
+            count.increment();
+            nanos.add(elapsed);
+            bytes.add(Math.max(allocated, 0));
+            nodes.add(Math.max(nodeCount, 0));
+            
+            for (long max = maxNanos.get(); elapsed > max; max = maxNanos.get()) {
+                if (maxNanos.compareAndSet(max, elapsed)) {
+                    slowest = pattern;
+                    break;
+                }
+            }
+        }
+        
+        void reset() {
+            count.reset();
+            nanos.reset();
+            bytes.reset();
+            nodes.reset();
+            maxNanos.set(0);
+            slowest = null;
+        }
+    }
+    
+    private static final Phase[] PHASES = Phase.values();
+    private static final Totals[] TOTALS = new Totals[PHASES.length];
+    
+    static {
+        for (int i = 0; i < TOTALS.length; i++) {
+            TOTALS[i] = new Totals();
+        }
+    }
+    
+    private static final boolean JFR_AVAILABLE = isJfrAvailable();
+    
+    private static volatile boolean enabled;
+    
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder", false, DissectorMetrics.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException|LinkageError e) {
+            return false;
+        }
+    }
+    
+    private DissectorMetrics() {
+    }
+    
+    /**
+     * A phase being measured.
+     */
+    static final class Measurement {
+        private final long startNanos;
+        private final long startBytes;
+        /** DissectionEvent, or null if the phase is not recorded by JFR */
+        private final Object event;
+        
+        private Measurement(Object event) {
+            this.event = event;
+            this.startBytes = DissectorBenchmark.allocatedBytes();
+            this.startNanos = System.nanoTime();
+        }
+        
+        /**
+         * End the measurement of the phase.
+         *
+         * @param nodeCount number of decoded nodes, -1 if not known in the phase
+         */
+        void end(Phase phase, String pattern, int flags, int nodeCount) {
+            long elapsed = System.nanoTime() - startNanos;
+            long endBytes = DissectorBenchmark.allocatedBytes();
+            long allocated = startBytes < 0 || endBytes < 0 ? -1 : endBytes - startBytes;
+            
+            if (enabled) {
+                TOTALS[phase.ordinal()].add(elapsed, allocated, pattern, nodeCount);
+            }
+            if (event != null) {
+                ((DissectionEvent) event).finish(phase, pattern, flags, nodeCount, allocated);
+            }
+        }
+    }
+    
+    /**
+     * Whether a flight recording may be running. This is checked before loading DissectionEvent,
+     * since loading an event class initializes the metadata of Flight Recorder, which takes
+     * hundreds of milliseconds.
+     */
+    private static boolean isRecording() {
+        return JFR_AVAILABLE && jdk.jfr.FlightRecorder.isInitialized();
+    }
+    
+    /**
+     * Start measuring a phase.
+     *
+     * @return null if the phase is not measured
+     */
+    static Measurement begin() {
+        Object event = isRecording() ? DissectionEvent.beginIfRecorded() : null;
+        
+        if (!enabled && event == null) {
+            return null;
+        }
+        
+        return new Measurement(event);
+    }
+    
+    static void enable() {
+        enabled = true;
+    }
+    
+    static void disable() {
+        enabled = false;
+    }
+    
+    static boolean isEnabled() {
+        return enabled;
+    }
+    
+    static void reset() {
+        for (Totals totals: TOTALS) {
+            totals.reset();
+        }
+    }
+    
+    /**
+     * Write the totals of each phase: count, total and mean time, maximum time with its pattern,
+     * bytes allocated and nodes per measurement.
+     */
+    static void report(Appendable out) throws IOException {
+        out.append(String.format("Java %s (%s %s)%n", System.getProperty("java.version"), System.getProperty("java.vm.name"), System.getProperty("java.vm.version")));
+        boolean allocationCounted = DissectorBenchmark.allocatedBytes() >= 0;
+        
+        out.append(String.format("%-9s %10s %12s %10s %12s %10s %8s  %s%n", "Phase", "Count", "Total ms", "Mean us", "Max us", "Bytes/op", "Nodes/op", "Slowest"));
+        
+        for (Phase phase: PHASES) {
+            Totals totals = TOTALS[phase.ordinal()];
+            long count = totals.count.sum();
+            long divisor = Math.max(count, 1);
+            String slowest = totals.slowest;
+            
+            out.append(String.format("%-9s %10d %12.1f %10.1f %12.1f %10s %8s  %s%n",
+                phase, count, totals.nanos.sum() / 1e6, totals.nanos.sum() / 1e3 / divisor, totals.maxNanos.get() / 1e3,
+                allocationCounted ? String.valueOf(totals.bytes.sum() / divisor) : "n/a",
+                phase == Phase.TRAVERSE ? String.valueOf(totals.nodes.sum() / divisor) : "-",
+                slowest == null ? "" : slowest.length() > 40 ? slowest.substring(0, 37) + "..." : slowest));
+        }
+    }
+}
@@ -0,0 +1,514 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Export of the node graph of a compiled Pattern as Graphviz DOT or JSON, written as the graph
+ * is walked.
+ *
+ * Unlike PatternDissector.decode(), nothing is built in memory: every node is written with its
+ * outgoing edges (next, Branch atoms and conn, Prolog loop, Loop body, the atom of Curly,
+ * GroupCurly and Ques, and the cond of look-arounds) as soon as it is visited. The walk keeps a
+ * stack of frames, one per nested construct, and a Branch frame only holds the index of the next
+ * alternative to walk, so the memory used is proportional to the depth of the graph, not to its
+ * size. An alternation of tens of thousands of keywords is written with a handful of frames.
+ *
+ * The nodes reached by more than one edge are recognized without remembering the visited nodes:
+ * the BranchConn ending the alternatives is walked once after the last alternative, the Loop at
+ * the end of its body is the loop being walked, and Pattern.accept and Pattern.lookbehindEnd
+ * are written once.
+ */
+final class GraphExporter {
+    
+    enum Format {
+        DOT, JSON
+    }
+    
+    /**
+     * Chain of nodes linked by next, or the alternatives of a Branch.
+     */
+    private static final class Frame {
+        /** Next node to visit in the chain. Null for a Branch frame */
+        Object node;
+        /** The Loop whose body is walked, where the chain goes back to */
+        final Object inloop;
+        /** The BranchConn of the alternative which is walked, where the chain joins */
+        final Object branchConn;
+        
+        /** Alternatives of a Branch frame */
+        final Object[] atoms;
+        final int size;
+        final Object conn;
+        int index;
+        
+        Frame(Object node, Object inloop, Object branchConn) {
+            this(node, inloop, branchConn, null, 0, null);
+        }
+        
+        Frame(Object node, Object inloop, Object branchConn, Object[] atoms, int size, Object conn) {
+            this.node = node;
+            this.inloop = inloop;
+            this.branchConn = branchConn;
+            this.atoms = atoms;
+            this.size = size;
+            this.conn = conn;
+        }
+    }
+    
+    private final Format format;
+    private final Appendable out;
+    
+    private final Deque<Frame> frames = new ArrayDeque<Frame>();
+    private boolean acceptWritten;
+    private boolean lookbehindEndWritten;
+    
+    private boolean firstNode = true;
+    private boolean firstEdge;
+    
+    private long nodeCount;
+    private long edgeCount;
+    
+    GraphExporter(Format format, Appendable out) {
+        this.format = format;
+        this.out = out;
+    }
+    
+    /**
+     * Write the node graph of the pattern.
+     */
+    void export(Pattern pattern) throws IOException, IllegalAccessException {
+        Object root = NodeAccessors.get(NodeAccessors.PATTERN_ROOT, pattern);
+        
+        frames.clear();
+        acceptWritten = false;
+        lookbehindEndWritten = false;
+        firstNode = true;
+        nodeCount = 0;
+        edgeCount = 0;
+        
+        if (format == Format.DOT) {
+            out.append("digraph pattern {\n");
+            out.append("  label=\"").append(escape(pattern.pattern(), 200)).append("\";\n");
+            out.append("  node [shape=box, fontname=\"monospace\"];\n");
+        } else {
+            out.append("{\"pattern\":\"").append(escape(pattern.pattern(), Integer.MAX_VALUE)).append("\",\"flags\":").append(String.valueOf(pattern.flags())).append(",\"nodes\":[\n");
+        }
+        
+        walk(root);
+        
+        out.append(format == Format.DOT ? "}\n" : "\n]}\n");
+    }
+    
+    /**
+     * Number of nodes written by the last export.
+     */
+    long nodeCount() {
+        return nodeCount;
+    }
+    
+    /**
+     * Number of edges written by the last export.
+     */
+    long edgeCount() {
+        return edgeCount;
+    }
+    
+    private void walk(Object root) throws IOException, IllegalAccessException {
+        frames.push(new Frame(root, null, null));
+        
+        while (!frames.isEmpty()) {
+            Frame frame = frames.peek();
+            
+            if (frame.atoms != null) {
+                if (frame.index < frame.size) {
+                    Object atom = frame.atoms[frame.index++];
+                    
+                    // A null atom is an empty alternative, which goes straight to conn
+                    if (atom != null) {
+                        frames.push(new Frame(atom, frame.inloop, frame.conn));
+                    }
+                } else {
+                    frames.pop();
+                    frames.push(new Frame(frame.conn, frame.inloop, frame.branchConn));
+                }
+                continue;
+            }
+            
+            Object node = frame.node;
+            
+            // End of the chain, or a node which is written by another frame
+            if (node == null || node == frame.inloop || node == frame.branchConn) {
+                frames.pop();
+                continue;
+            }
+            
+            // The shared nodes which end a chain
+            if (node == NodeAccessors.ACCEPT || node == NodeAccessors.LOOKBEHIND_END) {
+                boolean accept = node == NodeAccessors.ACCEPT;
+                
+                if (!(accept ? acceptWritten : lookbehindEndWritten)) {
+                    beginNode(node, accept ? "Node" : "lookbehindEnd");
+                    endNode();
+                }
+                
+                acceptWritten |= accept;
+                lookbehindEndWritten |= !accept;
+                frames.pop();
+                continue;
+            }
+            
+            visit(frame, node);
+        }
+    }
+    
+    /**
+     * Write the node and its edges, and advance the frame to the next node of the chain.
+     */
+    private void visit(Frame frame, Object node) throws IOException, IllegalAccessException {
+        Class<?> clazz = node.getClass();
+        String nodeName = NodeAccessors.simpleName(clazz);
+        Object next = NodeAccessors.get(NodeAccessors.NODE_NEXT, node);
+        
+        beginNode(node, nodeName.isEmpty() ? clazz.getName() : nodeName);
+        
+        switch (nodeName) {
+            case "Start":
+            case "StartS":
+                attribute("minLength", NodeAccessors.getInt(NodeAccessors.START_MIN_LENGTH, node));
+                break;
+            case "Dollar":
+                attribute("multiline", NodeAccessors.getBoolean(NodeAccessors.DOLLAR_MULTILINE, node));
+                break;
+            case "UnixDollar":
+                attribute("multiline", NodeAccessors.getBoolean(NodeAccessors.UNIX_DOLLAR_MULTILINE, node));
+                break;
+            case "Slice":
+            case "SliceS":
+                attribute("text", text((int[]) NodeAccessors.get(NodeAccessors.SLICE_NODE_BUFFER, node)));
+                break;
+            case "BnM":
+            case "BnMS":
+                attribute("text", text((int[]) NodeAccessors.get(NodeAccessors.BNM_BUFFER, node)));
+                break;
+            case "Branch":
+                {
+                    Object[] atoms = (Object[]) NodeAccessors.get(NodeAccessors.BRANCH_ATOMS, node);
+                    int size = NodeAccessors.getInt(NodeAccessors.BRANCH_SIZE, node);
+                    Object conn = NodeAccessors.get(NodeAccessors.BRANCH_CONN_OF, node);
+                    
+                    attribute("size", size);
+                    for (int i = 0; i < size; i++) {
+                        edge(node, atoms[i] != null ? atoms[i] : conn, "atom[" + i + "]");
+                    }
+                    edge(node, conn, "conn");
+                    endNode();
+                    
+                    // Branch does not use next
+                    frames.pop();
+                    frames.push(new Frame(null, frame.inloop, frame.branchConn, atoms, size, conn));
+                }
+                return;
+            case "BackRef":
+                attribute("groupIndex", NodeAccessors.getInt(NodeAccessors.BACK_REF_GROUP_INDEX, node));
+                break;
+            case "Pos":
+                child(frame, node, NodeAccessors.get(NodeAccessors.POS_COND, node), "cond", null);
+                break;
+            case "Neg":
+                child(frame, node, NodeAccessors.get(NodeAccessors.NEG_COND, node), "cond", null);
+                break;
+            case "Behind":
+            case "BehindS":
+                attribute("rmin", NodeAccessors.getInt(NodeAccessors.BEHIND_RMIN, node));
+                attribute("rmax", NodeAccessors.getInt(NodeAccessors.BEHIND_RMAX, node));
+                child(frame, node, NodeAccessors.get(NodeAccessors.BEHIND_COND, node), "cond", null);
+                break;
+            case "NotBehind":
+            case "NotBehindS":
+                child(frame, node, NodeAccessors.get(NodeAccessors.NOT_BEHIND_COND, node), "cond", null);
+                break;
+            case "Ques":
+                child(frame, node, NodeAccessors.get(NodeAccessors.QUES_ATOM, node), "atom", frame.inloop);
+                break;
+            case "Curly":
+                attribute("type", PatternDissector.QUANTIFIER.values()[NodeAccessors.getInt(NodeAccessors.CURLY_TYPE, node)].name);
+                attribute("cmin", NodeAccessors.getInt(NodeAccessors.CURLY_CMIN, node));
+                attribute("cmax", NodeAccessors.getInt(NodeAccessors.CURLY_CMAX, node));
+                child(frame, node, NodeAccessors.get(NodeAccessors.CURLY_ATOM, node), "atom", frame.inloop);
+                break;
+            case "GroupCurly":
+                attribute("type", PatternDissector.QUANTIFIER.values()[NodeAccessors.getInt(NodeAccessors.GROUP_CURLY_TYPE, node)].name);
+                attribute("cmin", NodeAccessors.getInt(NodeAccessors.GROUP_CURLY_CMIN, node));
+                attribute("cmax", NodeAccessors.getInt(NodeAccessors.GROUP_CURLY_CMAX, node));
+                attribute("capture", NodeAccessors.getBoolean(NodeAccessors.GROUP_CURLY_CAPTURE, node));
+                attribute("localIndex", NodeAccessors.getInt(NodeAccessors.GROUP_CURLY_LOCAL_INDEX, node));
+                attribute("groupIndex", NodeAccessors.getInt(NodeAccessors.GROUP_CURLY_GROUP_INDEX, node));
+                child(frame, node, NodeAccessors.get(NodeAccessors.GROUP_CURLY_ATOM, node), "atom", frame.inloop);
+                break;
+            case "GroupHead":
+                attribute("localIndex", NodeAccessors.getInt(NodeAccessors.GROUP_HEAD_LOCAL_INDEX, node));
+                break;
+            case "GroupTail":
+                attribute("localIndex", NodeAccessors.getInt(NodeAccessors.GROUP_TAIL_LOCAL_INDEX, node));
+                attribute("groupIndex", NodeAccessors.getInt(NodeAccessors.GROUP_TAIL_GROUP_INDEX, node));
+                break;
+            case "Prolog":
+                {
+                    Object loop = NodeAccessors.get(NodeAccessors.PROLOG_LOOP, node);
+                    
+                    edge(node, loop, "loop");
+                    endNode();
+                    
+                    // Prolog does not use next, the chain goes on with the Loop
+                    frame.node = loop;
+                }
+                return;
+            case "Loop":
+            case "LazyLoop":
+                attribute("cmin", NodeAccessors.getInt(NodeAccessors.LOOP_CMIN, node));
+                attribute("cmax", NodeAccessors.getInt(NodeAccessors.LOOP_CMAX, node));
+                // The body goes back to this Loop, which is then the loop being walked
+                child(frame, node, NodeAccessors.get(NodeAccessors.LOOP_BODY, node), "body", node);
+                break;
+            default:
+                if (NodeAccessors.CHAR_PROPERTY.isInstance(node)) {
+                    DissectedNode charProperty = PatternDissector.decodeCharProp(true, node);
+                    CodePointSet members = CodePointSet.resolve(charProperty);
+                    
+                    // The method which created an anonymous class, e.g. Pattern.union
+                    if (charProperty.kind() != DissectedNode.Kind.DEBUG && !charProperty.label().equals(nodeName)) {
+                        attribute("class", charProperty.label());
+                    }
+                    if (members != null) {
+                        attribute("members", members.toString());
+                    }
+                }
+        }
+        
+        if (next != null) {
+            edge(node, next, "next");
+        }
+        endNode();
+        
+        frame.node = next;
+    }
+    
+    /**
+     * Write the edge to the start of a nested chain, and walk the chain before the rest of the
+     * current one.
+     */
+    private void child(Frame frame, Object node, Object start, String label, Object inloop) throws IOException {
+        if (start == null) {
+            return;
+        }
+        
+        edge(node, start, label);
+        
+        // Pushed on top of the frame of the current chain, so that it is walked first
+        frames.push(new Frame(start, inloop, frame.branchConn));
+    }
+    
+    private void beginNode(Object node, String kind) throws IOException {
+        nodeCount++;
+        
+        if (format == Format.DOT) {
+            out.append("  ").append(id(node)).append(" [label=\"").append(escape(kind, Integer.MAX_VALUE));
+        } else {
+            out.append(firstNode ? "" : ",\n");
+            out.append("{\"id\":\"").append(id(node)).append("\",\"kind\":\"").append(escape(kind, Integer.MAX_VALUE)).append('"');
+        }
+        
+        firstNode = false;
+        firstEdge = true;
+    }
+    
+    private void attribute(String name, Object value) throws IOException {
+        if (format == Format.DOT) {
+            // One attribute per line of the label
+            out.append("\\n").append(name).append('=').append(escape(String.valueOf(value), 60));
+        } else {
+            out.append(",\"").append(name).append("\":");
+            
+            if (value instanceof String) {
+                out.append('"').append(escape((String) value, Integer.MAX_VALUE)).append('"');
+            } else {
+                out.append(String.valueOf(value));
+            }
+        }
+    }
+    
+    private void edge(Object from, Object to, String label) throws IOException {
+        edgeCount++;
+        
+        if (format == Format.DOT) {
+            if (firstEdge) {
+                out.append("\"];\n");
+            }
+            out.append("  ").append(id(from)).append(" -> ").append(id(to)).append(" [label=\"").append(label).append("\"];\n");
+        } else {
+            out.append(firstEdge ? ",\"edges\":[" : ",");
+            out.append("{\"to\":\"").append(id(to)).append("\",\"label\":\"").append(label).append("\"}");
+        }
+        
+        firstEdge = false;
+    }
+    
+    private void endNode() throws IOException {
+        if (format == Format.DOT) {
+            if (firstEdge) {
+                out.append("\"];\n");
+            }
+        } else {
+            out.append(firstEdge ? "}" : "]}");
+        }
+    }
+    
+    /**
+     * Identifier of the node, from its identity hash code as in DissectedNode.id().
+     */
+    private static String id(Object node) {
+        return "n" + Integer.toHexString(System.identityHashCode(node));
+    }
+    
+    private static String text(int[] codePoints) {
+        return new String(codePoints, 0, codePoints.length);
+    }
+    
+    /**
+     * Escape the string for a quoted DOT or JSON string, which share the same escapes for the
+     * characters used here, and truncate it to the given length.
+     */
+    static String escape(String s, int maxLength) {
+        StringBuilder sb = new StringBuilder();
+        int length = Math.min(s.length(), maxLength);
+        
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7E) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        
+        if (length < s.length()) {
+            sb.append("...");
+        }
+        
+        return sb.toString();
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: PatternDissector --export dot|json [--flags N] (PATTERN | --file FILE|-)");
+        System.err.println();
+        System.err.println("Write the node graph of PATTERN, or of the pattern read from FILE (standard input if FILE is -),");
+        System.err.println("as Graphviz DOT or JSON to standard output.");
+    }
+    
+    /**
+     * Command line entry of the export mode.
+     *
+     * @return exit status
+     */
+    static int run(String[] args) {
+        Format format = null;
+        int flags = 0;
+        String regex = null;
+        String file = null;
+        
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--flags") && i + 1 < args.length) {
+                try {
+                    flags = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                    return 2;
+                }
+            } else if (args[i].equals("--file") && i + 1 < args.length) {
+                file = args[++i];
+            } else if (format == null) {
+                try {
+                    format = Format.valueOf(args[i].toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    usage();
+                    return 2;
+                }
+            } else if (regex == null) {
+                regex = args[i];
+            } else {
+                usage();
+                return 2;
+            }
+        }
+        
+        if (format == null || (regex == null) == (file == null)) {
+            usage();
+            return 2;
+        }
+        
+        try {
+            if (file != null) {
+                regex = read(file);
+            }
+            
+            Pattern pattern;
+            try {
+                pattern = Pattern.compile(regex, flags);
+            } catch (PatternSyntaxException e) {
+                System.err.println(e.getMessage());
+                return 2;
+            }
+            
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            new GraphExporter(format, out).export(pattern);
+            out.flush();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * The whole file, without its trailing line terminator.
+     */
+    static String read(String file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        
+        try (InputStream input = file.equals("-") ? System.in : new FileInputStream(file)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+            char[] buffer = new char[8192];
+            int n;
+            
+            while ((n = in.read(buffer)) > 0) {
+                sb.append(buffer, 0, n);
+            }
+        }
+        
+        int end = sb.length();
+        while (end > 0 && (sb.charAt(end - 1) == '\n' || sb.charAt(end - 1) == '\r')) {
+            end--;
+        }
+        
+        return sb.substring(0, end);
+    }
+}
@@ -0,0 +1,202 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The memory allocated by every Matcher of a pattern.
+ *
+ * Matcher allocates its state when it is created: the groups array, with 2 ints per capturing
+ * group (group 0 included) and room for at least 10 groups, and the locals array, with one int
+ * per group, capturing or not (look-arounds included), and one per counter of Loop. Newer JDKs
+ * allocate more arrays, which are counted as well. reset() fills the arrays in place, so a
+ * Matcher which is reused does not allocate again.
+ *
+ * Making a capturing group non-capturing shrinks the groups array only when the pattern has more
+ * than 9 groups, and never the locals array, since the group still has its local.
+ */
+final class MatcherFootprint {
+    
+    /** Minimum number of groups of the groups array of Matcher, group 0 included */
+    private static final int MIN_GROUPS = 10;
+    
+    private static final int WARMUP_RESETS = 16;
+    private static final int RESETS = 256;
+    private static final int ROUNDS = 3;
+    
+    private final int groupCount;
+    private final int localCount;
+    private final int groupLocalCount;
+    private final long bytesPerMatcher;
+    private final long bytesPerReset;
+    private final int unreferencedGroups;
+    private final long savedBytes;
+    
+    private MatcherFootprint(int groupCount, int localCount, int groupLocalCount, long bytesPerMatcher, long bytesPerReset, int unreferencedGroups, long savedBytes) {
+        this.groupCount = groupCount;
+        this.localCount = localCount;
+        this.groupLocalCount = groupLocalCount;
+        this.bytesPerMatcher = bytesPerMatcher;
+        this.bytesPerReset = bytesPerReset;
+        this.unreferencedGroups = unreferencedGroups;
+        this.savedBytes = savedBytes;
+    }
+    
+    /**
+     * Number of capturing groups, group 0 excluded.
+     */
+    int groupCount() {
+        return groupCount;
+    }
+    
+    /**
+     * Length of the locals array of Matcher.
+     */
+    int localCount() {
+        return localCount;
+    }
+    
+    /**
+     * Number of locals used by the groups of the decoded pattern. The other locals are the
+     * counters of Loop, or belong to nodes which the dissector does not decode.
+     */
+    int groupLocalCount() {
+        return groupLocalCount;
+    }
+    
+    /**
+     * Estimated bytes allocated by Pattern.matcher(), see MemoryEstimator.
+     */
+    long bytesPerMatcher() {
+        return bytesPerMatcher;
+    }
+    
+    /**
+     * Measured bytes allocated by Matcher.reset(), -1 if the JVM does not count them.
+     */
+    long bytesPerReset() {
+        return bytesPerReset;
+    }
+    
+    /**
+     * Number of capturing groups which no back reference refers to, -1 if not known because the
+     * pattern has nodes which the dissector does not decode.
+     */
+    int unreferencedGroups() {
+        return unreferencedGroups;
+    }
+    
+    /**
+     * Bytes per Matcher saved by making the unreferenced groups non-capturing.
+     */
+    long savedBytes() {
+        return savedBytes;
+    }
+    
+    /**
+     * Measure the footprint of the Matchers of the pattern.
+     *
+     * @param dissected the decoded graph of the pattern
+     */
+    static MatcherFootprint of(Pattern pattern, DissectedPattern dissected) {
+        String text = "";
+        Matcher matcher = pattern.matcher(text);
+        
+        int groupCount = matcher.groupCount();
+        int localCount = ((int[]) NodeAccessors.get(NodeAccessors.MATCHER_LOCALS, matcher)).length;
+        long bytesPerMatcher = MemoryEstimator.retainedSize(matcher, text);
+        
+        for (int i = 0; i < WARMUP_RESETS; i++) {
+            matcher.reset();
+        }
+        
+        // The least of a few rounds, since calls to allocatedBytes() may allocate themselves
+        long bytesPerReset = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long before = DissectorBenchmark.allocatedBytes();
+            for (int i = 0; i < RESETS; i++) {
+                matcher.reset();
+            }
+            long after = DissectorBenchmark.allocatedBytes();
+            
+            bytesPerReset = before < 0 || after < 0 ? -1 : Math.min(bytesPerReset, (after - before) / RESETS);
+        }
+        
+        // Groups and back references of the decoded graph
+        Set<Integer> groupLocals = new HashSet<Integer>();
+        Set<Integer> capturing = new HashSet<Integer>();
+        Set<Integer> referenced = new HashSet<Integer>();
+        boolean complete = true;
+        
+        Deque<List<DissectedNode>> pending = new ArrayDeque<List<DissectedNode>>();
+        pending.push(dissected.nodes());
+        
+        while (!pending.isEmpty()) {
+            for (DissectedNode node: pending.pop()) {
+                switch (node.kind()) {
+                    case GROUP_HEAD:
+                        groupLocals.add(((DissectedNode.GroupHead) node).localIndex());
+                        break;
+                    case GROUP_TAIL:
+                        DissectedNode.GroupTail tail = (DissectedNode.GroupTail) node;
+                        groupLocals.add(tail.localIndex());
+                        if (tail.groupIndex() > 0) {
+                            capturing.add(tail.groupIndex());
+                        }
+                        break;
+                    case GROUP_CURLY:
+                        DissectedNode.Curly curly = (DissectedNode.Curly) node;
+                        groupLocals.add(curly.localIndex());
+                        if (curly.capture()) {
+                            capturing.add(curly.groupIndex());
+                        }
+                        break;
+                    case BACK_REF:
+                        referenced.add(((DissectedNode.BackRef) node).groupIndex());
+                        break;
+                    case UNKNOWN:
+                        // LastNode ends every pattern, and has neither groups nor back references
+                        complete &= ((DissectedNode.Unknown) node).className().endsWith("$LastNode");
+                        break;
+                    default:
+                        break;
+                }
+                
+                for (List<DissectedNode> child: node.children()) {
+                    pending.push(child);
+                }
+            }
+        }
+        
+        capturing.removeAll(referenced);
+        int unreferencedGroups = complete ? capturing.size() : -1;
+        long savedBytes = 0;
+        
+        if (unreferencedGroups > 0) {
+            savedBytes = MemoryEstimator.arraySize(int.class, 2 * Math.max(groupCount + 1, MIN_GROUPS))
+                - MemoryEstimator.arraySize(int.class, 2 * Math.max(groupCount + 1 - unreferencedGroups, MIN_GROUPS));
+        }
+        
+        return new MatcherFootprint(groupCount, localCount, groupLocals.size(), bytesPerMatcher, bytesPerReset, unreferencedGroups, savedBytes);
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(groupCount).append(" groups, ")
+            .append(localCount).append(" locals (").append(groupLocalCount).append(" for groups), ")
+            .append(bytesPerMatcher).append(" B per Matcher, ")
+            .append(bytesPerReset < 0 ? "n/a" : bytesPerReset + " B").append(" per reset");
+        
+        if (unreferencedGroups > 0) {
+            sb.append(". ").append(unreferencedGroups).append(" groups without back reference, ")
+                .append(savedBytes).append(" B per Matcher saved if non-capturing");
+        }
+        
+        return sb.toString();
+    }
+}
@@ -0,0 +1,586 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import java.lang.management.ManagementFactory;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Estimate of the memory retained by compiled Patterns, per pattern and per node.
+ *
+ * The objects reachable from a node through its instance fields are attributed to it, except
+ * the other nodes of the graph, which have their own size. This covers the buffers of Slice and
+ * BnM and the Boyer-Moore tables, the boolean[] of BitClass, the atoms array of Branch, and the
+ * chains of anonymous CharProperty nodes of character classes. The Pattern object is accounted
+ * for with the source and normalized patterns and the named groups. Objects shared by all
+ * patterns (Pattern.accept, Pattern.lookbehindEnd, enum constants and classes) are not counted,
+ * and an object reachable from several nodes is counted once, with the first of them in the
+ * order of the dissector output.
+ *
+ * The sizes follow the object layout of 64-bit HotSpot (headers, references compressed or not,
+ * alignment to 8 bytes), with the fields packed without gaps, so they are estimates which may be
+ * off by a few bytes per object.
+ */
+final class MemoryEstimator {
+    
+    private static final boolean COMPRESSED_OOPS = vmOption("UseCompressedOops", true);
+    private static final boolean COMPRESSED_CLASS_POINTERS = COMPRESSED_OOPS && vmOption("UseCompressedClassPointers", true);
+    
+    private static final int REFERENCE_SIZE = COMPRESSED_OOPS ? 4 : 8;
+    private static final int OBJECT_HEADER_SIZE = COMPRESSED_CLASS_POINTERS ? 12 : 16;
+    private static final int ARRAY_HEADER_SIZE = COMPRESSED_CLASS_POINTERS ? 16 : 24;
+    
+    private static boolean vmOption(String name, boolean defaultValue) {
+        try {
+            com.sun.management.HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class);
+            return hotSpot != null ? Boolean.parseBoolean(hotSpot.getVMOption(name).getValue()) : defaultValue;
+        } catch (RuntimeException e) {
+            // Not HotSpot, or an option it does not have
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Size of the instances and reference fields of a class.
+     */
+    private static final class ClassLayout {
+        final long instanceSize;
+        final List<Field> references;
+        
+        ClassLayout(Class<?> clazz) {
+            long size = OBJECT_HEADER_SIZE;
+            List<Field> fields = new ArrayList<Field>();
+            
+            for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+                for (Field field: c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    
+                    Class<?> type = field.getType();
+                    size += type.isPrimitive() ? primitiveSize(type) : REFERENCE_SIZE;
+                    
+                    if (!type.isPrimitive()) {
+                        try {
+                            field.setAccessible(true);
+                            fields.add(field);
+                        } catch (RuntimeException e) {
+                            // Not accessible on this JDK, the objects it refers to are not counted
+                        }
+                    }
+                }
+            }
+            
+            this.instanceSize = align(size);
+            this.references = Collections.unmodifiableList(fields);
+        }
+    }
+    
+    private static final ClassValue<ClassLayout> LAYOUTS = new ClassValue<ClassLayout>() {
+        @Override
+        protected ClassLayout computeValue(Class<?> clazz) {
+            return new ClassLayout(clazz);
+        }
+    };
+    
+    private static long primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        } else if (type == short.class || type == char.class) {
+            return 2;
+        } else {
+            return 1;
+        }
+    }
+    
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+    
+    /**
+     * Shallow size of the object, i.e. without the objects it refers to.
+     */
+    static long shallowSize(Object object) {
+        Class<?> clazz = object.getClass();
+        
+        if (clazz.isArray()) {
+            return arraySize(clazz.getComponentType(), Array.getLength(object));
+        }
+        
+        return LAYOUTS.get(clazz).instanceSize;
+    }
+    
+    /**
+     * Size of an array of the given component type and length.
+     */
+    static long arraySize(Class<?> component, int length) {
+        long elementSize = component.isPrimitive() ? primitiveSize(component) : REFERENCE_SIZE;
+        
+        return align(ARRAY_HEADER_SIZE + elementSize * length);
+    }
+    
+    /**
+     * Size of the object and of the objects reachable from it, except the excluded objects and
+     * the objects reachable only through them, and the objects shared by all patterns.
+     */
+    static long retainedSize(Object root, Object... excluded) {
+        Set<Object> counted = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        Collections.addAll(counted, excluded);
+        
+        return retained("", root, Collections.emptySet(), counted).bytes;
+    }
+    
+    /**
+     * Retained size of a node, or of the Pattern object.
+     */
+    static final class Contributor {
+        final String label;
+        final long bytes;
+        /** Bytes and number of objects by class name, largest first */
+        final Map<String, long[]> byClass;
+        
+        Contributor(String label, long bytes, Map<String, long[]> byClass) {
+            this.label = label;
+            this.bytes = bytes;
+            this.byClass = byClass;
+        }
+        
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%10d B  %s (", bytes, label));
+            
+            int i = 0;
+            for (Map.Entry<String, long[]> entry: byClass.entrySet()) {
+                sb.append(i++ > 0 ? ", " : "").append(entry.getKey()).append(" x").append(entry.getValue()[1]).append(": ").append(entry.getValue()[0]).append(" B");
+            }
+            
+            return sb.append(')').toString();
+        }
+    }
+    
+    /**
+     * Estimate of a compiled pattern.
+     */
+    static final class Estimate {
+        final String pattern;
+        final int flags;
+        final long bytes;
+        final int nodeCount;
+        /** The Pattern object and the nodes, largest first */
+        final List<Contributor> contributors;
+        
+        Estimate(String pattern, int flags, long bytes, int nodeCount, List<Contributor> contributors) {
+            this.pattern = pattern;
+            this.flags = flags;
+            this.bytes = bytes;
+            this.nodeCount = nodeCount;
+            this.contributors = contributors;
+        }
+    }
+    
+    private static final Comparator<Contributor> LARGEST_FIRST = new Comparator<Contributor>() {
+        @Override
+        public int compare(Contributor a, Contributor b) {
+            return Long.compare(b.bytes, a.bytes);
+        }
+    };
+    
+    private static final Comparator<Estimate> SMALLEST_FIRST = new Comparator<Estimate>() {
+        @Override
+        public int compare(Estimate a, Estimate b) {
+            return Long.compare(a.bytes, b.bytes);
+        }
+    };
+    
+    /**
+     * Collects the nodes of the graph, in the order of the dissector output.
+     */
+    private static final class NodeCollector implements NodeVisitor {
+        final Set<Object> nodes = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        final List<Object> order = new ArrayList<Object>();
+        
+        private void add(Object node) {
+            if (node != null && node != NodeAccessors.ACCEPT && node != NodeAccessors.LOOKBEHIND_END && nodes.add(node)) {
+                order.add(node);
+            }
+        }
+        
+        @Override
+        public void visitStart(Object node, DissectedNode.Kind kind, int minLength) {
+            add(node);
+        }
+        
+        @Override
+        public void visitSimple(Object node, DissectedNode.Kind kind) {
+            add(node);
+        }
+        
+        @Override
+        public void visitDollar(Object node, DissectedNode.Kind kind, boolean multiline) {
+            add(node);
+        }
+        
+        @Override
+        public void visitSlice(Object node, DissectedNode.Kind kind, int[] buffer, int lengthInChars) {
+            add(node);
+        }
+        
+        @Override
+        public boolean visitBranch(Object node, int size) {
+            add(node);
+            return true;
+        }
+        
+        @Override
+        public void visitBranchConn(Object node, boolean endOfAlternative) {
+            add(node);
+        }
+        
+        @Override
+        public void visitBackRef(Object node, int groupIndex) {
+            add(node);
+        }
+        
+        @Override
+        public boolean visitLookaround(Object node, DissectedNode.Kind kind, int rmin, int rmax) {
+            add(node);
+            return true;
+        }
+        
+        @Override
+        public boolean visitCurly(Object node, int type, int cmin, int cmax) {
+            add(node);
+            return true;
+        }
+        
+        @Override
+        public boolean visitGroupCurly(Object node, int type, int cmin, int cmax, boolean capture, int localIndex, int groupIndex) {
+            add(node);
+            return true;
+        }
+        
+        @Override
+        public void visitGroupHead(Object node, int localIndex) {
+            add(node);
+        }
+        
+        @Override
+        public void visitGroupTail(Object node, int localIndex, int groupIndex) {
+            add(node);
+        }
+        
+        @Override
+        public void visitProlog(Object node) {
+            add(node);
+        }
+        
+        @Override
+        public boolean visitLoop(Object node, DissectedNode.Kind kind, int cmin, int cmax) {
+            add(node);
+            return true;
+        }
+        
+        @Override
+        public void visitCharClass(Object node) {
+            add(node);
+        }
+        
+        @Override
+        public void visitUnknown(Object node) {
+            add(node);
+        }
+    }
+    
+    private MemoryEstimator() {
+    }
+    
+    /**
+     * Estimate the memory retained by the pattern.
+     */
+    static Estimate estimate(Pattern pattern) {
+        NodeCollector collector = new NodeCollector();
+        new NodeTraversal().traverse(pattern, collector);
+        
+        Set<Object> counted = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        List<Contributor> contributors = new ArrayList<Contributor>();
+        long total = 0;
+        
+        // The Pattern first, so that its strings are not attributed to a node
+        Contributor patternContributor = retained("Pattern", pattern, collector.nodes, counted);
+        contributors.add(patternContributor);
+        total += patternContributor.bytes;
+        
+        for (Object node: collector.order) {
+            Contributor contributor = retained(label(node), node, collector.nodes, counted);
+            
+            contributors.add(contributor);
+            total += contributor.bytes;
+        }
+        
+        Collections.sort(contributors, LARGEST_FIRST);
+        
+        return new Estimate(pattern.pattern(), pattern.flags(), total, collector.order.size(), contributors);
+    }
+    
+    /**
+     * Size of the object and of the objects reachable from it which are not counted yet, without
+     * entering the other nodes of the graph and the objects shared by all patterns.
+     */
+    private static Contributor retained(String label, Object root, Set<Object> nodes, Set<Object> counted) {
+        Map<String, long[]> byClass = new HashMap<String, long[]>();
+        Deque<Object> pending = new ArrayDeque<Object>();
+        long bytes = 0;
+        
+        pending.push(root);
+        
+        while (!pending.isEmpty()) {
+            Object object = pending.pop();
+            
+            if (!counted.add(object)) {
+                continue;
+            }
+            
+            long size = shallowSize(object);
+            String className = className(object);
+            long[] classTotal = byClass.get(className);
+            if (classTotal == null) {
+                classTotal = new long[2];
+                byClass.put(className, classTotal);
+            }
+            classTotal[0] += size;
+            classTotal[1]++;
+            bytes += size;
+            
+            if (object.getClass().isArray()) {
+                if (!object.getClass().getComponentType().isPrimitive()) {
+                    for (Object element: (Object[]) object) {
+                        push(element, root, nodes, pending);
+                    }
+                }
+                continue;
+            }
+            
+            for (Field field: LAYOUTS.get(object.getClass()).references) {
+                try {
+                    push(field.get(object), root, nodes, pending);
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        
+        // Largest first
+        List<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>(byClass.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+            @Override
+            public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+                return Long.compare(b.getValue()[0], a.getValue()[0]);
+            }
+        });
+        
+        Map<String, long[]> sorted = new LinkedHashMap<String, long[]>();
+        for (Map.Entry<String, long[]> entry: entries) {
+            sorted.put(entry.getKey(), entry.getValue());
+        }
+        
+        return new Contributor(label, bytes, sorted);
+    }
+    
+    private static void push(Object object, Object root, Set<Object> nodes, Deque<Object> pending) {
+        if (object == null || object == NodeAccessors.ACCEPT || object == NodeAccessors.LOOKBEHIND_END
+                || object instanceof Class || object instanceof Enum || object instanceof Pattern
+                || object != root && nodes.contains(object)) {
+            return;
+        }
+        
+        pending.push(object);
+    }
+    
+    /**
+     * The simple name of the class of the object, or the method which created it for the
+     * anonymous CharProperty classes (e.g. Pattern.union).
+     */
+    private static String className(Object object) {
+        Class<?> clazz = object.getClass();
+        String name = NodeAccessors.simpleName(clazz);
+        
+        if (name.isEmpty()) {
+            String methodName = NodeAccessors.CHAR_PROPERTY.isInstance(object) ? NodeAccessors.charPropertyLayout(clazz).methodName : null;
+            name = methodName != null ? methodName : clazz.getName();
+        }
+        
+        return name;
+    }
+    
+    private static String label(Object node) {
+        return className(node) + " [" + Integer.toHexString(System.identityHashCode(node)) + "]";
+    }
+    
+    /**
+     * The pattern with its flags, escaped and truncated to fit in a line.
+     */
+    private static String display(Estimate estimate) {
+        StringBuilder sb = new StringBuilder();
+        
+        for (int i = 0; i < estimate.pattern.length(); i++) {
+            char c = estimate.pattern.charAt(i);
+            
+            if (c >= 0x20 && c < 0x7F) {
+                sb.append(c);
+            } else {
+                sb.append("\\x{").append(Integer.toHexString(c)).append('}');
+            }
+        }
+        
+        if (estimate.flags != 0) {
+            sb.append(" (flags ").append(estimate.flags).append(')');
+        }
+        
+        return sb.length() > 72 ? sb.substring(0, 69) + "..." : sb.toString();
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: PatternDissector --memory [--top N] [--nodes N] [FILE|-]");
+        System.err.println();
+        System.err.println("Estimate the memory retained by the compiled patterns read from FILE, or standard input if FILE is");
+        System.err.println("- or absent, in the format of --batch. Print the N largest patterns (default 10), each with its N");
+        System.err.println("largest nodes (default 5), then the total and the memory taken by patterns compiled more than once.");
+    }
+    
+    /**
+     * Command line entry of the memory estimate.
+     *
+     * @return exit status
+     */
+    static int run(String[] args) {
+        int top = 10;
+        int topNodes = 5;
+        String file = "-";
+        
+        for (int i = 0; i < args.length; i++) {
+            if ((args[i].equals("--top") || args[i].equals("--nodes")) && i + 1 < args.length) {
+                try {
+                    if (args[i].equals("--top")) {
+                        top = Integer.parseInt(args[++i]);
+                    } else {
+                        topNodes = Integer.parseInt(args[++i]);
+                    }
+                } catch (NumberFormatException e) {
+                    usage();
+                    return 2;
+                }
+            } else if (args[i].startsWith("--")) {
+                usage();
+                return 2;
+            } else {
+                file = args[i];
+            }
+        }
+        
+        if (top < 1 || topNodes < 0) {
+            usage();
+            return 2;
+        }
+        
+        PriorityQueue<Estimate> largest = new PriorityQueue<Estimate>(top, SMALLEST_FIRST);
+        Map<String, Integer> occurrences = new HashMap<String, Integer>();
+        Map<String, Long> sizes = new HashMap<String, Long>();
+        long total = 0;
+        int count = 0;
+        
+        try (InputStream input = file.equals("-") ? System.in : new FileInputStream(file)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+            String line;
+            int lineNumber = 0;
+            
+            while ((line = in.readLine()) != null) {
+                BatchDissector.Entry entry = BatchDissector.parseLine(line, ++lineNumber);
+                if (entry == null) {
+                    continue;
+                }
+                
+                Estimate estimate;
+                try {
+                    estimate = estimate(Pattern.compile(entry.pattern, entry.flags));
+                } catch (PatternSyntaxException e) {
+                    System.err.println("Line " + lineNumber + ": " + e.getDescription());
+                    continue;
+                }
+                
+                String key = entry.flags + "\t" + entry.pattern;
+                Integer seen = occurrences.get(key);
+                occurrences.put(key, seen == null ? 1 : seen + 1);
+                sizes.put(key, estimate.bytes);
+                
+                total += estimate.bytes;
+                count++;
+                
+                // Only the first occurrence of a pattern is ranked
+                if (seen == null) {
+                    largest.add(estimate);
+                    if (largest.size() > top) {
+                        largest.poll();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+        
+        List<Estimate> ranked = new ArrayList<Estimate>(largest);
+        Collections.sort(ranked, Collections.reverseOrder(SMALLEST_FIRST));
+        
+        StringBuilder sb = new StringBuilder();
+        
+        for (Estimate estimate: ranked) {
+            sb.append(String.format("%10d B  %s (%d nodes)%n", estimate.bytes, display(estimate), estimate.nodeCount));
+            
+            for (Contributor contributor: estimate.contributors.subList(0, Math.min(topNodes, estimate.contributors.size()))) {
+                sb.append("  ").append(contributor).append(String.format("%n"));
+            }
+        }
+        
+        // Memory which deduplicating the patterns compiled more than once would save
+        long duplicateBytes = 0;
+        int duplicates = 0;
+        
+        for (Map.Entry<String, Integer> entry: occurrences.entrySet()) {
+            if (entry.getValue() > 1) {
+                duplicates++;
+                duplicateBytes += (entry.getValue() - 1) * sizes.get(entry.getKey());
+            }
+        }
+        
+        sb.append(String.format("%d patterns, %d B in total, %d patterns compiled more than once for %d B%n", count, total, duplicates, duplicateBytes));
+        System.out.print(sb);
+        
+        return 0;
+    }
+}
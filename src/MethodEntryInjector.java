@@ -0,0 +1,501 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class file rewriter which inserts a call to a static hook at the entry of methods:
+ *
+ *     aload_0
+ *     invokestatic hookOwner.hookName(Ljava/lang/Object;)V
+ *
+ * so the hook receives the instance the method is called on. For methods which return a
+ * boolean, a call to an exit hook can also be inserted before every ireturn:
+ *
+ *     aload_0
+ *     invokestatic hookOwner.exitHookName(ZLjava/lang/Object;)Z
+ *
+ * which receives the result and the instance, and returns the result. The exit hook takes the
+ * result from the stack and puts it back, so there is no branch, and no frame to add to the
+ * StackMapTable.
+ *
+ * Each inserted sequence is 4 bytes long, so the 4-byte alignment of tableswitch and
+ * lookupswitch is preserved. The code offsets are mapped to their new values: the branch and
+ * switch offsets, the exception table, the frames and the uninitialized types of the
+ * StackMapTable, LineNumberTable, LocalVariableTable and LocalVariableTypeTable. A branch to
+ * an ireturn goes to the call of the exit hook before it. Other attributes of Code are copied
+ * as they are.
+ */
+final class MethodEntryInjector {
+    
+    private static final String HOOK_DESCRIPTOR = "(Ljava/lang/Object;)V";
+    private static final String EXIT_HOOK_DESCRIPTOR = "(ZLjava/lang/Object;)Z";
+    
+    /** Length of the code inserted at the entry, and before every ireturn */
+    private static final int HOOK_CALL_LENGTH = 4;
+    
+    private static final int ALOAD_0 = 0x2A;
+    private static final int IFEQ = 0x99;
+    private static final int JSR = 0xA8;
+    private static final int TABLESWITCH = 0xAA;
+    private static final int LOOKUPSWITCH = 0xAB;
+    private static final int IRETURN = 0xAC;
+    private static final int INVOKESTATIC = 0xB8;
+    private static final int WIDE = 0xC4;
+    private static final int IINC = 0x84;
+    private static final int IFNULL = 0xC6;
+    private static final int IFNONNULL = 0xC7;
+    private static final int GOTO_W = 0xC8;
+    private static final int JSR_W = 0xC9;
+    
+    /**
+     * Length of the instructions by opcode, 0 for the variable length ones (tableswitch,
+     * lookupswitch and wide) and the undefined opcodes.
+     */
+    private static final byte[] INSTRUCTION_LENGTHS = new byte[256];
+    static {
+        String lengths =
+            // nop .. dconst_1, bipush, sipush, ldc, ldc_w, ldc2_w
+            "1111111111111111" + "23233" +
+            // iload .. aload, iload_0 .. aload_3, iaload .. saload
+            "22222" + "11111111111111111111" + "11111111" +
+            // istore .. astore, istore_0 .. astore_3, iastore .. sastore
+            "22222" + "11111111111111111111" + "11111111" +
+            // pop .. lxor
+            "111111111" + "111111111111111111111111111111111111" +
+            // iinc, i2l .. dcmpg
+            "3" + "11111111111111111111" +
+            // ifeq .. jsr, ret, tableswitch, lookupswitch, ireturn .. return
+            "3333333333333333" + "2" + "00" + "111111" +
+            // getstatic .. putfield, invokevirtual .. invokestatic, invokeinterface, invokedynamic
+            "3333" + "333" + "55" +
+            // new, newarray, anewarray, arraylength, athrow, checkcast, instanceof, monitorenter, monitorexit
+            "323113311" +
+            // wide, multianewarray, ifnull, ifnonnull, goto_w, jsr_w
+            "04" + "33" + "55";
+        
+        for (int i = 0; i < lengths.length(); i++) {
+            INSTRUCTION_LENGTHS[i] = (byte) (lengths.charAt(i) - '0');
+        }
+    }
+    
+    private static final int ITEM_OBJECT = 7;
+    private static final int ITEM_UNINITIALIZED = 8;
+    
+    private static final int SAME_LOCALS_1_STACK_ITEM_EXTENDED = 247;
+    private static final int SAME_FRAME_EXTENDED = 251;
+    private static final int FULL_FRAME = 255;
+    
+    private final String hookOwner;
+    private final String hookName;
+    private final String exitHookName;
+    
+    /**
+     * @param hookOwner internal name of the class of the hook, e.g. NodeProfiler
+     * @param hookName name of the static hook method, which takes a single Object argument
+     */
+    MethodEntryInjector(String hookOwner, String hookName) {
+        this(hookOwner, hookName, null);
+    }
+    
+    /**
+     * @param exitHookName name of the static hook method called before every ireturn, which
+     *        takes the result and the instance and returns the result. Null for none
+     */
+    MethodEntryInjector(String hookOwner, String hookName, String exitHookName) {
+        this.hookOwner = hookOwner;
+        this.hookName = hookName;
+        this.exitHookName = exitHookName;
+    }
+    
+    /**
+     * Insert the hook call at the entry of the non-static methods with the given name and
+     * descriptor, and the exit hook call before their ireturn instructions.
+     *
+     * @return the rewritten class file, or null if no method is rewritten
+     * @throws IllegalArgumentException if the class file is invalid, or if there is an exit
+     *         hook and the methods do not return a boolean
+     */
+    byte[] inject(byte[] classBytes, String methodName, String methodDescriptor) {
+        if (exitHookName != null && !methodDescriptor.endsWith(")Z")) {
+            throw new IllegalArgumentException("The exit hook needs a method returning boolean: " + methodDescriptor);
+        }
+        
+        ClassFile cf = ClassFile.parse(classBytes);
+        
+        List<ClassFile.Member> targets = new ArrayList<ClassFile.Member>();
+        for (ClassFile.Member method: cf.methods()) {
+            if (method.name.equals(methodName) && method.descriptor.equals(methodDescriptor)
+                    && (method.accessFlags & (ClassFile.ACC_STATIC | ClassFile.ACC_ABSTRACT | ClassFile.ACC_NATIVE)) == 0) {
+                targets.add(method);
+            }
+        }
+        
+        if (targets.isEmpty()) {
+            return null;
+        }
+        
+        int cpCount = cf.constantPoolCount();
+        int added = exitHookName == null ? 6 : 10;
+        if (cpCount + added > 0xFFFF) {
+            throw new IllegalArgumentException("Constant pool of " + cf.thisClassName() + " is full");
+        }
+        
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(classBytes.length + 256);
+            DataOutputStream out = new DataOutputStream(buffer);
+            
+            // magic, minor_version, major_version
+            out.write(classBytes, 0, 8);
+            out.writeShort(cpCount + added);
+            out.write(classBytes, 10, cf.constantPoolEnd() - 10);
+            
+            // The constant pool entries of the hook, appended after the existing ones
+            int ownerUtf8 = cpCount;
+            int ownerClass = cpCount + 1;
+            int nameUtf8 = cpCount + 2;
+            int descriptorUtf8 = cpCount + 3;
+            int nameAndType = cpCount + 4;
+            int methodRef = cpCount + 5;
+            
+            out.writeByte(ClassFile.CONSTANT_UTF8);
+            out.writeUTF(hookOwner);
+            out.writeByte(ClassFile.CONSTANT_CLASS);
+            out.writeShort(ownerUtf8);
+            out.writeByte(ClassFile.CONSTANT_UTF8);
+            out.writeUTF(hookName);
+            out.writeByte(ClassFile.CONSTANT_UTF8);
+            out.writeUTF(HOOK_DESCRIPTOR);
+            out.writeByte(ClassFile.CONSTANT_NAME_AND_TYPE);
+            out.writeShort(nameUtf8);
+            out.writeShort(descriptorUtf8);
+            out.writeByte(ClassFile.CONSTANT_METHODREF);
+            out.writeShort(ownerClass);
+            out.writeShort(nameAndType);
+            
+            int exitMethodRef = 0;
+            if (exitHookName != null) {
+                out.writeByte(ClassFile.CONSTANT_UTF8);
+                out.writeUTF(exitHookName);
+                out.writeByte(ClassFile.CONSTANT_UTF8);
+                out.writeUTF(EXIT_HOOK_DESCRIPTOR);
+                out.writeByte(ClassFile.CONSTANT_NAME_AND_TYPE);
+                out.writeShort(cpCount + 6);
+                out.writeShort(cpCount + 7);
+                out.writeByte(ClassFile.CONSTANT_METHODREF);
+                out.writeShort(ownerClass);
+                out.writeShort(cpCount + 8);
+                exitMethodRef = cpCount + 9;
+            }
+            
+            int p = cf.constantPoolEnd();
+            
+            for (ClassFile.Member method: targets) {
+                ClassFile.Attribute code = method.attribute("Code");
+                
+                // Everything up to the Code attribute is copied as it is
+                out.write(classBytes, p, code.offset - p);
+                writeCode(cf, code, methodRef, exitMethodRef, out);
+                p = code.end();
+            }
+            
+            out.write(classBytes, p, classBytes.length - p);
+            out.flush();
+            
+            return buffer.toByteArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+    
+    /**
+     * Length of the instruction at pc.
+     *
+     * @param codeStart offset of the code in the class file, the alignment of the switches
+     *        being relative to it
+     */
+    private static int instructionLength(ClassFile cf, int codeStart, int pc) {
+        int opcode = cf.u1(codeStart + pc);
+        int length = INSTRUCTION_LENGTHS[opcode];
+        
+        if (length > 0) {
+            return length;
+        }
+        
+        switch (opcode) {
+            case WIDE:
+                return cf.u1(codeStart + pc + 1) == IINC ? 6 : 4;
+            case TABLESWITCH:
+                {
+                    int p = (pc + 4) & ~3;
+                    int low = cf.s4(codeStart + p + 4);
+                    int high = cf.s4(codeStart + p + 8);
+                    return p - pc + 12 + (high - low + 1) * 4;
+                }
+            case LOOKUPSWITCH:
+                {
+                    int p = (pc + 4) & ~3;
+                    return p - pc + 8 + cf.s4(codeStart + p + 4) * 8;
+                }
+            default:
+                throw new IllegalArgumentException("Invalid class file: unknown opcode " + opcode + " in " + cf.thisClassName());
+        }
+    }
+    
+    private void writeCode(ClassFile cf, ClassFile.Attribute code, int methodRef, int exitMethodRef, DataOutputStream out) throws IOException {
+        byte[] bytes = cf.bytes();
+        int p = code.infoOffset;
+        
+        int maxStack = cf.u2(p);
+        int maxLocals = cf.u2(p + 2);
+        int codeLength = cf.s4(p + 4);
+        int codeStart = p + 8;
+        
+        // New offset of every old offset, up to the end of the code. The hook calls inserted
+        // before an ireturn get the old offset of the ireturn
+        int[] offsets = new int[codeLength + 1];
+        int shift = HOOK_CALL_LENGTH;
+        
+        for (int pc = 0; pc < codeLength; ) {
+            int length = instructionLength(cf, codeStart, pc);
+            
+            for (int i = 0; i < length; i++) {
+                offsets[pc + i] = pc + i + shift;
+            }
+            if (exitMethodRef != 0 && cf.u1(codeStart + pc) == IRETURN) {
+                shift += HOOK_CALL_LENGTH;
+            }
+            pc += length;
+        }
+        offsets[codeLength] = codeLength + shift;
+        
+        if (codeLength + shift > 0xFFFF) {
+            throw new IllegalArgumentException("Code of a method in " + cf.thisClassName() + " is too long to be instrumented");
+        }
+        
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(code.length + shift + 16);
+        DataOutputStream info = new DataOutputStream(buffer);
+        
+        // The exit hook call pushes the instance over the result
+        info.writeShort(exitMethodRef != 0 ? maxStack + 1 : Math.max(maxStack, 1));
+        info.writeShort(maxLocals);
+        info.writeInt(codeLength + shift);
+        
+        info.writeByte(ALOAD_0);
+        info.writeByte(INVOKESTATIC);
+        info.writeShort(methodRef);
+        
+        for (int pc = 0; pc < codeLength; ) {
+            int length = instructionLength(cf, codeStart, pc);
+            int opcode = cf.u1(codeStart + pc);
+            
+            if (exitMethodRef != 0 && opcode == IRETURN) {
+                info.writeByte(ALOAD_0);
+                info.writeByte(INVOKESTATIC);
+                info.writeShort(exitMethodRef);
+            }
+            
+            if (opcode >= IFEQ && opcode <= JSR || opcode == IFNULL || opcode == IFNONNULL) {
+                int delta = offsets[pc + (short) cf.u2(codeStart + pc + 1)] - offsets[pc];
+                if (delta != (short) delta) {
+                    throw new IllegalArgumentException("Branch of a method in " + cf.thisClassName() + " is too long to be instrumented");
+                }
+                
+                info.writeByte(opcode);
+                info.writeShort(delta);
+            } else if (opcode == GOTO_W || opcode == JSR_W) {
+                info.writeByte(opcode);
+                info.writeInt(offsets[pc + cf.s4(codeStart + pc + 1)] - offsets[pc]);
+            } else if (opcode == TABLESWITCH || opcode == LOOKUPSWITCH) {
+                // The padding is the same, since the offset of the switch moves by a multiple of 4
+                int q = (pc + 4) & ~3;
+                info.write(bytes, codeStart + pc, q - pc);
+                info.writeInt(offsets[pc + cf.s4(codeStart + q)] - offsets[pc]);
+                
+                if (opcode == TABLESWITCH) {
+                    int low = cf.s4(codeStart + q + 4);
+                    int high = cf.s4(codeStart + q + 8);
+                    info.writeInt(low);
+                    info.writeInt(high);
+                    
+                    for (int i = 0; i < high - low + 1; i++) {
+                        info.writeInt(offsets[pc + cf.s4(codeStart + q + 12 + i * 4)] - offsets[pc]);
+                    }
+                } else {
+                    int pairs = cf.s4(codeStart + q + 4);
+                    info.writeInt(pairs);
+                    
+                    for (int i = 0; i < pairs; i++) {
+                        info.writeInt(cf.s4(codeStart + q + 8 + i * 8));
+                        info.writeInt(offsets[pc + cf.s4(codeStart + q + 12 + i * 8)] - offsets[pc]);
+                    }
+                }
+            } else {
+                info.write(bytes, codeStart + pc, length);
+            }
+            
+            pc += length;
+        }
+        
+        p = codeStart + codeLength;
+        
+        int exceptionTableLength = cf.u2(p);
+        info.writeShort(exceptionTableLength);
+        p += 2;
+        
+        for (int i = 0; i < exceptionTableLength; i++, p += 8) {
+            info.writeShort(offsets[cf.u2(p)]);
+            info.writeShort(offsets[cf.u2(p + 2)]);
+            info.writeShort(offsets[cf.u2(p + 4)]);
+            info.writeShort(cf.u2(p + 6));
+        }
+        
+        List<ClassFile.Attribute> attributes = new ArrayList<ClassFile.Attribute>();
+        cf.readAttributes(p, attributes);
+        info.writeShort(attributes.size());
+        
+        for (ClassFile.Attribute attribute: attributes) {
+            switch (attribute.name) {
+                case "StackMapTable":
+                    writeStackMapTable(cf, attribute, offsets, info);
+                    break;
+                case "LineNumberTable":
+                    writeShiftedTable(cf, attribute, 4, false, offsets, info);
+                    break;
+                case "LocalVariableTable":
+                case "LocalVariableTypeTable":
+                    writeShiftedTable(cf, attribute, 10, true, offsets, info);
+                    break;
+                default:
+                    info.write(bytes, attribute.offset, attribute.end() - attribute.offset);
+            }
+        }
+        
+        info.flush();
+        
+        out.write(bytes, code.offset, 2);
+        out.writeInt(buffer.size());
+        buffer.writeTo(out);
+    }
+    
+    /**
+     * Copy a table attribute whose entries start with a u2 start_pc, followed by a u2 length
+     * if hasLength.
+     */
+    private static void writeShiftedTable(ClassFile cf, ClassFile.Attribute attribute, int entryLength, boolean hasLength, int[] offsets, DataOutputStream out) throws IOException {
+        byte[] bytes = cf.bytes();
+        int p = attribute.infoOffset;
+        int count = cf.u2(p);
+        
+        out.write(bytes, attribute.offset, 6);
+        out.writeShort(count);
+        p += 2;
+        
+        for (int i = 0; i < count; i++, p += entryLength) {
+            int start = cf.u2(p);
+            out.writeShort(offsets[start]);
+            
+            if (hasLength) {
+                out.writeShort(offsets[start + cf.u2(p + 2)] - offsets[start]);
+                out.write(bytes, p + 4, entryLength - 4);
+            } else {
+                out.write(bytes, p + 2, entryLength - 2);
+            }
+        }
+    }
+    
+    private static void writeStackMapTable(ClassFile cf, ClassFile.Attribute attribute, int[] offsets, DataOutputStream out) throws IOException {
+        int p = attribute.infoOffset;
+        int count = cf.u2(p);
+        p += 2;
+        
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(attribute.length + 2);
+        DataOutputStream frames = new DataOutputStream(buffer);
+        frames.writeShort(count);
+        
+        // The offset of the first frame is its offset_delta, the others are relative to the
+        // previous frame plus 1
+        int oldOffset = -1;
+        int newOffset = -1;
+        
+        for (int i = 0; i < count; i++) {
+            int type = cf.u1(p++);
+            int oldDelta;
+            
+            if (type < 128) {
+                oldDelta = type < 64 ? type : type - 64;
+            } else if (type >= SAME_LOCALS_1_STACK_ITEM_EXTENDED) {
+                oldDelta = cf.u2(p);
+                p += 2;
+            } else {
+                throw new IllegalArgumentException("Invalid class file: reserved frame type " + type + " in " + cf.thisClassName());
+            }
+            
+            oldOffset += oldDelta + 1;
+            int delta = offsets[oldOffset] - newOffset - 1;
+            newOffset = offsets[oldOffset];
+            
+            if (type < 64) {
+                if (delta < 64) {
+                    frames.writeByte(delta);
+                } else {
+                    frames.writeByte(SAME_FRAME_EXTENDED);
+                    frames.writeShort(delta);
+                }
+            } else if (type < 128) {
+                if (delta < 64) {
+                    frames.writeByte(64 + delta);
+                } else {
+                    frames.writeByte(SAME_LOCALS_1_STACK_ITEM_EXTENDED);
+                    frames.writeShort(delta);
+                }
+                p = copyVerificationTypes(cf, p, 1, offsets, frames);
+            } else {
+                frames.writeByte(type);
+                frames.writeShort(delta);
+                
+                if (type == SAME_LOCALS_1_STACK_ITEM_EXTENDED) {
+                    p = copyVerificationTypes(cf, p, 1, offsets, frames);
+                } else if (type > SAME_FRAME_EXTENDED && type < FULL_FRAME) {
+                    p = copyVerificationTypes(cf, p, type - SAME_FRAME_EXTENDED, offsets, frames);
+                } else if (type == FULL_FRAME) {
+                    int locals = cf.u2(p);
+                    frames.writeShort(locals);
+                    p = copyVerificationTypes(cf, p + 2, locals, offsets, frames);
+                    
+                    int stack = cf.u2(p);
+                    frames.writeShort(stack);
+                    p = copyVerificationTypes(cf, p + 2, stack, offsets, frames);
+                }
+            }
+        }
+        
+        frames.flush();
+        
+        out.write(cf.bytes(), attribute.offset, 2);
+        out.writeInt(buffer.size());
+        buffer.writeTo(out);
+    }
+    
+    /**
+     * Copy verification_type_info structures, mapping the offset of Uninitialized_variable_info.
+     */
+    private static int copyVerificationTypes(ClassFile cf, int p, int count, int[] offsets, DataOutputStream out) throws IOException {
+        for (int i = 0; i < count; i++) {
+            int tag = cf.u1(p++);
+            out.writeByte(tag);
+            
+            if (tag == ITEM_OBJECT) {
+                out.writeShort(cf.u2(p));
+                p += 2;
+            } else if (tag == ITEM_UNINITIALIZED) {
+                out.writeShort(offsets[cf.u2(p)]);
+                p += 2;
+            }
+        }
+        
+        return p;
+    }
+}
@@ -0,0 +1,361 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Registry of pre-resolved accessors for the fields of Pattern's inner classes.
+ *
+ * Every field read by the dissector is looked up once, when this class is initialized,
+ * and turned into a MethodHandle getter adapted to (Object) -> type. The hot paths then
+ * read node fields with invokeExact on a static final handle, instead of going through
+ * getDeclaredField() and setAccessible() for every visited node.
+ *
+ * A field that does not exist in the running JCL, or cannot be read as the expected type, does
+ * not fail the initialization. Its handle throws the usual "Unexpected inner structure" exception when it is used, so only
+ * the dissection of the affected node type fails, as it did before.
+ */
+final class NodeAccessors {
+    
+    private NodeAccessors() {
+    }
+    
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    
+    private static final MethodType OBJECT_GETTER = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType INT_GETTER = MethodType.methodType(int.class, Object.class);
+    private static final MethodType BOOLEAN_GETTER = MethodType.methodType(boolean.class, Object.class);
+    
+    static final Class<?> NODE = PatternDissector.patternClass("Node");
+    static final Class<?> CHAR_PROPERTY = PatternDissector.patternClass("CharProperty");
+    static final Class<?> LOOP = PatternDissector.patternClass("Loop");
+    static final Class<?> BRANCH_CONN = PatternDissector.patternClass("BranchConn");
+    
+    static final MethodHandle PATTERN_ROOT = getter(Pattern.class, "root", OBJECT_GETTER);
+    static final MethodHandle PATTERN_NORMALIZED_PATTERN = getter(Pattern.class, "normalizedPattern", OBJECT_GETTER);
+    
+    static final MethodHandle MATCHER_LOCALS = getter(Matcher.class, "locals", OBJECT_GETTER);
+    
+    static final MethodHandle NODE_NEXT = getter("Node", "next", OBJECT_GETTER);
+    
+    static final MethodHandle START_MIN_LENGTH = getter("Start", "minLength", INT_GETTER);
+    
+    static final MethodHandle DOLLAR_MULTILINE = getter("Dollar", "multiline", BOOLEAN_GETTER);
+    static final MethodHandle UNIX_DOLLAR_MULTILINE = getter("UnixDollar", "multiline", BOOLEAN_GETTER);
+    
+    static final MethodHandle SLICE_NODE_BUFFER = getter("SliceNode", "buffer", OBJECT_GETTER);
+    static final MethodHandle BNM_BUFFER = getter("BnM", "buffer", OBJECT_GETTER);
+    static final MethodHandle BNMS_LENGTH_IN_CHARS = getter("BnMS", "lengthInChars", INT_GETTER);
+    
+    static final MethodHandle BRANCH_ATOMS = getter("Branch", "atoms", OBJECT_GETTER);
+    static final MethodHandle BRANCH_SIZE = getter("Branch", "size", INT_GETTER);
+    static final MethodHandle BRANCH_CONN_OF = getter("Branch", "conn", OBJECT_GETTER);
+    
+    static final MethodHandle BACK_REF_GROUP_INDEX = getter("BackRef", "groupIndex", INT_GETTER);
+    
+    static final MethodHandle POS_COND = getter("Pos", "cond", OBJECT_GETTER);
+    static final MethodHandle NEG_COND = getter("Neg", "cond", OBJECT_GETTER);
+    static final MethodHandle BEHIND_COND = getter("Behind", "cond", OBJECT_GETTER);
+    static final MethodHandle BEHIND_RMIN = getter("Behind", "rmin", INT_GETTER);
+    static final MethodHandle BEHIND_RMAX = getter("Behind", "rmax", INT_GETTER);
+    static final MethodHandle NOT_BEHIND_COND = getter("NotBehind", "cond", OBJECT_GETTER);
+    
+    static final MethodHandle QUES_ATOM = getter("Ques", "atom", OBJECT_GETTER);
+    
+    static final MethodHandle CURLY_ATOM = getter("Curly", "atom", OBJECT_GETTER);
+    static final MethodHandle CURLY_TYPE = getter("Curly", "type", INT_GETTER);
+    static final MethodHandle CURLY_CMIN = getter("Curly", "cmin", INT_GETTER);
+    static final MethodHandle CURLY_CMAX = getter("Curly", "cmax", INT_GETTER);
+    
+    static final MethodHandle GROUP_CURLY_ATOM = getter("GroupCurly", "atom", OBJECT_GETTER);
+    static final MethodHandle GROUP_CURLY_TYPE = getter("GroupCurly", "type", INT_GETTER);
+    static final MethodHandle GROUP_CURLY_CMIN = getter("GroupCurly", "cmin", INT_GETTER);
+    static final MethodHandle GROUP_CURLY_CMAX = getter("GroupCurly", "cmax", INT_GETTER);
+    static final MethodHandle GROUP_CURLY_CAPTURE = getter("GroupCurly", "capture", BOOLEAN_GETTER);
+    static final MethodHandle GROUP_CURLY_LOCAL_INDEX = getter("GroupCurly", "localIndex", INT_GETTER);
+    static final MethodHandle GROUP_CURLY_GROUP_INDEX = getter("GroupCurly", "groupIndex", INT_GETTER);
+    
+    static final MethodHandle GROUP_HEAD_LOCAL_INDEX = getter("GroupHead", "localIndex", INT_GETTER);
+    static final MethodHandle GROUP_TAIL_LOCAL_INDEX = getter("GroupTail", "localIndex", INT_GETTER);
+    static final MethodHandle GROUP_TAIL_GROUP_INDEX = getter("GroupTail", "groupIndex", INT_GETTER);
+    
+    static final MethodHandle PROLOG_LOOP = getter("Prolog", "loop", OBJECT_GETTER);
+    
+    static final MethodHandle LOOP_BODY = getter("Loop", "body", OBJECT_GETTER);
+    static final MethodHandle LOOP_CMIN = getter("Loop", "cmin", INT_GETTER);
+    static final MethodHandle LOOP_CMAX = getter("Loop", "cmax", INT_GETTER);
+    
+    static final MethodHandle CTYPE_CTYPE = getter("Ctype", "ctype", INT_GETTER);
+    static final MethodHandle BIT_CLASS_BITS = getter("BitClass", "bits", OBJECT_GETTER);
+    static final MethodHandle SINGLE_C = getter("Single", "c", INT_GETTER);
+    static final MethodHandle SINGLE_S_C = getter("SingleS", "c", INT_GETTER);
+    static final MethodHandle SINGLE_U_LOWER = getter("SingleU", "lower", INT_GETTER);
+    
+    /**
+     * Pattern.accept, the shared node which ends every sub-expression (e.g. the atom of
+     * Curly, or an operand of a character class set operation).
+     */
+    static final Object ACCEPT;
+    
+    /**
+     * Pattern.lookbehindEnd, the shared node which ends the condition of every look-behind.
+     * Null if the running JCL does not have it.
+     */
+    static final Object LOOKBEHIND_END;
+    
+    static {
+        try {
+            ACCEPT = PatternDissector.getDeclaredField(Pattern.class, "accept").get(null);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        
+        Object lookbehindEnd;
+        try {
+            Field field = Pattern.class.getDeclaredField("lookbehindEnd");
+            field.setAccessible(true);
+            lookbehindEnd = field.get(null);
+        } catch (NoSuchFieldException|IllegalAccessException e) {
+            lookbehindEnd = null;
+        }
+        
+        LOOKBEHIND_END = lookbehindEnd;
+    }
+    
+    /**
+     * java.util.regex.ASCII.isType(int, int), which tells whether an ASCII character belongs
+     * to the type of a Ctype node.
+     */
+    private static final MethodHandle ASCII_IS_TYPE;
+    
+    static {
+        MethodHandle isType;
+        try {
+            Method method = Class.forName("java.util.regex.ASCII").getDeclaredMethod("isType", int.class, int.class);
+            method.setAccessible(true);
+            isType = LOOKUP.unreflect(method);
+        } catch (ClassNotFoundException|NoSuchMethodException|IllegalAccessException|RuntimeException e) {
+            isType = null;
+        }
+        
+        ASCII_IS_TYPE = isType;
+    }
+    
+    /**
+     * Membership of the ASCII characters in the type of a Ctype node.
+     *
+     * @return array of 128 elements, indexed by character
+     */
+    static boolean[] asciiType(int ctype) {
+        if (ASCII_IS_TYPE == null) {
+            throw new RuntimeException("Unexpected implementation of java.util.regex package. ASCII.isType method not found");
+        }
+        
+        boolean[] table = new boolean[128];
+        
+        for (int ch = 0; ch < table.length; ch++) {
+            try {
+                table[ch] = (boolean) ASCII_IS_TYPE.invokeExact(ch, ctype);
+            } catch (Throwable t) {
+                throw propagate(t);
+            }
+        }
+        
+        return table;
+    }
+    
+    /**
+     * CharProperty.isSatisfiedBy(int), the predicate of a character class node.
+     */
+    private static final MethodHandle CHAR_PROPERTY_IS_SATISFIED_BY;
+    
+    static {
+        MethodHandle isSatisfiedBy;
+        try {
+            Method method = CHAR_PROPERTY.getDeclaredMethod("isSatisfiedBy", int.class);
+            method.setAccessible(true);
+            isSatisfiedBy = LOOKUP.unreflect(method).asType(MethodType.methodType(boolean.class, Object.class, int.class));
+        } catch (NoSuchMethodException|IllegalAccessException|RuntimeException e) {
+            isSatisfiedBy = null;
+        }
+        
+        CHAR_PROPERTY_IS_SATISFIED_BY = isSatisfiedBy;
+    }
+    
+    /**
+     * Whether the character class node matches the code point.
+     */
+    static boolean isSatisfiedBy(Object charProperty, int ch) {
+        if (CHAR_PROPERTY_IS_SATISFIED_BY == null) {
+            throw new RuntimeException("Unexpected implementation of java.util.regex package. CharProperty.isSatisfiedBy method not found");
+        }
+        
+        try {
+            return (boolean) CHAR_PROPERTY_IS_SATISFIED_BY.invokeExact(charProperty, ch);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+    
+    /**
+     * Simple name of the node classes. Class.getSimpleName() is recomputed on every call,
+     * which is noticeable when it is done once per visited node.
+     */
+    private static final ClassValue<String> SIMPLE_NAMES = new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> clazz) {
+            return clazz.getSimpleName();
+        }
+    };
+    
+    static String simpleName(Class<?> clazz) {
+        return SIMPLE_NAMES.get(clazz);
+    }
+    
+    /**
+     * Accessors of an anonymous CharProperty class created in one of the character class
+     * set operations (CharProperty.complement, Pattern.union, ...) or in Pattern.rangeFor.
+     */
+    static final class CharPropertyLayout {
+        /** Name of the enclosing method, qualified with the simple name of the enclosing class */
+        final String methodName;
+        /** Getters of the fields holding CharProperty operands, in declaration order */
+        final List<MethodHandle> operands;
+        /** Names of the declared fields which do not hold a CharProperty */
+        final List<String> unknownFields;
+        
+        final MethodHandle lhs;
+        final MethodHandle rhs;
+        final MethodHandle lower;
+        final MethodHandle upper;
+        
+        private CharPropertyLayout(Class<?> clazz) {
+            this.methodName = RegexLayout.enclosingMethodName(clazz);
+            
+            List<MethodHandle> operandList = new ArrayList<MethodHandle>();
+            List<String> unknownList = new ArrayList<String>();
+            
+            for (Field f: clazz.getDeclaredFields()) {
+                if (CHAR_PROPERTY.isAssignableFrom(f.getType())) {
+                    operandList.add(unreflect(f, OBJECT_GETTER));
+                } else {
+                    unknownList.add(f.getName());
+                }
+            }
+            
+            this.operands = Collections.unmodifiableList(operandList);
+            this.unknownFields = Collections.unmodifiableList(unknownList);
+            
+            this.lhs = getter(clazz, "val$lhs", OBJECT_GETTER);
+            this.rhs = getter(clazz, "val$rhs", OBJECT_GETTER);
+            this.lower = getter(clazz, "val$lower", INT_GETTER);
+            this.upper = getter(clazz, "val$upper", INT_GETTER);
+        }
+    }
+    
+    private static final ClassValue<CharPropertyLayout> CHAR_PROPERTY_LAYOUTS = new ClassValue<CharPropertyLayout>() {
+        @Override
+        protected CharPropertyLayout computeValue(Class<?> clazz) {
+            return new CharPropertyLayout(clazz);
+        }
+    };
+    
+    static CharPropertyLayout charPropertyLayout(Class<?> clazz) {
+        return CHAR_PROPERTY_LAYOUTS.get(clazz);
+    }
+    
+    static Object get(MethodHandle getter, Object target) {
+        try {
+            return (Object) getter.invokeExact(target);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+    
+    static int getInt(MethodHandle getter, Object target) {
+        try {
+            return (int) getter.invokeExact(target);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+    
+    static boolean getBoolean(MethodHandle getter, Object target) {
+        try {
+            return (boolean) getter.invokeExact(target);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+    
+    private static RuntimeException propagate(Throwable t) {
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        
+        return new RuntimeException(t);
+    }
+    
+    private static MethodHandle getter(String className, String name, MethodType type) {
+        Class<?> clazz = PatternDissector.patternClass(className);
+        
+        if (clazz == null) {
+            return missing("Unexpected implementation of java.util.regex package. Pattern$" + className + " class not found", type);
+        }
+        
+        return getter(clazz, name, type);
+    }
+    
+    private static MethodHandle getter(Class<?> clazz, String name, MethodType type) {
+        Field field;
+        try {
+            field = clazz.getDeclaredField(name);
+        } catch (NoSuchFieldException e) {
+            return missing("Unexpected inner structure of " + clazz.getName() + ". " + name + " field not found", type);
+        }
+        
+        return unreflect(field, type);
+    }
+    
+    private static MethodHandle unreflect(Field field, MethodType type) {
+        try {
+            field.setAccessible(true);
+            return LOOKUP.unreflectGetter(field).asType(type);
+        } catch (IllegalAccessException|RuntimeException e) {
+            // e.g. WrongMethodTypeException for a field of another type, or the
+            // InaccessibleObjectException of setAccessible() on a later JDK
+            return missing("Unexpected inner structure of " + field.getDeclaringClass().getName() + ". " + field.getName() + " field cannot be read: " + e, type);
+        }
+    }
+    
+    /**
+     * Create a getter which fails with the given message, for a field that cannot be resolved.
+     */
+    private static MethodHandle missing(String message, MethodType type) {
+        MethodHandle fail;
+        try {
+            fail = LOOKUP.findStatic(NodeAccessors.class, "fail", MethodType.methodType(Object.class, String.class, Object.class));
+        } catch (NoSuchMethodException|IllegalAccessException e) {
+            throw new InternalError(e.toString());
+        }
+        
+        return MethodHandles.insertArguments(fail, 0, message).asType(type);
+    }
+    
+    @SuppressWarnings("unused")
+    private static Object fail(String message, Object target) {
+        throw new RuntimeException(message);
+    }
+}
@@ -0,0 +1,357 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Per-node invocation and failure counts of the match() methods of Pattern's inner classes.
+ *
+ * The counts are only collected when DissectorAgent is installed, which inserts a call to
+ * enter() at the entry of every match() method, and a call to exit() before each of its
+ * returns. A match() which returns false is a failure of the node: the caller backtracks, or
+ * gives up. Since the instrumented classes are loaded by
+ * the bootstrap class loader, this class must be on the boot class path (see the
+ * Boot-Class-Path attribute of the agent manifest), and public.
+ *
+ * Each thread counts in its own map, so the instrumented code does not contend on a shared
+ * structure. The nodes are weakly referenced, so the counts of the patterns which are no longer
+ * used are dropped with them.
+ */
+public final class NodeProfiler {
+    
+    private NodeProfiler() {
+    }
+    
+    private static volatile boolean installed;
+    private static volatile boolean enabled;
+    
+    /** Index of the invocation counts */
+    static final int CALLS = 0;
+    /** Index of the counts of match() returning false */
+    static final int FAILURES = 1;
+    
+    /**
+     * Invocation and failure counts of one thread.
+     */
+    private static final class Counter {
+        /** Pattern's nodes do not override equals() and hashCode(), so this is an identity map */
+        private final Map<Object, long[]> counts = new WeakHashMap<Object, long[]>();
+        
+        synchronized void increment(Object node, int index) {
+            long[] count = counts.get(node);
+            
+            if (count == null) {
+                count = new long[2];
+                counts.put(node, count);
+            }
+            count[index]++;
+        }
+        
+        synchronized void addTo(Map<Object, Long> total, int index) {
+            for (Map.Entry<Object, long[]> e: counts.entrySet()) {
+                Object node = e.getKey();
+                
+                if (node != null) {
+                    Long count = total.get(node);
+                    total.put(node, (count == null ? 0 : count) + e.getValue()[index]);
+                }
+            }
+        }
+        
+        synchronized void clear() {
+            counts.clear();
+        }
+    }
+    
+    private static final List<Counter> COUNTERS = new ArrayList<Counter>();
+    
+    private static final ThreadLocal<Counter> COUNTER = new ThreadLocal<Counter>() {
+        @Override
+        protected Counter initialValue() {
+            Counter counter = new Counter();
+            
+            synchronized (COUNTERS) {
+                COUNTERS.add(counter);
+            }
+            
+            return counter;
+        }
+    };
+    
+    /**
+     * Called at the entry of the instrumented match() methods.
+     */
+    public static void enter(Object node) {
+        if (enabled) {
+            COUNTER.get().increment(node, CALLS);
+        }
+    }
+    
+    /**
+     * Called before each return of the instrumented match() methods.
+     *
+     * @return matched, which the instrumented method returns
+     */
+    public static boolean exit(boolean matched, Object node) {
+        if (!matched && enabled) {
+            COUNTER.get().increment(node, FAILURES);
+        }
+        
+        return matched;
+    }
+    
+    static void setInstalled() {
+        installed = true;
+    }
+    
+    /**
+     * Whether the match() methods are instrumented.
+     */
+    static boolean isInstalled() {
+        return installed;
+    }
+    
+    static void enable() {
+        enabled = true;
+    }
+    
+    static void disable() {
+        enabled = false;
+    }
+    
+    static void reset() {
+        synchronized (COUNTERS) {
+            for (Counter counter: COUNTERS) {
+                counter.clear();
+            }
+        }
+    }
+    
+    /**
+     * Counts of all threads, by node.
+     *
+     * @param index CALLS or FAILURES
+     */
+    static Map<Object, Long> snapshot(int index) {
+        Map<Object, Long> total = new IdentityHashMap<Object, Long>();
+        
+        synchronized (COUNTERS) {
+            for (Counter counter: COUNTERS) {
+                counter.addTo(total, index);
+            }
+        }
+        
+        return total;
+    }
+    
+    /**
+     * Invocation counts by node identity hash code, i.e. by DissectedNode.id().
+     */
+    static Map<Integer, Long> countsById(Map<Object, Long> snapshot) {
+        Map<Integer, Long> counts = new HashMap<Integer, Long>();
+        
+        for (Map.Entry<Object, Long> e: snapshot.entrySet()) {
+            int id = System.identityHashCode(e.getKey());
+            Long count = counts.get(id);
+            counts.put(id, (count == null ? 0 : count) + e.getValue());
+        }
+        
+        return counts;
+    }
+    
+    /**
+     * Write the decoded tree of the pattern, with the invocation and failure counts of every
+     * node.
+     */
+    static void report(Pattern pattern, Appendable out) throws IOException, IllegalAccessException {
+        Map<Integer, Long> counts = countsById(snapshot(CALLS));
+        Map<Integer, Long> failures = countsById(snapshot(FAILURES));
+        DissectedPattern result = PatternDissector.decode(pattern);
+        
+        out.append(pattern.pattern()).append('\n');
+        report(result.nodes(), counts, failures, "calls", 0, out);
+    }
+    
+    /**
+     * Write the decoded tree, with a count for every node.
+     *
+     * @param counts counts by DissectedNode.id()
+     * @param unit what is counted, e.g. "calls"
+     */
+    static void report(List<DissectedNode> sequence, Map<Integer, Long> counts, String unit, int depth, Appendable out) throws IOException {
+        report(sequence, counts, null, unit, depth, out);
+    }
+    
+    /**
+     * Write the decoded tree, with a count, and the number of failures if any, for every node.
+     *
+     * @param failures failure counts by DissectedNode.id(), or null
+     */
+    static void report(List<DissectedNode> sequence, Map<Integer, Long> counts, Map<Integer, Long> failures, String unit, int depth, Appendable out) throws IOException {
+        for (DissectedNode node: sequence) {
+            for (int i = 0; i < depth; i++) {
+                out.append("  ");
+            }
+            
+            out.append(node.toString());
+            
+            Long count = counts.get(node.id());
+            if (count != null) {
+                out.append(": ").append(formatCount(count)).append(' ').append(unit);
+                
+                Long failed = failures != null ? failures.get(node.id()) : null;
+                if (failed != null) {
+                    out.append(", ").append(formatCount(failed)).append(" failed");
+                }
+            }
+            out.append('\n');
+            
+            for (List<DissectedNode> child: node.children()) {
+                report(child, counts, failures, unit, depth + 1, out);
+            }
+        }
+    }
+    
+    /**
+     * Write the most invoked nodes of all patterns, with their failure counts.
+     */
+    static void reportTop(int limit, Appendable out) throws IOException {
+        List<Map.Entry<Object, Long>> entries = new ArrayList<Map.Entry<Object, Long>>(snapshot(CALLS).entrySet());
+        Map<Object, Long> failures = snapshot(FAILURES);
+        
+        Collections.sort(entries, new Comparator<Map.Entry<Object, Long>>() {
+            @Override
+            public int compare(Map.Entry<Object, Long> a, Map.Entry<Object, Long> b) {
+                return Long.compare(b.getValue(), a.getValue());
+            }
+        });
+        
+        for (Map.Entry<Object, Long> e: entries.subList(0, Math.min(limit, entries.size()))) {
+            Object node = e.getKey();
+            
+            out.append(node.getClass().getName()).append(" [").append(Integer.toHexString(System.identityHashCode(node))).append("]: ")
+               .append(formatCount(e.getValue())).append(" calls, ").append(formatCount(failures.containsKey(node) ? failures.get(node) : 0)).append(" failed\n");
+        }
+    }
+    
+    static String formatCount(long count) {
+        if (count < 1000) {
+            return String.valueOf(count);
+        }
+        
+        String[] units = {"K", "M", "G", "T"};
+        double value = count;
+        int unit = -1;
+        
+        while (value >= 1000 && unit < units.length - 1) {
+            value /= 1000;
+            unit++;
+        }
+        
+        return String.format("%.1f%s", value, units[unit]);
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: java -javaagent:pattern-dissector.jar PatternDissector --profile [--flags N] PATTERN [FILE|-]");
+        System.err.println();
+        System.err.println("Run Matcher.find() with PATTERN over every line of FILE, or standard input if FILE is - or absent,");
+        System.err.println("then print the dissected pattern with the number of match() calls of every node,");
+        System.err.println("and the number of them which returned false.");
+    }
+    
+    /**
+     * Command line entry of the profiling mode.
+     *
+     * @return exit status
+     */
+    static int run(String[] args) {
+        int flags = 0;
+        String regex = null;
+        String file = "-";
+        
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--flags") && i + 1 < args.length) {
+                try {
+                    flags = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                    return 2;
+                }
+            } else if (regex == null) {
+                regex = args[i];
+            } else {
+                file = args[i];
+            }
+        }
+        
+        if (regex == null) {
+            usage();
+            return 2;
+        }
+        
+        if (!isInstalled()) {
+            System.err.println("The match() methods are not instrumented. Run with -javaagent:pattern-dissector.jar");
+            return 2;
+        }
+        
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(regex, flags);
+        } catch (PatternSyntaxException e) {
+            System.err.println(e.getMessage());
+            return 2;
+        }
+        
+        long lines = 0;
+        long matches = 0;
+        
+        try (InputStream input = file.equals("-") ? System.in : new FileInputStream(file)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+            Matcher matcher = pattern.matcher("");
+            String line;
+            
+            reset();
+            enable();
+            try {
+                while ((line = in.readLine()) != null) {
+                    lines++;
+                    matcher.reset(line);
+                    
+                    while (matcher.find()) {
+                        matches++;
+                    }
+                }
+            } finally {
+                disable();
+            }
+            
+            StringBuilder sb = new StringBuilder();
+            sb.append("Lines: ").append(lines).append(", matches: ").append(matches).append('\n');
+            report(pattern, sb);
+            System.out.print(sb);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        
+        return 0;
+    }
+}
@@ -0,0 +1,350 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+import java.util.regex.Pattern;
+
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazy stream of the nodes of the graph of a compiled Pattern, in the order of the dissector
+ * output.
+ *
+ * The graph is walked by NodeTraversal one step at a time, as the elements are pulled, so a
+ * search for one property, e.g. whether the pattern has a BackRef, stops at the first match
+ * instead of decoding a pattern of thousands of nodes. Unlike PatternDissector.decode(), which
+ * builds the nested DissectedNodes, an Entry only has the node with the fields the search is
+ * most likely to need, its depth and the Entry of the node which owns its sequence.
+ *
+ * A stream holds the state of its walk, so it is used by one thread, and is not split.
+ */
+final class NodeStream {
+    
+    private NodeStream() {
+    }
+    
+    /**
+     * A node of the walk.
+     */
+    static final class Entry {
+        private final DissectedNode.Kind kind;
+        private final Object node;
+        private final Entry parent;
+        private final int alternative;
+        private final int depth;
+        private final int min;
+        private final int max;
+        private final int groupIndex;
+        
+        Entry(DissectedNode.Kind kind, Object node, Entry parent, int alternative, int min, int max, int groupIndex) {
+            this.kind = kind;
+            this.node = node;
+            this.parent = parent;
+            this.alternative = alternative;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+            this.min = min;
+            this.max = max;
+            this.groupIndex = groupIndex;
+        }
+        
+        DissectedNode.Kind kind() {
+            return kind;
+        }
+        
+        /**
+         * The node in the Pattern graph. Null for a DEBUG entry where a nested sequence is
+         * missing.
+         */
+        Object node() {
+            return node;
+        }
+        
+        /**
+         * The Branch, quantifier, Loop or look-around which owns the sequence of the node, null
+         * in the top level sequence.
+         */
+        Entry parent() {
+            return parent;
+        }
+        
+        /**
+         * Number of nested sequences the node is in, 0 in the top level sequence.
+         */
+        int depth() {
+            return depth;
+        }
+        
+        /**
+         * Index of the alternative of the parent Branch the node is in, -1 if the parent is not
+         * a Branch.
+         */
+        int alternative() {
+            return alternative;
+        }
+        
+        /**
+         * Minimum of Curly, GroupCurly, Loop, LazyLoop and Behind, -1 for the other kinds.
+         */
+        int min() {
+            return min;
+        }
+        
+        /**
+         * Maximum of Curly, GroupCurly, Loop, LazyLoop and Behind, -1 for the other kinds.
+         */
+        int max() {
+            return max;
+        }
+        
+        /**
+         * Whether the node is a quantifier or Loop without upper bound, e.g. * or {2,}.
+         */
+        boolean isUnbounded() {
+            return max == Integer.MAX_VALUE && kind != DissectedNode.Kind.BEHIND;
+        }
+        
+        /**
+         * Group index of BackRef, GroupTail and GroupCurly, -1 for the other kinds.
+         */
+        int groupIndex() {
+            return groupIndex;
+        }
+        
+        @Override
+        public String toString() {
+            return kind.name + (min >= 0 ? "{" + min + "," + (max == Integer.MAX_VALUE ? "" : String.valueOf(max)) + "}" : "")
+                    + (groupIndex >= 0 ? " group " + groupIndex : "") + " at depth " + depth;
+        }
+    }
+    
+    /**
+     * The walk, which turns the visits of NodeTraversal into entries. Each step of the traversal
+     * makes at most one visit, so there is at most one pending entry.
+     */
+    private static final class Walk implements Spliterator<Entry>, NodeVisitor {
+        private final NodeTraversal traversal = new NodeTraversal();
+        private boolean running = true;
+        private Entry pending;
+        
+        /** Entries of the owners of the sequences which are walked, innermost first */
+        private final Deque<Entry> owners = new ArrayDeque<Entry>();
+        /** Alternative index of each sequence in owners, -1 for the other owners */
+        private final Deque<Integer> alternatives = new ArrayDeque<Integer>();
+        /** Branches whose last alternative has not been started, with their sizes */
+        private final Deque<Entry> branches = new ArrayDeque<Entry>();
+        private final Deque<Integer> branchSizes = new ArrayDeque<Integer>();
+        
+        Walk(Object root) {
+            traversal.start(root);
+        }
+        
+        @Override
+        public boolean tryAdvance(Consumer<? super Entry> action) {
+            while (pending == null) {
+                if (!running) {
+                    return false;
+                }
+                
+                running = traversal.advance(this);
+            }
+            
+            Entry entry = pending;
+            pending = null;
+            action.accept(entry);
+            return true;
+        }
+        
+        @Override
+        public Spliterator<Entry> trySplit() {
+            return null;
+        }
+        
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+        
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+        
+        private Entry add(DissectedNode.Kind kind, Object node, int min, int max, int groupIndex) {
+            Entry parent = owners.peek();
+            
+            pending = new Entry(kind, node, parent, parent == null ? -1 : alternatives.peek(), min, max, groupIndex);
+            return pending;
+        }
+        
+        private Entry add(DissectedNode.Kind kind, Object node) {
+            return add(kind, node, -1, -1, -1);
+        }
+        
+        /**
+         * Add a node which owns a nested sequence, which is walked next.
+         */
+        private boolean enter(Entry entry) {
+            owners.push(entry);
+            alternatives.push(-1);
+            return true;
+        }
+        
+        @Override
+        public void visitStart(Object node, DissectedNode.Kind kind, int minLength) {
+            add(kind, node);
+        }
+        
+        @Override
+        public void visitSimple(Object node, DissectedNode.Kind kind) {
+            add(kind, node);
+        }
+        
+        @Override
+        public void visitDollar(Object node, DissectedNode.Kind kind, boolean multiline) {
+            add(kind, node);
+        }
+        
+        @Override
+        public void visitSlice(Object node, DissectedNode.Kind kind, int[] buffer, int lengthInChars) {
+            add(kind, node);
+        }
+        
+        @Override
+        public boolean visitBranch(Object node, int size) {
+            Entry entry = add(DissectedNode.Kind.BRANCH, node);
+            
+            if (size > 0) {
+                branches.push(entry);
+                branchSizes.push(size);
+            }
+            return true;
+        }
+        
+        @Override
+        public void visitAlternative(Object branch, int index) {
+            Entry entry = branches.peek();
+            
+            // The Branches nested in the last alternative are then on top
+            if (index == branchSizes.peek() - 1) {
+                branches.pop();
+                branchSizes.pop();
+            }
+            
+            owners.push(entry);
+            alternatives.push(index);
+        }
+        
+        @Override
+        public void visitBranchConn(Object node, boolean endOfAlternative) {
+            add(DissectedNode.Kind.BRANCH_CONN, node);
+        }
+        
+        @Override
+        public void visitBackRef(Object node, int groupIndex) {
+            add(DissectedNode.Kind.BACK_REF, node, -1, -1, groupIndex);
+        }
+        
+        @Override
+        public boolean visitLookaround(Object node, DissectedNode.Kind kind, int rmin, int rmax) {
+            return kind == DissectedNode.Kind.BEHIND ? enter(add(kind, node, rmin, rmax, -1)) : enter(add(kind, node));
+        }
+        
+        @Override
+        public boolean visitCurly(Object node, int type, int cmin, int cmax) {
+            return enter(add(DissectedNode.Kind.CURLY, node, cmin, cmax, -1));
+        }
+        
+        @Override
+        public boolean visitGroupCurly(Object node, int type, int cmin, int cmax, boolean capture, int localIndex, int groupIndex) {
+            return enter(add(DissectedNode.Kind.GROUP_CURLY, node, cmin, cmax, groupIndex));
+        }
+        
+        @Override
+        public void visitGroupHead(Object node, int localIndex) {
+            add(DissectedNode.Kind.GROUP_HEAD, node);
+        }
+        
+        @Override
+        public void visitGroupTail(Object node, int localIndex, int groupIndex) {
+            add(DissectedNode.Kind.GROUP_TAIL, node, -1, -1, groupIndex);
+        }
+        
+        @Override
+        public void visitProlog(Object node) {
+            add(DissectedNode.Kind.PROLOG, node);
+        }
+        
+        @Override
+        public boolean visitLoop(Object node, DissectedNode.Kind kind, int cmin, int cmax) {
+            return enter(add(kind, node, cmin, cmax, -1));
+        }
+        
+        @Override
+        public void visitCharClass(Object node) {
+            add(charClassKind(node), node);
+        }
+        
+        @Override
+        public void visitReference(Object node) {
+            add(DissectedNode.Kind.REFERENCE, node);
+        }
+        
+        @Override
+        public void visitUnknown(Object node) {
+            add(node == null ? DissectedNode.Kind.DEBUG : DissectedNode.Kind.UNKNOWN, node);
+        }
+        
+        @Override
+        public void leave(Object node) {
+            owners.pop();
+            alternatives.pop();
+        }
+    }
+    
+    /**
+     * Kind of the character class node, as PatternDissector.decodeCharProp() decodes it. DEBUG
+     * for the classes it does not decode.
+     */
+    private static DissectedNode.Kind charClassKind(Object node) {
+        Class<?> clazz = node.getClass();
+        String name = clazz.isAnonymousClass() ? NodeAccessors.charPropertyLayout(clazz).methodName : NodeAccessors.simpleName(clazz);
+        DissectedNode.Kind kind = name != null ? DissectedNode.Kind.of(name) : null;
+        
+        return kind != null ? kind : DissectedNode.Kind.DEBUG;
+    }
+    
+    /**
+     * The nodes of the pattern, walked as the stream is consumed.
+     */
+    static Stream<Entry> stream(Pattern pattern) {
+        return StreamSupport.stream(new Walk(NodeAccessors.get(NodeAccessors.PATTERN_ROOT, pattern)), false);
+    }
+    
+    /**
+     * The nodes of the pattern, walked as the iterator is advanced.
+     */
+    static Iterator<Entry> iterator(Pattern pattern) {
+        return Spliterators.iterator(new Walk(NodeAccessors.get(NodeAccessors.PATTERN_ROOT, pattern)));
+    }
+    
+    /**
+     * The first node of the kind, walking the graph no further than needed.
+     *
+     * @return null if the pattern has no such node
+     */
+    static Entry first(Pattern pattern, DissectedNode.Kind kind) {
+        for (Iterator<Entry> it = iterator(pattern); it.hasNext(); ) {
+            Entry entry = it.next();
+            
+            if (entry.kind() == kind) {
+                return entry;
+            }
+        }
+        
+        return null;
+    }
+}
@@ -0,0 +1,383 @@
+import java.util.Arrays;
+
+import java.util.regex.Pattern;
+
+/**
+ * Walk of the node graph of a compiled Pattern, which calls a NodeVisitor for every node.
+ *
+ * Every node is visited once, in the same way as PatternDissector.decode() decodes it: a node
+ * reached again (e.g. the Loop at the end of its body, or a suffix shared by several
+ * alternatives) is visited as a reference, except Pattern.accept and Pattern.lookbehindEnd,
+ * which end every sub-expression and look-behind, and the BranchConn at the end of each
+ * alternative of its Branch.
+ *
+ * The state of the walk is kept in arrays: a stack of frames, one per nested sequence which is
+ * walked, and an open addressing table of the visited nodes by identity. They are allocated
+ * with the instance and grown as needed, so that once they fit the largest pattern walked, a
+ * traversal does not allocate anything. An instance can walk any number of patterns, one at a
+ * time.
+ *
+ * The walk can also be run one step at a time with start() and advance(), so that a caller
+ * such as NodeStream can stop it at any node.
+ */
+final class NodeTraversal {
+    
+    /** Next node of a chain frame which has reached its end */
+    private static final Object END = new Object();
+    
+    /*
+     * Frames. A chain frame walks the nodes linked by next, starting from a node owned by
+     * owners[i], and has indexes[i] = -1. A Branch frame walks the alternatives of the Branch
+     * owners[i], and has the index of the next alternative in indexes[i].
+     */
+    private Object[] nodes = new Object[16];
+    /** The Loop whose body is walked, where the chain goes back to */
+    private Object[] inloops = new Object[16];
+    /** The BranchConn of the alternative which is walked, where the chain joins */
+    private Object[] branchConns = new Object[16];
+    private Object[] owners = new Object[16];
+    private int[] indexes = new int[16];
+    private int depth;
+    
+    /** Visited nodes, with linear probing. At most half full */
+    private Object[] visited = new Object[64];
+    /** Slots of visited which are used, to clear them after the traversal */
+    private int[] used = new int[32];
+    private int visitedCount;
+    
+    /**
+     * Walk the node graph of the pattern.
+     */
+    void traverse(Pattern pattern, NodeVisitor visitor) {
+        traverse(NodeAccessors.get(NodeAccessors.PATTERN_ROOT, pattern), visitor);
+    }
+    
+    /**
+     * Walk the node graph from the root node.
+     */
+    void traverse(Object root, NodeVisitor visitor) {
+        try {
+            push(root, null, null, null, -1);
+            
+            while (depth > 0) {
+                step(visitor);
+            }
+        } finally {
+            clear();
+        }
+    }
+    
+    /**
+     * Start a walk from the root node, which is then run by advance(). The walk in progress, if
+     * any, is dropped.
+     */
+    void start(Object root) {
+        clear();
+        push(root, null, null, null, -1);
+    }
+    
+    /**
+     * Run one step of the walk, which makes at most one call to the visitor: the visit of a
+     * node, visitAlternative() or leave().
+     *
+     * @return false when the walk is complete, after which the references to the nodes are
+     *         dropped
+     */
+    boolean advance(NodeVisitor visitor) {
+        if (depth > 0) {
+            step(visitor);
+        }
+        
+        if (depth == 0) {
+            clear();
+            return false;
+        }
+        
+        return true;
+    }
+    
+    private void step(NodeVisitor visitor) {
+        int top = depth - 1;
+        
+        if (indexes[top] >= 0) {
+            Object branch = owners[top];
+            int index = indexes[top];
+            
+            if (index < NodeAccessors.getInt(NodeAccessors.BRANCH_SIZE, branch)) {
+                Object[] atoms = (Object[]) NodeAccessors.get(NodeAccessors.BRANCH_ATOMS, branch);
+                Object conn = NodeAccessors.get(NodeAccessors.BRANCH_CONN_OF, branch);
+                
+                indexes[top] = index + 1;
+                visitor.visitAlternative(branch, index);
+                
+                // A null atom is an empty alternative, e.g. in (a|) and (a)?
+                push(atoms[index] != null ? atoms[index] : conn, inloops[top], conn, branch, -1);
+            } else {
+                pop();
+            }
+            return;
+        }
+        
+        Object node = nodes[top];
+        
+        if (node == END) {
+            Object owner = owners[top];
+            
+            pop();
+            if (owner != null) {
+                visitor.leave(owner);
+            }
+            return;
+        }
+        
+        if (node == null) {
+            // The owner has no nested sequence where one is expected
+            nodes[top] = END;
+            visitor.visitUnknown(null);
+            return;
+        }
+        
+        if (node == branchConns[top]) {
+            // End of an alternative. The Branch continues with the BranchConn once, after all alternatives
+            nodes[top] = END;
+            visitor.visitBranchConn(node, true);
+            return;
+        }
+        
+        if (node != NodeAccessors.ACCEPT && node != NodeAccessors.LOOKBEHIND_END && !markVisited(node)) {
+            nodes[top] = END;
+            visitor.visitReference(node);
+            return;
+        }
+        
+        String nodeName = NodeAccessors.simpleName(node.getClass());
+        Object next = NodeAccessors.get(NodeAccessors.NODE_NEXT, node);
+        
+        nodes[top] = next != null ? next : END;
+        
+        switch (nodeName) {
+            case "Start":
+            case "StartS":
+                visitor.visitStart(node, DissectedNode.Kind.of(nodeName), NodeAccessors.getInt(NodeAccessors.START_MIN_LENGTH, node));
+                break;
+            case "Caret":
+            case "UnixCaret":
+            case "Begin":
+            case "End":
+            case "LastMatch":
+                visitor.visitSimple(node, DissectedNode.Kind.of(nodeName));
+                break;
+            case "Dollar":
+                visitor.visitDollar(node, DissectedNode.Kind.DOLLAR, NodeAccessors.getBoolean(NodeAccessors.DOLLAR_MULTILINE, node));
+                break;
+            case "UnixDollar":
+                visitor.visitDollar(node, DissectedNode.Kind.UNIX_DOLLAR, NodeAccessors.getBoolean(NodeAccessors.UNIX_DOLLAR_MULTILINE, node));
+                break;
+            case "Node":
+                // getSimpleName returns empty string for anonymous class, so this is Pattern.accept
+                if (next != null) {
+                    throw new AssertionError("Pure Pattern.Node object doesn't use next node");
+                }
+                
+                visitor.visitSimple(node, DissectedNode.Kind.ACCEPT);
+                break;
+            case "Slice":
+            case "SliceS":
+                visitor.visitSlice(node, DissectedNode.Kind.of(nodeName), (int[]) NodeAccessors.get(NodeAccessors.SLICE_NODE_BUFFER, node), -1);
+                break;
+            case "BnM":
+                visitor.visitSlice(node, DissectedNode.Kind.BNM, (int[]) NodeAccessors.get(NodeAccessors.BNM_BUFFER, node), -1);
+                break;
+            case "BnMS":
+                visitor.visitSlice(node, DissectedNode.Kind.BNM_S, (int[]) NodeAccessors.get(NodeAccessors.BNM_BUFFER, node),
+                        NodeAccessors.getInt(NodeAccessors.BNMS_LENGTH_IN_CHARS, node));
+                break;
+            case "Branch":
+                // Branch class never uses next node for matching, the chain goes on with conn after the alternatives
+                nodes[top] = NodeAccessors.get(NodeAccessors.BRANCH_CONN_OF, node);
+                
+                if (visitor.visitBranch(node, NodeAccessors.getInt(NodeAccessors.BRANCH_SIZE, node))) {
+                    push(null, inloops[top], branchConns[top], node, 0);
+                }
+                break;
+            case "BranchConn":
+                // The end of the alternatives (node == branchConn) is handled above
+                visitor.visitBranchConn(node, false);
+                break;
+            case "BackRef":
+                visitor.visitBackRef(node, NodeAccessors.getInt(NodeAccessors.BACK_REF_GROUP_INDEX, node));
+                break;
+            case "Pos":
+                if (visitor.visitLookaround(node, DissectedNode.Kind.POS, 0, 0)) {
+                    push(NodeAccessors.get(NodeAccessors.POS_COND, node), null, branchConns[top], node, -1);
+                }
+                break;
+            case "Neg":
+                if (visitor.visitLookaround(node, DissectedNode.Kind.NEG, 0, 0)) {
+                    push(NodeAccessors.get(NodeAccessors.NEG_COND, node), null, branchConns[top], node, -1);
+                }
+                break;
+            case "Behind":
+                {
+                    int rmin = NodeAccessors.getInt(NodeAccessors.BEHIND_RMIN, node);
+                    int rmax = NodeAccessors.getInt(NodeAccessors.BEHIND_RMAX, node);
+                    
+                    if (visitor.visitLookaround(node, DissectedNode.Kind.BEHIND, rmin, rmax)) {
+                        push(NodeAccessors.get(NodeAccessors.BEHIND_COND, node), null, branchConns[top], node, -1);
+                    }
+                }
+                break;
+            case "Curly":
+                {
+                    int type = NodeAccessors.getInt(NodeAccessors.CURLY_TYPE, node);
+                    int cmin = NodeAccessors.getInt(NodeAccessors.CURLY_CMIN, node);
+                    int cmax = NodeAccessors.getInt(NodeAccessors.CURLY_CMAX, node);
+                    
+                    if (visitor.visitCurly(node, type, cmin, cmax)) {
+                        push(NodeAccessors.get(NodeAccessors.CURLY_ATOM, node), inloops[top], branchConns[top], node, -1);
+                    }
+                }
+                break;
+            case "GroupCurly":
+                {
+                    int type = NodeAccessors.getInt(NodeAccessors.GROUP_CURLY_TYPE, node);
+                    int cmin = NodeAccessors.getInt(NodeAccessors.GROUP_CURLY_CMIN, node);
+                    int cmax = NodeAccessors.getInt(NodeAccessors.GROUP_CURLY_CMAX, node);
+                    boolean capture = NodeAccessors.getBoolean(NodeAccessors.GROUP_CURLY_CAPTURE, node);
+                    int localIndex = NodeAccessors.getInt(NodeAccessors.GROUP_CURLY_LOCAL_INDEX, node);
+                    int groupIndex = NodeAccessors.getInt(NodeAccessors.GROUP_CURLY_GROUP_INDEX, node);
+                    
+                    if (visitor.visitGroupCurly(node, type, cmin, cmax, capture, localIndex, groupIndex)) {
+                        push(NodeAccessors.get(NodeAccessors.GROUP_CURLY_ATOM, node), inloops[top], branchConns[top], node, -1);
+                    }
+                }
+                break;
+            case "GroupHead":
+                visitor.visitGroupHead(node, NodeAccessors.getInt(NodeAccessors.GROUP_HEAD_LOCAL_INDEX, node));
+                break;
+            case "GroupTail":
+                // The GroupTail at the end of the body of a Loop goes back to it
+                if (next == inloops[top]) {
+                    nodes[top] = END;
+                }
+                
+                visitor.visitGroupTail(node, NodeAccessors.getInt(NodeAccessors.GROUP_TAIL_LOCAL_INDEX, node),
+                        NodeAccessors.getInt(NodeAccessors.GROUP_TAIL_GROUP_INDEX, node));
+                break;
+            case "Prolog":
+                // Prolog never uses next node for matching, the chain goes on with its Loop
+                nodes[top] = NodeAccessors.get(NodeAccessors.PROLOG_LOOP, node);
+                
+                visitor.visitProlog(node);
+                break;
+            case "Loop":
+            case "LazyLoop":
+                {
+                    int cmin = NodeAccessors.getInt(NodeAccessors.LOOP_CMIN, node);
+                    int cmax = NodeAccessors.getInt(NodeAccessors.LOOP_CMAX, node);
+                    
+                    if (visitor.visitLoop(node, DissectedNode.Kind.of(nodeName), cmin, cmax)) {
+                        push(NodeAccessors.get(NodeAccessors.LOOP_BODY, node), node, branchConns[top], node, -1);
+                    }
+                }
+                break;
+            default:
+                if (NodeAccessors.CHAR_PROPERTY.isInstance(node)) {
+                    visitor.visitCharClass(node);
+                } else {
+                    visitor.visitUnknown(node);
+                }
+        }
+    }
+    
+    private void push(Object node, Object inloop, Object branchConn, Object owner, int index) {
+        if (depth == nodes.length) {
+            int length = depth * 2;
+            
+            nodes = Arrays.copyOf(nodes, length);
+            inloops = Arrays.copyOf(inloops, length);
+            branchConns = Arrays.copyOf(branchConns, length);
+            owners = Arrays.copyOf(owners, length);
+            indexes = Arrays.copyOf(indexes, length);
+        }
+        
+        nodes[depth] = node;
+        inloops[depth] = inloop;
+        branchConns[depth] = branchConn;
+        owners[depth] = owner;
+        indexes[depth] = index;
+        depth++;
+    }
+    
+    private void pop() {
+        depth--;
+        nodes[depth] = null;
+        inloops[depth] = null;
+        branchConns[depth] = null;
+        owners[depth] = null;
+    }
+    
+    /**
+     * Add the node to the visited nodes.
+     *
+     * @return false if it was already visited
+     */
+    private boolean markVisited(Object node) {
+        if (visitedCount * 2 >= visited.length) {
+            rehash(visited.length * 2);
+        }
+        
+        int mask = visited.length - 1;
+        int slot = hash(node) & mask;
+        
+        while (visited[slot] != null) {
+            if (visited[slot] == node) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        
+        visited[slot] = node;
+        used[visitedCount++] = slot;
+        return true;
+    }
+    
+    private void rehash(int capacity) {
+        Object[] table = new Object[capacity];
+        int mask = capacity - 1;
+        
+        for (int i = 0; i < visitedCount; i++) {
+            Object node = visited[used[i]];
+            int slot = hash(node) & mask;
+            
+            while (table[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            
+            table[slot] = node;
+            used[i] = slot;
+        }
+        
+        visited = table;
+        used = Arrays.copyOf(used, capacity / 2);
+    }
+    
+    private static int hash(Object node) {
+        int h = System.identityHashCode(node);
+        return h ^ (h >>> 16);
+    }
+    
+    /**
+     * Drop the references to the nodes of the last pattern, including after a visitor failed.
+     */
+    private void clear() {
+        for (int i = 0; i < visitedCount; i++) {
+            visited[used[i]] = null;
+        }
+        visitedCount = 0;
+        
+        while (depth > 0) {
+            pop();
+        }
+    }
+}
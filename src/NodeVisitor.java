@@ -0,0 +1,141 @@
+/**
+ * Callbacks of NodeTraversal, one per type of node of the Pattern graph.
+ *
+ * The nodes are visited in the order of the dissector output: a node, then the nested sequences
+ * it owns (the alternatives of a Branch, the atom of Curly and GroupCurly, the body of a Loop,
+ * the cond of a look-around), then the nodes which follow it. The node is passed as is, together
+ * with the fields the dissector reads from it, so that a visitor does not allocate anything
+ * unless it needs to.
+ *
+ * The visit of a node which owns nested sequences returns whether to walk them. Every nested
+ * sequence which is walked ends with a call to leave() with the owner: once for the atom of a
+ * quantifier, the body of a Loop or the cond of a look-around, and once per alternative of a
+ * Branch, each of which starts with visitAlternative().
+ *
+ * The methods do nothing by default, and the nested sequences are walked.
+ */
+interface NodeVisitor {
+    
+    /**
+     * Start or StartS, at the root of a pattern which is not anchored.
+     */
+    default void visitStart(Object node, DissectedNode.Kind kind, int minLength) {
+    }
+    
+    /**
+     * Caret, UnixCaret, Begin, End, LastMatch, or Pattern.accept (Kind.ACCEPT).
+     */
+    default void visitSimple(Object node, DissectedNode.Kind kind) {
+    }
+    
+    /**
+     * Dollar or UnixDollar.
+     */
+    default void visitDollar(Object node, DissectedNode.Kind kind, boolean multiline) {
+    }
+    
+    /**
+     * Slice, SliceS, BnM or BnMS.
+     *
+     * @param lengthInChars length in chars of the literal of BnMS, -1 for the other kinds
+     */
+    default void visitSlice(Object node, DissectedNode.Kind kind, int[] buffer, int lengthInChars) {
+    }
+    
+    /**
+     * Branch. The walk continues with the BranchConn of the Branch after the alternatives.
+     *
+     * @return whether to walk the alternatives
+     */
+    default boolean visitBranch(Object node, int size) {
+        return true;
+    }
+    
+    /**
+     * Start of an alternative of the Branch. An empty alternative only has the BranchConn.
+     */
+    default void visitAlternative(Object branch, int index) {
+    }
+    
+    /**
+     * BranchConn.
+     *
+     * @param endOfAlternative true at the end of an alternative of its Branch, false when the walk
+     *                         continues with it after the alternatives
+     */
+    default void visitBranchConn(Object node, boolean endOfAlternative) {
+    }
+    
+    default void visitBackRef(Object node, int groupIndex) {
+    }
+    
+    /**
+     * Pos, Neg or Behind. rmin and rmax are 0 for Pos and Neg.
+     *
+     * @return whether to walk the cond
+     */
+    default boolean visitLookaround(Object node, DissectedNode.Kind kind, int rmin, int rmax) {
+        return true;
+    }
+    
+    /**
+     * @return whether to walk the atom
+     */
+    default boolean visitCurly(Object node, int type, int cmin, int cmax) {
+        return true;
+    }
+    
+    /**
+     * @return whether to walk the atom
+     */
+    default boolean visitGroupCurly(Object node, int type, int cmin, int cmax, boolean capture, int localIndex, int groupIndex) {
+        return true;
+    }
+    
+    default void visitGroupHead(Object node, int localIndex) {
+    }
+    
+    default void visitGroupTail(Object node, int localIndex, int groupIndex) {
+    }
+    
+    /**
+     * Prolog. The walk continues with its Loop.
+     */
+    default void visitProlog(Object node) {
+    }
+    
+    /**
+     * Loop or LazyLoop. The body ends with a Reference to the Loop, or with the GroupTail
+     * which goes back to it.
+     *
+     * @return whether to walk the body
+     */
+    default boolean visitLoop(Object node, DissectedNode.Kind kind, int cmin, int cmax) {
+        return true;
+    }
+    
+    /**
+     * A character class node (subclass of CharProperty).
+     */
+    default void visitCharClass(Object node) {
+    }
+    
+    /**
+     * A node which has already been visited, reached again.
+     */
+    default void visitReference(Object node) {
+    }
+    
+    /**
+     * A node of a type which is not known, e.g. Ques or Pattern.lookbehindEnd. The walk does
+     * not enter the nodes it owns. node is null where a nested sequence is missing.
+     */
+    default void visitUnknown(Object node) {
+    }
+    
+    /**
+     * End of a nested sequence of the node.
+     */
+    default void leave(Object node) {
+    }
+}
@@ -0,0 +1,615 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.regex.Pattern;
+
+/**
+ * Detection of the optimized nodes which Pattern did not use for a decoded pattern, with an
+ * equivalent rewrite of the pattern which makes Pattern use them:
+ *
+ * - A literal at the start of the pattern is searched with Boyer-Moore (BnM) only when it is
+ *   the first node of the pattern, and at least 4 characters long. A non-capturing group around
+ *   the literal, a single character class (e.g. [f]oobar) or a common prefix of alternatives
+ *   (e.g. foobar|foobaz) prevent it.
+ * - A pattern which starts with \A (or ^ without MULTILINE) is only tried at the start of the
+ *   input, unless the anchor is inside a group or an alternation (e.g. ^foo|^bar), in which case
+ *   Start tries it at every position.
+ * - A repeated group is matched by GroupCurly when its content is deterministic, otherwise by
+ *   the generic Prolog and Loop. An alternation of single characters (e.g. (a|b)*) is enough to
+ *   make the content non-deterministic, while the equivalent character class is not.
+ * - An alternation of single characters is matched by trying every alternative, while the
+ *   equivalent character class is a single node.
+ * - A character class with ranges, nested classes or set operations is matched by a chain of
+ *   anonymous CharProperty nodes, while a class of Latin-1 characters written one by one is a
+ *   single BitClass lookup (e.g. [a-z_] and [abcdefghijklmnopqrstuvwxyz_]).
+ *
+ * Only the rewrites which do not change the matches are suggested.
+ */
+final class OptimizationAdvisor {
+    
+    enum Missed {
+        BOYER_MOORE("Literal prefix not searched with Boyer-Moore (BnM)"),
+        UNANCHORED_START("Anchored pattern tried at every position by Start"),
+        GROUP_CURLY("Repeated group matched by Prolog/Loop instead of GroupCurly"),
+        CHAR_CLASS("Alternation of single characters instead of a character class"),
+        BIT_CLASS("Character class matched by a chain of set operations");
+        
+        final String description;
+        
+        private Missed(String description) {
+            this.description = description;
+        }
+    }
+    
+    /**
+     * A missed optimization, with the node where it is missed and the suggested rewrite.
+     */
+    static final class Advice {
+        private final Missed missed;
+        private final DissectedNode node;
+        private final String suggestion;
+        
+        Advice(Missed missed, DissectedNode node, String suggestion) {
+            this.missed = missed;
+            this.node = node;
+            this.suggestion = suggestion;
+        }
+        
+        Missed missed() {
+            return missed;
+        }
+        
+        DissectedNode node() {
+            return node;
+        }
+        
+        String suggestion() {
+            return suggestion;
+        }
+        
+        @Override
+        public String toString() {
+            return missed.description + ": " + BacktrackingAnalyzer.describe(node) + ". " + suggestion;
+        }
+    }
+    
+    /** Ctype constants of java.util.regex.ASCII which can be written as a predefined class */
+    private static final String[][] CTYPE_CLASSES = {
+        {"DIGIT", "\\d"},
+        {"WORD", "\\w"},
+        {"SPACE", "\\s"},
+        {"ALPHA", "\\p{Alpha}"},
+        {"ALNUM", "\\p{Alnum}"},
+        {"XDIGIT", "\\p{XDigit}"},
+        {"PUNCT", "\\p{Punct}"},
+        {"GRAPH", "\\p{Graph}"},
+        {"BLANK", "\\p{Blank}"},
+        {"CNTRL", "\\p{Cntrl}"},
+    };
+    
+    /** Minimum length of the literal for BnM to be used */
+    private static final int BNM_MIN_LENGTH = 4;
+    
+    private OptimizationAdvisor() {
+    }
+    
+    /**
+     * Look for missed optimizations in the decoded pattern.
+     *
+     * @return the advice, in the order of the nodes in the pattern. Empty if the pattern failed
+     *         to compile
+     */
+    static List<Advice> advise(DissectedPattern pattern) {
+        List<Advice> advice = new ArrayList<Advice>();
+        List<DissectedNode> root = pattern.nodes();
+        
+        if (root.isEmpty()) {
+            return advice;
+        }
+        
+        adviseStart(root, advice);
+        
+        // Alternations which are already covered by the advice of the enclosing Loop
+        Map<DissectedNode, Boolean> covered = new IdentityHashMap<DissectedNode, Boolean>();
+        walk(root, pattern.flags(), covered, advice);
+        
+        return advice;
+    }
+    
+    /**
+     * Advice on the node which searches for the start of a match.
+     */
+    private static void adviseStart(List<DissectedNode> root, List<Advice> advice) {
+        DissectedNode start = root.get(0);
+        
+        if (start.kind() != DissectedNode.Kind.START && start.kind() != DissectedNode.Kind.START_S) {
+            return;
+        }
+        
+        if (startsWithBegin(root, 1)) {
+            advice.add(new Advice(Missed.UNANCHORED_START, start,
+                "Move the \\A or ^ anchor in front of the groups and alternatives, e.g. ^(?:foo|bar) instead of ^foo|^bar"));
+            return;
+        }
+        
+        DissectedNode first = root.get(1);
+        
+        if (first.kind() == DissectedNode.Kind.SLICE_S && ((DissectedNode.Literal) first).length() >= BNM_MIN_LENGTH) {
+            advice.add(new Advice(Missed.BOYER_MOORE, first,
+                "BnMS is never created on Java 8 for literals with supplementary characters (JDK-8035076, fixed in Java 9). There is no rewrite"));
+            return;
+        }
+        
+        int[] prefix = flattenedLiteral(root, 1);
+        if (prefix != null && prefix.length >= BNM_MIN_LENGTH) {
+            advice.add(new Advice(Missed.BOYER_MOORE, first,
+                "Write the literal " + literal(prefix) + " without the non-capturing groups and single character classes around its parts"));
+            return;
+        }
+        
+        if (first.kind() == DissectedNode.Kind.BRANCH) {
+            String factored = factorPrefix((DissectedNode.Branch) first);
+            
+            if (factored != null) {
+                advice.add(new Advice(Missed.BOYER_MOORE, first, "Factor the common prefix out of the alternatives: " + factored));
+            }
+        }
+    }
+    
+    /**
+     * Whether every match starts with Begin, which is only reached through groups and
+     * alternatives.
+     */
+    private static boolean startsWithBegin(List<DissectedNode> sequence, int index) {
+        for (int i = index; i < sequence.size(); i++) {
+            DissectedNode node = sequence.get(i);
+            
+            switch (node.kind()) {
+                case GROUP_HEAD:
+                    continue;
+                case BEGIN:
+                    return true;
+                case BRANCH:
+                    for (List<DissectedNode> alternative: ((DissectedNode.Branch) node).alternatives()) {
+                        if (!startsWithBegin(alternative, 0)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * The literal at the start of the sequence, when non-capturing groups without quantifier
+     * and single character classes are written as plain characters.
+     *
+     * @return null if nothing would be changed by writing it so, or if there is no literal
+     */
+    private static int[] flattenedLiteral(List<DissectedNode> sequence, int index) {
+        List<Integer> codePoints = new ArrayList<Integer>();
+        List<Integer> openGroups = new ArrayList<Integer>();
+        boolean rewritten = false;
+        
+        loop:
+        for (int i = index; i < sequence.size(); i++) {
+            DissectedNode node = sequence.get(i);
+            
+            switch (node.kind()) {
+                case SLICE:
+                    for (int c: ((DissectedNode.Literal) node).codePoints()) {
+                        codePoints.add(c);
+                    }
+                    break;
+                case SINGLE:
+                    codePoints.add(((DissectedNode.Single) node).codePoint());
+                    break;
+                case BIT_CLASS:
+                    DissectedNode.BitClass bitClass = (DissectedNode.BitClass) node;
+                    
+                    if (bitClass.size() != 1) {
+                        break loop;
+                    }
+                    codePoints.add(bitClass.codePoints()[0]);
+                    rewritten = true;
+                    break;
+                case GROUP_HEAD:
+                    int localIndex = ((DissectedNode.GroupHead) node).localIndex();
+                    
+                    if (!isPlainNonCapturingGroup(sequence, i, localIndex)) {
+                        break loop;
+                    }
+                    openGroups.add(localIndex);
+                    rewritten = true;
+                    break;
+                case GROUP_TAIL:
+                    if (!openGroups.remove((Integer) ((DissectedNode.GroupTail) node).localIndex())) {
+                        break loop;
+                    }
+                    break;
+                default:
+                    break loop;
+            }
+        }
+        
+        if (!rewritten) {
+            return null;
+        }
+        
+        int[] result = new int[codePoints.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = codePoints.get(i);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Whether the GroupHead at the index starts a non-capturing group without quantifier and
+     * without alternation at its top level, which can be removed without changing the matches.
+     */
+    private static boolean isPlainNonCapturingGroup(List<DissectedNode> sequence, int index, int localIndex) {
+        if (index + 1 < sequence.size() && sequence.get(index + 1).kind() == DissectedNode.Kind.BRANCH) {
+            return false;
+        }
+        
+        for (int i = index + 1; i < sequence.size(); i++) {
+            DissectedNode node = sequence.get(i);
+            
+            if (node.kind() == DissectedNode.Kind.GROUP_TAIL && ((DissectedNode.GroupTail) node).localIndex() == localIndex) {
+                return ((DissectedNode.GroupTail) node).groupIndex() == 0;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * The alternation with its common literal prefix factored out, if the prefix is long
+     * enough for BnM.
+     *
+     * @return null if there is no such prefix
+     */
+    private static String factorPrefix(DissectedNode.Branch branch) {
+        List<int[]> literals = new ArrayList<int[]>();
+        boolean allLiterals = true;
+        
+        for (List<DissectedNode> alternative: branch.alternatives()) {
+            int[] literal = leadingLiteral(alternative);
+            
+            if (literal.length == 0) {
+                return null;
+            }
+            if (literal.length != literalLength(alternative)) {
+                allLiterals = false;
+            }
+            literals.add(literal);
+        }
+        
+        int common = literals.get(0).length;
+        for (int[] literal: literals) {
+            int i = 0;
+            
+            while (i < common && i < literal.length && literal[i] == literals.get(0)[i]) {
+                i++;
+            }
+            common = i;
+        }
+        
+        if (common < BNM_MIN_LENGTH) {
+            return null;
+        }
+        
+        StringBuilder sb = new StringBuilder(literal(Arrays.copyOf(literals.get(0), common))).append("(?:");
+        
+        if (allLiterals) {
+            for (int i = 0; i < literals.size(); i++) {
+                int[] literal = literals.get(i);
+                sb.append(i > 0 ? "|" : "").append(literal(Arrays.copyOfRange(literal, common, literal.length)));
+            }
+        } else {
+            sb.append("...");
+        }
+        
+        return sb.append(")").toString();
+    }
+    
+    /**
+     * Code points of the Slice and Single nodes at the start of the sequence.
+     */
+    private static int[] leadingLiteral(List<DissectedNode> sequence) {
+        List<Integer> codePoints = new ArrayList<Integer>();
+        
+        for (DissectedNode node: sequence) {
+            if (node.kind() == DissectedNode.Kind.SLICE) {
+                for (int c: ((DissectedNode.Literal) node).codePoints()) {
+                    codePoints.add(c);
+                }
+            } else if (node.kind() == DissectedNode.Kind.SINGLE) {
+                codePoints.add(((DissectedNode.Single) node).codePoint());
+            } else {
+                break;
+            }
+        }
+        
+        int[] result = new int[codePoints.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = codePoints.get(i);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Length of the alternative if it is only made of literal nodes, -1 otherwise.
+     */
+    private static int literalLength(List<DissectedNode> alternative) {
+        int length = 0;
+        
+        for (DissectedNode node: alternative) {
+            if (node.kind() == DissectedNode.Kind.SLICE) {
+                length += ((DissectedNode.Literal) node).length();
+            } else if (node.kind() == DissectedNode.Kind.SINGLE) {
+                length++;
+            } else if (node.kind() != DissectedNode.Kind.BRANCH_CONN) {
+                return -1;
+            }
+        }
+        
+        return length;
+    }
+    
+    private static void walk(List<DissectedNode> sequence, int flags, Map<DissectedNode, Boolean> covered, List<Advice> advice) {
+        for (DissectedNode node: sequence) {
+            switch (node.kind()) {
+                case LOOP:
+                case LAZY_LOOP:
+                    adviseLoop((DissectedNode.Loop) node, flags, covered, advice);
+                    break;
+                case BRANCH:
+                    if (!covered.containsKey(node)) {
+                        String charClass = alternationClass((DissectedNode.Branch) node, flags);
+                        
+                        if (charClass != null) {
+                            advice.add(new Advice(Missed.CHAR_CLASS, node, "Replace the alternation with " + charClass));
+                        }
+                    }
+                    break;
+                case UNION:
+                case INTERSECTION:
+                case SET_DIFFERENCE:
+                case COMPLEMENT:
+                    // The chain is advised as a whole, its operands are not walked
+                    adviseCharClass(node, flags, advice);
+                    continue;
+                default:
+                    break;
+            }
+            
+            for (List<DissectedNode> child: node.children()) {
+                walk(child, flags, covered, advice);
+            }
+        }
+    }
+    
+    private static void adviseLoop(DissectedNode.Loop loop, int flags, Map<DissectedNode, Boolean> covered, List<Advice> advice) {
+        List<DissectedNode.Branch> branches = new ArrayList<DissectedNode.Branch>();
+        
+        if (!isDeterministic(loop.body(), branches) || branches.isEmpty()) {
+            return;
+        }
+        
+        StringBuilder sb = new StringBuilder("Replace ");
+        
+        for (int i = 0; i < branches.size(); i++) {
+            DissectedNode.Branch branch = branches.get(i);
+            String charClass = alternationClass(branch, flags);
+            
+            if (charClass == null) {
+                return;
+            }
+            
+            sb.append(i > 0 ? ", " : "").append("the alternation ").append(BacktrackingAnalyzer.describe(branch)).append(" with ").append(charClass);
+        }
+        
+        for (DissectedNode.Branch branch: branches) {
+            covered.put(branch, Boolean.TRUE);
+        }
+        
+        advice.add(new Advice(Missed.GROUP_CURLY, loop, sb.toString()));
+    }
+    
+    /**
+     * Whether the sequence is deterministic as Pattern sees it (TreeInfo.deterministic), when
+     * the alternations of single characters are replaced by character classes.
+     *
+     * @param branches receives the alternations of single characters
+     */
+    private static boolean isDeterministic(List<DissectedNode> sequence, List<DissectedNode.Branch> branches) {
+        for (DissectedNode node: sequence) {
+            switch (node.kind()) {
+                case BRANCH:
+                    if (alternationMembers((DissectedNode.Branch) node) == null) {
+                        return false;
+                    }
+                    branches.add((DissectedNode.Branch) node);
+                    break;
+                case CURLY:
+                case GROUP_CURLY:
+                    DissectedNode.Curly curly = (DissectedNode.Curly) node;
+                    
+                    if (curly.cmin() != curly.cmax() || !isDeterministic(curly.atom(), branches)) {
+                        return false;
+                    }
+                    break;
+                case PROLOG:
+                case LOOP:
+                case LAZY_LOOP:
+                    return false;
+                case UNKNOWN:
+                    // e.g. Ques, which is not deterministic
+                    return false;
+                default:
+                    // The condition of look-around is not studied
+                    break;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Characters matched by the alternation, if every alternative is a single character node.
+     *
+     * @return null if the alternation is not of single characters
+     */
+    private static CodePointSet alternationMembers(DissectedNode.Branch branch) {
+        CodePointSet members = CodePointSet.EMPTY;
+        
+        for (List<DissectedNode> alternative: branch.alternatives()) {
+            if (alternative.size() != 2 || alternative.get(1).kind() != DissectedNode.Kind.BRANCH_CONN) {
+                return null;
+            }
+            
+            DissectedNode node = alternative.get(0);
+            
+            // A character class reads a code point where Single reads a char, which may be half of one
+            if (node.kind() == DissectedNode.Kind.SINGLE && Character.isSurrogate((char) ((DissectedNode.Single) node).codePoint())) {
+                return null;
+            }
+            
+            CodePointSet set = CodePointSet.resolve(node);
+            if (set == null) {
+                return null;
+            }
+            members = members.union(set);
+        }
+        
+        return members;
+    }
+    
+    private static String alternationClass(DissectedNode.Branch branch, int flags) {
+        CodePointSet members = alternationMembers(branch);
+        return members == null ? null : charClass(members, flags, false);
+    }
+    
+    private static void adviseCharClass(DissectedNode node, int flags, List<Advice> advice) {
+        if ((flags & (Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CHARACTER_CLASS)) != 0) {
+            // The rewritten class would not compile to the same nodes
+            return;
+        }
+        
+        CodePointSet members = CodePointSet.resolve(node);
+        if (members == null || members.isEmpty()) {
+            return;
+        }
+        
+        String charClass = charClass(members, flags, true);
+        if (charClass != null) {
+            advice.add(new Advice(Missed.BIT_CLASS, node, "Write the class as " + charClass));
+        }
+    }
+    
+    /**
+     * Character class which matches the code points, and which is compiled to a single node if
+     * possible: a range, a Ctype or a BitClass.
+     *
+     * @param singleNode whether to return null if the class cannot be compiled to a single node
+     */
+    private static String charClass(CodePointSet members, int flags, boolean singleNode) {
+        if (members.equals(CodePointSet.ALL)) {
+            return "[\\s\\S]";
+        }
+        
+        int lower = members.min();
+        int upper = members.max();
+        
+        if (members.rangeCount() == 1 && (members.size() >= 3 || upper >= 256)) {
+            return "[" + escape(lower) + (upper > lower ? "-" + escape(upper) : "") + "]";
+        }
+        
+        if (upper < 128 && (flags & Pattern.UNICODE_CHARACTER_CLASS) == 0) {
+            for (String[] ctypeClass: CTYPE_CLASSES) {
+                int ctype = PatternDissector.ctype(ctypeClass[0]);
+                
+                if (ctype >= 0 && members.equals(CodePointSet.ctype(ctype))) {
+                    return ctypeClass[1];
+                }
+            }
+        }
+        
+        if (upper < 256) {
+            StringBuilder sb = new StringBuilder("[");
+            
+            for (int c: members.toArray()) {
+                sb.append(escape(c));
+            }
+            
+            return sb.append("]").toString();
+        }
+        
+        if (singleNode) {
+            return null;
+        }
+        
+        CodePointSet complement = members.complement();
+        
+        if (complement.size() < members.size()) {
+            return "[^" + ranges(complement) + "]";
+        }
+        
+        return "[" + ranges(members) + "]";
+    }
+    
+    private static String ranges(CodePointSet set) {
+        StringBuilder sb = new StringBuilder();
+        
+        for (int i = 0; i < set.rangeCount(); i++) {
+            int lower = set.lower(i);
+            int upper = set.upper(i);
+            
+            if (upper - lower >= 2) {
+                sb.append(escape(lower)).append('-').append(escape(upper));
+            } else {
+                for (int c = lower; c <= upper; c++) {
+                    sb.append(escape(c));
+                }
+            }
+        }
+        
+        return sb.toString();
+    }
+    
+    static String literal(int[] codePoints) {
+        StringBuilder sb = new StringBuilder();
+        
+        for (int c: codePoints) {
+            sb.append(escape(c));
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * The code point, escaped to be used in a pattern both inside and outside of a character
+     * class.
+     */
+    private static String escape(int c) {
+        if (c < 0x20 || c > 0x7E) {
+            return "\\x{" + Integer.toHexString(c) + "}";
+        }
+        
+        if (" #$&()*+-.?[\\]^{|}".indexOf(c) >= 0) {
+            return "\\" + (char) c;
+        }
+        
+        return String.valueOf((char) c);
+    }
+}
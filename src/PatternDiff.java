@@ -0,0 +1,514 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Structural diff of the node graphs of two dissected patterns, e.g. a hand-tuned rewrite of a
+ * pattern, or the same pattern compiled with two sets of flags.
+ *
+ * The sequences are aligned on the kind of the nodes, by longest common subsequence. Nodes of
+ * the same kind are compared on the fields the dissector decodes (cmin, cmax, type, minLength,
+ * literal text, members of character classes, ...), and their nested sequences are aligned in
+ * turn, the alternatives of a Branch by index. Between two aligned nodes, a removed and an added
+ * node of the same family (quantifiers, literals, character classes, look-arounds, anchors) are
+ * reported as one changed node, e.g. Slice to BnM, or Loop to GroupCurly.
+ *
+ * The diff is printed as the aligned trees, one node per line, prefixed with "  " if the node
+ * is the same, "~ " if it changed, "- " if it was removed and "+ " if it was added.
+ */
+final class PatternDiff {
+    
+    /** Largest table of the longest common subsequence, above which nodes are aligned by family only */
+    private static final long MAX_LCS_CELLS = 1 << 22;
+    
+    private final StringBuilder out = new StringBuilder();
+    
+    private int added;
+    private int removed;
+    private int changed;
+    
+    private PatternDiff() {
+    }
+    
+    /**
+     * Diff of two compiled patterns.
+     */
+    static PatternDiff of(DissectedPattern before, DissectedPattern after) {
+        if (!before.isCompiled() || !after.isCompiled()) {
+            throw new IllegalArgumentException("Compiled patterns expected");
+        }
+        
+        PatternDiff diff = new PatternDiff();
+        
+        diff.out.append("--- ").append(before.pattern()).append(" (flags ").append(before.flags()).append(")\n");
+        diff.out.append("+++ ").append(after.pattern()).append(" (flags ").append(after.flags()).append(")\n");
+        diff.sequence(before.nodes(), after.nodes(), 0);
+        
+        return diff;
+    }
+    
+    int added() {
+        return added;
+    }
+    
+    int removed() {
+        return removed;
+    }
+    
+    int changed() {
+        return changed;
+    }
+    
+    /**
+     * Whether the node graphs have the same structure and fields.
+     */
+    boolean isEmpty() {
+        return added == 0 && removed == 0 && changed == 0;
+    }
+    
+    /**
+     * The aligned trees, followed by the number of added, removed and changed nodes.
+     */
+    @Override
+    public String toString() {
+        return out + String.format("%d added, %d removed, %d changed\n", added, removed, changed);
+    }
+    
+    private void sequence(List<DissectedNode> a, List<DissectedNode> b, int depth) {
+        int n = a.size();
+        int m = b.size();
+        
+        int prefix = 0;
+        while (prefix < n && prefix < m && sameKind(a.get(prefix), b.get(prefix))) {
+            prefix++;
+        }
+        
+        int suffix = 0;
+        while (suffix < n - prefix && suffix < m - prefix && sameKind(a.get(n - 1 - suffix), b.get(m - 1 - suffix))) {
+            suffix++;
+        }
+        
+        for (int i = 0; i < prefix; i++) {
+            pair(a.get(i), b.get(i), depth);
+        }
+        
+        List<DissectedNode> aMiddle = a.subList(prefix, n - suffix);
+        List<DissectedNode> bMiddle = b.subList(prefix, m - suffix);
+        int[][] lcs = lcs(aMiddle, bMiddle);
+        
+        int i = 0;
+        int j = 0;
+        
+        if (lcs != null) {
+            while (i < aMiddle.size() && j < bMiddle.size()) {
+                if (sameKind(aMiddle.get(i), bMiddle.get(j))) {
+                    pair(aMiddle.get(i), bMiddle.get(j), depth);
+                    i++;
+                    j++;
+                    continue;
+                }
+                
+                // Extend the gap up to the next pair of the longest common subsequence
+                int gapI = i;
+                int gapJ = j;
+                while (i < aMiddle.size() && j < bMiddle.size() && !sameKind(aMiddle.get(i), bMiddle.get(j))) {
+                    if (lcs[i + 1][j] >= lcs[i][j + 1]) {
+                        i++;
+                    } else {
+                        j++;
+                    }
+                }
+                
+                // No pair left, the rest of both sequences is one gap
+                if (i == aMiddle.size() || j == bMiddle.size()) {
+                    i = aMiddle.size();
+                    j = bMiddle.size();
+                }
+                
+                gap(aMiddle.subList(gapI, i), bMiddle.subList(gapJ, j), depth);
+            }
+        }
+        
+        gap(aMiddle.subList(i, aMiddle.size()), bMiddle.subList(j, bMiddle.size()), depth);
+        
+        for (int k = 0; k < suffix; k++) {
+            pair(a.get(n - suffix + k), b.get(m - suffix + k), depth);
+        }
+    }
+    
+    /**
+     * Lengths of the longest common subsequences of the suffixes of the sequences: lcs[i][j] is
+     * for a[i..] and b[j..].
+     *
+     * @return null if the table would be too large
+     */
+    private static int[][] lcs(List<DissectedNode> a, List<DissectedNode> b) {
+        if ((long) (a.size() + 1) * (b.size() + 1) > MAX_LCS_CELLS) {
+            return null;
+        }
+        
+        int[][] lcs = new int[a.size() + 1][b.size() + 1];
+        
+        for (int i = a.size() - 1; i >= 0; i--) {
+            for (int j = b.size() - 1; j >= 0; j--) {
+                lcs[i][j] = sameKind(a.get(i), b.get(j)) ? lcs[i + 1][j + 1] + 1 : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+            }
+        }
+        
+        return lcs;
+    }
+    
+    /**
+     * Nodes which are not aligned between two aligned nodes. The removed and added nodes of the
+     * same family are paired in order.
+     */
+    private void gap(List<DissectedNode> removedNodes, List<DissectedNode> addedNodes, int depth) {
+        int j = 0;
+        
+        for (DissectedNode r: removedNodes) {
+            int match = j;
+            while (match < addedNodes.size() && !family(addedNodes.get(match)).equals(family(r))) {
+                match++;
+            }
+            
+            if (match == addedNodes.size()) {
+                subtree("- ", r, depth);
+                continue;
+            }
+            
+            for (; j < match; j++) {
+                subtree("+ ", addedNodes.get(j), depth);
+            }
+            
+            pair(r, addedNodes.get(j++), depth);
+        }
+        
+        for (; j < addedNodes.size(); j++) {
+            subtree("+ ", addedNodes.get(j), depth);
+        }
+    }
+    
+    /**
+     * Two aligned nodes, and their nested sequences.
+     */
+    private void pair(DissectedNode a, DissectedNode b, int depth) {
+        Map<String, String> aAttributes = attributes(a);
+        Map<String, String> bAttributes = attributes(b);
+        boolean same = sameKind(a, b) && aAttributes.equals(bAttributes);
+        
+        if (same) {
+            line("  ", depth).append(describe(a, aAttributes)).append('\n');
+        } else {
+            changed++;
+            
+            StringBuilder sb = line("~ ", depth).append(name(a));
+            if (!sameKind(a, b)) {
+                sb.append(" -> ").append(name(b));
+            }
+            
+            Map<String, String> union = new LinkedHashMap<String, String>(aAttributes);
+            union.putAll(bAttributes);
+            
+            int k = 0;
+            for (String key: union.keySet()) {
+                String before = aAttributes.containsKey(key) ? aAttributes.get(key) : "-";
+                String after = bAttributes.containsKey(key) ? bAttributes.get(key) : "-";
+                
+                sb.append(k++ > 0 ? ", " : "(").append(key).append('=').append(before);
+                if (!before.equals(after)) {
+                    sb.append(" -> ").append(after);
+                }
+            }
+            sb.append(k > 0 ? ")\n" : "\n");
+        }
+        
+        List<List<DissectedNode>> aChildren = a.children();
+        List<List<DissectedNode>> bChildren = b.children();
+        List<DissectedNode> none = Collections.emptyList();
+        
+        for (int i = 0; i < Math.max(aChildren.size(), bChildren.size()); i++) {
+            if (i > 0) {
+                line("  ", depth + 1).append("---\n");
+            }
+            
+            sequence(i < aChildren.size() ? aChildren.get(i) : none, i < bChildren.size() ? bChildren.get(i) : none, depth + 1);
+        }
+    }
+    
+    /**
+     * A removed or added node, with its nested sequences.
+     */
+    private void subtree(String marker, DissectedNode node, int depth) {
+        if (marker.startsWith("+")) {
+            added++;
+        } else {
+            removed++;
+        }
+        
+        line(marker, depth).append(describe(node, attributes(node))).append('\n');
+        
+        List<List<DissectedNode>> children = node.children();
+        for (int i = 0; i < children.size(); i++) {
+            if (i > 0) {
+                line(marker, depth + 1).append("---\n");
+            }
+            
+            for (DissectedNode child: children.get(i)) {
+                subtree(marker, child, depth + 1);
+            }
+        }
+    }
+    
+    private StringBuilder line(String marker, int depth) {
+        out.append(marker);
+        for (int i = 0; i < depth; i++) {
+            out.append("  ");
+        }
+        
+        return out;
+    }
+    
+    private static String describe(DissectedNode node, Map<String, String> attributes) {
+        StringBuilder sb = new StringBuilder(name(node));
+        
+        if (!attributes.isEmpty()) {
+            sb.append('(');
+            int k = 0;
+            for (Map.Entry<String, String> attribute: attributes.entrySet()) {
+                sb.append(k++ > 0 ? ", " : "").append(attribute.getKey()).append('=').append(attribute.getValue());
+            }
+            sb.append(')');
+        }
+        
+        return sb.toString();
+    }
+    
+    private static String name(DissectedNode node) {
+        switch (node.kind()) {
+            case UNKNOWN:
+                return ((DissectedNode.Unknown) node).className();
+            case DEBUG:
+                return "Debug";
+            default:
+                return node.kind().name;
+        }
+    }
+    
+    private static boolean sameKind(DissectedNode a, DissectedNode b) {
+        return name(a).equals(name(b));
+    }
+    
+    /**
+     * Family of the node, within which a change of kind is reported as a changed node.
+     */
+    private static String family(DissectedNode node) {
+        switch (node.kind()) {
+            case START:
+            case START_S:
+                return "start";
+            case CARET:
+            case UNIX_CARET:
+            case DOLLAR:
+            case UNIX_DOLLAR:
+            case BEGIN:
+            case END:
+            case LAST_MATCH:
+                return "anchor";
+            case SLICE:
+            case SLICE_S:
+            case BNM:
+            case BNM_S:
+                return "literal";
+            case POS:
+            case NEG:
+            case BEHIND:
+                return "lookaround";
+            case CURLY:
+            case GROUP_CURLY:
+            case PROLOG:
+            case LOOP:
+            case LAZY_LOOP:
+                return "quantifier";
+            case DOT:
+            case UNIX_DOT:
+            case ALL:
+            case CTYPE:
+            case BIT_CLASS:
+            case SINGLE:
+            case SINGLE_S:
+            case SINGLE_U:
+            case COMPLEMENT:
+            case SET_DIFFERENCE:
+            case UNION:
+            case INTERSECTION:
+            case RANGE:
+            case DEBUG:
+                return "class";
+            default:
+                return name(node);
+        }
+    }
+    
+    /**
+     * The fields of the node which are compared, in printing order.
+     */
+    private static Map<String, String> attributes(DissectedNode node) {
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        
+        switch (node.kind()) {
+            case START:
+            case START_S:
+                attributes.put("minLength", String.valueOf(((DissectedNode.Start) node).minLength()));
+                break;
+            case DOLLAR:
+            case UNIX_DOLLAR:
+                attributes.put("multiline", String.valueOf(((DissectedNode.Dollar) node).multiline()));
+                break;
+            case SLICE:
+            case SLICE_S:
+            case BNM:
+            case BNM_S:
+                attributes.put("text", OptimizationAdvisor.literal(((DissectedNode.Literal) node).codePoints()));
+                break;
+            case BRANCH:
+                attributes.put("size", String.valueOf(((DissectedNode.Branch) node).alternatives().size()));
+                break;
+            case BRANCH_CONN:
+                attributes.put("endOfAlternative", String.valueOf(((DissectedNode.BranchConn) node).endOfAlternative()));
+                break;
+            case BACK_REF:
+                attributes.put("groupIndex", String.valueOf(((DissectedNode.BackRef) node).groupIndex()));
+                break;
+            case BEHIND:
+                {
+                    DissectedNode.Lookaround behind = (DissectedNode.Lookaround) node;
+                    
+                    attributes.put("rmin", String.valueOf(behind.rmin()));
+                    attributes.put("rmax", String.valueOf(behind.rmax()));
+                }
+                break;
+            case CURLY:
+            case GROUP_CURLY:
+                {
+                    DissectedNode.Curly curly = (DissectedNode.Curly) node;
+                    
+                    attributes.put("type", curly.quantifier().name);
+                    attributes.put("cmin", String.valueOf(curly.cmin()));
+                    attributes.put("cmax", String.valueOf(curly.cmax()));
+                    
+                    if (node.kind() == DissectedNode.Kind.GROUP_CURLY) {
+                        attributes.put("capture", String.valueOf(curly.capture()));
+                        attributes.put("groupIndex", String.valueOf(curly.groupIndex()));
+                    }
+                }
+                break;
+            case GROUP_TAIL:
+                attributes.put("groupIndex", String.valueOf(((DissectedNode.GroupTail) node).groupIndex()));
+                attributes.put("next", ((DissectedNode.GroupTail) node).nextName());
+                break;
+            case LOOP:
+            case LAZY_LOOP:
+                attributes.put("cmin", String.valueOf(((DissectedNode.Loop) node).cmin()));
+                attributes.put("cmax", String.valueOf(((DissectedNode.Loop) node).cmax()));
+                break;
+            case REFERENCE:
+                {
+                    // Object.toString() of the node, without its hash code
+                    String description = ((DissectedNode.Reference) node).description();
+                    int at = description.lastIndexOf('@');
+                    
+                    attributes.put("to", at < 0 ? description : description.substring(0, at));
+                }
+                break;
+            case CTYPE:
+                attributes.put("ctype", ((DissectedNode.Ctype) node).name());
+                break;
+            case DEBUG:
+                attributes.put("message", ((DissectedNode.Debug) node).message());
+                break;
+            default:
+        }
+        
+        // The members of character classes, e.g. the bits of BitClass
+        if (family(node).equals("class")) {
+            CodePointSet members = CodePointSet.resolve(node);
+            
+            if (members != null) {
+                attributes.put("members", members.toString());
+            }
+        }
+        
+        return attributes;
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: PatternDissector --diff [--flags N] [--flags2 N] PATTERN [PATTERN2]");
+        System.err.println();
+        System.err.println("Compare the node graph of PATTERN compiled with the flags N to the node graph of PATTERN2");
+        System.err.println("(PATTERN if not given) compiled with the flags of --flags2 (N if not given).");
+        System.err.println("The exit status is 0 if the graphs are the same, 1 if they differ.");
+    }
+    
+    /**
+     * Command line entry of the diff mode.
+     *
+     * @return exit status
+     */
+    static int run(String[] args) {
+        int flags = 0;
+        Integer flags2 = null;
+        String regex = null;
+        String regex2 = null;
+        
+        for (int i = 0; i < args.length; i++) {
+            if ((args[i].equals("--flags") || args[i].equals("--flags2")) && i + 1 < args.length) {
+                int value;
+                try {
+                    value = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException e) {
+                    usage();
+                    return 2;
+                }
+                
+                if (args[i].equals("--flags")) {
+                    flags = value;
+                } else {
+                    flags2 = value;
+                }
+                i++;
+            } else if (regex == null) {
+                regex = args[i];
+            } else if (regex2 == null) {
+                regex2 = args[i];
+            } else {
+                usage();
+                return 2;
+            }
+        }
+        
+        if (regex == null) {
+            usage();
+            return 2;
+        }
+        
+        try {
+            DissectedPattern before = PatternDissector.decode(regex, flags);
+            DissectedPattern after = PatternDissector.decode(regex2 != null ? regex2 : regex, flags2 != null ? flags2 : flags);
+            
+            for (DissectedPattern pattern: new DissectedPattern[] { before, after }) {
+                if (!pattern.isCompiled()) {
+                    System.err.println(pattern.errorDescription());
+                    return 2;
+                }
+            }
+            
+            PatternDiff diff = of(before, after);
+            System.out.print(diff);
+            
+            return diff.isEmpty() ? 0 : 1;
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,14 +1,20 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.lang.invoke.MethodHandle;
+
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
 import java.lang.reflect.InvocationTargetException;
 
-import java.util.Collections;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
-import java.util.Stack;
 import java.util.Arrays;
 
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -21,25 +27,24 @@ class PatternDissector {
     
     private static LoggingLevel loggingLevel = LoggingLevel.SIMPLE;
     
-    private static final transient Map<String, Class<?>> patterns;
-    
-    static {
-        Class<?>[] innerClasses = Pattern.class.getDeclaredClasses();
-        Map<String, Class<?>> m = new HashMap<String, Class<?>>();
-        
-        for (Class<?> c: innerClasses) {
-            m.put(c.getSimpleName(), c);
+    /**
+     * Nested class of Pattern by simple name, e.g. "Curly". Only the classes which are used are
+     * loaded, rather than all of Pattern.getDeclaredClasses().
+     *
+     * @return null if the running JCL does not have it
+     */
+    static Class<?> patternClass(String simpleName) {
+        try {
+            return Class.forName(Pattern.class.getName() + "$" + simpleName, false, Pattern.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
         }
-        
-        patterns = Collections.unmodifiableMap(m);
     }
     
-    private static final Class<?> Node = patterns.get("Node");
-    
     /**
      * Get declared field by name in a class and make it accessible.
      */
-    private static Field getDeclaredField(Class<?> clazz, String name) {
+    static Field getDeclaredField(Class<?> clazz, String name) {
         Field field;
         try {
             field = clazz.getDeclaredField(name);
@@ -126,66 +131,6 @@ class PatternDissector {
     }
     */
     
-    private static final Map<String, String> INFO_FORMAT_STRINGS_VERBOSE;
-    static {
-        Map<String, String> m = new HashMap<String, String>();
-        
-        m.put("Start", "%s. Start unanchored match (minLength=%d)\n");
-        m.put("StartS", "%s. Start unanchored match with support for supplementary characters (minLength=%d)\n");
-        
-        m.put("Caret", "%s. Match beginning of a line: (?m:^)\n");
-        m.put("UnixCaret", "%s. Match beginning of a line in UNIX_LINES mode: (?dm:^)\n");
-        m.put("Dollar(multiline=true)", "%s. Match before a line terminator (end of a line) or the end of the string: (?m:$)\n");
-        m.put("Dollar(multiline=false)", "%s. Match the end of the string but just before final line terminator if any: \\Z or default $\n");
-        m.put("UnixDollar(multiline=true)", "%s. Match before a line terminator (end of a line) or the end of the string, in UNIX_LINES mode: (?dm:$)\n");
-        m.put("UnixDollar(multiline=false)",  "%s. Match the end of the string but just before final line terminator if any, in UNIX_LINES mode: (?d:\\Z) or (?d:$)\n");
-        m.put("Begin", "%s. Match the beginning of a string: \\A or default ^\n");
-        m.put("End", "%s. Match the end of a string: \\z\n");
-        m.put("LastMatch", "%s. Last match boundary: \\G\n");
-        
-        m.put("Single", "%s. Match a BMP (Basic Multilingual Plane) character (code point at and below 0xFFFF): U+%04X %s\n");
-        m.put("SingleS", "%s. Match a supplementary character (code point at and above 0x10000): U+%04X %s\n");
-        m.put("SingleU", "%s. Match a Unicode character case-insensitively with simple 1:1 case-folding: (?iu). Lowercase code point: U+%04X %s\n");
-                  
-        m.put("Slice", "%s.\n");
-        m.put("SliceS", "%s.\n");
-        m.put("BnM", "%s. Optimized matching with Boyer-Moore search algorithm (BMP only version) (length=%d)\n");
-        m.put("BnMS", "%s. Optimized matching with Boyer-Moore search algorithm (supplementary version) (length=%d, lengthChar=%d)\n");
-        
-        m.put("Branch", "%s. Attempt the following %d alternatives in printed order:\n");
-        m.put("BranchConn", "%s. Connect branches to sequel.\n");
-        
-        m.put("Pos", "%s. (DEBUG) Positive look-ahead.");
-        m.put("Behind", "%s. (DEBUG) Positive look-behind. rmax=%d, rmin=%d\n");
-        
-        m.put("Curly", "%s. (DEBUG) type=%s, cmin=%d, cmax=%d:\n");
-        m.put("GroupCurly", "%s. (DEBUG) type=%s, cmin=%d, cmax=%d:\n");
-        
-        m.put("Prolog", "%s. (DEBUG) Loop wrapper\n");
-        m.put("Loop", "%s [%h]. (DEBUG) cmin=%d, cmax=%d:\n");
-        m.put("LazyLoop", "%s [%h]. (DEBUG) cmin=%d, cmax=%d:\n");
-        
-        m.put("GroupTail", "%s [%h]. Responsible for setting and unsetting indices of matches in group repetition\n");
-        
-        m.put("Node", "%s. Accept match\n");
-        
-        m.put("Ctype", "%s. Match POSIX character class %s (US-ASCII)\n");
-        m.put("BitClass", "%s. Optimized character class with boolean[] to match characters in Latin-1 (code point <= 255). Match any of the following %d character(s):\n");
-        
-        m.put("Dot", "%s. Dot in default mode: (?:.). Equivalent to [^\\n\\r\\u0085\\u2028\\u2029]\n");
-        m.put("UnixDot", "%s. Dot in UNIX_LINES mode: (?d:.). Equivalent to [^\\n]\n");
-        m.put("All", "%s. Dot in DOTALL mode: (?s:.). Match any code point\n");
-        
-        m.put("CharProperty.complement", "%s (character class negation). Match any character NOT matched by the following character class:\n");
-        m.put("Pattern.setDifference", "%s (character class subtraction). Match any character matched by the 1st character class, but NOT the 2nd character class:\n");
-        m.put("Pattern.union", "%s (character class union). Match any character matched by either character classes below:\n");
-        m.put("Pattern.intersection", "%s (character class intersection). Match any character matched by both character classes below:\n");
-        
-        m.put("Pattern.rangeFor", "%s (character range). Match any character within the range from code point U+%04X to code point U+%04X (both ends inclusive)\n");
-        
-        INFO_FORMAT_STRINGS_VERBOSE = Collections.unmodifiableMap(m);
-    }
-    
     enum QUANTIFIER {
         GREEDY("Greedy"),
         LAZY("Lazy"),
@@ -199,120 +144,6 @@ class PatternDissector {
         }
     };
     
-    private static final Map<String, String> INFO_FORMAT_STRINGS_SIMPLE;
-    static {
-        Map<String, String> m = new HashMap<String, String>();
-        
-        m.put("Start", "%s. Start unanchored match (minLength=%d)\n");
-        m.put("StartS", "%s. Start unanchored match (minLength=%d)\n");
-        
-        m.put("Caret", "%s. (?m:^)\n");
-        m.put("UnixCaret", "%s. (?dm:^)\n");
-        m.put("Dollar(multiline=true)", "%s. (?m:$)\n");
-        m.put("Dollar(multiline=false)", "%s. \\Z or default $\n");
-        m.put("UnixDollar(multiline=true)", "%s. (?dm:$)\n");
-        m.put("UnixDollar(multiline=false)",  "%s. (?d:\\Z) or (?d:$)\n");
-        m.put("Begin", "%s. \\A or default ^\n");
-        m.put("End", "%s. \\z\n");
-        m.put("LastMatch", "%s. \\G\n");
-        
-        m.put("Single", "%s. Match code point: U+%04X %s\n");
-        m.put("SingleS", "%s. Match code point: U+%04X %s\n");
-        m.put("SingleU", "%s. Caseless match. Lowercase code point: U+%04X %s\n");
-                  
-        m.put("Slice", "%s.\n");
-        m.put("SliceS", "%s.\n");
-        m.put("BnM", "%s. Boyer-Moore (BMP only version) (length=%d)\n");
-        m.put("BnMS", "%s. Boyer-Moore (supplementary version) (length=%d, lengthChar=%d)\n");
-        
-        m.put("Branch", "%s. Alternation (in printed order):\n");
-        m.put("BranchConn", "%s. Connect branches to sequel.\n");
-        
-        m.put("BackRef", "%s. Backreference to group %d\n");
-        
-        m.put("Pos", "%s. Positive look-ahead\n");
-        m.put("Neg", "%s. Negative look-ahead\n");
-        m.put("Behind", "%s. Positive look-behind. {%d,%d}\n");
-        
-        m.put("Prolog", "%s. Loop wrapper\n");
-        m.put("Loop", "%s [%h]. Greedy quantifier {%d,%d}\n");
-        m.put("LazyLoop", "%s [%h]. Lazy quantifier {%d,%d}:\n");
-        
-        m.put("Curly", "%s. %s quantifier {%d,%d}\n");
-        m.put("GroupCurly", "%s. (DEBUG) type=%s, cmin=%d, cmax=%d, capture=%b:\n");
-        
-        m.put("GroupHead", "%s. (DEBUG) local=%d\n");
-        m.put("GroupTail", "%s [%h]. (DEBUG) local=%d, group=%d. --[next]--> %s [%h]\n");
-        
-        m.put("Node", "%s. Accept match\n");
-        
-        m.put("Dot", "%s. (?:.), equivalent to [^\\n\\r\\u0085\\u2028\\u2029]\n");
-        m.put("UnixDot", "%s. (?d:.), equivalent to [^\\n]\n");
-        m.put("All", "%s. Match any code point: (?s:.).\n");
-        
-        m.put("Ctype", "%s. POSIX (US-ASCII): %s\n");
-        m.put("BitClass", "%s. Match any of these %d character(s):\n");
-        
-        m.put("CharProperty.complement", "%s. S\u0304:\n");
-        m.put("Pattern.setDifference", "%s. S \u2216 T:\n");
-        m.put("Pattern.union", "%s. S \u222a T:\n");
-        m.put("Pattern.intersection", "%s. S \u2229 T:\n");
-        
-        m.put("Pattern.rangeFor", "%s. U+%04X <= codePoint <= U+%04X.\n");
-        
-        INFO_FORMAT_STRINGS_SIMPLE = Collections.unmodifiableMap(m);
-    }
-    
-    private static void info(int depth, String className, Object... params) {
-        Object[] args = new Object[params.length + 1];
-        
-        args[0] = className;
-        System.arraycopy(params, 0, args, 1, params.length);
-        
-        indent(depth);
-        switch (loggingLevel) {
-            case SIMPLE:
-                System.out.printf(INFO_FORMAT_STRINGS_SIMPLE.get(className), args);
-                break;
-            case VERBOSE:
-                System.out.printf(INFO_FORMAT_STRINGS_VERBOSE.get(className), args);
-                break;
-        }
-    }
-    
-    private static boolean isPrintableCodePoint(int codePoint, boolean charClass) {
-        switch (Character.getType(codePoint)) {
-            case Character.CONTROL: // Cc
-            case Character.FORMAT: // Cf
-            case Character.PRIVATE_USE: // Co
-            case Character.SURROGATE: // Cs
-                // Surrogate pair does not belong to Cs category, since we are working on code point
-            case Character.UNASSIGNED: // Cn
-                
-            case Character.LINE_SEPARATOR: // Zl
-            case Character.PARAGRAPH_SEPARATOR: // Zp
-            case Character.SPACE_SEPARATOR: // Zs
-                return false;
-            case Character.NON_SPACING_MARK: // Mn
-            case Character.COMBINING_SPACING_MARK: // Mc
-            case Character.ENCLOSING_MARK: // Me
-                return !charClass;
-            default:
-                return true;
-        }
-    }
-    
-    private static String codePointToString(int codePoint) {
-        int a[] = {codePoint};
-        return new String(a, 0, a.length);
-    }
-    
-    
-    private static void indent(int levels) {
-        if (levels > 0)
-            System.out.print(new String(new char[levels * 2]).replace('\0', ' '));
-    }
-    
     private static int[] processBitClass(boolean[] bits) {
         assert bits.length <= 256;
         
@@ -329,166 +160,132 @@ class PatternDissector {
         return Arrays.copyOf(arr, p);
     }
     
-    private static void printCodePoints(int depth, int[] codePoints, boolean charClass) {
-        switch (loggingLevel) {
-            case VERBOSE:
-            case SIMPLE:
-                indent(depth + 1);
-                for (int cp: codePoints) {
-                    if (isPrintableCodePoint(cp, charClass)) {
-                        System.out.print(codePointToString(cp));
-                    } else {
-                        System.out.printf("\\u{%04X}", cp);
-                    }
-                }
-                System.out.println(); 
-                /*
-            case SIMPLE:
-                indent(depth + 1);
-                for (int cp: codePoints) {
-                    System.out.printf("[U+%04X]", cp);
-                }
-                System.out.println();
-                */
-        }
-    }
-    
     // private static String getCtypeName(int type) {
     
-    private static final Map<Integer, String> CTYPE_NAME;
+    /**
+     * Names of the ctype constants, loaded on the first Ctype node.
+     */
+    private static final class CtypeNames {
+        static final Map<Integer, String> BY_VALUE = RegexLayout.ctypeNames();
+    }
     
-    static {
-        Class<?> asciiClass;
-        try {
-            asciiClass = Class.forName("java.util.regex.ASCII");
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException("Unexpected implementation of java.util.regex package");
-        }
-        
-        Map<Integer, String> m = new HashMap<Integer, String>();
-        
-        Field[] typeConstants = asciiClass.getDeclaredFields();
-        
-        try {
-            for (Field f: typeConstants) {
-                if (Integer.TYPE.isAssignableFrom(f.getType()) && Modifier.isStatic(f.getModifiers())) {
-                    f.setAccessible(true);
-                    m.put(f.getInt(asciiClass), f.getName());
-                }
+    /**
+     * Value of the constant of java.util.regex.ASCII with the given name, e.g. DIGIT.
+     *
+     * @return -1 if there is no such constant
+     */
+    static int ctype(String name) {
+        for (Map.Entry<Integer, String> e: CtypeNames.BY_VALUE.entrySet()) {
+            if (e.getValue().equals(name)) {
+                return e.getKey();
             }
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
         }
         
-        CTYPE_NAME = Collections.unmodifiableMap(m);
+        return -1;
     }
     
     private static final String UNKNOWN_DECLARED_FIELD_FORMAT = "DEBUG: Unknown field in anonymous CharProperty: %s\n";
     
     private static void checkUnusedNextNode(Object node) throws IllegalAccessException {
-        if (!Node.isAssignableFrom(node.getClass())) {
+        if (!NodeAccessors.NODE.isAssignableFrom(node.getClass())) {
             throw new IllegalArgumentException("Instance of Pattern$Node or its subclass expected");
         }
         
-        Field acceptField = getDeclaredField(Pattern.class, "accept");
-        Object accept = acceptField.get(Pattern.class);
-        
-        Field nextField = getDeclaredField(Node, "next");
-        Object nextNode = nextField.get(node);
+        Object nextNode = NodeAccessors.get(NodeAccessors.NODE_NEXT, node);
         
-        if (accept != nextNode) {
+        if (NodeAccessors.ACCEPT != nextNode) {
             throw new InternalError("Pattern.accept expected");
         }
     }
     
-    private static void dissectCharProp(int depth, boolean outerCharProp, Object node) throws IllegalAccessException {
-        Class<?> charPropClass = patterns.get("CharProperty");
+    static DissectedNode decodeCharProp(boolean outerCharProp, Object node) throws IllegalAccessException {
+        Class<?> charPropClass = NodeAccessors.CHAR_PROPERTY;
         
         if (!charPropClass.isInstance(node)) {
             throw new InternalError("CharProperty object expected");
         }
         
         Class<?> clazz = node.getClass();
+        int id = node.hashCode();
+        DissectedNode result;
        
         if (clazz.isAnonymousClass()) {
-            Class<?> enclosingClass = clazz.getEnclosingClass();
-            Method enclosingMethod = clazz.getEnclosingMethod();
-                      
-            String methodName = enclosingClass.getSimpleName() + "." + enclosingMethod.getName();
+            NodeAccessors.CharPropertyLayout layout = NodeAccessors.charPropertyLayout(clazz);
+            
+            // Null for the classes of field initializers, e.g. the CloneableProperty of \p{javaLowerCase}
+            String methodName = layout.methodName != null ? layout.methodName : "";
             
             switch (methodName) {
                 case "CharProperty.complement":
                 case "Pattern.union":
                 case "Pattern.intersection":
-                    info(depth, methodName);
-                    
-                    for (Field f: clazz.getDeclaredFields()) {
-                        if (charPropClass.isAssignableFrom(f.getType())) {
-                            f.setAccessible(true);
-                            
-                            Object innerNode = f.get(node);
+                    {
+                        List<DissectedNode> operands = new ArrayList<DissectedNode>();
+                        
+                        for (MethodHandle operand: layout.operands) {
+                            Object innerNode = NodeAccessors.get(operand, node);
                             
-                            dissectCharProp(depth + 1, false, innerNode);
-                        } else {
-                            System.out.printf(UNKNOWN_DECLARED_FIELD_FORMAT, f.getName());
+                            operands.add(decodeCharProp(false, innerNode));
+                        }
+                        
+                        for (String fieldName: layout.unknownFields) {
+                            operands.add(new DissectedNode.Debug(String.format(UNKNOWN_DECLARED_FIELD_FORMAT, fieldName).trim()));
                         }
+                        
+                        result = new DissectedNode.SetOperation(DissectedNode.Kind.of(methodName), id, operands);
                     }
-                    
                     break;
                 case "Pattern.setDifference":
-                    info(depth, methodName);
-                    
-                    Object lhs = getDeclaredField(clazz, "val$lhs").get(node);
-                    dissectCharProp(depth + 1, false, lhs);
-                    
-                    Object rhs = getDeclaredField(clazz, "val$rhs").get(node);
-                    dissectCharProp(depth + 1, false, rhs);
-                    
+                    {
+                        List<DissectedNode> operands = new ArrayList<DissectedNode>(2);
+                        
+                        Object lhs = NodeAccessors.get(layout.lhs, node);
+                        operands.add(decodeCharProp(false, lhs));
+                        
+                        Object rhs = NodeAccessors.get(layout.rhs, node);
+                        operands.add(decodeCharProp(false, rhs));
+                        
+                        result = new DissectedNode.SetOperation(DissectedNode.Kind.SET_DIFFERENCE, id, operands);
+                    }
                     break;
                 case "Pattern.rangeFor":
-                    int lower = getDeclaredField(clazz, "val$lower").getInt(node);
-                    int upper = getDeclaredField(clazz, "val$upper").getInt(node);
+                    int lower = NodeAccessors.getInt(layout.lower, node);
+                    int upper = NodeAccessors.getInt(layout.upper, node);
                     
-                    info(depth, methodName, lower, upper);
-
+                    result = new DissectedNode.Range(id, lower, upper);
                     break;
                 default:
-                    System.out.println("DEBUG charProp: " + enclosingMethod);
-                    System.out.println("DEBUG charProp: " + enclosingMethod.getName());
-                    System.out.println("DEBUG charProp: " + enclosingMethod.getName());
+                    result = new DissectedNode.Debug(id, "DEBUG charProp: " + (layout.methodName != null ? layout.methodName : clazz.getName()), node);
             }
         } else {
-            String nodeName = clazz.getSimpleName();
+            String nodeName = NodeAccessors.simpleName(clazz);
             
             switch (nodeName) {
                 case "Dot":
                 case "All":
                 case "UnixDot":
-                    info(depth, nodeName);
+                    result = new DissectedNode.Simple(DissectedNode.Kind.of(nodeName), id);
                     break;
                 case "Ctype":
-                    int ctype = getDeclaredField(node.getClass(), "ctype").getInt(node);
+                    int ctype = NodeAccessors.getInt(NodeAccessors.CTYPE_CTYPE, node);
                     
-                    info(depth, nodeName, CTYPE_NAME.get(ctype));
+                    result = new DissectedNode.Ctype(id, ctype, CtypeNames.BY_VALUE.get(ctype));
                     break;
                 case "BitClass":  
-                    boolean[] bits = (boolean[]) getDeclaredField(node.getClass(), "bits").get(node);
+                    boolean[] bits = (boolean[]) NodeAccessors.get(NodeAccessors.BIT_CLASS_BITS, node);
                     int codePoints[] = processBitClass(bits);
                     
-                    info(depth, nodeName, codePoints.length);
-                    printCodePoints(depth, codePoints, true);
+                    result = new DissectedNode.BitClass(id, codePoints);
                     break;
                     case "SingleS":
                 case "Single":
-                    Class<?> singleClass = patterns.get(nodeName);
+                    MethodHandle singleCodePoint = nodeName.equals("Single") ? NodeAccessors.SINGLE_C : NodeAccessors.SINGLE_S_C;
 
-                    int codePoint = getDeclaredField(singleClass, "c").getInt(node);
+                    int codePoint = NodeAccessors.getInt(singleCodePoint, node);
                     
-                    info(depth, nodeName, codePoint, Character.getName(codePoint));
+                    result = new DissectedNode.Single(DissectedNode.Kind.of(nodeName), id, codePoint);
                     break;
                 case "SingleU":
-                    Class<?> singleUClass = patterns.get(nodeName);
-                    
                     /*
                      * The character passed to SingleU has gone through toLowerCase(toUpperCase())
                      * and the character being tested in isSatisfiedBy() also go through the same 
@@ -503,12 +300,12 @@ class PatternDissector {
                      * Java Pattern class is in accordance to Unicode Regular Expression (UTS #18),
                      * since it supports simple (1:1 case folding), case-insensitive matching.
                      */
-                    int lowercaseCodePoint = getDeclaredField(singleUClass, "lower").getInt(node);
-                    info(depth, nodeName, lowercaseCodePoint, Character.getName(lowercaseCodePoint));
+                    int lowercaseCodePoint = NodeAccessors.getInt(NodeAccessors.SINGLE_U_LOWER, node);
+                    
+                    result = new DissectedNode.Single(DissectedNode.Kind.SINGLE_U, id, lowercaseCodePoint);
                     break;
                 default:
-                    indent(depth);
-                    System.out.println("DEBUG charProp: " + clazz.getName());
+                    result = new DissectedNode.Debug(id, "DEBUG charProp: " + clazz.getName(), node);
             }
         }
         
@@ -516,324 +313,210 @@ class PatternDissector {
             checkUnusedNextNode(node);
         }
         
-        // System.out.println(Arrays.toString(currNode.getClass().getDeclaredFields()));
+        return result;
     }
     
-    static class Work {
-        int depth;
-        Object node;
-        Object inloop;
-        Object branchConn;
-        
-        @SuppressWarnings("unchecked")
-        Work(int depth, Object node, Object inloop, Object branchConn) {
-            this.depth = depth;
-            
-            if (!Node.isAssignableFrom(node.getClass())) {
-                throw new IllegalArgumentException("Object of Pattern.Node class or subclass expected");
+    /**
+     * Builds the decoded sequences from the visits of NodeTraversal. A node is appended to the
+     * sequence on top of the stack, and the nested sequences of a node are pushed until they
+     * are left.
+     */
+    private static final class DecodingVisitor implements NodeVisitor {
+        private final Deque<List<DissectedNode>> sequences = new ArrayDeque<List<DissectedNode>>();
+        /** Alternatives of the Branches whose last alternative has not been started */
+        private final Deque<List<List<DissectedNode>>> branches = new ArrayDeque<List<List<DissectedNode>>>();
+        
+        DecodingVisitor(List<DissectedNode> rootSequence) {
+            sequences.push(rootSequence);
+        }
+        
+        private void add(DissectedNode node) {
+            sequences.peek().add(node);
+        }
+        
+        /**
+         * Append a node which owns a nested sequence, and push the nested sequence.
+         */
+        private void enter(DissectedNode node, List<DissectedNode> nested) {
+            add(node);
+            sequences.push(nested);
+        }
+        
+        @Override
+        public void visitStart(Object node, DissectedNode.Kind kind, int minLength) {
+            add(new DissectedNode.Start(kind, node.hashCode(), minLength));
+        }
+        
+        @Override
+        public void visitSimple(Object node, DissectedNode.Kind kind) {
+            add(new DissectedNode.Simple(kind, node.hashCode()));
+        }
+        
+        @Override
+        public void visitDollar(Object node, DissectedNode.Kind kind, boolean multiline) {
+            add(new DissectedNode.Dollar(kind, node.hashCode(), multiline));
+        }
+        
+        @Override
+        public void visitSlice(Object node, DissectedNode.Kind kind, int[] buffer, int lengthInChars) {
+            /*
+             * Due to a bug in BnM class static optimize() function, BnMS class will
+             * never be created.
+             *
+             * https://bugs.openjdk.java.net/browse/JDK-8035076
+             *
+             * Issue fixed and will be available in Java 9.
+             */
+            add(new DissectedNode.Literal(kind, node.hashCode(), buffer, lengthInChars));
+        }
+        
+        @Override
+        public boolean visitBranch(Object node, int size) {
+            List<List<DissectedNode>> alternatives = new ArrayList<List<DissectedNode>>(size);
+            for (int i = 0; i < size; i++) {
+                alternatives.add(new ArrayList<DissectedNode>());
             }
-            this.node = node;
             
-            if (inloop != null && !patterns.get("Loop").isAssignableFrom(inloop.getClass())) {
-                throw new IllegalArgumentException("Object of Pattern.Loop class expected");
+            add(new DissectedNode.Branch(node.hashCode(), alternatives));
+            
+            if (size > 0) {
+                branches.push(alternatives);
             }
-            this.inloop = inloop;
+            return true;
+        }
+        
+        @Override
+        public void visitAlternative(Object branch, int index) {
+            List<List<DissectedNode>> alternatives = branches.peek();
             
-            if (branchConn != null && !patterns.get("BranchConn").isAssignableFrom(branchConn.getClass())) {
-                throw new IllegalArgumentException("Object of Pattern.BranchConnection class expected");
+            // The Branches nested in the last alternative are then on top
+            if (index == alternatives.size() - 1) {
+                branches.pop();
             }
-            this.branchConn = branchConn;
+            
+            sequences.push(alternatives.get(index));
         }
         
-        Work(int depth, Object node) {
-            this(depth, node, null, null);
+        @Override
+        public void visitBranchConn(Object node, boolean endOfAlternative) {
+            /**
+             * Copied from source code:
+             *
+             *   A Guard node at the end of each atom node in a Branch. It
+             *   serves the purpose of chaining the "match" operation to
+             *   "next" but not the "study", so we can collect the TreeInfo
+             *   of each atom node without including the TreeInfo of the
+             *   "next".
+             *
+             * Chain "next", but not chain "study".
+             */
+            add(new DissectedNode.BranchConn(node.hashCode(), endOfAlternative));
         }
-    }
-    
-    private static void dissectNode(int initDepth, Object rootNode) throws IllegalAccessException { 
-        Field nextField = getDeclaredField(Node, "next");
         
-        Stack<Work> workStack = new Stack<Work>();
-        workStack.push(new Work(initDepth, rootNode));
+        @Override
+        public void visitBackRef(Object node, int groupIndex) {
+            add(new DissectedNode.BackRef(node.hashCode(), groupIndex));
+        }
         
-        while (!workStack.isEmpty()) {
-            Work work = workStack.pop();
-            
-            int depth = work.depth;
-            Object node = work.node;
-            Object inloop = work.inloop;
-            Object branchConn = work.branchConn;
-            
-            if (node == null) {
-                System.out.println("(DEBUG) null node");
-                continue;
-            }
+        @Override
+        public boolean visitLookaround(Object node, DissectedNode.Kind kind, int rmin, int rmax) {
+            List<DissectedNode> condSequence = new ArrayList<DissectedNode>();
             
-            Class<?> clazz = node.getClass();
-            String nodeName = clazz.getSimpleName();
+            enter(new DissectedNode.Lookaround(kind, node.hashCode(), rmin, rmax, condSequence), condSequence);
+            return true;
+        }
+        
+        @Override
+        public boolean visitCurly(Object node, int type, int cmin, int cmax) {
+            List<DissectedNode> atomSequence = new ArrayList<DissectedNode>();
             
-            Object nextNode = nextField.get(node);
-            if (nextNode != null) {
-                workStack.push(new Work(depth, nextNode, inloop, branchConn));
-            }
+            enter(new DissectedNode.Curly(DissectedNode.Kind.CURLY, node.hashCode(), type, cmin, cmax, false, 0, 0, atomSequence), atomSequence);
+            return true;
+        }
+        
+        @Override
+        public boolean visitGroupCurly(Object node, int type, int cmin, int cmax, boolean capture, int localIndex, int groupIndex) {
+            List<DissectedNode> atomSequence = new ArrayList<DissectedNode>();
             
-            // System.out.println("Pushed " + workStack.peek());
+            enter(new DissectedNode.Curly(DissectedNode.Kind.GROUP_CURLY, node.hashCode(), type, cmin, cmax, capture, localIndex, groupIndex, atomSequence), atomSequence);
+            return true;
+        }
+        
+        @Override
+        public void visitGroupHead(Object node, int localIndex) {
+            add(new DissectedNode.GroupHead(node.hashCode(), localIndex));
+        }
+        
+        @Override
+        public void visitGroupTail(Object node, int localIndex, int groupIndex) {
+            Object nextNode = NodeAccessors.get(NodeAccessors.NODE_NEXT, node);
             
-            // System.out.println("Loop " + node + " " + nextNode + " " + inloop + " " + branchConn);
+            add(new DissectedNode.GroupTail(node.hashCode(), localIndex, groupIndex, NodeAccessors.simpleName(nextNode.getClass()), nextNode.hashCode()));
+        }
+        
+        @Override
+        public void visitProlog(Object node) {
+            // Prolog( [Lazy|LazyLoop] )
+            // Hoist the node inside back one level
+            // Should have been depth + 1
+            add(new DissectedNode.Simple(DissectedNode.Kind.PROLOG, node.hashCode()));
+        }
+        
+        @Override
+        public boolean visitLoop(Object node, DissectedNode.Kind kind, int cmin, int cmax) {
+            // Reached again at the end of the body, as a Reference
+            List<DissectedNode> bodySequence = new ArrayList<DissectedNode>();
             
-            switch (nodeName) {
-                case "Start":
-                case "StartS":
-                    Class<?> startClass = patterns.get("Start");
-                    int minLength = getDeclaredField(startClass, "minLength").getInt(node);
-                        
-                    info(depth, nodeName, minLength);
-                    break;
-                case "Caret":
-                case "UnixCaret":
-                case "Begin":
-                case "End":
-                case "LastMatch":
-                    info(depth, nodeName);
-                    break;
-                case "Dollar":
-                case "UnixDollar":
-                    Class<?> dollarClass = patterns.get(nodeName);
-                    boolean multiline = getDeclaredField(dollarClass, "multiline").getBoolean(node);
-                    
-                    info(depth, nodeName + "(multiline=" + multiline + ")");
-                    break;
-                case "Node":
-                    /**
-                     * By default, Node will just accept the match.
-                     * 
-                     * getSimpleName returns empty string for anonymous class, so we don't have
-                     * to worry about misidentification.
-                     */
-                    
-                    if (nextNode != null) {
-                        throw new AssertionError("Pure Pattern.Node object doesn't use next node");
-                    }
-                    
-                    info(depth, nodeName);
-                    break;
-                
-                case "Slice":
-                case "SliceS":
-                    {
-                        Class<?> sliceNodeClass = patterns.get("SliceNode");
-                        int[] buffer = (int[]) getDeclaredField(sliceNodeClass, "buffer").get(node);
-                        
-                        info(depth, nodeName);
-                        printCodePoints(depth, buffer, false);
-                    }
-                    break;
-                case "BnMS":
-                case "BnM":
-                    {
-                        int[] buffer = (int[]) getDeclaredField(patterns.get("BnM"), "buffer").get(node);
-                        
-                        /*
-                         * Due to a bug in BnM class static optimize() function, BnMS class will
-                         * never be created.
-                         * 
-                         * https://bugs.openjdk.java.net/browse/JDK-8035076 
-                         * 
-                         * Issue fixed and will be available in Java 9.
-                         */
-                        if (nodeName.equals("BnMS")) {
-                            int lengthInChars = getDeclaredField(patterns.get("BnMS"), "lengthInChars").getInt(node);
-                            
-                            info(depth, nodeName, buffer.length, lengthInChars);
-                        } else {
-                            info(depth, nodeName, buffer.length);
-                        }
-                        
-                        printCodePoints(depth, buffer, false);
-                    }
-                    break;
-                case "Branch":
-                    Class<?> branchClass = patterns.get(nodeName);
-                    
-                    Object[] nodes = (Object[]) getDeclaredField(branchClass, "atoms").get(node);
-                    int size = getDeclaredField(branchClass, "size").getInt(node);
-                    Object conn = getDeclaredField(branchClass, "conn").get(node);
-                    
-                    // Branch class never uses next node for matching
-                    workStack.pop(); // TODO: assert next node = accept
-                    
-                    // printObjectTree(conn);
-                    
-                    info(depth, nodeName, size);
-                    
-                    // System.out.println("nxt" + nextNode.getClass() + " " + nextNode);
-                    workStack.push(new Work(depth, conn, inloop, branchConn));
-                    
-                    for (int i = size - 1; i >= 0; i--) {
-                        workStack.push(new Work(depth + 1, nodes[i], inloop, conn));
-                    }
-                    
-                    break;
-                case "BranchConn":
-                    /**
-                     * Copied from source code:
-                     * 
-                     *   A Guard node at the end of each atom node in a Branch. It
-                     *   serves the purpose of chaining the "match" operation to
-                     *   "next" but not the "study", so we can collect the TreeInfo
-                     *   of each atom node without including the TreeInfo of the
-                     *   "next".
-                     * 
-                     * Chain "next", but not chain "study".
-                     */
-                    
-                    if (node == branchConn) {
-                        // Prevent duplicate printing, since BranchConn connects to the next node
-                        workStack.pop(); 
-                        
-                        indent(depth);
-                        System.out.println("---");
-                    } else {
-                        info(depth, nodeName); 
-                    }
-                    
-                    break;
-                case "BackRef":
-                    {
-                        Class<?> backRefClass = patterns.get(nodeName);
-                        int groupIndex = getDeclaredField(backRefClass, "groupIndex").getInt(node);
-                        
-                        info(depth, nodeName, groupIndex);
-                    }
-                    break;
-                case "Pos":
-                case "Neg":
-                    {
-                        Class<?> posClass = patterns.get(nodeName);
-                        Object cond = getDeclaredField(posClass, "cond").get(node);
-                        
-                        workStack.push(new Work(depth + 1, cond, null, branchConn));
-                        
-                        info(depth, nodeName);
-                    }
-                    break;  
-                case "Behind":
-                    {
-                        Class<?> behindClass = patterns.get(nodeName);
-                        Object cond = getDeclaredField(behindClass, "cond").get(node);
-                        int rmin = getDeclaredField(behindClass, "rmin").getInt(node);
-                        int rmax = getDeclaredField(behindClass, "rmax").getInt(node);
-                        
-                        workStack.push(new Work(depth + 1, cond, null, branchConn));
-                        
-                        info(depth, nodeName, -rmax, -rmin);
-                    }   
-                    break;
-                case "Curly":
-                    {
-                        Class<?> curlyClass = patterns.get(nodeName);
-                        Object atom = getDeclaredField(curlyClass, "atom").get(node);
-                        int type = getDeclaredField(curlyClass, "type").getInt(node);
-                        int cmin = getDeclaredField(curlyClass, "cmin").getInt(node);
-                        int cmax = getDeclaredField(curlyClass, "cmax").getInt(node);
-                        
-                        workStack.push(new Work(depth + 1, atom, inloop, branchConn));
-                        
-                        info(depth, nodeName, QUANTIFIER.values()[type].name, cmin, cmax);
-                        // System.out.println("DEBUG node: " + clazz.getName());
-                    }
-                    break;
-                case "GroupCurly":
-                    {        
-                        Class<?> groupCurlyClass = patterns.get(nodeName);
-                        Object atom = getDeclaredField(groupCurlyClass, "atom").get(node);
-                        int type = getDeclaredField(groupCurlyClass, "type").getInt(node);
-                        int cmin = getDeclaredField(groupCurlyClass, "cmin").getInt(node);
-                        int cmax = getDeclaredField(groupCurlyClass, "cmax").getInt(node);
-                        boolean capture = getDeclaredField(groupCurlyClass, "capture").getBoolean(node);
-                        
-                        workStack.push(new Work(depth + 1, atom, inloop, branchConn));
-                        
-                        info(depth, nodeName, type, cmin, cmax, capture);
-                    }
-                    break;
-                case "GroupHead":
-                    {
-                        Class<?> groupHeadClass = patterns.get(nodeName);
-                        int localIndex = getDeclaredField(groupHeadClass, "localIndex").getInt(node);
-                        
-                        info(depth, nodeName, localIndex);
-                    }
-                    break;
-                case "GroupTail":
-                    {
-                        Class<?> groupTailClass = patterns.get(nodeName);
-                        int localIndex = getDeclaredField(groupTailClass, "localIndex").getInt(node);
-                        int groupIndex = getDeclaredField(groupTailClass, "groupIndex").getInt(node);
-                        
-                        if (nextNode == work.inloop) {
-                            workStack.pop();
-                        } 
-                        
-                        info(depth, nodeName, node.hashCode(), localIndex, groupIndex, nextNode.getClass().getSimpleName(), nextNode.hashCode());
-                    }
-                    break;
-                case "Prolog":
-                    {
-                        // Prolog( [Lazy|LazyLoop] )
-                        Class<?> prologClass = patterns.get(nodeName);
-                        Object loop = getDeclaredField(prologClass, "loop").get(node);
-                        
-                        // Prolog never uses next node for matching
-                        workStack.pop();
-                        
-                        // Hoist the node inside back one level
-                        // Should have been depth + 1
-                        workStack.push(new Work(depth, loop, inloop, branchConn));
-                        
-                        // System.out.println(clazz.getName());
-                        info(depth, nodeName);
-                    }
-                    break;
-                case "Loop":
-                case "LazyLoop":
-                    {
-                        // Loop
-                        Class<?> loopClass = patterns.get("Loop");
-                        Object body = getDeclaredField(loopClass, "body").get(node);
-                        int cmin = getDeclaredField(loopClass, "cmin").getInt(node);
-                        int cmax = getDeclaredField(loopClass, "cmax").getInt(node);
-                        
-                        
-                        if (node != inloop) {
-                            workStack.push(new Work(depth + 1, body, node, branchConn));
-                            info(depth, nodeName, node.hashCode(), cmin, cmax);
-                        } else {
-                            System.out.println("--> " + node);
-                        }
-                        
-                        // System.out.println(clazz.getName());
-                    }
-                    break;
-                default:
-                    if (patterns.get("CharProperty").isInstance(node)) {
-                        dissectCharProp(depth, true, node);
-                        // System.out.println(nodeName);
-                        // System.out.println(node.getClass());
-                    } else {
-                        indent(depth);
-                        // System.out.println("DEBUG node: " + clazz.getName());
-                        System.out.println(clazz.getName());
-                    }
+            enter(new DissectedNode.Loop(kind, node.hashCode(), cmin, cmax, bodySequence), bodySequence);
+            return true;
+        }
+        
+        @Override
+        public void visitCharClass(Object node) {
+            try {
+                add(decodeCharProp(true, node));
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        
+        @Override
+        public void visitReference(Object node) {
+            add(new DissectedNode.Reference(node.hashCode(), node.toString()));
+        }
+        
+        @Override
+        public void visitUnknown(Object node) {
+            if (node == null) {
+                add(new DissectedNode.Debug("(DEBUG) null node"));
+            } else {
+                add(new DissectedNode.Unknown(node.hashCode(), node.getClass().getName()));
             }
         }
+        
+        @Override
+        public void leave(Object node) {
+            sequences.pop();
+        }
     }
     
-    private static Method printObjectTreeMethod = getDeclaredMethod(Pattern.class, "printObjectTree", Node);
+    private static final ThreadLocal<NodeTraversal> TRAVERSAL = new ThreadLocal<NodeTraversal>() {
+        @Override
+        protected NodeTraversal initialValue() {
+            return new NodeTraversal();
+        }
+    };
+    
+    /**
+     * Decode the graph from the root node, as visited by NodeTraversal.
+     */
+    private static void decodeNode(Object rootNode, List<DissectedNode> rootSequence) {
+        TRAVERSAL.get().traverse(rootNode, new DecodingVisitor(rootSequence));
+    }
     
     private static void printObjectTree(Object node) {
         try {
-            printObjectTreeMethod.invoke(Pattern.class, node);
+            getDeclaredMethod(Pattern.class, "printObjectTree", NodeAccessors.NODE).invoke(Pattern.class, node);
         } catch (InvocationTargetException e) {
             throw new RuntimeException(e);
         } catch (IllegalAccessException e) {
@@ -841,20 +524,77 @@ class PatternDissector {
         }
     }
     
-    public static void dissect(Pattern pattern) throws IllegalAccessException {
-        Object rootNode = getDeclaredField(Pattern.class, "root").get(pattern);
-
-        System.out.println(pattern.toString());
+    /**
+     * Decode the node graph of the compiled pattern, without printing anything.
+     */
+    public static DissectedPattern decode(Pattern pattern) throws IllegalAccessException {
+        return decode(pattern, pattern.flags());
+    }
+    
+    private static DissectedPattern decode(Pattern pattern, int flags) throws IllegalAccessException {
+        DissectorMetrics.Measurement measurement = DissectorMetrics.begin();
+        Object rootNode = NodeAccessors.get(NodeAccessors.PATTERN_ROOT, pattern);
+        String normalizedPattern = null;
         
         if ((pattern.flags() & Pattern.CANON_EQ) != 0) {
-            String normalizedPattern = (String) getDeclaredField(Pattern.class, "normalizedPattern").get(pattern);
-            System.out.println(normalizedPattern);
+            normalizedPattern = (String) NodeAccessors.get(NodeAccessors.PATTERN_NORMALIZED_PATTERN, pattern);
         }
         
-        // printObjectTree(rootNode);
-        dissectNode(0, rootNode);
+        if (measurement != null) {
+            measurement.end(DissectorMetrics.Phase.EXTRACT, pattern.pattern(), flags, -1);
+            measurement = DissectorMetrics.begin();
+        }
+        
+        List<DissectedNode> nodes = new ArrayList<DissectedNode>();
+        decodeNode(rootNode, nodes);
+        
+        DissectedPattern result = DissectedPattern.compiled(pattern.toString(), flags, normalizedPattern, nodes);
+        
+        if (measurement != null) {
+            measurement.end(DissectorMetrics.Phase.TRAVERSE, pattern.pattern(), flags, result.nodeCount());
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Compile and decode the pattern. A pattern which fails to compile is reported in the result
+     * instead of throwing PatternSyntaxException.
+     */
+    public static DissectedPattern decode(String pattern, int flags) throws IllegalAccessException {
+        DissectorMetrics.Measurement measurement = DissectorMetrics.begin();
+        Pattern compiled;
+        try {
+            compiled = Pattern.compile(pattern, flags);
+        } catch (PatternSyntaxException e) {
+            return DissectedPattern.failed(pattern, flags, e);
+        } finally {
+            if (measurement != null) {
+                measurement.end(DissectorMetrics.Phase.COMPILE, pattern, flags, -1);
+            }
+        }
         
-        System.out.println();
+        return decode(compiled, flags);
+    }
+    
+    private static final ThreadLocal<DissectionRenderer> RENDERER = new ThreadLocal<DissectionRenderer>() {
+        @Override
+        protected DissectionRenderer initialValue() {
+            return new DissectionRenderer(loggingLevel);
+        }
+    };
+    
+    private static void render(DissectedPattern result, boolean printFlags) {
+        try {
+            RENDERER.get().render(result, printFlags, System.out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    public static void dissect(Pattern pattern) throws IllegalAccessException {
+        // printObjectTree(rootNode);
+        render(decode(pattern), false);
     }
     
     public static void dissect(String pattern) throws IllegalAccessException {
@@ -870,15 +610,7 @@ class PatternDissector {
      * - https://bugs.openjdk.java.net/browse/JDK-7080302
      */
     public static void dissect(String pattern, int flags) throws IllegalAccessException {
-        try {
-            dissect(Pattern.compile(pattern, flags));
-            System.out.println("Flags: " + flags);
-        } catch (PatternSyntaxException e) {
-            System.out.println(pattern);
-            System.out.println(getDeclaredField(PatternSyntaxException.class, "pattern").get(e));
-            System.out.println("Compilation failed: " + getDeclaredField(PatternSyntaxException.class, "desc").get(e));
-            System.out.println();
-        }
+        render(decode(pattern, flags), true);
     }
     
     private static void testAnchors() throws IllegalAccessException {
@@ -1061,7 +793,236 @@ class PatternDissector {
         dissect("^((a*)+|(a*(a|b)+)+|(a|(b(f|er)*|c)+){2,})$");
     }
     
+    /**
+     * Check the members of the character class of the pattern against Pattern.matches() on
+     * every code point.
+     */
+    private static void checkMembers(String regex) throws IllegalAccessException {
+        Pattern pattern = Pattern.compile(regex);
+        // The character class follows Start
+        CodePointSet members = CodePointSet.resolve(decode(pattern).nodes().get(1));
+        
+        if (members == null) {
+            System.out.println(regex + ": members not resolved");
+            return;
+        }
+        
+        Matcher matcher = pattern.matcher("");
+        
+        for (int c = 0; c <= Character.MAX_CODE_POINT; c++) {
+            if (matcher.reset(new String(Character.toChars(c))).matches() != members.contains(c)) {
+                System.out.println(String.format("%s: differs from Pattern.matches() on U+%04X", regex, c));
+                return;
+            }
+        }
+        
+        System.out.println(regex + ": " + members.size() + " code points, same as Pattern.matches()");
+    }
+    
+    private static void testCodePointSet() throws IllegalAccessException {
+        checkMembers("[a[^b[c[^d]e]f]g]");
+        checkMembers("[\\a-\\f]");
+        checkMembers("[^\\\\\"]");
+        
+        checkMembers("\\w");
+        checkMembers("\\S");
+        checkMembers("\\p{Punct}");
+        checkMembers("\\p{L}");
+        checkMembers("(?i)k");
+        checkMembers("(?iu)\u03c2");
+        
+        checkMembers("[^[^[^0-9]]]");
+        checkMembers("[^[^[^[^0-9]]]2]");
+        checkMembers("[^2[^[^0-9]]]");
+        checkMembers("[^45[^67\\D]]");
+        checkMembers("[^3[^25-6]]");
+        checkMembers("[a-z&&[^bc]]");
+        checkMembers("[^\\w\\d\\s]");
+        
+        checkMembers("[^^a&&^g]");
+        checkMembers("[a-z\\p{Digit}\\w\u014d\u00c0\u00c1\u00c2\u014d]");
+        checkMembers("[^^a&&^g&&\\pL]");
+        checkMembers("[^abcde&&efghij]");
+        checkMembers("[^\\p{Alpha}a-c103&&^\\p{Alnum}g-p89&&\\p{Digit}A-R]");
+        checkMembers("[^[abc-f]gh&&[a-d]123p-z]");
+        checkMembers("[\\pN\\pL&&[\\pN\\pL]\\pM]");
+        checkMembers("[0-9a-z&&[01234-6][7-9abc]]");
+    }
+    
+    /**
+     * Check the matches of the interpreter against Matcher on every input.
+     */
+    private static void checkInterpreter(String regex, int flags, String... inputs) throws IllegalAccessException {
+        PatternInterpreter interpreter;
+        
+        try {
+            interpreter = new PatternInterpreter(decode(regex, flags));
+        } catch (IllegalArgumentException|UnsupportedOperationException e) {
+            System.out.println(regex + ": " + e.getMessage());
+            return;
+        }
+        
+        Pattern pattern = Pattern.compile(regex, flags);
+        
+        for (String input: inputs) {
+            String difference = interpreter.verify(pattern, input);
+            
+            if (difference != null) {
+                System.out.println(regex + ": differs from Matcher on \"" + input + "\": " + difference);
+                return;
+            }
+        }
+        
+        System.out.println(regex + ": same matches as Matcher, " + interpreter.steps() + " steps, " + interpreter.backtracks() + " backtracks");
+    }
+    
+    private static void testInterpreter() throws IllegalAccessException {
+        String[] quantifierInputs = {"", "@", "a@", "ab@", "a@b@c@d@e@", "ab@cd@efg@h@ij@", "a@b@c@d@e@f@", "a@@b@c@d@", "aa@b@c@d@e"};
+        
+        // testQuantifier
+        checkInterpreter("^([^@]+@)$", 0, quantifierInputs);
+        checkInterpreter("^[^@]+@[^@]+@[^@]+@[^@]+@[^@]+@$", 0, quantifierInputs);
+        checkInterpreter("^([^@]@){5}$", 0, quantifierInputs);
+        checkInterpreter("^(?:[^@]@){5}$", 0, quantifierInputs);
+        checkInterpreter("^(?:[^@]{2}@){5}$", 0, quantifierInputs);
+        checkInterpreter("^(?:[^@]{2,3}@){5}$", 0, quantifierInputs);
+        checkInterpreter("^(?:[^@]+@)*?$", 0, quantifierInputs);
+        checkInterpreter("^(?:[^@]+@)*$", 0, quantifierInputs);
+        checkInterpreter("^(?:[^@]+@){5}$", 0, quantifierInputs);
+        checkInterpreter("^(?:[^@]+@){5}+$", 0, quantifierInputs);
+        checkInterpreter("^(?:[^@]+@){5}?$", 0, quantifierInputs);
+        
+        String[] alternationInputs = {"", "a", "b", "aaaa", "aab", "abab", "bfer", "abferbc", "cbfbf", "aaaaaaaac"};
+        
+        // testNestedQuantifierAlternation
+        checkInterpreter("(((a*)+)*)+", 0, alternationInputs);
+        checkInterpreter("^(a*)+|(a*(a|b)+)+$", 0, alternationInputs);
+        checkInterpreter("^((a*)+|(a*(a|b)+)+|(a|(b(f|er)*|c)+){2,})$", 0, alternationInputs);
+        
+        String[] canonicalInputs = {"", "\u00fc", "u\u0308", "\u00fc\u00fcu\u0308", "\u00fc\u00fc )", "\u00ea\u0301\u1EBF", "e\u0302\u0301",
+                                    "\u1FA3\u03c9\u0314\u0301\u0345", "\ud55c\uad6d\uc5b4", "\u1100\u1161\u11ab", "A\u0300\u00dd", "\u1EBF\\"};
+        
+        // testJDK_8032926
+        checkInterpreter("\u00fc", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("\\u00fc", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("\\Q\u00fc\\E", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("\\Q\u00fc\u00fc\\E", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("((\u00fc\u00fc)", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("\u00fc\u00fc)", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("\u00fc\u00fc )", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("\u00fc\u00fc", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("\u00fc\\u00fc", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("\u00ea\u0301", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("\u1EBF", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("\u1EBF\u1EBF", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("\u1FA3", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("\ud55c\uad6d\uc5b4", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("[\u00fc]", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("[\u00c0-\u00dd]", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("[\u00c0\u00dd]", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("[\\u00c0-\\u00dd]", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("[[\u00c0-\u00dd]])", Pattern.CANON_EQ, canonicalInputs);
+        checkInterpreter("(\\Q\u1EBF\\\\E)", Pattern.CANON_EQ, canonicalInputs);
+    }
+    
+    /**
+     * Check every factored alternation of literals of the pattern against the original one.
+     */
+    private static void checkRewrites(String regex) throws IllegalAccessException {
+        List<TrieRewriter.Rewrite> rewrites = TrieRewriter.rewrites(decode(regex, 0));
+        
+        if (rewrites.isEmpty()) {
+            System.out.println(regex + ": no alternation of literals");
+        }
+        
+        for (TrieRewriter.Rewrite rewrite: rewrites) {
+            String difference = TrieRewriter.verify(rewrite, 0);
+            
+            System.out.println(rewrite.alternation + " => " + rewrite.factored
+                    + (difference == null ? "" : ": differs on \"" + difference.replace("\u0000", "\\u0000") + "\""));
+        }
+    }
+    
+    private static void testTrieRewriter() throws IllegalAccessException {
+        checkRewrites("(?:in|int|interface|internal)");
+        checkRewrites("\\b(?:if|in|int|instanceof|interface)\\b");
+        checkRewrites("(?:a|ab|abc|abcd)x");
+        checkRewrites("(?:do|double|done|d)");
+        checkRewrites("(?:fo|foo|foobar|f|bar)+");
+        checkRewrites("(?:abc|ab|abd|a)");
+    }
+    
+    /**
+     * Print the first backtracking risk found in the pattern, marked if it is not the expected
+     * outcome.
+     */
+    private static void checkRisk(String regex, boolean risky) throws IllegalAccessException {
+        List<BacktrackingAnalyzer.Finding> findings = BacktrackingAnalyzer.analyze(decode(regex, 0));
+        
+        System.out.println(regex + ": " + (findings.isEmpty() ? "no risk" : findings.get(0)) + (findings.isEmpty() == risky ? " (UNEXPECTED)" : ""));
+    }
+    
+    private static void testBacktrackingAnalyzer() throws IllegalAccessException {
+        checkRisk("(a|aa)+", true);
+        checkRisk("(\\w|\\d)+", true);
+        checkRisk("(ab|a\\w)+", true);
+        checkRisk("(a+)+b", true);
+        checkRisk("\\d+\\w+$", true);
+        
+        checkRisk("(a|ab)+", false);
+        checkRisk("(ab|ac)*", false);
+        checkRisk("(?:in|int|interface)+", false);
+        checkRisk("(?:foo|far|fox)+x", false);
+        checkRisk("[a-z]+\\d+", false);
+    }
+    
     public static void main(String args[]) {
+        if (args.length > 0 && args[0].startsWith("--")) {
+            String[] rest = Arrays.copyOfRange(args, 1, args.length);
+            int status;
+            
+            switch (args[0]) {
+                case "--batch":
+                    status = BatchDissector.run(rest);
+                    break;
+                case "--profile":
+                    status = NodeProfiler.run(rest);
+                    break;
+                case "--steps":
+                    status = PatternInterpreter.run(rest);
+                    break;
+                case "--bench":
+                    status = DissectorBenchmark.run(rest);
+                    break;
+                case "--export":
+                    status = GraphExporter.run(rest);
+                    break;
+                case "--diff":
+                    status = PatternDiff.run(rest);
+                    break;
+                case "--trie":
+                    status = TrieRewriter.run(rest);
+                    break;
+                case "--memory":
+                    status = MemoryEstimator.run(rest);
+                    break;
+                case "--scan":
+                    status = CorpusScanner.run(rest);
+                    break;
+                case "--serve":
+                    status = DissectorDaemon.run(rest);
+                    break;
+                default:
+                    System.err.println("Unknown mode: " + args[0] + ". Expected --batch, --profile, --steps, --bench, --export, --diff, --trie, --memory, --scan or --serve");
+                    status = 2;
+            }
+            
+            if (status != 0) {
+                System.exit(status);
+            }
+            return;
+        }
+        
         try {
             // testAnchors();
             // testSequence();
@@ -1072,6 +1033,11 @@ class PatternDissector {
             // testNamedCapturingGroup();
         	// testJDK_8032926();
             
+            testCodePointSet();
+            testInterpreter();
+            testTrieRewriter();
+            testBacktrackingAnalyzer();
+            
             dissect("[\\a-\\f]");
             dissect("[a[^b[c[^d]e]f]g]");
             dissect("[f]j");
@@ -1096,7 +1062,7 @@ class PatternDissector {
             // dissect("a{0,4294967297}");
             // dissect("^*$+");
             
-            // Cause dissect crash with NPE at Branch
+            // Empty alternative in a Branch (used to crash with NPE)
             // dissect("(\\Q\u1EBF\\\\E)?[\\w&&[\\p{L1}]\\p{Z}]+|\\1", Pattern.CANON_EQ);
             
             // dissect("(?x) .{0,2} | (?: (?=(\\2|^)) (?=(\\2\\3|^.)) (?=(\\1)) \\2)+ . ");
@@ -0,0 +1,1268 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Reference interpreter of a decoded pattern, which counts the node steps and the backtracks.
+ *
+ * The nodes are executed with the same algorithms as the match() methods of the JDK 8
+ * implementation, written in continuation-passing style: where a node calls next.match(),
+ * the interpreter calls the continuation of the sequence. A step is one node match() call, so
+ * the counts can be compared with the ones of NodeProfiler. A backtrack is a retry of a choice
+ * point with its next option: the next starting position of Start or BnM, the next alternative
+ * of Branch, one iteration less for a greedy quantifier (one more for a lazy one), the exit of
+ * a Loop whose next iteration failed, or the next starting position of a look-behind.
+ *
+ * The character classes which the dissector only knows by their predicate (e.g. Category,
+ * SingleI) are matched against their members, which are evaluated when the interpreter is
+ * created. Other nodes which the dissector does not decode (e.g. Ques, SliceI) cannot be
+ * executed, and are rejected when the interpreter is created. Regions, transparent and anchoring bounds
+ * of Matcher are not modeled: the whole input is matched, as with a fresh Matcher.
+ *
+ * An interpreter keeps the state of the current match, so it must not be shared between
+ * threads.
+ */
+final class PatternInterpreter {
+    
+    /**
+     * A match found by the interpreter.
+     */
+    static final class Match {
+        private final int[] groups;
+        
+        Match(int[] groups) {
+            this.groups = groups;
+        }
+        
+        int start() {
+            return groups[0];
+        }
+        
+        int end() {
+            return groups[1];
+        }
+        
+        int groupCount() {
+            return groups.length / 2 - 1;
+        }
+        
+        /**
+         * @return -1 if the group did not participate in the match
+         */
+        int start(int group) {
+            return groups[group * 2];
+        }
+        
+        int end(int group) {
+            return groups[group * 2 + 1];
+        }
+        
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("[").append(start()).append(", ").append(end()).append(")");
+            
+            for (int g = 1; g <= groupCount(); g++) {
+                sb.append(" ").append(g).append(":[").append(start(g)).append(", ").append(end(g)).append(")");
+            }
+            
+            return sb.toString();
+        }
+    }
+    
+    private interface Continuation {
+        boolean match(int i);
+    }
+    
+    private static final Continuation ACCEPT = new Continuation() {
+        @Override
+        public boolean match(int i) {
+            return true;
+        }
+    };
+    
+    private final DissectedPattern pattern;
+    private final int groupCount;
+    private final int localCount;
+    private final Map<Integer, boolean[]> ctypes = new HashMap<Integer, boolean[]>();
+    
+    private long steps;
+    private long backtracks;
+    private final Map<Integer, long[]> stepsById = new HashMap<Integer, long[]>();
+    
+    /*
+     * State of the current match, as in Matcher
+     */
+    private CharSequence seq;
+    private int to;
+    private int first;
+    private int last;
+    private int oldLast;
+    private boolean endAnchor;
+    private int lookbehindTo;
+    private int[] groups;
+    private int[] locals;
+    
+    /**
+     * @throws IllegalArgumentException if the pattern failed to compile
+     * @throws UnsupportedOperationException if the pattern has a node which cannot be executed
+     */
+    PatternInterpreter(DissectedPattern pattern) {
+        if (!pattern.isCompiled()) {
+            throw new IllegalArgumentException("Pattern failed to compile: " + pattern.errorDescription());
+        }
+        
+        this.pattern = pattern;
+        
+        int[] counts = new int[2];
+        prepare(pattern.nodes(), counts);
+        
+        this.groupCount = counts[0];
+        this.localCount = counts[1];
+    }
+    
+    /**
+     * Check that every node can be executed, and find the number of groups and locals.
+     */
+    private void prepare(List<DissectedNode> sequence, int[] counts) {
+        for (int i = 0; i < sequence.size(); i++) {
+            DissectedNode node = sequence.get(i);
+            
+            switch (node.kind()) {
+                case GROUP_HEAD:
+                    counts[1] = Math.max(counts[1], ((DissectedNode.GroupHead) node).localIndex() + 1);
+                    break;
+                case GROUP_TAIL:
+                    DissectedNode.GroupTail tail = (DissectedNode.GroupTail) node;
+                    counts[0] = Math.max(counts[0], tail.groupIndex() / 2);
+                    counts[1] = Math.max(counts[1], tail.localIndex() + 1);
+                    break;
+                case GROUP_CURLY:
+                    DissectedNode.Curly curly = (DissectedNode.Curly) node;
+                    counts[0] = Math.max(counts[0], curly.groupIndex() / 2);
+                    counts[1] = Math.max(counts[1], curly.localIndex() + 1);
+                    break;
+                case BACK_REF:
+                    counts[0] = Math.max(counts[0], ((DissectedNode.BackRef) node).groupIndex() / 2);
+                    break;
+                case CTYPE:
+                    int ctype = ((DissectedNode.Ctype) node).ctype();
+                    if (!ctypes.containsKey(ctype)) {
+                        ctypes.put(ctype, NodeAccessors.asciiType(ctype));
+                    }
+                    break;
+                case PROLOG:
+                    if (i + 1 >= sequence.size() || !(sequence.get(i + 1) instanceof DissectedNode.Loop)) {
+                        throw new UnsupportedOperationException("Prolog is not followed by its Loop");
+                    }
+                    break;
+                case UNKNOWN:
+                    if (!isLastNode(node)) {
+                        throw new UnsupportedOperationException("The interpreter does not support " + node.label());
+                    }
+                    break;
+                case DEBUG:
+                    if (((DissectedNode.Debug) node).members() == null) {
+                        throw new UnsupportedOperationException("The interpreter does not support " + node.label());
+                    }
+                    break;
+                case REFERENCE:
+                    throw new UnsupportedOperationException("The interpreter does not support " + node.label());
+                default:
+                    break;
+            }
+            
+            List<List<DissectedNode>> children = node.children();
+            
+            if (node.kind() == DissectedNode.Kind.BEHIND) {
+                // The last node of the condition is the anonymous node which checks the end of the look-behind
+                List<DissectedNode> cond = children.get(0);
+                prepare(cond.subList(0, cond.size() - 1), counts);
+            } else {
+                for (List<DissectedNode> child: children) {
+                    prepare(child, counts);
+                }
+            }
+        }
+    }
+    
+    private static boolean isLastNode(DissectedNode node) {
+        return node.kind() == DissectedNode.Kind.UNKNOWN && ((DissectedNode.Unknown) node).className().endsWith("$LastNode");
+    }
+    
+    DissectedPattern pattern() {
+        return pattern;
+    }
+    
+    /**
+     * Total number of node steps since the interpreter was created or reset.
+     */
+    long steps() {
+        return steps;
+    }
+    
+    /**
+     * Total number of backtracks since the interpreter was created or reset.
+     */
+    long backtracks() {
+        return backtracks;
+    }
+    
+    /**
+     * Number of steps by DissectedNode.id().
+     */
+    Map<Integer, Long> stepsById() {
+        Map<Integer, Long> result = new HashMap<Integer, Long>();
+        
+        for (Map.Entry<Integer, long[]> e: stepsById.entrySet()) {
+            result.put(e.getKey(), e.getValue()[0]);
+        }
+        
+        return result;
+    }
+    
+    void resetCounters() {
+        steps = 0;
+        backtracks = 0;
+        stepsById.clear();
+    }
+    
+    /**
+     * Find all the matches in the input, as successive calls to Matcher.find() do.
+     */
+    List<Match> findAll(CharSequence input) {
+        List<Match> matches = new ArrayList<Match>();
+        
+        start(input, false);
+        
+        for (;;) {
+            int from = last;
+            if (from == first) {
+                from++;
+            }
+            if (from > to) {
+                break;
+            }
+            
+            Match m = search(from);
+            if (m == null) {
+                break;
+            }
+            
+            matches.add(m);
+        }
+        
+        return matches;
+    }
+    
+    /**
+     * Match the whole input, as Matcher.matches() does.
+     *
+     * @return null if the input does not match
+     */
+    Match matches(CharSequence input) {
+        start(input, true);
+        
+        this.first = 0;
+        this.oldLast = 0;
+        Arrays.fill(groups, -1);
+        Arrays.fill(locals, -1);
+        
+        List<DissectedNode> root = pattern.nodes();
+        boolean result;
+        
+        switch (root.get(0).kind()) {
+            case START:
+            case START_S:
+                // The match root is the node after Start
+                result = matchSequence(root, 1, 0, ACCEPT);
+                break;
+            case BNM:
+            case BNM_S:
+                // The match root is the Slice which BnM replaced
+                DissectedNode.Literal literal = (DissectedNode.Literal) root.get(0);
+                step(literal);
+                
+                int end = matchLiteral(literal, 0);
+                result = end >= 0 && matchSequence(root, 1, end, ACCEPT);
+                break;
+            default:
+                result = matchSequence(root, 0, 0, ACCEPT);
+        }
+        
+        return result ? new Match(Arrays.copyOf(groups, groups.length)) : null;
+    }
+    
+    private void start(CharSequence input, boolean endAnchor) {
+        this.seq = input;
+        this.to = input.length();
+        this.first = -1;
+        this.last = 0;
+        this.oldLast = -1;
+        this.endAnchor = endAnchor;
+        this.groups = new int[(groupCount + 1) * 2];
+        this.locals = new int[localCount];
+    }
+    
+    private Match search(int from) {
+        this.first = from;
+        this.oldLast = oldLast < 0 ? from : oldLast;
+        Arrays.fill(groups, -1);
+        Arrays.fill(locals, -1);
+        
+        boolean result = matchSequence(pattern.nodes(), 0, from, ACCEPT);
+        if (!result) {
+            this.first = -1;
+        }
+        this.oldLast = this.last;
+        
+        return result ? new Match(Arrays.copyOf(groups, groups.length)) : null;
+    }
+    
+    private void step(DissectedNode node) {
+        steps++;
+        
+        long[] count = stepsById.get(node.id());
+        if (count == null) {
+            stepsById.put(node.id(), new long[] {1});
+        } else {
+            count[0]++;
+        }
+    }
+    
+    /**
+     * Continuation which matches the rest of the sequence, from the given index.
+     */
+    private Continuation rest(final List<DissectedNode> sequence, final int index, final Continuation k) {
+        if (index >= sequence.size()) {
+            return k;
+        }
+        
+        return new Continuation() {
+            @Override
+            public boolean match(int i) {
+                return matchSequence(sequence, index, i, k);
+            }
+        };
+    }
+    
+    private boolean matchSequence(List<DissectedNode> sequence, int index, int i, Continuation k) {
+        if (index >= sequence.size()) {
+            return k.match(i);
+        }
+        
+        DissectedNode node = sequence.get(index);
+        
+        if (node.kind() == DissectedNode.Kind.BRANCH_CONN && !((DissectedNode.BranchConn) node).endOfAlternative()) {
+            // Only the BranchConn at the end of the alternatives is a step
+            return matchSequence(sequence, index + 1, i, k);
+        }
+        
+        step(node);
+        
+        switch (node.kind()) {
+            case START:
+            case START_S:
+                return matchStart((DissectedNode.Start) node, i, rest(sequence, index + 1, k));
+            case BNM:
+            case BNM_S:
+                return matchBnM((DissectedNode.Literal) node, i, rest(sequence, index + 1, k));
+            case SLICE:
+            case SLICE_S:
+                {
+                    int end = matchLiteral((DissectedNode.Literal) node, i);
+                    return end >= 0 && matchSequence(sequence, index + 1, end, k);
+                }
+            case CARET:
+            case UNIX_CARET:
+                return matchCaret(node.kind() == DissectedNode.Kind.UNIX_CARET, i) && matchSequence(sequence, index + 1, i, k);
+            case DOLLAR:
+                return matchDollar(((DissectedNode.Dollar) node).multiline(), i, rest(sequence, index + 1, k));
+            case UNIX_DOLLAR:
+                return matchUnixDollar(((DissectedNode.Dollar) node).multiline(), i, rest(sequence, index + 1, k));
+            case BEGIN:
+                return i == 0 && matchSequence(sequence, index + 1, i, k);
+            case END:
+                return i == to && matchSequence(sequence, index + 1, i, k);
+            case LAST_MATCH:
+                return i == oldLast && matchSequence(sequence, index + 1, i, k);
+            case ACCEPT:
+                return k.match(i);
+            case UNKNOWN:
+                // LastNode, the only unknown node accepted by prepare()
+                if (endAnchor && i != to) {
+                    return false;
+                }
+                last = i;
+                groups[0] = first;
+                groups[1] = i;
+                return k.match(i);
+            case BRANCH:
+                {
+                    Continuation next = rest(sequence, index + 1, k);
+                    boolean firstAlternative = true;
+                    
+                    for (List<DissectedNode> alternative: ((DissectedNode.Branch) node).alternatives()) {
+                        if (!firstAlternative) {
+                            backtracks++;
+                        }
+                        firstAlternative = false;
+                        
+                        if (matchSequence(alternative, 0, i, next)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            case BRANCH_CONN:
+                return matchSequence(sequence, index + 1, i, k);
+            case BACK_REF:
+                {
+                    int groupIndex = ((DissectedNode.BackRef) node).groupIndex();
+                    int j = groups[groupIndex];
+                    int groupSize = groups[groupIndex + 1] - j;
+                    
+                    if (j < 0 || i + groupSize > to) {
+                        return false;
+                    }
+                    for (int x = 0; x < groupSize; x++) {
+                        if (seq.charAt(i + x) != seq.charAt(j + x)) {
+                            return false;
+                        }
+                    }
+                    return matchSequence(sequence, index + 1, i + groupSize, k);
+                }
+            case POS:
+                return matchSequence(((DissectedNode.Lookaround) node).cond(), 0, i, ACCEPT) && matchSequence(sequence, index + 1, i, k);
+            case NEG:
+                return !matchSequence(((DissectedNode.Lookaround) node).cond(), 0, i, ACCEPT) && matchSequence(sequence, index + 1, i, k);
+            case BEHIND:
+                return matchBehind((DissectedNode.Lookaround) node, i) && matchSequence(sequence, index + 1, i, k);
+            case CURLY:
+                return matchCurly((DissectedNode.Curly) node, i, rest(sequence, index + 1, k));
+            case GROUP_CURLY:
+                return matchGroupCurly((DissectedNode.Curly) node, i, rest(sequence, index + 1, k));
+            case GROUP_HEAD:
+                {
+                    int localIndex = ((DissectedNode.GroupHead) node).localIndex();
+                    int save = locals[localIndex];
+                    
+                    locals[localIndex] = i;
+                    boolean ret = matchSequence(sequence, index + 1, i, k);
+                    locals[localIndex] = save;
+                    return ret;
+                }
+            case GROUP_TAIL:
+                {
+                    DissectedNode.GroupTail tail = (DissectedNode.GroupTail) node;
+                    int tmp = locals[tail.localIndex()];
+                    
+                    if (tmp < 0) {
+                        // The atom of GroupCurly, which sets the group itself
+                        return k.match(i);
+                    }
+                    
+                    int groupIndex = tail.groupIndex();
+                    int groupStart = groups[groupIndex];
+                    int groupEnd = groups[groupIndex + 1];
+                    
+                    groups[groupIndex] = tmp;
+                    groups[groupIndex + 1] = i;
+                    if (matchSequence(sequence, index + 1, i, k)) {
+                        return true;
+                    }
+                    groups[groupIndex] = groupStart;
+                    groups[groupIndex + 1] = groupEnd;
+                    return false;
+                }
+            case PROLOG:
+                return matchLoopInit((DissectedNode.Loop) sequence.get(index + 1), i, rest(sequence, index + 2, k));
+            default:
+                {
+                    // Character class
+                    if (i >= to) {
+                        return false;
+                    }
+                    
+                    int ch;
+                    int width;
+                    
+                    if (isBmpCharProperty(node)) {
+                        ch = seq.charAt(i);
+                        width = 1;
+                    } else {
+                        ch = Character.codePointAt(seq, i);
+                        width = Character.charCount(ch);
+                    }
+                    
+                    return isSatisfiedBy(node, ch) && matchSequence(sequence, index + 1, i + width, k);
+                }
+        }
+    }
+    
+    private boolean matchStart(DissectedNode.Start node, int i, Continuation next) {
+        int guard = to - node.minLength();
+        
+        if (i > guard) {
+            return false;
+        }
+        
+        while (i <= guard) {
+            if (next.match(i)) {
+                first = i;
+                groups[0] = first;
+                groups[1] = last;
+                return true;
+            }
+            if (i == guard) {
+                break;
+            }
+            
+            backtracks++;
+            
+            if (node.kind() == DissectedNode.Kind.START_S && Character.isHighSurrogate(seq.charAt(i++))) {
+                if (i < to && Character.isLowSurrogate(seq.charAt(i))) {
+                    i++;
+                }
+            } else if (node.kind() == DissectedNode.Kind.START) {
+                i++;
+            }
+        }
+        
+        return false;
+    }
+    
+    private boolean matchBnM(DissectedNode.Literal node, int i, Continuation next) {
+        int lengthInChars = node.kind() == DissectedNode.Kind.BNM_S ? node.lengthInChars() : node.length();
+        int guard = to - lengthInChars;
+        
+        for (; i <= guard; i++) {
+            int end = matchLiteral(node, i);
+            
+            if (end >= 0) {
+                first = i;
+                if (next.match(end)) {
+                    groups[0] = first;
+                    groups[1] = last;
+                    return true;
+                }
+                backtracks++;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * @return end of the literal, or -1 if it does not match at i
+     */
+    private int matchLiteral(DissectedNode.Literal node, int i) {
+        int[] buffer = node.codePoints();
+        boolean codePoints = node.kind() == DissectedNode.Kind.SLICE_S || node.kind() == DissectedNode.Kind.BNM_S;
+        
+        for (int c: buffer) {
+            if (i >= to) {
+                return -1;
+            }
+            
+            int ch = codePoints ? Character.codePointAt(seq, i) : seq.charAt(i);
+            if (ch != c) {
+                return -1;
+            }
+            
+            i += codePoints ? Character.charCount(ch) : 1;
+        }
+        
+        return i;
+    }
+    
+    private boolean matchCaret(boolean unix, int i) {
+        if (i > 0) {
+            char ch = seq.charAt(i - 1);
+            
+            if (unix) {
+                if (ch != '\n') {
+                    return false;
+                }
+            } else {
+                if (ch != '\n' && ch != '\r' && (ch | 1) != '\u2029' && ch != '\u0085') {
+                    return false;
+                }
+                // Should treat /r/n as one newline
+                if (ch == '\r' && i < to && seq.charAt(i) == '\n') {
+                    return false;
+                }
+            }
+        }
+        
+        // Perl does not match ^ at end of input even after newline
+        return i != to || i == 0;
+    }
+    
+    private boolean matchDollar(boolean multiline, int i, Continuation next) {
+        if (!multiline) {
+            if (i < to - 2) {
+                return false;
+            }
+            if (i == to - 2) {
+                if (seq.charAt(i) != '\r' || seq.charAt(i + 1) != '\n') {
+                    return false;
+                }
+            }
+        }
+        
+        if (i < to) {
+            char ch = seq.charAt(i);
+            
+            if (ch == '\n') {
+                // No match between \r\n
+                if (i > 0 && seq.charAt(i - 1) == '\r') {
+                    return false;
+                }
+                if (multiline) {
+                    return next.match(i);
+                }
+            } else if (ch == '\r' || ch == '\u0085' || (ch | 1) == '\u2029') {
+                if (multiline) {
+                    return next.match(i);
+                }
+            } else {
+                return false;
+            }
+        }
+        
+        return next.match(i);
+    }
+    
+    private boolean matchUnixDollar(boolean multiline, int i, Continuation next) {
+        if (i < to) {
+            char ch = seq.charAt(i);
+            
+            if (ch == '\n') {
+                if (!multiline && i != to - 1) {
+                    return false;
+                }
+                if (multiline) {
+                    return next.match(i);
+                }
+            } else {
+                return false;
+            }
+        }
+        
+        return next.match(i);
+    }
+    
+    private boolean matchBehind(DissectedNode.Lookaround node, int i) {
+        List<DissectedNode> cond = node.cond();
+        final DissectedNode end = cond.get(cond.size() - 1);
+        List<DissectedNode> body = cond.subList(0, cond.size() - 1);
+        
+        Continuation lookbehindEnd = new Continuation() {
+            @Override
+            public boolean match(int j) {
+                step(end);
+                return j == lookbehindTo;
+            }
+        };
+        
+        int from = Math.max(i - node.rmax(), 0);
+        int savedLookbehindTo = lookbehindTo;
+        boolean conditionMatched = false;
+        
+        lookbehindTo = i;
+        for (int j = i - node.rmin(); !conditionMatched && j >= from; j--) {
+            if (j < i - node.rmin()) {
+                backtracks++;
+            }
+            conditionMatched = matchSequence(body, 0, j, lookbehindEnd);
+        }
+        lookbehindTo = savedLookbehindTo;
+        
+        return conditionMatched;
+    }
+    
+    /**
+     * Match the atom of Curly or GroupCurly, which is deterministic: only its first match is used.
+     *
+     * @return end of the atom, or -1 if it does not match at i
+     */
+    private int matchAtom(List<DissectedNode> atom, int i) {
+        final int[] end = {-1};
+        
+        boolean matched = matchSequence(atom, 0, i, new Continuation() {
+            @Override
+            public boolean match(int j) {
+                end[0] = j;
+                return true;
+            }
+        });
+        
+        return matched ? end[0] : -1;
+    }
+    
+    private boolean matchCurly(DissectedNode.Curly node, int i, Continuation next) {
+        int j;
+        
+        for (j = 0; j < node.cmin(); j++) {
+            int end = matchAtom(node.atom(), i);
+            if (end < 0) {
+                return false;
+            }
+            i = end;
+        }
+        
+        switch (node.quantifier()) {
+            case GREEDY:
+                return matchCurlyGreedy(node, i, j, next);
+            case LAZY:
+                for (;;) {
+                    if (next.match(i)) {
+                        return true;
+                    }
+                    if (j >= node.cmax()) {
+                        return false;
+                    }
+                    
+                    int end = matchAtom(node.atom(), i);
+                    if (end < 0 || end == i) {
+                        return false;
+                    }
+                    
+                    backtracks++;
+                    i = end;
+                    j++;
+                }
+            default:
+                for (; j < node.cmax(); j++) {
+                    int end = matchAtom(node.atom(), i);
+                    if (end < 0 || end == i) {
+                        break;
+                    }
+                    i = end;
+                }
+                return next.match(i);
+        }
+    }
+    
+    private boolean matchCurlyGreedy(DissectedNode.Curly node, int i, int j, Continuation next) {
+        if (j >= node.cmax()) {
+            return next.match(i);
+        }
+        
+        int backLimit = j;
+        int end = matchAtom(node.atom(), i);
+        
+        if (end < 0) {
+            return next.match(i);
+        }
+        
+        int k = end - i;
+        if (k == 0) {
+            return next.match(i);
+        }
+        
+        i = end;
+        j++;
+        
+        while (j < node.cmax()) {
+            end = matchAtom(node.atom(), i);
+            if (end < 0) {
+                break;
+            }
+            if (i + k != end) {
+                if (matchCurlyGreedy(node, end, j + 1, next)) {
+                    return true;
+                }
+                break;
+            }
+            i += k;
+            j++;
+        }
+        
+        while (j >= backLimit) {
+            if (next.match(i)) {
+                return true;
+            }
+            i -= k;
+            j--;
+            
+            if (j >= backLimit) {
+                backtracks++;
+            }
+        }
+        
+        return false;
+    }
+    
+    private boolean matchGroupCurly(DissectedNode.Curly node, int i, Continuation next) {
+        int localIndex = node.localIndex();
+        int groupIndex = node.groupIndex();
+        boolean capture = node.capture();
+        
+        int save0 = locals[localIndex];
+        int save1 = 0;
+        int save2 = 0;
+        
+        if (capture) {
+            save1 = groups[groupIndex];
+            save2 = groups[groupIndex + 1];
+        }
+        
+        // Tell GroupTail that the group is set here
+        locals[localIndex] = -1;
+        
+        boolean ret = true;
+        for (int j = 0; j < node.cmin(); j++) {
+            int end = matchAtom(node.atom(), i);
+            
+            if (end < 0) {
+                ret = false;
+                break;
+            }
+            
+            if (capture) {
+                groups[groupIndex] = i;
+                groups[groupIndex + 1] = end;
+            }
+            i = end;
+        }
+        
+        if (ret) {
+            switch (node.quantifier()) {
+                case GREEDY:
+                    ret = matchGroupCurlyGreedy(node, i, node.cmin(), next);
+                    break;
+                case LAZY:
+                    ret = matchGroupCurlyLazy(node, i, node.cmin(), next);
+                    break;
+                default:
+                    ret = matchGroupCurlyPossessive(node, i, node.cmin(), next);
+            }
+        }
+        
+        if (!ret) {
+            locals[localIndex] = save0;
+            
+            if (capture) {
+                groups[groupIndex] = save1;
+                groups[groupIndex + 1] = save2;
+            }
+        }
+        
+        return ret;
+    }
+    
+    private boolean matchGroupCurlyGreedy(DissectedNode.Curly node, int i, int j, Continuation next) {
+        int groupIndex = node.groupIndex();
+        boolean capture = node.capture();
+        
+        // Don't back off past the starting j
+        int min = j;
+        int save0 = 0;
+        int save1 = 0;
+        
+        if (capture) {
+            save0 = groups[groupIndex];
+            save1 = groups[groupIndex + 1];
+        }
+        
+        if (j < node.cmax()) {
+            int end = matchAtom(node.atom(), i);
+            
+            if (end >= 0) {
+                int k = end - i;
+                
+                if (k <= 0) {
+                    if (capture) {
+                        groups[groupIndex] = i;
+                        groups[groupIndex + 1] = i + k;
+                    }
+                    i = i + k;
+                } else {
+                    for (;;) {
+                        if (capture) {
+                            groups[groupIndex] = i;
+                            groups[groupIndex + 1] = i + k;
+                        }
+                        i = i + k;
+                        
+                        if (++j >= node.cmax()) {
+                            break;
+                        }
+                        
+                        end = matchAtom(node.atom(), i);
+                        if (end < 0) {
+                            break;
+                        }
+                        if (i + k != end) {
+                            if (matchGroupCurlyGreedy(node, i, j, next)) {
+                                return true;
+                            }
+                            break;
+                        }
+                    }
+                    
+                    while (j > min) {
+                        if (next.match(i)) {
+                            if (capture) {
+                                groups[groupIndex + 1] = i;
+                                groups[groupIndex] = i - k;
+                            }
+                            return true;
+                        }
+                        
+                        // Back off
+                        backtracks++;
+                        i = i - k;
+                        if (capture) {
+                            groups[groupIndex + 1] = i;
+                            groups[groupIndex] = i - k;
+                        }
+                        j--;
+                    }
+                }
+            }
+        }
+        
+        if (capture) {
+            groups[groupIndex] = save0;
+            groups[groupIndex + 1] = save1;
+        }
+        
+        return next.match(i);
+    }
+    
+    private boolean matchGroupCurlyLazy(DissectedNode.Curly node, int i, int j, Continuation next) {
+        for (;;) {
+            if (next.match(i)) {
+                return true;
+            }
+            if (j >= node.cmax()) {
+                return false;
+            }
+            
+            int end = matchAtom(node.atom(), i);
+            if (end < 0 || end == i) {
+                return false;
+            }
+            
+            backtracks++;
+            
+            if (node.capture()) {
+                groups[node.groupIndex()] = i;
+                groups[node.groupIndex() + 1] = end;
+            }
+            i = end;
+            j++;
+        }
+    }
+    
+    private boolean matchGroupCurlyPossessive(DissectedNode.Curly node, int i, int j, Continuation next) {
+        for (; j < node.cmax(); j++) {
+            int end = matchAtom(node.atom(), i);
+            if (end < 0) {
+                break;
+            }
+            
+            if (node.capture()) {
+                groups[node.groupIndex()] = i;
+                groups[node.groupIndex() + 1] = end;
+            }
+            if (end == i) {
+                break;
+            }
+            i = end;
+        }
+        
+        return next.match(i);
+    }
+    
+    /**
+     * Prolog: the first iteration of the loop.
+     */
+    private boolean matchLoopInit(DissectedNode.Loop loop, int i, Continuation next) {
+        Continuation body = loopBody(loop, 1, next);
+        
+        if (loop.kind() == DissectedNode.Kind.LOOP) {
+            if (0 < loop.cmin()) {
+                return body.match(i);
+            }
+            if (0 < loop.cmax()) {
+                if (body.match(i)) {
+                    return true;
+                }
+                backtracks++;
+            }
+            return next.match(i);
+        } else {
+            if (0 < loop.cmin()) {
+                return body.match(i);
+            }
+            if (next.match(i)) {
+                return true;
+            }
+            if (0 < loop.cmax()) {
+                backtracks++;
+                return body.match(i);
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Continuation which matches the body of the loop, as iteration number count.
+     */
+    private Continuation loopBody(final DissectedNode.Loop loop, final int count, final Continuation next) {
+        return new Continuation() {
+            @Override
+            public boolean match(int i) {
+                return matchSequence(loop.body(), 0, i, loopEnd(loop, count, next));
+            }
+        };
+    }
+    
+    /**
+     * Continuation at the end of the body, which is the Loop node itself.
+     */
+    private Continuation loopEnd(final DissectedNode.Loop loop, final int count, final Continuation next) {
+        return new Continuation() {
+            @Override
+            public boolean match(int i) {
+                step(loop);
+                
+                int beginIndex = ((DissectedNode.GroupHead) loop.body().get(0)).localIndex();
+                
+                // Avoid infinite loop in zero-length case
+                if (i > locals[beginIndex]) {
+                    if (count < loop.cmin()) {
+                        return loopBody(loop, count + 1, next).match(i);
+                    }
+                    
+                    if (loop.kind() == DissectedNode.Kind.LOOP) {
+                        if (count < loop.cmax()) {
+                            if (loopBody(loop, count + 1, next).match(i)) {
+                                return true;
+                            }
+                            backtracks++;
+                        }
+                    } else {
+                        if (next.match(i)) {
+                            return true;
+                        }
+                        if (count < loop.cmax()) {
+                            backtracks++;
+                            return loopBody(loop, count + 1, next).match(i);
+                        }
+                        return false;
+                    }
+                }
+                
+                return next.match(i);
+            }
+        };
+    }
+    
+    /**
+     * Whether the node is a BmpCharProperty, which matches a char instead of a code point.
+     */
+    private static boolean isBmpCharProperty(DissectedNode node) {
+        switch (node.kind()) {
+            case SINGLE:
+            case BIT_CLASS:
+            case CTYPE:
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    private boolean isSatisfiedBy(DissectedNode node, int ch) {
+        switch (node.kind()) {
+            case SINGLE:
+            case SINGLE_S:
+                return ch == ((DissectedNode.Single) node).codePoint();
+            case SINGLE_U:
+                {
+                    int lower = ((DissectedNode.Single) node).codePoint();
+                    return lower == ch || lower == Character.toLowerCase(Character.toUpperCase(ch));
+                }
+            case BIT_CLASS:
+                return ch < 256 && Arrays.binarySearch(((DissectedNode.BitClass) node).codePoints(), ch) >= 0;
+            case CTYPE:
+                return ch < 128 && ctypes.get(((DissectedNode.Ctype) node).ctype())[ch];
+            case RANGE:
+                DissectedNode.Range range = (DissectedNode.Range) node;
+                return range.lower() <= ch && ch <= range.upper();
+            case DOT:
+                return ch != '\n' && ch != '\r' && (ch | 1) != '\u2029' && ch != '\u0085';
+            case UNIX_DOT:
+                return ch != '\n';
+            case ALL:
+                return true;
+            case COMPLEMENT:
+                return !isSatisfiedBy(operand(node, 0), ch);
+            case UNION:
+                return isSatisfiedBy(operand(node, 0), ch) || isSatisfiedBy(operand(node, 1), ch);
+            case INTERSECTION:
+                return isSatisfiedBy(operand(node, 0), ch) && isSatisfiedBy(operand(node, 1), ch);
+            case SET_DIFFERENCE:
+                return isSatisfiedBy(operand(node, 0), ch) && !isSatisfiedBy(operand(node, 1), ch);
+            case DEBUG:
+                // A character class known by its predicate, whose members prepare() has checked
+                return ((DissectedNode.Debug) node).members().contains(ch);
+            default:
+                throw new UnsupportedOperationException("The interpreter does not support " + node.label());
+        }
+    }
+    
+    private static DissectedNode operand(DissectedNode node, int index) {
+        return ((DissectedNode.SetOperation) node).operands().get(index);
+    }
+    
+    /**
+     * Compare the matches of the interpreter with the ones of Matcher.find() on the input.
+     *
+     * @return null if they are the same, otherwise a description of the first difference
+     */
+    String verify(Pattern compiled, CharSequence input) {
+        List<Match> matches = findAll(input);
+        Matcher m = compiled.matcher(input);
+        int n = 0;
+        
+        while (m.find()) {
+            if (n >= matches.size()) {
+                return "Matcher found [" + m.start() + ", " + m.end() + ") after the last match of the interpreter";
+            }
+            
+            Match match = matches.get(n);
+            
+            if (match.groupCount() != m.groupCount()) {
+                return "Interpreter has " + match.groupCount() + " groups, Matcher has " + m.groupCount();
+            }
+            
+            for (int g = 0; g <= m.groupCount(); g++) {
+                if (match.start(g) != m.start(g) || match.end(g) != m.end(g)) {
+                    return "Match " + n + ": interpreter " + match + ", Matcher group " + g + " [" + m.start(g) + ", " + m.end(g) + ")";
+                }
+            }
+            
+            n++;
+        }
+        
+        if (n < matches.size()) {
+            return "Interpreter found " + matches.get(n) + " after the last match of Matcher";
+        }
+        
+        return null;
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: PatternDissector --steps [--flags N] PATTERN [FILE|-]");
+        System.err.println();
+        System.err.println("Interpret PATTERN over every line of FILE, or standard input if FILE is - or absent,");
+        System.err.println("as Matcher.find() does, and print the number of node steps and backtracks.");
+    }
+    
+    /**
+     * Command line entry of the interpreter.
+     *
+     * @return exit status
+     */
+    static int run(String[] args) {
+        int flags = 0;
+        String regex = null;
+        String file = "-";
+        
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--flags") && i + 1 < args.length) {
+                try {
+                    flags = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                    return 2;
+                }
+            } else if (regex == null) {
+                regex = args[i];
+            } else {
+                file = args[i];
+            }
+        }
+        
+        if (regex == null) {
+            usage();
+            return 2;
+        }
+        
+        Pattern compiled;
+        PatternInterpreter interpreter;
+        try {
+            compiled = Pattern.compile(regex, flags);
+            interpreter = new PatternInterpreter(PatternDissector.decode(compiled));
+        } catch (PatternSyntaxException|UnsupportedOperationException e) {
+            System.err.println(e.getMessage());
+            return 2;
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        
+        int mismatches = 0;
+        
+        try (InputStream input = file.equals("-") ? System.in : new FileInputStream(file)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            int lineNumber = 0;
+            long totalSteps = 0;
+            long totalBacktracks = 0;
+            String line;
+            
+            Map<Integer, Long> stepsById = new HashMap<Integer, Long>();
+            
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                interpreter.resetCounters();
+                
+                String difference = interpreter.verify(compiled, line);
+                sb.append("Line ").append(lineNumber).append(": steps=").append(interpreter.steps())
+                  .append(", backtracks=").append(interpreter.backtracks()).append('\n');
+                
+                if (difference != null) {
+                    sb.append("  Differs from Matcher: ").append(difference).append('\n');
+                    mismatches++;
+                }
+                
+                totalSteps += interpreter.steps();
+                totalBacktracks += interpreter.backtracks();
+                
+                for (Map.Entry<Integer, Long> e: interpreter.stepsById().entrySet()) {
+                    Long count = stepsById.get(e.getKey());
+                    stepsById.put(e.getKey(), (count == null ? 0 : count) + e.getValue());
+                }
+            }
+            
+            sb.append("Total: steps=").append(totalSteps).append(", backtracks=").append(totalBacktracks).append('\n');
+            sb.append(regex).append('\n');
+            NodeProfiler.report(interpreter.pattern().nodes(), stepsById, "steps", 0, sb);
+            
+            System.out.print(sb);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+        
+        return mismatches == 0 ? 0 : 1;
+    }
+}
@@ -0,0 +1,209 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Descriptor of the layout of java.util.regex in the running JDK build, for the parts which
+ * are found by reflecting over a whole class: the names of the ctype constants of
+ * java.util.regex.ASCII, and the method which creates each anonymous CharProperty class (e.g.
+ * Pattern.union), which Class.getEnclosingMethod() finds by loading every method of Pattern.
+ *
+ * When the cache directory of CharPropertyCache is set (patterndissector.cache.dir), what is
+ * found is appended to a file of that directory, specific to the JDK build, so that the next
+ * runs read it instead. Otherwise it is only kept in memory. Since the anonymous classes are
+ * numbered by the compiler, the file is named after java.runtime.version and java.vm.version.
+ * The file is only an optimization: the lines which cannot be parsed are ignored, and nothing
+ * is stored if it cannot be written.
+ */
+final class RegexLayout {
+    
+    private RegexLayout() {
+    }
+    
+    private static final String JDK_BUILD = System.getProperty("java.runtime.version", System.getProperty("java.version"))
+            + "-" + System.getProperty("java.vm.version", "");
+    
+    private static final String CTYPE = "ctype";
+    private static final String ENCLOSING = "enclosing";
+    
+    /** Guarded by the class lock, as is the rest of the state */
+    private static boolean loaded;
+    private static Map<Integer, String> ctypeNames;
+    private static final Map<Integer, String> LOADED_CTYPE_NAMES = new HashMap<Integer, String>();
+    private static final Map<String, String> ENCLOSING_METHODS = new HashMap<String, String>();
+    
+    /**
+     * Names of the ctype constants of java.util.regex.ASCII, by value.
+     */
+    static synchronized Map<Integer, String> ctypeNames() {
+        if (ctypeNames != null) {
+            return ctypeNames;
+        }
+        
+        load();
+        
+        if (!LOADED_CTYPE_NAMES.isEmpty()) {
+            ctypeNames = Collections.unmodifiableMap(LOADED_CTYPE_NAMES);
+            return ctypeNames;
+        }
+        
+        Map<Integer, String> m = findCtypeNames();
+        StringBuilder sb = new StringBuilder();
+        
+        for (Map.Entry<Integer, String> e: m.entrySet()) {
+            sb.append(CTYPE).append('\t').append(e.getKey()).append('\t').append(e.getValue()).append('\n');
+        }
+        store(sb.toString());
+        
+        ctypeNames = Collections.unmodifiableMap(m);
+        return ctypeNames;
+    }
+    
+    private static Map<Integer, String> findCtypeNames() {
+        Class<?> asciiClass;
+        try {
+            asciiClass = Class.forName("java.util.regex.ASCII");
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("Unexpected implementation of java.util.regex package");
+        }
+        
+        Map<Integer, String> m = new HashMap<Integer, String>();
+        
+        try {
+            for (Field f: asciiClass.getDeclaredFields()) {
+                if (Integer.TYPE.isAssignableFrom(f.getType()) && Modifier.isStatic(f.getModifiers())) {
+                    f.setAccessible(true);
+                    m.put(f.getInt(asciiClass), f.getName());
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        
+        return m;
+    }
+    
+    /**
+     * Name of the method which creates the anonymous class, qualified with the simple name of
+     * its class, e.g. "Pattern.union".
+     *
+     * @return null for the classes of field initializers, which have no enclosing method
+     */
+    static String enclosingMethodName(Class<?> clazz) {
+        // Only the classes of java.util.regex have the same name in every run on the JDK build
+        if (clazz.getClassLoader() != null || !clazz.getName().startsWith("java.util.regex.")) {
+            return findEnclosingMethodName(clazz);
+        }
+        
+        synchronized (RegexLayout.class) {
+            load();
+            
+            if (ENCLOSING_METHODS.containsKey(clazz.getName())) {
+                return ENCLOSING_METHODS.get(clazz.getName());
+            }
+            
+            String name = findEnclosingMethodName(clazz);
+            
+            ENCLOSING_METHODS.put(clazz.getName(), name);
+            store(ENCLOSING + '\t' + clazz.getName() + '\t' + (name != null ? name : "") + '\n');
+            return name;
+        }
+    }
+    
+    private static String findEnclosingMethodName(Class<?> clazz) {
+        Method method = clazz.getEnclosingMethod();
+        
+        return method == null ? null : clazz.getEnclosingClass().getSimpleName() + "." + method.getName();
+    }
+    
+    /**
+     * The descriptor file of the running JDK build, null if there is no cache directory.
+     */
+    static File descriptorFile() {
+        return CharPropertyCache.cacheFile("regex-layout-java" + JDK_BUILD + ".txt");
+    }
+    
+    /**
+     * Read the descriptor file, one entry per line, with tab separated fields: "ctype", the
+     * value and the name of a constant, or "enclosing", the name of an anonymous class and the
+     * name of its enclosing method, empty if it has none.
+     */
+    private static void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        
+        File file = descriptorFile();
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                
+                if (line.startsWith("#") || fields.length != 3) {
+                    continue;
+                }
+                
+                switch (fields[0]) {
+                    case CTYPE:
+                        try {
+                            LOADED_CTYPE_NAMES.put(Integer.parseInt(fields[1]), fields[2]);
+                        } catch (NumberFormatException e) {
+                            // Malformed line, the constants are found again if none is read
+                        }
+                        break;
+                    case ENCLOSING:
+                        ENCLOSING_METHODS.put(fields[1], fields[2].isEmpty() ? null : fields[2]);
+                        break;
+                    default:
+                        // Written by a later version
+                }
+            }
+        } catch (IOException e) {
+            // The descriptor is only an optimization
+        }
+    }
+    
+    /**
+     * Append the lines to the descriptor file.
+     */
+    private static void store(String lines) {
+        File file = descriptorFile();
+        if (file == null) {
+            return;
+        }
+        
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        
+        String header = file.exists() ? "" : "# java.util.regex layout, Java " + JDK_BUILD + "\n";
+        
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            out.write(header + lines);
+        } catch (IOException e) {
+            // The descriptor is only an optimization
+        }
+    }
+}
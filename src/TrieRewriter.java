@@ -0,0 +1,466 @@
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Factoring of alternations of literals into the shape of a prefix trie.
+ *
+ * A Branch tries its alternatives one after the other, so an alternation of keywords costs a
+ * comparison per keyword at every position of the input. When every alternative of a Branch is a
+ * literal (Slice and Single nodes, or nothing), the alternation is rewritten so that the common
+ * prefixes are matched once, e.g. foo|foobar|bar|baz becomes foo(?:bar)??|ba[rz] written as
+ * nested groups, and each position only costs a comparison per distinct character.
+ *
+ * The order of the alternatives is preserved where it matters. Two literals can only both match
+ * at the same position if one is a prefix of the other, so the literals which start with
+ * different characters are grouped freely, while a literal which ends where longer ones go on
+ * splits them into the ones tried before and after it. A literal which repeats an earlier one
+ * can never match differently, and is dropped.
+ */
+final class TrieRewriter {
+    
+    /** Minimum number of alternatives for the rewrite to be reported */
+    static final int MIN_ALTERNATIVES = 3;
+    
+    /**
+     * An alternation of literals, with its factored equivalent.
+     */
+    static final class Rewrite {
+        final DissectedNode.Branch branch;
+        final List<int[]> literals;
+        /** The alternation as written from the decoded literals, e.g. foo|bar|baz */
+        final String alternation;
+        final String factored;
+        
+        Rewrite(DissectedNode.Branch branch, List<int[]> literals, String alternation, String factored) {
+            this.branch = branch;
+            this.literals = literals;
+            this.alternation = alternation;
+            this.factored = factored;
+        }
+    }
+    
+    private TrieRewriter() {
+    }
+    
+    /**
+     * Find the alternations of literals in the decoded pattern, outermost first.
+     */
+    static List<Rewrite> rewrites(DissectedPattern pattern) {
+        List<Rewrite> rewrites = new ArrayList<Rewrite>();
+        
+        if (pattern.isCompiled()) {
+            find(pattern.nodes(), rewrites);
+        }
+        
+        return rewrites;
+    }
+    
+    private static void find(List<DissectedNode> sequence, List<Rewrite> rewrites) {
+        for (DissectedNode node: sequence) {
+            if (node.kind() == DissectedNode.Kind.BRANCH) {
+                DissectedNode.Branch branch = (DissectedNode.Branch) node;
+                List<int[]> literals = literals(branch);
+                
+                if (literals != null && literals.size() >= MIN_ALTERNATIVES) {
+                    StringBuilder alternation = new StringBuilder();
+                    for (int i = 0; i < literals.size(); i++) {
+                        alternation.append(i > 0 ? "|" : "").append(OptimizationAdvisor.literal(literals.get(i)));
+                    }
+                    
+                    rewrites.add(new Rewrite(branch, literals, alternation.toString(), factor(literals)));
+                    continue;
+                }
+            }
+            
+            for (List<DissectedNode> child: node.children()) {
+                find(child, rewrites);
+            }
+        }
+    }
+    
+    /**
+     * The literals of the alternatives, in order.
+     *
+     * @return null if an alternative is not made of Slice and Single nodes only
+     */
+    private static List<int[]> literals(DissectedNode.Branch branch) {
+        List<int[]> literals = new ArrayList<int[]>();
+        
+        for (List<DissectedNode> alternative: branch.alternatives()) {
+            int[] literal = new int[0];
+            
+            for (int i = 0; i < alternative.size(); i++) {
+                DissectedNode node = alternative.get(i);
+                
+                switch (node.kind()) {
+                    case SLICE:
+                        {
+                            int[] codePoints = ((DissectedNode.Literal) node).codePoints();
+                            
+                            literal = Arrays.copyOf(literal, literal.length + codePoints.length);
+                            System.arraycopy(codePoints, 0, literal, literal.length - codePoints.length, codePoints.length);
+                        }
+                        break;
+                    case SINGLE:
+                        literal = Arrays.copyOf(literal, literal.length + 1);
+                        literal[literal.length - 1] = ((DissectedNode.Single) node).codePoint();
+                        break;
+                    case BRANCH_CONN:
+                        if (i == alternative.size() - 1) {
+                            break;
+                        }
+                        return null;
+                    default:
+                        return null;
+                }
+            }
+            
+            literals.add(literal);
+        }
+        
+        return literals;
+    }
+    
+    /**
+     * The alternation of the literals, factored into the shape of a prefix trie.
+     */
+    static String factor(List<int[]> literals) {
+        // Later duplicates never match differently from the first one
+        List<int[]> distinct = new ArrayList<int[]>();
+        Set<String> seen = new HashSet<String>();
+        
+        for (int[] literal: literals) {
+            if (seen.add(new String(literal, 0, literal.length))) {
+                distinct.add(literal);
+            }
+        }
+        
+        return join(factor(distinct, 0));
+    }
+    
+    /**
+     * Alternatives which match the literals from offset on. The literals share the code points
+     * before offset.
+     */
+    private static List<String> factor(List<int[]> literals, int offset) {
+        List<String> alternatives = new ArrayList<String>();
+        int end = -1;
+        
+        for (int i = 0; i < literals.size(); i++) {
+            if (literals.get(i).length == offset) {
+                end = i;
+            }
+        }
+        
+        if (end < 0) {
+            group(literals, offset, alternatives);
+        } else {
+            // The literal which ends here is tried between the ones before and after it
+            group(literals.subList(0, end), offset, alternatives);
+            alternatives.add("");
+            group(literals.subList(end + 1, literals.size()), offset, alternatives);
+        }
+        
+        return alternatives;
+    }
+    
+    /**
+     * Group the literals, which all go on after offset, by their code point at offset. The
+     * groups are mutually exclusive, and are written in the order of their first literal.
+     */
+    private static void group(List<int[]> literals, int offset, List<String> alternatives) {
+        Map<Integer, List<int[]>> groups = new LinkedHashMap<Integer, List<int[]>>();
+        
+        for (int[] literal: literals) {
+            List<int[]> group = groups.get(literal[offset]);
+            if (group == null) {
+                group = new ArrayList<int[]>();
+                groups.put(literal[offset], group);
+            }
+            group.add(literal);
+        }
+        
+        for (List<int[]> group: groups.values()) {
+            int[] first = group.get(0);
+            int common = first.length;
+            
+            for (int[] literal: group) {
+                int i = offset;
+                while (i < common && i < literal.length && literal[i] == first[i]) {
+                    i++;
+                }
+                common = i;
+            }
+            
+            String prefix = OptimizationAdvisor.literal(Arrays.copyOfRange(first, offset, common));
+            
+            if (group.size() == 1) {
+                alternatives.add(prefix);
+            } else {
+                alternatives.add(prefix + optional(factor(group, common)));
+            }
+        }
+    }
+    
+    /**
+     * The alternatives as an atom: a character class if they are single characters, an optional
+     * group if one of two alternatives is empty, and a non-capturing group otherwise.
+     */
+    private static String optional(List<String> alternatives) {
+        if (alternatives.size() == 2 && (alternatives.get(0).isEmpty() || alternatives.get(1).isEmpty())) {
+            String other = alternatives.get(0).isEmpty() ? alternatives.get(1) : alternatives.get(0);
+            
+            // Greedy if the longer literal is tried first, lazy otherwise
+            return atom(other) + (alternatives.get(1).isEmpty() ? "?" : "??");
+        }
+        
+        return atom(join(alternatives));
+    }
+    
+    private static String atom(String regex) {
+        // A character class is only written by join()
+        return isSingleCharacter(regex) || regex.startsWith("[") ? regex : "(?:" + regex + ")";
+    }
+    
+    private static String join(List<String> alternatives) {
+        boolean singleCharacters = alternatives.size() > 1;
+        for (String alternative: alternatives) {
+            singleCharacters &= isSingleCharacter(alternative);
+        }
+        
+        StringBuilder sb = new StringBuilder();
+        
+        // Mutually exclusive characters, in a character class
+        if (singleCharacters) {
+            sb.append('[');
+            for (String alternative: alternatives) {
+                sb.append(alternative);
+            }
+            return sb.append(']').toString();
+        }
+        
+        for (int i = 0; i < alternatives.size(); i++) {
+            sb.append(i > 0 ? "|" : "").append(alternatives.get(i));
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Whether the regex written by OptimizationAdvisor.literal() is a single character.
+     */
+    private static boolean isSingleCharacter(String regex) {
+        return regex.codePointCount(0, regex.length()) == 1
+            || regex.length() == 2 && regex.charAt(0) == '\\'
+            || regex.startsWith("\\x{") && regex.indexOf('}') == regex.length() - 1;
+    }
+    
+    /**
+     * The pattern with the alternation replaced by its factored equivalent.
+     *
+     * @return null if the alternation is not written in the pattern as decoded (e.g. with \Q..\E
+     *         or escapes), or not as the whole content of a group or of the pattern
+     */
+    static String rewritePattern(DissectedPattern pattern, Rewrite rewrite) {
+        if ((pattern.flags() & Pattern.CANON_EQ) != 0) {
+            return null;
+        }
+        
+        String source = pattern.pattern();
+        int start = source.indexOf(rewrite.alternation);
+        int end = start + rewrite.alternation.length();
+        
+        if (start < 0 || source.indexOf(rewrite.alternation, start + 1) >= 0) {
+            return null;
+        }
+        
+        // After the opening of a group, e.g. ( or (?: or (?i: or (?<name>, and before its closing
+        boolean opened = start == 0 || source.charAt(start - 1) == '(' && (start < 2 || source.charAt(start - 2) != '\\')
+            || (source.charAt(start - 1) == ':' || source.charAt(start - 1) == '>') && source.lastIndexOf("(?", start) >= 0;
+        boolean closed = end == source.length() || source.charAt(end) == ')';
+        
+        if (!opened || !closed || (start == 0) != (end == source.length())) {
+            return null;
+        }
+        
+        return source.substring(0, start) + rewrite.factored + source.substring(end);
+    }
+    
+    /**
+     * Check that the factored alternation matches the same prefix as the original one on every
+     * literal followed by a character which is not in any of them.
+     *
+     * @return null if they agree, otherwise the first input they disagree on
+     */
+    static String verify(Rewrite rewrite, int flags) {
+        Matcher original = Pattern.compile(rewrite.alternation, flags).matcher("");
+        Matcher factored = Pattern.compile(rewrite.factored, flags).matcher("");
+        
+        for (int[] literal: rewrite.literals) {
+            String input = new String(literal, 0, literal.length) + "\u0000";
+            
+            boolean found = original.reset(input).lookingAt();
+            if (found != factored.reset(input).lookingAt() || found && original.end() != factored.end()) {
+                return input;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Check that the rewritten pattern finds the same matches as the original one in the input.
+     */
+    private static boolean sameMatches(String original, String rewritten, int flags, String input) {
+        Matcher before = Pattern.compile(original, flags).matcher(input);
+        Matcher after = Pattern.compile(rewritten, flags).matcher(input);
+        
+        while (before.find()) {
+            if (!after.find() || before.start() != after.start() || before.end() != after.end()) {
+                return false;
+            }
+        }
+        
+        return !after.find();
+    }
+    
+    /**
+     * Input for measuring the match time: lines of random lowercase letters, every tenth of them
+     * followed by one of the literals.
+     */
+    private static String sampleInput(List<int[]> literals) {
+        Random random = new Random(0);
+        StringBuilder sb = new StringBuilder();
+        
+        for (int i = 0; i < 1000; i++) {
+            for (int j = 0; j < 40; j++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            
+            if (i % 10 == 0) {
+                int[] literal = literals.get(random.nextInt(literals.size()));
+                sb.append(new String(literal, 0, literal.length));
+            }
+            sb.append('\n');
+        }
+        
+        return sb.toString();
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: PatternDissector --trie [--flags N] [--input FILE] [--time MS] (PATTERN | --file FILE|-)");
+        System.err.println();
+        System.err.println("Factor the alternations of literals of PATTERN into prefix tries. For every alternation of at");
+        System.err.println("least " + MIN_ALTERNATIVES + " literals, print the number of nodes and the Matcher.find() throughput over the input");
+        System.err.println("(the lines of FILE, or random text with some of the literals) before and after the rewrite.");
+    }
+    
+    /**
+     * Command line entry of the trie rewriter.
+     *
+     * @return exit status
+     */
+    static int run(String[] args) {
+        int flags = 0;
+        long time = 200;
+        String regex = null;
+        String file = null;
+        String inputFile = null;
+        
+        for (int i = 0; i < args.length; i++) {
+            if ((args[i].equals("--flags") || args[i].equals("--time")) && i + 1 < args.length) {
+                try {
+                    if (args[i].equals("--flags")) {
+                        flags = Integer.parseInt(args[++i]);
+                    } else {
+                        time = Long.parseLong(args[++i]);
+                    }
+                } catch (NumberFormatException e) {
+                    usage();
+                    return 2;
+                }
+            } else if (args[i].equals("--file") && i + 1 < args.length) {
+                file = args[++i];
+            } else if (args[i].equals("--input") && i + 1 < args.length) {
+                inputFile = args[++i];
+            } else if (regex == null) {
+                regex = args[i];
+            } else {
+                usage();
+                return 2;
+            }
+        }
+        
+        if ((regex == null) == (file == null)) {
+            usage();
+            return 2;
+        }
+        
+        try {
+            if (file != null) {
+                regex = GraphExporter.read(file);
+            }
+            
+            DissectedPattern pattern = PatternDissector.decode(regex, flags);
+            if (!pattern.isCompiled()) {
+                System.err.println(pattern.errorDescription());
+                return 2;
+            }
+            
+            List<Rewrite> rewrites = rewrites(pattern);
+            if (rewrites.isEmpty()) {
+                System.out.println("No alternation of at least " + MIN_ALTERNATIVES + " literals");
+                return 0;
+            }
+            
+            String input = inputFile != null ? GraphExporter.read(inputFile) : null;
+            DissectorBenchmark benchmark = new DissectorBenchmark(1, 3, time);
+            
+            for (Rewrite rewrite: rewrites) {
+                String mismatch = verify(rewrite, flags);
+                if (mismatch != null) {
+                    System.err.println("Factored alternation does not match " + mismatch + " as " + rewrite.alternation);
+                    return 1;
+                }
+                
+                String text = input != null ? input : sampleInput(rewrite.literals);
+                
+                // The whole pattern if the alternation can be replaced in it, the alternation alone otherwise
+                String rewritten = rewritePattern(pattern, rewrite);
+                if (rewritten != null && !sameMatches(regex, rewritten, flags, text)) {
+                    rewritten = null;
+                }
+                
+                String before = rewritten != null ? regex : rewrite.alternation;
+                String after = rewritten != null ? rewritten : rewrite.factored;
+                
+                DissectorBenchmark.Result beforeResult = benchmark.run(DissectorBenchmark.Operation.FIND, new DissectorBenchmark.Case("trie", before, flags, text));
+                DissectorBenchmark.Result afterResult = benchmark.run(DissectorBenchmark.Operation.FIND, new DissectorBenchmark.Case("trie", after, flags, text));
+                
+                System.out.println(BacktrackingAnalyzer.describe(rewrite.branch) + ": alternation of " + rewrite.literals.size() + " literals");
+                System.out.println("  nodes: " + PatternDissector.decode(before, flags).nodeCount() + " -> " + PatternDissector.decode(after, flags).nodeCount());
+                System.out.println(String.format("  find:  %.1f -> %.1f ops/s (x%.2f)", beforeResult.mean(), afterResult.mean(), afterResult.mean() / beforeResult.mean()));
+                System.out.println(rewritten != null ? "  pattern: " + rewritten : "  alternation: " + rewrite.factored);
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        } catch (Exception e) {
+            System.err.println("Rewrite failed: " + e);
+            return 1;
+        }
+        
+        return 0;
+    }
+}